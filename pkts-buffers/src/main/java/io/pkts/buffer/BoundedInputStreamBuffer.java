@@ -4,8 +4,27 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
+ * A buffer that reads off of an {@link InputStream} into a fixed size ring,
+ * so the memory used stays the same no matter how much is read. All indices
+ * are positions in the stream, i.e., they keep on growing as we read, and
+ * only the last "capacity" bytes read off of the stream are still around.
+ *
+ * By default, slices and the buffers returned by {@link #readBytes(int)} are
+ * copies, which stay around no matter how far the ring goes. Turn on pinning
+ * (see {@link #setPinning(boolean)}) to get views of the ring instead. A view
+ * that wraps around the end of the ring is made up of two segments, see
+ * {@link CompositeBuffer}. Since the bytes of a view will be overwritten once
+ * the ring comes around again, a view is reference counted (see
+ * {@link Buffer#retain()}) and the ring will refuse to read over a view until
+ * it has been released. Forget to release a view and you will eventually get
+ * an {@link IllegalStateException}.
+ *
  * @author jonas@jonasborjesson.com
  */
 public class BoundedInputStreamBuffer extends BaseBuffer {
@@ -34,6 +53,34 @@ public class BoundedInputStreamBuffer extends BaseBuffer {
 
     final int localCapacity;
 
+    /**
+     * If set, the buffers returned by {@link #readBytes(int)} come out of
+     * this pool rather than being allocated every time.
+     */
+    private PooledBufferAllocator allocator;
+
+    /**
+     * Whether slices are pinned views of the ring rather than copies.
+     */
+    private boolean pinning;
+
+    /**
+     * The views that haven't been released, lowest index first. A view
+     * removes itself as soon as it is released, which may be on any thread.
+     */
+    private final NavigableSet<Pin> pins = new ConcurrentSkipListSet<>();
+
+    /**
+     * The number of views handed out so far, which tells apart the ones
+     * starting at the same index.
+     */
+    private long views;
+
+    /**
+     * The lowest index whose byte is still in the ring.
+     */
+    private long firstIndex;
+
     public BoundedInputStreamBuffer(final InputStream is) {
         this(DEFAULT_CAPACITY, is);
     }
@@ -53,34 +100,92 @@ public class BoundedInputStreamBuffer extends BaseBuffer {
         buffer = new byte[bufferCapacity];
     }
 
+    /**
+     * From now on, copy the bytes read through {@link #readBytes(int)} into
+     * buffers of the given pool, which means that it is up to whoever is
+     * reading to {@link Buffer#release()} them once done.
+     *
+     * @param allocator
+     *            the pool, or null to go back to ordinary buffers.
+     */
+    public void setAllocator(final PooledBufferAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * From now on, hand out views of the ring from {@link #slice(long, long)}
+     * and {@link #readBytes(int)} rather than copies. The views are pinned,
+     * i.e., the ring will not read over them until they have been released
+     * (see {@link Buffer#release()}), so only turn this on if whoever is
+     * reading releases everything once done. The allocator, if any, is not
+     * used while pinning.
+     *
+     * @param pinning
+     */
+    public void setPinning(final boolean pinning) {
+        this.pinning = pinning;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public Buffer slice(final int start, final int stop) {
-        throw new RuntimeException(NOT_IMPLEMENTED_JUST_YET);
+        return slice((long) start, (long) stop);
+    }
+
+    /**
+     * Get the bytes between the given stream positions, reading them off of
+     * the stream if we haven't already. If pinning (see
+     * {@link #setPinning(boolean)}), the slice is a view that has to be
+     * released (see {@link Buffer#release()}) once you are done with it,
+     * otherwise it is a copy.
+     *
+     * @param start
+     * @param stop
+     * @return
+     * @throws IndexOutOfBoundsException
+     *             in case the bytes already have been overwritten or the
+     *             stream ends before <code>stop</code>.
+     * @throws IllegalArgumentException
+     *             in case the slice is larger than the ring.
+     */
+    public Buffer slice(final long start, final long stop) throws IndexOutOfBoundsException {
+        if (start > stop) {
+            throw new IllegalArgumentException("The start of the slice cannot be after the stop");
+        }
+
+        final long length = stop - start;
+        if (length > localCapacity) {
+            throw new IllegalArgumentException("Slice is too big: " + length + ", must be less or equals to " + localCapacity);
+        }
+
+        if (length == 0) {
+            return Buffers.EMPTY_BUFFER;
+        }
+
+        checkIndex(stop - 1);
+        checkIndex(start);
 
-//        final long length = stop - start;
-//        if (length > localCapacity) {
-//            throw new IllegalArgumentException("Slice is too big: " + length + ", must be less or equals to " + localCapacity);
-//        }
-//        checkIndex(this.lowerBoundary + start);
-//        checkIndex(this.lowerBoundary + stop - 1);
-//
-//        final int startPos = (int) (start % this.localCapacity);
-//        final int stopPos = (int) (stop % this.localCapacity);
-//
-//        if (startPos <= stopPos) {
-//            // All contained linearly in current buffer. REUSE buffer as-is.
-//            return new ByteBuffer(0, startPos, stopPos, this.buffer);
-//        } else {
-//            // Data is 'wrapped around' the buffer end, need to create a new buffer that ByteBuffer understands
-//            final byte[] resultBuffer = new byte[(int)length];
-//            final int firstCopyLength = localCapacity - startPos;
-//            System.arraycopy(this.buffer, startPos, resultBuffer, 0, firstCopyLength);
-//            System.arraycopy(this.buffer, 0, resultBuffer, firstCopyLength, stopPos );
-//            return new ByteBuffer(resultBuffer);
-//        }
+        if (!this.pinning) {
+            final byte[] copy = new byte[(int) length];
+            copy(start, copy, copy.length);
+            return Buffers.wrap(copy);
+        }
+
+        final Pin pin = new Pin(this.pins, start, this.views++);
+        this.pins.add(pin);
+
+        final int startPos = (int) (start % this.localCapacity);
+        final int stopPos = (int) ((stop - 1) % this.localCapacity) + 1;
+        if (startPos < stopPos) {
+            return new RingSlice(startPos, stopPos, this.buffer, pin);
+        }
+
+        // wraps around the end of the ring so we need two segments
+        final Buffer head = new RingSlice(startPos, this.localCapacity, this.buffer, pin);
+        final Buffer tail = new RingSlice(0, stopPos, this.buffer, pin);
+        return CompositeBuffer.wrap(new Buffer[] { head, tail }, head);
     }
 
     private static int assertSafeInt(final long value) {
@@ -139,23 +244,65 @@ public class BoundedInputStreamBuffer extends BaseBuffer {
             }
         }
 
-        // perhaps we should create a composite buffer instead of this
-        // copying???
-        int index = 0;
-        final byte[] buf = new byte[length];
-        while (index < length) {
-            final int spaceLeft = getAvailableLocalReadingSpace();
-            final int readAtMost = Math.min(length - index, spaceLeft);
-            final int localIndex = getLocalReaderIndex();
+        if (this.pinning) {
+            final Buffer view = slice(this.readerIndex, this.readerIndex + length);
+            this.readerIndex += length;
+            return view;
+        }
+
+        final Buffer pooled = this.allocator != null && length > 0 ? this.allocator.allocate(length) : null;
+        final byte[] buf = pooled != null ? pooled.getRawArray() : new byte[length];
+        copy(this.readerIndex, buf, length);
+        this.readerIndex += length;
 
-            System.arraycopy(this.buffer, localIndex, buf, index, readAtMost);
-            this.readerIndex += readAtMost;
-            index += readAtMost;
+        if (pooled != null) {
+            pooled.setWriterIndex(length);
+            return pooled;
         }
         return Buffers.wrap(buf);
 
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Whatever we already have buffered is consumed and the rest is skipped
+     * directly on the underlying stream, i.e., the skipped bytes are never
+     * copied and the length is not limited by the capacity of this buffer.
+     */
+    @Override
+    public void skipBytes(final int length) throws IndexOutOfBoundsException, IOException {
+        if (length < 0) {
+            throw new IllegalArgumentException("Cannot skip a negative number of bytes");
+        }
+
+        final int buffered = Math.min(length, getReadableBytes());
+        this.readerIndex += buffered;
+
+        long remaining = length - buffered;
+        while (remaining > 0) {
+            final long skipped = this.is.skip(remaining);
+            if (skipped > 0) {
+                remaining -= skipped;
+            } else if (this.is.read() != -1) {
+                // skip is allowed to skip nothing for whatever reason
+                // so read a single byte to find out if we're at the end
+                --remaining;
+            } else {
+                throw new IndexOutOfBoundsException("Not enough bytes left in the stream. Wanted to skip " + length
+                        + " but " + remaining + " were missing");
+            }
+        }
+
+        // the bytes we skipped on the stream never made it into the buffer
+        // so the writer index has to move along with the reader index
+        if (length > buffered) {
+            this.readerIndex += length - buffered;
+            this.writerIndex = this.readerIndex;
+            this.firstIndex = this.writerIndex;
+        }
+    }
+
     /**
      * Ensure that <code>length</code> more bytes are available in the internal
      * buffer. Read more bytes from the underlying stream if needed. This
@@ -192,15 +339,6 @@ public class BoundedInputStreamBuffer extends BaseBuffer {
         return (int) (this.writerIndex % this.localCapacity);
     }
 
-    /**
-     * Translates the global reader index into the local index within a row
-     *
-     * @return
-     */
-    private int getLocalReaderIndex() {
-        return (int) (this.readerIndex % this.localCapacity);
-    }
-
     /**
      * Since the underlying storage for this buffer is essentially a 2-D byte
      * array we sometimes need to find out how much capacity is left in a
@@ -213,12 +351,18 @@ public class BoundedInputStreamBuffer extends BaseBuffer {
     }
 
     /**
-     * Find out how many bytes are left to read in the current row
+     * Copy the bytes starting at the given stream position, which have to be
+     * in the ring, into the array.
      *
-     * @return
+     * @param start
+     * @param dst
+     * @param length
      */
-    private int getAvailableLocalReadingSpace() {
-        return this.localCapacity - getLocalReaderIndex();
+    private void copy(final long start, final byte[] dst, final int length) {
+        final int startPos = (int) (start % this.localCapacity);
+        final int head = Math.min(length, this.localCapacity - startPos);
+        System.arraycopy(this.buffer, startPos, dst, 0, head);
+        System.arraycopy(this.buffer, 0, dst, head, length - head);
     }
 
     /**
@@ -235,6 +379,12 @@ public class BoundedInputStreamBuffer extends BaseBuffer {
         if (getReadableBytes() + length > localCapacity ) {
             throw new IllegalArgumentException("Trying to read too far ahead, will cause wrap-around issues: " + length);
         }
+
+        final long pinned = getLowestPin();
+        if (pinned != -1 && this.writerIndex + length > pinned + this.localCapacity) {
+            throw new IllegalStateException("Reading another " + length + " bytes would overwrite a slice "
+                    + "starting at " + pinned + ", which hasn't been released");
+        }
         int total = 0;
         int actual = 0;
         while (total < length && actual != -1) {
@@ -250,9 +400,26 @@ public class BoundedInputStreamBuffer extends BaseBuffer {
                 total += actual;
             }
         }
+        this.firstIndex = Math.max(this.firstIndex, this.writerIndex - this.localCapacity);
         return total;
     }
 
+    /**
+     * @return the number of views that haven't been released.
+     */
+    int getPinned() {
+        return this.pins.size();
+    }
+
+    /**
+     * The lowest index referenced by a view that hasn't been released, or
+     * -1 if there is no such view.
+     */
+    private long getLowestPin() {
+        final Iterator<Pin> it = this.pins.iterator();
+        return it.hasNext() ? it.next().start : -1;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -324,6 +491,10 @@ public class BoundedInputStreamBuffer extends BaseBuffer {
      * @throws IOException
      */
     private void checkIndex(final long index) throws IndexOutOfBoundsException {
+        if (index < this.firstIndex) {
+            throw new IndexOutOfBoundsException("Index " + index + " has already been overwritten");
+        }
+
         final long missingBytes = index + 1 - this.writerIndex;
         if (missingBytes <= 0) {
             // we got all the bytes needed
@@ -438,9 +609,22 @@ public class BoundedInputStreamBuffer extends BaseBuffer {
         throw new RuntimeException(NOT_IMPLEMENTED_JUST_YET);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The clone is a copy of the bytes that have been read off of the stream
+     * but not yet consumed, i.e., nothing more is read off of the stream.
+     */
     @Override
     public Buffer clone() {
-        return null;
+        final int length = getReadableBytes();
+        if (length == 0) {
+            return Buffers.EMPTY_BUFFER;
+        }
+
+        final byte[] copy = new byte[length];
+        copy(this.readerIndex, copy, length);
+        return Buffers.wrap(copy);
     }
 
     /**
@@ -492,7 +676,9 @@ public class BoundedInputStreamBuffer extends BaseBuffer {
         // so for now we'll leave it as this until proven
         // slow
         final Buffer b = this.slice();
-        return b.toString();
+        final String s = b.toString();
+        b.release();
+        return s;
     }
 
     @Override
@@ -589,12 +775,12 @@ public class BoundedInputStreamBuffer extends BaseBuffer {
 
     @Override
     public int getReaderIndex() {
-        throw new RuntimeException(NOT_IMPLEMENTED_JUST_YET);
+        return assertSafeInt(this.readerIndex);
     }
 
     @Override
     public int getWriterIndex() {
-        throw new RuntimeException(NOT_IMPLEMENTED_JUST_YET);
+        return assertSafeInt(this.writerIndex);
     }
 
     @Override
@@ -629,12 +815,123 @@ public class BoundedInputStreamBuffer extends BaseBuffer {
 
     @Override
     public Buffer slice(final int stop) {
-        throw new RuntimeException(NOT_IMPLEMENTED_JUST_YET);
+        return slice(this.readerIndex, stop);
     }
 
     @Override
     public Buffer slice() {
-        throw new RuntimeException(NOT_IMPLEMENTED_JUST_YET);
+        return slice(this.readerIndex, this.writerIndex);
+    }
+
+    /**
+     * The reference count of a view, which is shared by all of its segments
+     * and slices. The count may drop to zero on any thread, at which point
+     * the pin is taken out of the set of pins right away.
+     */
+    private static final class Pin implements Comparable<Pin> {
+
+        private static final AtomicIntegerFieldUpdater<Pin> REF_CNT = AtomicIntegerFieldUpdater
+                .newUpdater(Pin.class, "refCnt");
+
+        private final NavigableSet<Pin> pins;
+        private final long start;
+        private final long sequence;
+        private volatile int refCnt = 1;
+
+        private Pin(final NavigableSet<Pin> pins, final long start, final long sequence) {
+            this.pins = pins;
+            this.start = start;
+            this.sequence = sequence;
+        }
+
+        private void retain() {
+            int count;
+            do {
+                count = this.refCnt;
+                if (count == 0) {
+                    throw new IllegalStateException("The slice has already been released");
+                }
+            } while (!REF_CNT.compareAndSet(this, count, count + 1));
+        }
+
+        private boolean release() {
+            int count;
+            do {
+                count = this.refCnt;
+                if (count == 0) {
+                    throw new IllegalStateException("The slice has already been released");
+                }
+            } while (!REF_CNT.compareAndSet(this, count, count - 1));
+
+            if (count == 1) {
+                this.pins.remove(this);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public int compareTo(final Pin other) {
+            final int compare = Long.compare(this.start, other.start);
+            return compare != 0 ? compare : Long.compare(this.sequence, other.sequence);
+        }
+    }
+
+    /**
+     * A contiguous part of the ring. All the slices of it are ring slices as
+     * well, sharing the same pin.
+     */
+    private static final class RingSlice extends ByteBuffer {
+
+        private final Pin pin;
+
+        private RingSlice(final int lowerBoundary, final int upperBoundary, final byte[] buffer, final Pin pin) {
+            super(0, lowerBoundary, upperBoundary, upperBoundary, buffer);
+            this.pin = pin;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Buffer slice(final int start, final int stop) {
+            if (start == stop) {
+                return Buffers.EMPTY_BUFFER;
+            }
+            checkIndex(this.lowerBoundary + start);
+            checkIndex(this.lowerBoundary + stop - 1);
+            return new RingSlice(this.lowerBoundary + start, this.lowerBoundary + stop, this.buffer, this.pin);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Buffer readBytes(final int length) throws IndexOutOfBoundsException {
+            if (length == 0) {
+                return Buffers.EMPTY_BUFFER;
+            }
+            checkReadableBytes(length);
+            final int lowerBoundary = this.readerIndex + this.lowerBoundary;
+            this.readerIndex += length;
+            return new RingSlice(lowerBoundary, this.readerIndex + this.lowerBoundary, this.buffer, this.pin);
+        }
+
+        @Override
+        public Buffer retain() {
+            this.pin.retain();
+            return this;
+        }
+
+        @Override
+        public boolean release() throws IllegalStateException {
+            return this.pin.release();
+        }
+
+        @Override
+        public int refCnt() {
+            return this.pin.refCnt;
+        }
     }
 
 }
@@ -77,6 +77,25 @@ public interface Buffer extends Cloneable {
      */
     Buffer readBytes(int length) throws IndexOutOfBoundsException, IOException;
 
+    /**
+     * Skip the requested number of bytes, i.e., increase the readerIndex with
+     * the corresponding number of bytes without handing them back to the
+     * caller.
+     *
+     * The default implementation simply reads the bytes and throws them away,
+     * which is fine for buffers where {@link #readBytes(int)} is a cheap
+     * slice. Buffers that would have to copy the bytes (such as those backed
+     * by a stream) should override this and skip them for real.
+     *
+     * @param length
+     * @throws IndexOutOfBoundsException in case there are not enough bytes left
+     *         to skip.
+     * @throws IOException
+     */
+    default void skipBytes(final int length) throws IndexOutOfBoundsException, IOException {
+        readBytes(length);
+    }
+
     /**
      * Reads a line, i.e., it reads until we hit a line feed ('\n') or a
      * carriage return ('\r'), or a carriage return followed immediately by a
@@ -160,6 +179,62 @@ public interface Buffer extends Cloneable {
         return getArray();
     }
 
+    /**
+     * Get the readable bytes of this buffer as a {@link java.nio.ByteBuffer},
+     * e.g. in order to hand them to a channel. Buffers that are backed by an
+     * array, or by a {@link java.nio.ByteBuffer} to begin with, share their
+     * bytes with the returned buffer while the rest have to copy them.
+     *
+     * Either way, the reader index of this buffer is left alone.
+     *
+     * @return
+     */
+    default java.nio.ByteBuffer toByteBuffer() {
+        return java.nio.ByteBuffer.wrap(getArray());
+    }
+
+    /**
+     * Buffers handed out by a {@link PooledBufferAllocator} are reference
+     * counted and their memory goes back to the pool once the count reaches
+     * zero. The same goes for the views of a
+     * {@link BoundedInputStreamBuffer} that is pinning them (see
+     * {@link BoundedInputStreamBuffer#setPinning(boolean)}), whose bytes may
+     * be overwritten once released. Call this if you need the bytes to stay
+     * around for longer than whoever handed you the buffer intends to keep
+     * them, and {@link #release()} once you are done with them. Slices share
+     * the count of the buffer they were sliced out of.
+     *
+     * For all other buffers, this does nothing.
+     *
+     * @return this buffer.
+     */
+    default Buffer retain() {
+        return this;
+    }
+
+    /**
+     * Decrease the reference count of this buffer, see {@link #retain()}.
+     * Once the count reaches zero, the buffer, and all of its slices, must
+     * not be used anymore.
+     *
+     * @return true if the count reached zero and the memory can be reused,
+     *         false otherwise, which always is the case for buffers
+     *         that aren't pooled.
+     * @throws IllegalStateException
+     *             in case the buffer already has been released.
+     */
+    default boolean release() throws IllegalStateException {
+        return false;
+    }
+
+    /**
+     * @return the reference count of this buffer, which is always one for
+     *         buffers that aren't pooled.
+     */
+    default int refCnt() {
+        return 1;
+    }
+
     /**
      * Check whether a particular bit within a byte is on or off.
      *
@@ -99,6 +99,41 @@ public final class Buffers {
         return new ByteBuffer(0, 0, buffer.length, 0, buffer);
     }
 
+    /**
+     * Create a new Buffer whose bytes live outside of the heap.
+     * 
+     * @param capacity
+     * @return
+     */
+    public static Buffer createDirectBuffer(final int capacity) {
+        final java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocateDirect(capacity);
+        return new DirectBuffer(0, 0, capacity, 0, buffer);
+    }
+
+    /**
+     * Wrap the remaining bytes, i.e. the bytes between the position and the
+     * limit, of the supplied {@link java.nio.ByteBuffer}, which typically is
+     * direct memory. The bytes are shared, not copied, but the position and
+     * limit of the supplied buffer are left alone and changing them later on
+     * will not affect the returned buffer.
+     * 
+     * @param buffer
+     * @return
+     */
+    public static Buffer wrapDirect(final java.nio.ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("the buffer cannot be null");
+        }
+
+        if (!buffer.hasRemaining()) {
+            return Buffers.EMPTY_BUFFER;
+        }
+
+        final java.nio.ByteBuffer slice = buffer.slice();
+        final int size = slice.remaining();
+        return new DirectBuffer(0, 0, size, size, slice);
+    }
+
     /**
      * Wrap the supplied byte array
      * 
@@ -140,7 +175,6 @@ public final class Buffers {
      * @return
      */
     public static Buffer wrap(final Buffer one, final Buffer two) {
-        // TODO: create an actual composite buffer. 
         final int size1 = one != null ? one.getReadableBytes() : 0;
         final int size2 = two != null ? two.getReadableBytes() : 0;
         if (size1 == 0 && size2 > 0) {
@@ -151,10 +185,19 @@ public final class Buffers {
             return Buffers.EMPTY_BUFFER;
         }
 
-        final Buffer composite = Buffers.createBuffer(size1 + size2);
-        one.getBytes(composite);
-        two.getBytes(composite);
-        return composite;
+        return CompositeBuffer.wrap(one, two);
+    }
+
+    /**
+     * Combine any number of buffers into one, which just as for
+     * {@link #wrap(Buffer, Buffer)} will share the underlying byte storage.
+     * Buffers that are null or empty are skipped.
+     * 
+     * @param buffers
+     * @return
+     */
+    public static Buffer wrap(final Buffer... buffers) {
+        return CompositeBuffer.wrap(buffers);
     }
 
     /**
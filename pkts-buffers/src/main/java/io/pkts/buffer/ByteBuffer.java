@@ -16,7 +16,7 @@ import java.nio.charset.StandardCharsets;
  * 
  * @author jonas@jonasborjesson.com
  */
-public final class ByteBuffer extends AbstractBuffer {
+public class ByteBuffer extends AbstractBuffer {
 
     /**
      * The actual buffer
@@ -131,6 +131,11 @@ public final class ByteBuffer extends AbstractBuffer {
         return this.buffer;
     }
 
+    @Override
+    public java.nio.ByteBuffer toByteBuffer() {
+        return java.nio.ByteBuffer.wrap(this.buffer, this.lowerBoundary + this.readerIndex, getReadableBytes()).slice();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -297,6 +302,9 @@ public final class ByteBuffer extends AbstractBuffer {
             if (this == other) {
                 return true;
             }
+            if (!(other instanceof ByteBuffer) && other instanceof Buffer) {
+                return internalEqualsAnyBuffer(ignoreCase, (Buffer) other);
+            }
             final ByteBuffer b = (ByteBuffer) other;
             if (getReadableBytes() != b.getReadableBytes()) {
                 return false;
@@ -337,6 +345,38 @@ public final class ByteBuffer extends AbstractBuffer {
         }
     }
 
+    /**
+     * Compare the readable bytes of this buffer with those of a buffer that
+     * isn't backed by a byte-array, such as a view into a memory mapped file.
+     */
+    private boolean internalEqualsAnyBuffer(final boolean ignoreCase, final Buffer b) {
+        final int length = getReadableBytes();
+        if (length != b.getReadableBytes()) {
+            return false;
+        }
+
+        try {
+            final int otherStart = b.getReaderIndex();
+            for (int i = 0; i < length; ++i) {
+                final byte a1 = this.buffer[this.lowerBoundary + this.readerIndex + i];
+                final byte b1 = b.getByte(otherStart + i);
+                if (a1 != b1) {
+                    if (ignoreCase &&
+                            ((a1 >= 'A' && a1 <= 'Z') || (a1 >= 'a' && a1 <= 'z')) &&
+                            ((b1 >= 'A' && b1 <= 'Z') || (b1 >= 'a' && b1 <= 'z')) &&
+                            (a1 & 0x1f) == (b1 & 0x1f)) {
+                        continue;
+                    }
+                    return false;
+                }
+            }
+        } catch (final IOException e) {
+            return false;
+        }
+
+        return true;
+    }
+
     /**
      * 
      * {@inheritDoc}
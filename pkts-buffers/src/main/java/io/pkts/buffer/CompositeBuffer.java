@@ -0,0 +1,636 @@
+/**
+ *
+ */
+package io.pkts.buffer;
+
+import com.google.polo.pairing.HexDump;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A buffer made up of the readable bytes of several other buffers, without
+ * copying any of them. The bytes of every component are looked at through a
+ * {@link java.nio.ByteBuffer} (see {@link Buffer#toByteBuffer()}) so buffers
+ * backed by an array, or by a {@link java.nio.ByteBuffer}, share their bytes
+ * with the composite buffer while any other kind of buffer is copied once, up
+ * front.
+ *
+ * All the indices work exactly the same as for the {@link ByteBuffer}, as if
+ * all the components had been laid out after each other. Wrapping a
+ * composite buffer flattens it, i.e., we never end up with composites of
+ * composites, and slicing out bytes that all belong to the same component
+ * gives you an ordinary buffer of that component.
+ *
+ * A composite buffer may have an owner, which is the buffer it takes its
+ * reference count from (see {@link Buffer#retain()}). Views of a ring, such
+ * as the slices of the {@link BoundedInputStreamBuffer}, use this so that
+ * the view as a whole is retained and released.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+final class CompositeBuffer extends AbstractBuffer {
+
+    /**
+     * The components, which are always sliced so that their bytes start at
+     * position zero and are in big endian. Just as for the
+     * {@link DirectBuffer}, we only use the absolute get/put methods so
+     * the components can be shared between all the slices.
+     */
+    private final java.nio.ByteBuffer[] components;
+
+    /**
+     * The index at which each component starts, with one extra entry at the
+     * end for where the last component ends.
+     */
+    private final int[] offsets;
+
+    /**
+     * The component we accessed last. Most reads are sequential and will hit
+     * the same component again so we check that one before searching.
+     */
+    private int current;
+
+    /**
+     * The buffer whose reference count we share, if any.
+     */
+    private final Buffer owner;
+
+    private CompositeBuffer(final int readerIndex, final int lowerBoundary, final int upperBoundary,
+            final int writerIndex, final java.nio.ByteBuffer[] components, final int[] offsets, final Buffer owner) {
+        super(readerIndex, lowerBoundary, upperBoundary, writerIndex);
+        this.components = components;
+        this.offsets = offsets;
+        this.owner = owner;
+    }
+
+    /**
+     * Combine the readable bytes of the given buffers, in the given order.
+     * Buffers that are null or empty are skipped.
+     *
+     * @param buffers
+     * @return
+     */
+    static Buffer wrap(final Buffer... buffers) {
+        return wrap(buffers, null);
+    }
+
+    /**
+     * Same as {@link #wrap(Buffer...)} but the composite buffer, and any
+     * composite view of it, shares the reference count of the owner.
+     *
+     * @param buffers
+     * @param owner
+     * @return
+     */
+    static Buffer wrap(final Buffer[] buffers, final Buffer owner) {
+        final List<java.nio.ByteBuffer> components = new ArrayList<>(buffers.length);
+        for (final Buffer buffer : buffers) {
+            if (buffer == null || buffer.isEmpty()) {
+                continue;
+            }
+
+            if (buffer instanceof CompositeBuffer) {
+                ((CompositeBuffer) buffer).addComponents(components);
+            } else {
+                components.add(buffer.toByteBuffer().slice());
+            }
+        }
+
+        if (components.isEmpty()) {
+            return Buffers.EMPTY_BUFFER;
+        }
+
+        if (components.size() == 1) {
+            final java.nio.ByteBuffer component = components.get(0);
+            return wrap(component, 0, component.remaining());
+        }
+
+        final java.nio.ByteBuffer[] array = components.toArray(new java.nio.ByteBuffer[components.size()]);
+        final int[] offsets = new int[array.length + 1];
+        for (int i = 0; i < array.length; ++i) {
+            offsets[i + 1] = offsets[i] + array[i].remaining();
+        }
+
+        final int size = offsets[array.length];
+        return new CompositeBuffer(0, 0, size, size, array, offsets, owner);
+    }
+
+    /**
+     * A buffer of the given bytes of a single component, which is an ordinary
+     * {@link ByteBuffer} if the component is backed by an array.
+     */
+    private static Buffer wrap(final java.nio.ByteBuffer component, final int offset, final int length) {
+        if (component.hasArray()) {
+            final int start = component.arrayOffset() + offset;
+            return new ByteBuffer(0, start, start + length, component.array());
+        }
+        return new DirectBuffer(0, offset, offset + length, offset + length, component);
+    }
+
+    /**
+     * Add the readable bytes of this buffer, as components, to the list.
+     */
+    private void addComponents(final List<java.nio.ByteBuffer> list) {
+        final int start = this.lowerBoundary + this.readerIndex;
+        for (int c = component(start); c < this.components.length && this.offsets[c] < this.writerIndex; ++c) {
+            final int from = Math.max(start, this.offsets[c]);
+            final int to = Math.min(this.writerIndex, this.offsets[c + 1]);
+            list.add(this.components[c].slice(from - this.offsets[c], to - from));
+        }
+    }
+
+    /**
+     * Find the component of the given (absolute) index.
+     */
+    private int component(final int index) {
+        final int c = this.current;
+        if (index >= this.offsets[c] && index < this.offsets[c + 1]) {
+            return c;
+        }
+
+        int low = 0;
+        int high = this.components.length - 1;
+        while (low < high) {
+            final int middle = low + high + 1 >>> 1;
+            if (this.offsets[middle] <= index) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        this.current = low;
+        return low;
+    }
+
+    private byte get(final int index) {
+        final int c = component(index);
+        return this.components[c].get(index - this.offsets[c]);
+    }
+
+    private void put(final int index, final byte value) {
+        final int c = component(index);
+        this.components[c].put(index - this.offsets[c], value);
+    }
+
+    /**
+     * Copy the bytes between the given (absolute) indices into the array.
+     */
+    private void copy(final int from, final int to, final byte[] dst, final int offset) {
+        int index = from;
+        while (index < to) {
+            final int c = component(index);
+            final int length = Math.min(to, this.offsets[c + 1]) - index;
+            this.components[c].get(index - this.offsets[c], dst, offset + index - from, length);
+            index += length;
+        }
+    }
+
+    /**
+     * A buffer of the bytes between the given (absolute) indices, which only
+     * is a composite buffer if those bytes span more than one component.
+     */
+    private Buffer view(final int from, final int to) {
+        final int c = component(from);
+        if (to <= this.offsets[c + 1]) {
+            return wrap(this.components[c], from - this.offsets[c], to - from);
+        }
+        return new CompositeBuffer(0, from, to, to, this.components, this.offsets, this.owner);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer slice(final int start, final int stop) {
+        if (start == stop) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        checkIndex(this.lowerBoundary + start);
+        checkIndex(this.lowerBoundary + stop - 1);
+        return view(this.lowerBoundary + start, this.lowerBoundary + stop);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer readBytes(final int length) throws IndexOutOfBoundsException {
+        if (length == 0) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        checkReadableBytes(length);
+        final int from = this.lowerBoundary + this.readerIndex;
+        this.readerIndex += length;
+        return view(from, from + length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasReadableBytes() {
+        return getReadableBytes() > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        return getReadableBytes() == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte getByte(final int index) throws IndexOutOfBoundsException {
+        checkIndex(this.lowerBoundary + index);
+        return get(this.lowerBoundary + index);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte readByte() throws IndexOutOfBoundsException {
+        return getByte(this.readerIndex++);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte peekByte() throws IndexOutOfBoundsException, IOException {
+        return getByte(this.readerIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Note that the bytes are spread out over several components so the
+     * array returned is always a copy of the readable bytes.
+     */
+    @Override
+    public byte[] getArray() {
+        final int from = this.lowerBoundary + this.readerIndex;
+        final byte[] array = new byte[getReadableBytes()];
+        copy(from, this.writerIndex, array, 0);
+        return array;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The returned buffer only shares the bytes with this buffer if they all
+     * belong to the same component, otherwise they are copied.
+     */
+    @Override
+    public java.nio.ByteBuffer toByteBuffer() {
+        final int from = this.lowerBoundary + this.readerIndex;
+        final int c = component(from);
+        if (this.writerIndex <= this.offsets[c + 1]) {
+            return this.components[c].slice(from - this.offsets[c], this.writerIndex - from);
+        }
+        return java.nio.ByteBuffer.wrap(getArray());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long readUnsignedInt() throws IndexOutOfBoundsException {
+        return readInt() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readInt() throws IndexOutOfBoundsException {
+        final int value = getInt(this.readerIndex);
+        this.readerIndex += 4;
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short readShort() throws IndexOutOfBoundsException {
+        final short value = getShort(this.readerIndex);
+        this.readerIndex += 2;
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readUnsignedShort() {
+        return readShort() & 0xFFFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getInt(final int index) {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 3);
+        final int c = component(i);
+        if (i + 4 <= this.offsets[c + 1]) {
+            return this.components[c].getInt(i - this.offsets[c]);
+        }
+        return (get(i) & 0xff) << 24 | (get(i + 1) & 0xff) << 16 | (get(i + 2) & 0xff) << 8 | get(i + 3) & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getShort(final int index) {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 1);
+        final int c = component(i);
+        if (i + 2 <= this.offsets[c + 1]) {
+            return this.components[c].getShort(i - this.offsets[c]);
+        }
+        return (short) (get(i) << 8 | get(i + 1) & 0xFF);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getUnsignedShort(final int index) throws IndexOutOfBoundsException {
+        return getShort(index) & 0xFFFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getUnsignedInt(final int index) throws IndexOutOfBoundsException {
+        return getInt(index) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getUnsignedByte(final int index) throws IndexOutOfBoundsException {
+        return (short) (getByte(index) & 0xFF);
+    }
+
+    @Override
+    public void setUnsignedShort(final int index, final int value) {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 1);
+        put(i, (byte) (value >> 8));
+        put(i + 1, (byte) value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setByte(final int index, final byte value) throws IndexOutOfBoundsException {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        put(i, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setUnsignedByte(final int index, final short value) throws IndexOutOfBoundsException {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        put(i, (byte) value);
+    }
+
+    @Override
+    public void setInt(final int index, final int value) throws IndexOutOfBoundsException {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 3);
+        put(i, (byte) (value >>> 24));
+        put(i + 1, (byte) (value >>> 16));
+        put(i + 2, (byte) (value >>> 8));
+        put(i + 3, (byte) value);
+    }
+
+    /**
+     * Same as {@link ByteBuffer#setUnsignedInt(int, long)}, which writes the
+     * value in little endian.
+     */
+    @Override
+    public void setUnsignedInt(final int index, final long value) throws IndexOutOfBoundsException {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 3);
+        put(i, (byte) value);
+        put(i + 1, (byte) (value >>> 8));
+        put(i + 2, (byte) (value >>> 16));
+        put(i + 3, (byte) (value >>> 24));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String dumpAsHex() {
+        final int length = capacity();
+        final byte[] array = new byte[length];
+        copy(this.lowerBoundary, this.upperBoundary, array, 0);
+        return HexDump.dumpHexString(array, 0, length);
+    }
+
+    /**
+     * Cloning a composite buffer will copy all the bytes into a single array.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer clone() {
+        final byte[] copy = new byte[capacity()];
+        copy(this.lowerBoundary, this.upperBoundary, copy, 0);
+        return new ByteBuffer(copy);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer retain() {
+        if (this.owner != null) {
+            this.owner.retain();
+        }
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean release() throws IllegalStateException {
+        return this.owner != null && this.owner.release();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int refCnt() {
+        return this.owner != null ? this.owner.refCnt() : 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = this.lowerBoundary + this.readerIndex; i < this.upperBoundary; ++i) {
+            result = 31 * result + get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Two buffers are equal if their readable bytes are the same, no matter
+     * how those bytes are stored.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(final Object other) {
+        return internalEquals(false, other);
+    }
+
+    @Override
+    public boolean equalsIgnoreCase(final Object other) {
+        return internalEquals(true, other);
+    }
+
+    private boolean internalEquals(final boolean ignoreCase, final Object other) {
+        if (this == other) {
+            return true;
+        }
+
+        if (!(other instanceof Buffer)) {
+            return false;
+        }
+
+        final Buffer b = (Buffer) other;
+        final int length = getReadableBytes();
+        if (length != b.getReadableBytes()) {
+            return false;
+        }
+
+        try {
+            final int start = this.lowerBoundary + this.readerIndex;
+            final int otherStart = b.getReaderIndex();
+            for (int i = 0; i < length; ++i) {
+                final byte a1 = get(start + i);
+                final byte b1 = b.getByte(otherStart + i);
+                if (a1 != b1) {
+                    // see ByteBuffer#internalEquals for why this works
+                    if (ignoreCase && isAsciiLetter(a1) && isAsciiLetter(b1) && (a1 & 0x1f) == (b1 & 0x1f)) {
+                        continue;
+                    }
+                    return false;
+                }
+            }
+        } catch (final IOException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    private static boolean isAsciiLetter(final byte b) {
+        return b >= 'A' && b <= 'Z' || b >= 'a' && b <= 'z';
+    }
+
+    @Override
+    public String toString() {
+        return new String(getArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void getBytes(final Buffer dst) {
+        getBytes(getReaderIndex(), dst);
+    }
+
+    @Override
+    public void getBytes(final int index, final Buffer dst) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index less than zero");
+        }
+        final int max = dst.getWritableBytes();
+        final int stop = Math.min(this.lowerBoundary + index + max, this.writerIndex);
+        for (int i = this.lowerBoundary + index; i < stop; ++i) {
+            dst.write(get(i));
+        }
+    }
+
+    @Override
+    public void getBytes(final byte[] dst) throws IndexOutOfBoundsException {
+        final int from = this.lowerBoundary + this.readerIndex;
+        final int length = Math.min(dst.length, getReadableBytes());
+        copy(from, from + length, dst, 0);
+    }
+
+    @Override
+    public int getWritableBytes() {
+        return 0;
+    }
+
+    @Override
+    public void write(final byte[] bytes) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException("Cannot write to a composite buffer");
+    }
+
+    @Override
+    public void write(final int value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException("Cannot write to a composite buffer");
+    }
+
+    @Override
+    public void write(final long value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException("Cannot write to a composite buffer");
+    }
+
+    @Override
+    public void writeAsString(final int value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException("Cannot write to a composite buffer");
+    }
+
+    @Override
+    public void writeAsString(final long value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException("Cannot write to a composite buffer");
+    }
+
+    @Override
+    public void write(final String s) throws IndexOutOfBoundsException, WriteNotSupportedException,
+    UnsupportedEncodingException {
+        throw new WriteNotSupportedException("Cannot write to a composite buffer");
+    }
+
+    @Override
+    public void write(final String s, final String charset) throws IndexOutOfBoundsException,
+    WriteNotSupportedException, UnsupportedEncodingException {
+        throw new WriteNotSupportedException("Cannot write to a composite buffer");
+    }
+
+}
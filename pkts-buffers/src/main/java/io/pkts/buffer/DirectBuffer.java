@@ -0,0 +1,485 @@
+/**
+ *
+ */
+package io.pkts.buffer;
+
+import com.google.polo.pairing.HexDump;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A buffer over a {@link java.nio.ByteBuffer}, which typically is direct
+ * memory, i.e. memory outside of the heap, such as one of the segments of a
+ * {@link MappedFileBuffer} or a buffer created through
+ * {@link Buffers#createDirectBuffer(int)}. All slices share that memory so
+ * creating one of these is cheap and doesn't copy any of the bytes it is
+ * looking at, nor does it put any pressure on the garbage collector.
+ *
+ * All the indices work exactly the same as for the {@link ByteBuffer}, the
+ * only difference is that the bytes are read out of a {@link java.nio.ByteBuffer}
+ * using absolute positions instead of an ordinary byte-array. Note that
+ * {@link #getArray()} has to copy the bytes onto the heap so stay away from
+ * it wherever performance matters.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+final class DirectBuffer extends AbstractBuffer {
+
+    /**
+     * The memory we are looking at. Note that we only ever use the absolute get/put
+     * methods on this one so its position and limit are never changed and
+     * therefore it is safe to share it between all the slices.
+     */
+    private final java.nio.ByteBuffer buffer;
+
+    DirectBuffer(final int readerIndex, final int lowerBoundary, final int upperBoundary,
+            final int writerIndex, final java.nio.ByteBuffer buffer) {
+        super(readerIndex, lowerBoundary, upperBoundary, writerIndex);
+        assert buffer != null;
+        this.buffer = buffer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer slice(final int start, final int stop) {
+        if (start == stop) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        checkIndex(this.lowerBoundary + start);
+        checkIndex(this.lowerBoundary + stop - 1);
+        final int upperBoundary = this.lowerBoundary + stop;
+        final int writerIndex = upperBoundary;
+        return new DirectBuffer(0, this.lowerBoundary + start, upperBoundary, writerIndex, this.buffer);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer readBytes(final int length) throws IndexOutOfBoundsException {
+        if (length == 0) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        checkReadableBytes(length);
+        final int lowerBoundary = this.readerIndex + this.lowerBoundary;
+        this.readerIndex += length;
+        final int upperBoundary = this.readerIndex + this.lowerBoundary;
+        final int writerIndex = upperBoundary;
+        return new DirectBuffer(0, lowerBoundary, upperBoundary, writerIndex, this.buffer);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasReadableBytes() {
+        return getReadableBytes() > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        return getReadableBytes() == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte getByte(final int index) throws IndexOutOfBoundsException {
+        checkIndex(this.lowerBoundary + index);
+        return this.buffer.get(this.lowerBoundary + index);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte readByte() throws IndexOutOfBoundsException {
+        return getByte(this.readerIndex++);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte peekByte() throws IndexOutOfBoundsException, IOException {
+        return getByte(this.readerIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Note that since the bytes live outside of the heap, the array returned
+     * is always a copy of the readable bytes.
+     */
+    @Override
+    public byte[] getArray() {
+        final int length = getReadableBytes();
+        final byte[] array = new byte[length];
+        this.buffer.get(this.lowerBoundary + this.readerIndex, array, 0, length);
+        return array;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The returned buffer is a slice of the underlying memory so nothing is
+     * copied.
+     */
+    @Override
+    public java.nio.ByteBuffer toByteBuffer() {
+        return this.buffer.slice(this.lowerBoundary + this.readerIndex, getReadableBytes());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long readUnsignedInt() throws IndexOutOfBoundsException {
+        return readInt() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readInt() throws IndexOutOfBoundsException {
+        final int value = getInt(this.readerIndex);
+        this.readerIndex += 4;
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short readShort() throws IndexOutOfBoundsException {
+        final short value = getShort(this.readerIndex);
+        this.readerIndex += 2;
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readUnsignedShort() {
+        return readShort() & 0xFFFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getInt(final int index) {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 3);
+        return (this.buffer.get(i) & 0xff) << 24 | (this.buffer.get(i + 1) & 0xff) << 16
+                | (this.buffer.get(i + 2) & 0xff) << 8 | this.buffer.get(i + 3) & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getShort(final int index) {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 1);
+        return (short) (this.buffer.get(i) << 8 | this.buffer.get(i + 1) & 0xFF);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getUnsignedShort(final int index) throws IndexOutOfBoundsException {
+        return getShort(index) & 0xFFFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getUnsignedInt(final int index) throws IndexOutOfBoundsException {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 3);
+        return Buffer.unsignedInt(this.buffer.get(i), this.buffer.get(i + 1), this.buffer.get(i + 2),
+                this.buffer.get(i + 3));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getUnsignedByte(final int index) throws IndexOutOfBoundsException {
+        return (short) (getByte(index) & 0xFF);
+    }
+
+    @Override
+    public void setUnsignedShort(final int index, final int value) {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 1);
+        this.buffer.put(i, (byte) (value >> 8));
+        this.buffer.put(i + 1, (byte) value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setByte(final int index, final byte value) throws IndexOutOfBoundsException {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        this.buffer.put(i, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setUnsignedByte(final int index, final short value) throws IndexOutOfBoundsException {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        this.buffer.put(i, (byte) value);
+    }
+
+    @Override
+    public void setInt(final int index, final int value) throws IndexOutOfBoundsException {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 3);
+        this.buffer.put(i, (byte) (value >>> 24));
+        this.buffer.put(i + 1, (byte) (value >>> 16));
+        this.buffer.put(i + 2, (byte) (value >>> 8));
+        this.buffer.put(i + 3, (byte) value);
+    }
+
+    /**
+     * Same as {@link ByteBuffer#setUnsignedInt(int, long)}, which writes the
+     * value in little endian.
+     */
+    @Override
+    public void setUnsignedInt(final int index, final long value) throws IndexOutOfBoundsException {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 3);
+        this.buffer.put(i, (byte) value);
+        this.buffer.put(i + 1, (byte) (value >>> 8));
+        this.buffer.put(i + 2, (byte) (value >>> 16));
+        this.buffer.put(i + 3, (byte) (value >>> 24));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String dumpAsHex() {
+        final int length = capacity();
+        final byte[] array = new byte[length];
+        this.buffer.get(this.lowerBoundary, array, 0, length);
+        return HexDump.dumpHexString(array, 0, length);
+    }
+
+    /**
+     * Cloning a direct buffer will copy the bytes onto the heap.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer clone() {
+        final int size = capacity();
+        final byte[] copy = new byte[size];
+        this.buffer.get(this.lowerBoundary, copy, 0, size);
+        return new ByteBuffer(copy);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = this.lowerBoundary + this.readerIndex; i < this.upperBoundary; ++i) {
+            result = 31 * result + this.buffer.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Two buffers are equal if their readable bytes are the same, no matter
+     * if the bytes live outside of the heap or not.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(final Object other) {
+        return internalEquals(false, other);
+    }
+
+    @Override
+    public boolean equalsIgnoreCase(final Object other) {
+        return internalEquals(true, other);
+    }
+
+    private boolean internalEquals(final boolean ignoreCase, final Object other) {
+        if (this == other) {
+            return true;
+        }
+
+        if (!(other instanceof Buffer)) {
+            return false;
+        }
+
+        final Buffer b = (Buffer) other;
+        final int length = getReadableBytes();
+        if (length != b.getReadableBytes()) {
+            return false;
+        }
+
+        try {
+            final int otherStart = b.getReaderIndex();
+            for (int i = 0; i < length; ++i) {
+                final byte a1 = this.buffer.get(this.lowerBoundary + this.readerIndex + i);
+                final byte b1 = b.getByte(otherStart + i);
+                if (a1 != b1) {
+                    // see ByteBuffer#internalEquals for why this works
+                    if (ignoreCase && isAsciiLetter(a1) && isAsciiLetter(b1) && (a1 & 0x1f) == (b1 & 0x1f)) {
+                        continue;
+                    }
+                    return false;
+                }
+            }
+        } catch (final IOException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    private static boolean isAsciiLetter(final byte b) {
+        return b >= 'A' && b <= 'Z' || b >= 'a' && b <= 'z';
+    }
+
+    @Override
+    public String toString() {
+        return new String(getArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void getBytes(final Buffer dst) {
+        getBytes(getReaderIndex(), dst);
+    }
+
+    @Override
+    public void getBytes(final int index, final Buffer dst) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index less than zero");
+        }
+        final int max = dst.getWritableBytes();
+        final int stop = Math.min(this.lowerBoundary + index + max, this.writerIndex);
+        for (int i = this.lowerBoundary + index; i < stop; ++i) {
+            dst.write(this.buffer.get(i));
+        }
+    }
+
+    @Override
+    public void getBytes(final byte[] dst) throws IndexOutOfBoundsException {
+        final int length = Math.min(dst.length, getReadableBytes());
+        this.buffer.get(this.lowerBoundary + this.readerIndex, dst, 0, length);
+    }
+
+    /**
+     * We can write to the buffer as long as the memory underneath isn't
+     * read-only, which e.g. a read-only mapping of a file is.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasWriteSupport() {
+        return !this.buffer.isReadOnly();
+    }
+
+    private void checkWriteSupport() throws WriteNotSupportedException {
+        if (this.buffer.isReadOnly()) {
+            throw new WriteNotSupportedException("Cannot write to a read-only buffer");
+        }
+    }
+
+    @Override
+    public void write(final byte b) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        checkWriteSupport();
+        checkWriterIndex(this.writerIndex);
+        this.buffer.put(this.writerIndex, b);
+        ++this.writerIndex;
+    }
+
+    @Override
+    public void write(final byte[] bytes) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        checkWriteSupport();
+        if (!checkWritableBytesSafe(bytes.length)) {
+            throw new IndexOutOfBoundsException("Unable to write the entire array to this buffer. Nothing was written");
+        }
+        this.buffer.put(this.writerIndex, bytes);
+        this.writerIndex += bytes.length;
+    }
+
+    @Override
+    public void write(final int value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        checkWriteSupport();
+        if (!checkWritableBytesSafe(4)) {
+            throw new IndexOutOfBoundsException("Unable to write the entire int to this buffer. Nothing was written");
+        }
+        this.buffer.putInt(this.writerIndex, value);
+        this.writerIndex += 4;
+    }
+
+    @Override
+    public void write(final long value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        checkWriteSupport();
+        if (!checkWritableBytesSafe(8)) {
+            throw new IndexOutOfBoundsException("Unable to write the entire long to this buffer. Nothing was written");
+        }
+        this.buffer.putLong(this.writerIndex, value);
+        this.writerIndex += 8;
+    }
+
+    @Override
+    public void writeAsString(final int value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        final int size = value < 0 ? Buffers.stringSize(-value) + 1 : Buffers.stringSize(value);
+        final byte[] bytes = new byte[size];
+        Buffers.getBytes(value, size, bytes);
+        write(bytes);
+    }
+
+    @Override
+    public void writeAsString(final long value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        final int size = value < 0 ? Buffers.stringSize(-value) + 1 : Buffers.stringSize(value);
+        final byte[] bytes = new byte[size];
+        Buffers.getBytes(value, size, bytes);
+        write(bytes);
+    }
+
+    @Override
+    public void write(final String s) throws IndexOutOfBoundsException, WriteNotSupportedException,
+    UnsupportedEncodingException {
+        write(s, "UTF-8");
+    }
+
+    @Override
+    public void write(final String s, final String charset) throws IndexOutOfBoundsException,
+    WriteNotSupportedException, UnsupportedEncodingException {
+        write(s.getBytes(charset));
+    }
+
+}
@@ -10,6 +10,27 @@ import java.util.Arrays;
 import java.util.List;
 
 /**
+ * A buffer that reads off of an {@link InputStream} as bytes are asked for,
+ * which it stores in a list of fixed size byte-arrays, or "rows".
+ *
+ * By default every row is kept around for the life of the buffer so that you
+ * can go back and get any byte you have read. That also means that the memory
+ * used grows with the stream, which won't do if you are to read through a
+ * stream of many gigabytes. For that there is the sliding window mode (see
+ * {@link #InputStreamBuffer(int, InputStream, boolean)}), in which the rows
+ * that are wholly below the reader index, and the marked reader index if
+ * {@link #markReaderIndex()} has been called, are discarded as you read. The
+ * memory used is then bounded by how far apart the mark and the writer index
+ * are rather than by the size of the stream. Anything you have read or sliced
+ * off of the buffer stays valid after its rows have been discarded since it
+ * either is a copy or holds on to the one row it was sliced out of.
+ *
+ * Since the stream may be a lot longer than what fits in an int, the indices
+ * of a sliding window are relative to the first row still around, i.e., all
+ * indices, including the reader index and the marked reader index, move down
+ * by the number of bytes discarded. See {@link #getStreamOffset()} for where
+ * in the stream index zero is.
+ *
  * @author jonas@jonasborjesson.com
  */
 public final class InputStreamBuffer extends AbstractBuffer {
@@ -32,6 +53,23 @@ public final class InputStreamBuffer extends AbstractBuffer {
      */
     private final int localCapacity;
 
+    /**
+     * Whether we discard the rows we have read past.
+     */
+    private final boolean slidingWindow;
+
+    /**
+     * The number of bytes that have been discarded, i.e., the offset into the
+     * stream of index zero.
+     */
+    private long streamOffset;
+
+    /**
+     * Whether someone has marked the reader index, in which case we must keep
+     * everything from the mark and onwards.
+     */
+    private boolean marked;
+
     /**
      * 
      */
@@ -46,10 +84,25 @@ public final class InputStreamBuffer extends AbstractBuffer {
      * @param is
      */
     public InputStreamBuffer(final int initialCapacity, final InputStream is) {
+        this(initialCapacity, is, false);
+    }
+
+    /**
+     * 
+     * @param initialCapacity
+     *            the size of each of the internal byte arrays
+     * @param is
+     * @param slidingWindow
+     *            whether to discard the bytes that have been read (see
+     *            class description), in which case you can't go back any
+     *            further than the reader index or the marked reader index.
+     */
+    public InputStreamBuffer(final int initialCapacity, final InputStream is, final boolean slidingWindow) {
         super(0, 0, 0, 0);
         assert is != null;
         this.is = is;
         this.localCapacity = initialCapacity;
+        this.slidingWindow = slidingWindow;
         this.storage = new ArrayList<java.nio.ByteBuffer>();
         this.storage.add(java.nio.ByteBuffer.allocate(this.localCapacity));
     }
@@ -59,15 +112,36 @@ public final class InputStreamBuffer extends AbstractBuffer {
      */
     @Override
     public Buffer slice(final int start, final int stop) {
+        if (start == stop) {
+            return Buffers.EMPTY_BUFFER;
+        }
         checkIndex(this.lowerBoundary + start);
         checkIndex(this.lowerBoundary + stop - 1);
 
-        // this has to change now that we can have multiple
-        // rows of byte buffers
-        final java.nio.ByteBuffer buf = getWritingRow();
-        final int upperBoundary = this.lowerBoundary + stop;
-        final int writerIndex = upperBoundary;
-        return new ByteBuffer(0, this.lowerBoundary + start, upperBoundary, writerIndex, buf.array());
+        final int from = this.lowerBoundary + start;
+        final int to = this.lowerBoundary + stop;
+        final int row = from / this.localCapacity;
+        if (row == (to - 1) / this.localCapacity) {
+            // all within one row so we can share it
+            final int offset = row * this.localCapacity;
+            return new ByteBuffer(0, from - offset, to - offset, to - offset, getRow(from).array());
+        }
+
+        final byte[] buf = new byte[stop - start];
+        copy(from, buf);
+        return Buffers.wrap(buf);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * In the sliding window mode, everything from the mark and onwards is
+     * kept around until the reader index is marked again.
+     */
+    @Override
+    public void markReaderIndex() {
+        super.markReaderIndex();
+        this.marked = true;
     }
 
     /**
@@ -82,7 +156,9 @@ public final class InputStreamBuffer extends AbstractBuffer {
             // not sure this is really the right thing to do
             throw new IndexOutOfBoundsException();
         }
-        return getByte(this.readerIndex++);
+        final byte b = getByte(this.readerIndex++);
+        discard();
+        return b;
     }
 
     /**
@@ -107,7 +183,8 @@ public final class InputStreamBuffer extends AbstractBuffer {
     public Buffer readBytes(final int length) throws IndexOutOfBoundsException, IOException {
         if (!checkReadableBytesSafe(length)) {
             final int availableBytes = getReadableBytes();
-            final int read = internalReadBytes(length - availableBytes);
+            // only what is missing, we already have the available bytes
+            final int read = readFromStream(length - availableBytes);
             if (read == -1) {
                 // end-of-file
                 return null;
@@ -120,22 +197,70 @@ public final class InputStreamBuffer extends AbstractBuffer {
 
         // perhaps we should create a composite buffer instead of this
         // copying???
-        int index = 0;
         final byte[] buf = new byte[length];
-        while (index < length) {
-            final int spaceLeft = getAvailableLocalReadingSpace();
-            final int readAtMost = Math.min(length - index, spaceLeft);
-            final int localIndex = getLocalReaderIndex();
-
-            final java.nio.ByteBuffer bb = getReadingRow();
-            System.arraycopy(bb.array(), localIndex, buf, index, readAtMost);
-            this.readerIndex += readAtMost;
-            index += readAtMost;
-        }
+        copy(this.lowerBoundary + this.readerIndex, buf);
+        this.readerIndex += length;
+        discard();
         return Buffers.wrap(buf);
 
     }
 
+    /**
+     * Copy the bytes starting at the given absolute index into the array,
+     * across as many rows as it takes.
+     *
+     * @param index
+     * @param dst
+     */
+    private void copy(final int index, final byte[] dst) {
+        int copied = 0;
+        while (copied < dst.length) {
+            final int localIndex = (index + copied) % this.localCapacity;
+            final int copyAtMost = Math.min(dst.length - copied, this.localCapacity - localIndex);
+            System.arraycopy(getRow(index + copied).array(), localIndex, dst, copied, copyAtMost);
+            copied += copyAtMost;
+        }
+    }
+
+    /**
+     * In the sliding window mode, let go of all the rows below the reader
+     * index, or the marked reader index if it is lower.
+     */
+    private void discard() {
+        if (!this.slidingWindow) {
+            return;
+        }
+
+        int lowest = this.readerIndex;
+        if (this.marked) {
+            lowest = Math.min(lowest, this.markedReaderIndex);
+        }
+
+        final int rows = (this.lowerBoundary + lowest) / this.localCapacity;
+        if (rows > 0) {
+            this.storage.subList(0, rows).clear();
+
+            // rebase all indices on the first row that is left
+            final int bytes = rows * this.localCapacity;
+            this.readerIndex -= bytes;
+            this.markedReaderIndex -= bytes;
+            this.writerIndex -= bytes;
+            this.upperBoundary -= bytes;
+            this.streamOffset += bytes;
+        }
+    }
+
+    /**
+     * The offset into the stream of index zero of this buffer. Always zero
+     * unless in the sliding window mode, in which case it moves forward as
+     * rows are discarded.
+     *
+     * @return
+     */
+    public long getStreamOffset() {
+        return this.streamOffset;
+    }
+
     /**
      * Read at most <code>length</code> no of bytes and store it into the
      * internal buffer. This method is blocking in case we don't have enough
@@ -169,15 +294,6 @@ public final class InputStreamBuffer extends AbstractBuffer {
         return this.writerIndex % this.localCapacity;
     }
 
-    /**
-     * Translates the global reader index into the local index within a row
-     * 
-     * @return
-     */
-    private int getLocalReaderIndex() {
-        return this.readerIndex % this.localCapacity;
-    }
-
     /**
      * Since the underlying storage for this buffer is essentially a 2-D byte
      * array we sometimes need to find out how much capacity is left in a
@@ -189,15 +305,6 @@ public final class InputStreamBuffer extends AbstractBuffer {
         return this.localCapacity - getLocalWriterIndex();
     }
 
-    /**
-     * Find out how many bytes are left to read in the current row
-     * 
-     * @return
-     */
-    private int getAvailableLocalReadingSpace() {
-        return this.localCapacity - getLocalReaderIndex();
-    }
-
     /**
      * Get which "row" we currently are working with for writing
      * 
@@ -215,13 +322,19 @@ public final class InputStreamBuffer extends AbstractBuffer {
     }
 
     /**
-     * Get which "row" we currently are working with for reading
+     * Get the "row" that holds the byte at the given absolute index.
      * 
+     * @param index
      * @return
+     * @throws IndexOutOfBoundsException
+     *             in case the row has been discarded
      */
-    private java.nio.ByteBuffer getReadingRow() {
-        final int row = this.readerIndex / this.localCapacity;
-        return this.storage.get(row);
+    private java.nio.ByteBuffer getRow(final int index) throws IndexOutOfBoundsException {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index " + (index - this.lowerBoundary)
+                    + " is below the sliding window and has been discarded");
+        }
+        return this.storage.get(index / this.localCapacity);
     }
 
     /**
@@ -309,10 +422,9 @@ public final class InputStreamBuffer extends AbstractBuffer {
      */
     @Override
     public byte getByte(final int index) throws IndexOutOfBoundsException, IOException {
-        checkIndex(this.lowerBoundary + index);
-        final java.nio.ByteBuffer bb = getWritingRow();
-        // this has to be localized as well
-        return bb.get(this.lowerBoundary + index);
+        final int absolute = this.lowerBoundary + index;
+        checkIndex(absolute);
+        return getRow(absolute).get(absolute % this.localCapacity);
     }
 
     /**
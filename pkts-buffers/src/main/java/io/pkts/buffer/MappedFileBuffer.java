@@ -0,0 +1,585 @@
+package io.pkts.buffer;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+
+/**
+ * A {@link Buffer} backed by a memory mapped file. The file is mapped in
+ * segments so that files larger than what an <code>int</code> can address (2
+ * GB) can still be read. Each segment overlaps the next one with
+ * {@link #DEFAULT_OVERLAP} bytes so that a read that starts in one segment but
+ * extends into the next one still can be represented as a single view into
+ * the mapping. Only when a read is larger than the overlap will the bytes be
+ * copied onto the heap.
+ *
+ * The {@link #readBytes(int)} method will return a view into the mapping,
+ * which is what makes this buffer interesting. The bytes are never copied
+ * into a fresh <code>byte[]</code> (as e.g. the
+ * {@link BoundedInputStreamBuffer} is doing) so reading e.g. a pcap through
+ * this buffer doesn't put any pressure on the garbage collector.
+ *
+ * If the channel has been opened for both reading and writing the segments
+ * are mapped using {@link FileChannel.MapMode#PRIVATE}, i.e. copy-on-write, so
+ * any changes done to the views will NOT be written back to the file. If the
+ * channel is read-only, so is the mapping and any attempt to change the bytes
+ * of a view will fail with a {@link java.nio.ReadOnlyBufferException}.
+ *
+ * The reader index is a <code>long</code> internally. The methods inherited
+ * from the {@link Buffer} interface that deal with <code>int</code> indices
+ * only work as long as the index is within the first 2 GB of the file. Use
+ * {@link #position()} and {@link #position(long)} for anything beyond that.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class MappedFileBuffer extends BaseBuffer {
+
+    private static final String CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER = "Cannot write to a MappedFileBuffer";
+
+    /**
+     * The default size of each segment, 1 GB.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+    /**
+     * The default number of bytes each segment overlaps the next one. Any
+     * read that is less than this is guaranteed to be served by a single
+     * segment. The overlap only costs address space, not memory.
+     */
+    public static final int DEFAULT_OVERLAP = 16 * 1024 * 1024;
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    private final int segmentSize;
+
+    private final int overlap;
+
+    /**
+     * The segments are mapped lazily the first time they are accessed.
+     */
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * The cached views of each segment, which are the ones we slice
+     * everything out of.
+     */
+    private final DirectBuffer[] views;
+
+    /**
+     * We'll try to map the segments privately first and fall back to read-only
+     * if the channel doesn't allow for it.
+     */
+    private FileChannel.MapMode mode = FileChannel.MapMode.PRIVATE;
+
+    private long readerIndex;
+
+    private long markedReaderIndex;
+
+    public MappedFileBuffer(final FileChannel channel) throws IOException {
+        this(channel, DEFAULT_SEGMENT_SIZE, DEFAULT_OVERLAP);
+    }
+
+    /**
+     *
+     * @param channel the channel to map.
+     * @param segmentSize the size of each segment, not counting the overlap.
+     * @param overlap the number of bytes each segment overlaps the next one.
+     * @throws IOException in case we cannot figure out the size of the file.
+     */
+    public MappedFileBuffer(final FileChannel channel, final int segmentSize, final int overlap) throws IOException {
+        if (channel == null) {
+            throw new IllegalArgumentException("The FileChannel cannot be null");
+        }
+        if (segmentSize <= 0 || overlap < 0 || (long) segmentSize + overlap > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid segment size (" + segmentSize + ") or overlap (" + overlap
+                    + ")");
+        }
+
+        this.channel = channel;
+        this.size = channel.size();
+        this.segmentSize = segmentSize;
+        this.overlap = overlap;
+
+        final int count = (int) ((this.size + segmentSize - 1) / segmentSize);
+        this.segments = new MappedByteBuffer[count];
+        this.views = new DirectBuffer[count];
+    }
+
+    /**
+     * The total size of the mapped file.
+     *
+     * @return
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * The current position in the file from where the next read will take
+     * place.
+     *
+     * @return
+     */
+    public long position() {
+        return this.readerIndex;
+    }
+
+    /**
+     * Move the reader index to the given position in the file. It is allowed
+     * to move it to the very end of the file, in which case there will be
+     * nothing left to read.
+     *
+     * @param position
+     * @throws IndexOutOfBoundsException in case the position is outside of the
+     *         file.
+     */
+    public void position(final long position) throws IndexOutOfBoundsException {
+        if (position < 0 || position > this.size) {
+            throw new IndexOutOfBoundsException("Position " + position + " is outside of the file (size "
+                    + this.size + ")");
+        }
+        this.readerIndex = position;
+    }
+
+    /**
+     * The {@link FileChannel} this buffer is mapping.
+     *
+     * @return
+     */
+    public FileChannel getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * Get a view of <code>length</code> bytes starting at the absolute
+     * position in the file. The view will share the memory of the mapping
+     * unless the region is larger than the overlap between two segments and
+     * happens to cross the boundary, in which case the bytes are copied.
+     *
+     * @param position
+     * @param length
+     * @return
+     * @throws IndexOutOfBoundsException
+     */
+    public Buffer view(final long position, final int length) throws IndexOutOfBoundsException {
+        if (length == 0) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        checkRange(position, length);
+
+        final int segment = (int) (position / this.segmentSize);
+        final int local = (int) (position % this.segmentSize);
+        final DirectBuffer view = getView(segment);
+        if (local + length <= view.capacity()) {
+            return view.slice(local, local + length);
+        }
+
+        final byte[] copy = new byte[length];
+        int index = 0;
+        while (index < length) {
+            final long pos = position + index;
+            final MappedByteBuffer mapping = getSegment((int) (pos / this.segmentSize));
+            final int offset = (int) (pos % this.segmentSize);
+            final int count = Math.min(length - index, this.segmentSize - offset);
+            mapping.get(offset, copy, index, count);
+            index += count;
+        }
+        return new ByteBuffer(copy);
+    }
+
+    private void checkRange(final long position, final long length) throws IndexOutOfBoundsException {
+        if (position < 0 || length < 0 || position + length > this.size) {
+            throw new IndexOutOfBoundsException("Not enough bytes left in the file. Wanted " + length
+                    + " bytes at position " + position + " but the file is only " + this.size + " bytes");
+        }
+    }
+
+    private DirectBuffer getView(final int segment) {
+        DirectBuffer view = this.views[segment];
+        if (view == null) {
+            final MappedByteBuffer mapping = getSegment(segment);
+            final int capacity = mapping.capacity();
+            view = new DirectBuffer(0, 0, capacity, capacity, mapping);
+            this.views[segment] = view;
+        }
+        return view;
+    }
+
+    private MappedByteBuffer getSegment(final int segment) {
+        MappedByteBuffer mapping = this.segments[segment];
+        if (mapping == null) {
+            final long start = (long) segment * this.segmentSize;
+            final long length = Math.min(this.size - start, (long) this.segmentSize + this.overlap);
+            try {
+                mapping = map(start, length);
+            } catch (final IOException e) {
+                throw new BufferException("Unable to map segment " + segment + " of the file", e);
+            }
+            this.segments[segment] = mapping;
+        }
+        return mapping;
+    }
+
+    private MappedByteBuffer map(final long start, final long length) throws IOException {
+        try {
+            return this.channel.map(this.mode, start, length);
+        } catch (final NonWritableChannelException e) {
+            this.mode = FileChannel.MapMode.READ_ONLY;
+            return this.channel.map(this.mode, start, length);
+        }
+    }
+
+    private byte byteAt(final long position) throws IndexOutOfBoundsException {
+        checkRange(position, 1);
+        return getSegment((int) (position / this.segmentSize)).get((int) (position % this.segmentSize));
+    }
+
+    private static int assertSafeInt(final long value) {
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            throw new IllegalStateException("Value " + value
+                    + " cannot be represented as an int. Use the long based methods instead");
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer readBytes(final int length) throws IndexOutOfBoundsException {
+        final Buffer view = view(this.readerIndex, length);
+        this.readerIndex += length;
+        return view;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Skipping only moves the position, nothing is touched in the mapping.
+     */
+    @Override
+    public void skipBytes(final int length) throws IndexOutOfBoundsException {
+        if (length < 0) {
+            throw new IllegalArgumentException("Cannot skip a negative number of bytes");
+        }
+        position(this.readerIndex + length);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Note, since a file can be larger than what an int can represent we'll
+     * report at most {@link Integer#MAX_VALUE} readable bytes.
+     */
+    @Override
+    public int getReadableBytes() {
+        return (int) Math.min(this.size - this.readerIndex, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean hasReadableBytes() {
+        return this.readerIndex < this.size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !hasReadableBytes();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This will copy all the readable bytes onto the heap, which is probably
+     * not what you want for a large file.
+     */
+    @Override
+    public byte[] getArray() {
+        return view(this.readerIndex, assertSafeInt(this.size - this.readerIndex)).getArray();
+    }
+
+    @Override
+    public Buffer slice(final int start, final int stop) {
+        if (start == stop) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        return view(start, stop - start);
+    }
+
+    @Override
+    public Buffer slice(final int stop) {
+        return slice(getReaderIndex(), stop);
+    }
+
+    @Override
+    public Buffer slice() {
+        if (!hasReadableBytes()) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        return view(this.readerIndex, assertSafeInt(this.size - this.readerIndex));
+    }
+
+    @Override
+    public int getLowerBoundary() {
+        return 0;
+    }
+
+    @Override
+    public int getUpperBoundary() {
+        return assertSafeInt(this.size);
+    }
+
+    @Override
+    public int getReaderIndex() {
+        return assertSafeInt(this.readerIndex);
+    }
+
+    @Override
+    public void setReaderIndex(final int index) {
+        position(index);
+    }
+
+    @Override
+    public void markReaderIndex() {
+        this.markedReaderIndex = this.readerIndex;
+    }
+
+    @Override
+    public void resetReaderIndex() {
+        this.readerIndex = this.markedReaderIndex;
+    }
+
+    @Override
+    public int capacity() {
+        return assertSafeInt(this.size);
+    }
+
+    @Override
+    public byte getByte(final int index) throws IndexOutOfBoundsException {
+        return byteAt(index);
+    }
+
+    @Override
+    public byte readByte() throws IndexOutOfBoundsException {
+        final byte b = byteAt(this.readerIndex);
+        ++this.readerIndex;
+        return b;
+    }
+
+    @Override
+    public byte peekByte() throws IndexOutOfBoundsException {
+        return byteAt(this.readerIndex);
+    }
+
+    @Override
+    public long readUnsignedInt() throws IndexOutOfBoundsException {
+        return readInt() & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public int readInt() throws IndexOutOfBoundsException {
+        final int value = getInt(this.readerIndex);
+        this.readerIndex += 4;
+        return value;
+    }
+
+    @Override
+    public int getInt(final int index) throws IndexOutOfBoundsException {
+        return getInt((long) index);
+    }
+
+    private int getInt(final long index) throws IndexOutOfBoundsException {
+        checkRange(index, 4);
+        return (byteAt(index) & 0xff) << 24 | (byteAt(index + 1) & 0xff) << 16 | (byteAt(index + 2) & 0xff) << 8
+                | byteAt(index + 3) & 0xff;
+    }
+
+    @Override
+    public short getShort(final int index) throws IndexOutOfBoundsException {
+        return getShort((long) index);
+    }
+
+    private short getShort(final long index) throws IndexOutOfBoundsException {
+        checkRange(index, 2);
+        return (short) (byteAt(index) << 8 | byteAt(index + 1) & 0xFF);
+    }
+
+    @Override
+    public int readUnsignedShort() throws IndexOutOfBoundsException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public short readShort() throws IndexOutOfBoundsException {
+        final short value = getShort(this.readerIndex);
+        this.readerIndex += 2;
+        return value;
+    }
+
+    @Override
+    public int getUnsignedShort(final int index) throws IndexOutOfBoundsException {
+        return getShort(index) & 0xFFFF;
+    }
+
+    @Override
+    public long getUnsignedInt(final int index) throws IndexOutOfBoundsException {
+        return getInt(index) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public short getUnsignedByte(final int index) throws IndexOutOfBoundsException {
+        return (short) (getByte(index) & 0xFF);
+    }
+
+    @Override
+    public String dumpAsHex() {
+        return slice().dumpAsHex();
+    }
+
+    /**
+     * Copies the readable bytes onto the heap, which means that the clone is
+     * limited to 2 GB. Slice out what you need first if the file is larger
+     * than that.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer clone() {
+        if (!hasReadableBytes()) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        return new ByteBuffer(getArray());
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return this == other;
+    }
+
+    @Override
+    public boolean equalsIgnoreCase(final Object other) {
+        return this == other;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return "MappedFileBuffer[position=" + this.readerIndex + ", size=" + this.size + "]";
+    }
+
+    @Override
+    public void getBytes(final Buffer dst) {
+        getBytes(getReaderIndex(), dst);
+    }
+
+    @Override
+    public void getBytes(final int index, final Buffer dst) throws IndexOutOfBoundsException {
+        final int length = (int) Math.min(dst.getWritableBytes(), this.size - index);
+        view(index, length).getBytes(dst);
+    }
+
+    @Override
+    public void getBytes(final byte[] dst) throws IndexOutOfBoundsException {
+        final int length = (int) Math.min(dst.length, this.size - this.readerIndex);
+        view(this.readerIndex, length).getBytes(dst);
+    }
+
+    @Override
+    public int getWriterIndex() {
+        return assertSafeInt(this.size);
+    }
+
+    @Override
+    public void setWriterIndex(final int index) {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public int getWritableBytes() {
+        return 0;
+    }
+
+    @Override
+    public boolean hasWriteSupport() {
+        return false;
+    }
+
+    @Override
+    public void setByte(final int index, final byte value) throws IndexOutOfBoundsException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void setInt(final int index, final int value) throws IndexOutOfBoundsException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void setUnsignedInt(final int index, final long value) throws IndexOutOfBoundsException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void setUnsignedShort(final int index, final int value) throws IndexOutOfBoundsException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void setUnsignedByte(final int index, final short value) throws IndexOutOfBoundsException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void write(final byte b) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void write(final byte[] bytes) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void write(final int value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void write(final long value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void write(final String s) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void write(final String s, final String charset) throws IndexOutOfBoundsException,
+            WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void writeAsString(final int value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void writeAsString(final long value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public short readUnsignedByte() throws IndexOutOfBoundsException {
+        return (short) (readByte() & 0xFF);
+    }
+
+}
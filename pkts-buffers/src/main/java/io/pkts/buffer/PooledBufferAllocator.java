@@ -0,0 +1,416 @@
+package io.pkts.buffer;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out reference counted buffers (see {@link Buffer#retain()}) whose
+ * byte-arrays are recycled once they have been released, which brings the
+ * allocation rate of e.g. {@link BoundedInputStreamBuffer#readBytes(int)}
+ * down to next to nothing.
+ *
+ * The arrays come in size classes, which are the powers of two from 16 bytes
+ * up to {@link Builder#withMaxPooledSize(int)}. Every thread has a small
+ * cache of arrays in front of an arena that is shared by all threads, so that
+ * allocating and releasing on the same thread, which is the common case,
+ * doesn't contend with anyone. A buffer that is released on another thread
+ * ends up in that thread's cache or, if full, in the arena. Buffers larger
+ * than the largest size class aren't pooled at all.
+ *
+ * A buffer that is garbage collected without being released isn't a problem
+ * as such, its array simply never makes it back to the pool. It does however
+ * mean that the pool isn't doing its job so while debugging you can turn on
+ * leak detection (see {@link Builder#withLeakDetection(boolean)}), or set the
+ * system property "{@value #LEAK_DETECTION_PROPERTY}" to true, which will
+ * tell you where each leaked buffer was allocated. This is expensive since we
+ * have to capture a stack trace for every allocation.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class PooledBufferAllocator {
+
+    public static final String LEAK_DETECTION_PROPERTY = "io.pkts.buffer.leakDetection";
+
+    /**
+     * The smallest size class is 2^4 = 16 bytes.
+     */
+    private static final int MIN_SHIFT = 4;
+
+    /**
+     * 64 KB, which covers the vast majority of all packets.
+     */
+    public static final int DEFAULT_MAX_POOLED_SIZE = 64 * 1024;
+
+    public static final int DEFAULT_THREAD_CACHE_SIZE = 64;
+
+    public static final int DEFAULT_ARENA_SIZE = 1024;
+
+    private final int maxPooledSize;
+
+    /**
+     * The shared arena, one queue per size class.
+     */
+    private final List<ArrayBlockingQueue<byte[]>> arena;
+
+    private final ThreadLocal<Cache> caches;
+
+    private final boolean leakDetection;
+
+    /**
+     * All buffers that have been allocated but not yet released, which is
+     * only tracked if leak detection is turned on. The set keeps the phantom
+     * references themselves alive.
+     */
+    private final Set<Leak> outstanding = ConcurrentHashMap.newKeySet();
+
+    private final ReferenceQueue<Chunk> collected = new ReferenceQueue<>();
+
+    private final AtomicLong allocatedArrays = new AtomicLong();
+
+    private final AtomicLong leaks = new AtomicLong();
+
+    private PooledBufferAllocator(final int maxPooledSize, final int threadCacheSize, final int arenaSize,
+            final boolean leakDetection) {
+        this.maxPooledSize = maxPooledSize;
+        this.leakDetection = leakDetection;
+
+        final int classes = sizeClass(maxPooledSize) + 1;
+        this.arena = new ArrayList<>(classes);
+        for (int i = 0; i < classes; ++i) {
+            this.arena.add(new ArrayBlockingQueue<>(arenaSize));
+        }
+        this.caches = ThreadLocal.withInitial(() -> new Cache(classes, threadCacheSize));
+    }
+
+    public static Builder with() {
+        return new Builder();
+    }
+
+    /**
+     * Allocate a new buffer of the given capacity, with a reference count of
+     * one. Just as for {@link Buffers#createBuffer(int)}, nothing has been
+     * written to the buffer yet.
+     *
+     * @param capacity
+     * @return
+     */
+    public Buffer allocate(final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The capacity cannot be negative");
+        }
+
+        if (capacity > this.maxPooledSize) {
+            return Buffers.createBuffer(capacity);
+        }
+
+        if (this.leakDetection) {
+            reportLeaks();
+        }
+
+        final int sizeClass = sizeClass(capacity);
+        byte[] array = this.caches.get().poll(sizeClass);
+        if (array == null) {
+            array = this.arena.get(sizeClass).poll();
+        }
+        if (array == null) {
+            array = new byte[1 << sizeClass + MIN_SHIFT];
+            this.allocatedArrays.incrementAndGet();
+        }
+
+        final Chunk chunk = new Chunk(this, array, sizeClass);
+        if (this.leakDetection) {
+            chunk.leak = new Leak(chunk, this.collected);
+            this.outstanding.add(chunk.leak);
+        }
+        return new PooledBuffer(0, 0, capacity, 0, chunk);
+    }
+
+    /**
+     * The number of arrays allocated because there were none to re-use,
+     * which levels out once the pool is warmed up.
+     *
+     * @return
+     */
+    public long getAllocatedArrays() {
+        return this.allocatedArrays.get();
+    }
+
+    /**
+     * The number of buffers found to have been garbage collected without
+     * being released. Always zero unless leak detection is turned on.
+     *
+     * @return
+     */
+    public long getLeaks() {
+        return this.leaks.get();
+    }
+
+    private void free(final Chunk chunk) {
+        if (chunk.leak != null) {
+            this.outstanding.remove(chunk.leak);
+            chunk.leak.clear();
+        }
+
+        if (!this.caches.get().offer(chunk.sizeClass, chunk.array)) {
+            // if the arena is full as well, we'll leave it to the gc
+            this.arena.get(chunk.sizeClass).offer(chunk.array);
+        }
+    }
+
+    private void reportLeaks() {
+        Leak leak = null;
+        while ((leak = (Leak) this.collected.poll()) != null) {
+            if (this.outstanding.remove(leak)) {
+                this.leaks.incrementAndGet();
+                System.err.println("WARN: A pooled buffer was garbage collected without being released. "
+                        + "It was allocated at:");
+                leak.allocation.printStackTrace();
+            }
+        }
+    }
+
+    private static int sizeClass(final int capacity) {
+        if (capacity <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * The array of a buffer and all of its slices, along with their reference
+     * count.
+     */
+    private static final class Chunk {
+
+        private static final AtomicIntegerFieldUpdater<Chunk> REF_CNT = AtomicIntegerFieldUpdater
+                .newUpdater(Chunk.class, "refCnt");
+
+        private final PooledBufferAllocator allocator;
+        private final byte[] array;
+        private final int sizeClass;
+        private volatile int refCnt = 1;
+        private Leak leak;
+
+        private Chunk(final PooledBufferAllocator allocator, final byte[] array, final int sizeClass) {
+            this.allocator = allocator;
+            this.array = array;
+            this.sizeClass = sizeClass;
+        }
+
+        private void retain() {
+            int count;
+            do {
+                count = this.refCnt;
+                if (count == 0) {
+                    throw new IllegalStateException("The buffer has already been released");
+                }
+            } while (!REF_CNT.compareAndSet(this, count, count + 1));
+        }
+
+        private boolean release() {
+            int count;
+            do {
+                count = this.refCnt;
+                if (count == 0) {
+                    throw new IllegalStateException("The buffer has already been released");
+                }
+            } while (!REF_CNT.compareAndSet(this, count, count - 1));
+
+            if (count == 1) {
+                this.allocator.free(this);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Tells us when a chunk has been garbage collected, which is a leak unless
+     * it was released first.
+     */
+    private static final class Leak extends PhantomReference<Chunk> {
+
+        private final Throwable allocation = new Throwable("Allocated here");
+
+        private Leak(final Chunk chunk, final ReferenceQueue<Chunk> queue) {
+            super(chunk, queue);
+        }
+    }
+
+    /**
+     * The arrays of one thread, as a stack per size class.
+     */
+    private static final class Cache {
+
+        private final byte[][][] arrays;
+
+        private final int[] sizes;
+
+        private Cache(final int classes, final int capacity) {
+            this.arrays = new byte[classes][capacity][];
+            this.sizes = new int[classes];
+        }
+
+        private byte[] poll(final int sizeClass) {
+            if (this.sizes[sizeClass] == 0) {
+                return null;
+            }
+
+            final int index = --this.sizes[sizeClass];
+            final byte[] array = this.arrays[sizeClass][index];
+            this.arrays[sizeClass][index] = null;
+            return array;
+        }
+
+        private boolean offer(final int sizeClass, final byte[] array) {
+            if (this.sizes[sizeClass] == this.arrays[sizeClass].length) {
+                return false;
+            }
+
+            this.arrays[sizeClass][this.sizes[sizeClass]++] = array;
+            return true;
+        }
+    }
+
+    /**
+     * A {@link ByteBuffer} over a pooled array. All the slices are pooled
+     * buffers as well, sharing the reference count of the chunk.
+     */
+    private static final class PooledBuffer extends ByteBuffer {
+
+        private final Chunk chunk;
+
+        private PooledBuffer(final int readerIndex, final int lowerBoundary, final int upperBoundary,
+                final int writerIndex, final Chunk chunk) {
+            super(readerIndex, lowerBoundary, upperBoundary, writerIndex, chunk.array);
+            this.chunk = chunk;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Buffer slice(final int start, final int stop) {
+            if (start == stop) {
+                return Buffers.EMPTY_BUFFER;
+            }
+            checkIndex(this.lowerBoundary + start);
+            checkIndex(this.lowerBoundary + stop - 1);
+            final int upperBoundary = this.lowerBoundary + stop;
+            return new PooledBuffer(0, this.lowerBoundary + start, upperBoundary, upperBoundary, this.chunk);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Buffer readBytes(final int length) throws IndexOutOfBoundsException {
+            if (length == 0) {
+                return Buffers.EMPTY_BUFFER;
+            }
+            checkReadableBytes(length);
+            final int lowerBoundary = this.readerIndex + this.lowerBoundary;
+            this.readerIndex += length;
+            final int upperBoundary = this.readerIndex + this.lowerBoundary;
+            return new PooledBuffer(0, lowerBoundary, upperBoundary, upperBoundary, this.chunk);
+        }
+
+        @Override
+        public Buffer retain() {
+            this.chunk.retain();
+            return this;
+        }
+
+        @Override
+        public boolean release() throws IllegalStateException {
+            return this.chunk.release();
+        }
+
+        @Override
+        public int refCnt() {
+            return this.chunk.refCnt;
+        }
+    }
+
+    public static final class Builder {
+
+        private int maxPooledSize = DEFAULT_MAX_POOLED_SIZE;
+        private int threadCacheSize = DEFAULT_THREAD_CACHE_SIZE;
+        private int arenaSize = DEFAULT_ARENA_SIZE;
+        private boolean leakDetection = Boolean.getBoolean(LEAK_DETECTION_PROPERTY);
+
+        private Builder() {
+            // use PooledBufferAllocator.with()
+        }
+
+        /**
+         * The largest buffer to pool, which is rounded up to the nearest power
+         * of two. Default is 64 KB.
+         *
+         * @param bytes
+         * @return
+         */
+        public Builder withMaxPooledSize(final int bytes) {
+            if (bytes < 1 || bytes > 1 << 30) {
+                throw new IllegalArgumentException("The max pooled size must be between 1 byte and 1 GB");
+            }
+            this.maxPooledSize = Math.max(1 << MIN_SHIFT, Integer.highestOneBit(bytes - 1) << 1);
+            return this;
+        }
+
+        /**
+         * The number of arrays of each size class that each thread keeps to
+         * itself. Default is 64.
+         *
+         * @param arrays
+         * @return
+         */
+        public Builder withThreadCacheSize(final int arrays) {
+            if (arrays < 0) {
+                throw new IllegalArgumentException("The thread cache size cannot be negative");
+            }
+            this.threadCacheSize = arrays;
+            return this;
+        }
+
+        /**
+         * The number of arrays of each size class that are shared between all
+         * threads. Default is 1024.
+         *
+         * @param arrays
+         * @return
+         */
+        public Builder withArenaSize(final int arrays) {
+            if (arrays < 1) {
+                throw new IllegalArgumentException("The arena must hold at least one array");
+            }
+            this.arenaSize = arrays;
+            return this;
+        }
+
+        /**
+         * Whether to report buffers that are garbage collected without being
+         * released. Default is off, unless the system property
+         * "{@value PooledBufferAllocator#LEAK_DETECTION_PROPERTY}" is true.
+         *
+         * @param leakDetection
+         * @return
+         */
+        public Builder withLeakDetection(final boolean leakDetection) {
+            this.leakDetection = leakDetection;
+            return this;
+        }
+
+        public PooledBufferAllocator build() {
+            return new PooledBufferAllocator(this.maxPooledSize, this.threadCacheSize, this.arenaSize,
+                    this.leakDetection);
+        }
+    }
+}
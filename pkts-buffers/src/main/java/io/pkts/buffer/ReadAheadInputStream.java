@@ -0,0 +1,281 @@
+package io.pkts.buffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * An {@link InputStream} that reads off of another stream on a background
+ * thread, ahead of the consumer. The bytes are read into a small ring of
+ * blocks, which are handed over to the consumer once filled and handed back
+ * again once consumed. The hand-over in both directions is done through a
+ * lock-free single-producer/single-consumer queue.
+ *
+ * This is useful when reading off of the source is expensive in itself, e.g.
+ * when inflating a compressed stream, since the reading then overlaps with
+ * whatever the consumer is doing with the bytes, or when the source is
+ * prone to stalls, e.g. a pipe from tcpdump or a file on a network file
+ * system, since the consumer then keeps going on what has been read ahead.
+ *
+ * Note that this stream, just as most streams, is not thread safe. There can
+ * only be one consumer.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class ReadAheadInputStream extends InputStream {
+
+    public static final int DEFAULT_BLOCKS = 4;
+
+    /**
+     * 64 KB
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Handed over by the reading thread when the source has been read to the
+     * end.
+     */
+    private static final Block EOF = new Block(0);
+
+    private final InputStream source;
+
+    /**
+     * Blocks filled by the reading thread.
+     */
+    private final SpscQueue<Block> filled;
+
+    /**
+     * Blocks consumed and ready to be filled again.
+     */
+    private final SpscQueue<Block> free;
+
+    private final Thread thread;
+
+    /**
+     * The block we are currently consuming.
+     */
+    private Block current;
+
+    private volatile boolean stopped;
+
+    public ReadAheadInputStream(final InputStream source) {
+        this(source, DEFAULT_BLOCKS, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     *
+     * @param source the stream to read ahead on.
+     * @param blocks the number of blocks, i.e., how far ahead of the consumer
+     *        we are allowed to read.
+     * @param blockSize the size of each block.
+     */
+    public ReadAheadInputStream(final InputStream source, final int blocks, final int blockSize) {
+        if (source == null) {
+            throw new IllegalArgumentException("The input stream cannot be null");
+        }
+        if (blocks < 2) {
+            throw new IllegalArgumentException("There must be at least two blocks");
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("The block size must be a positive number");
+        }
+
+        this.source = source;
+        // one extra for the EOF marker
+        this.filled = new SpscQueue<>(blocks + 1);
+        this.free = new SpscQueue<>(blocks);
+        for (int i = 0; i < blocks; ++i) {
+            this.free.offer(new Block(blockSize));
+        }
+
+        this.thread = new Thread(this::run, "pkts-read-ahead");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        if (!ensureReadable()) {
+            return -1;
+        }
+        return this.current.data[this.current.position++] & 0xFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only reads whatever is left of the current block, in order to never
+     * block if there are bytes available.
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!ensureReadable()) {
+            return -1;
+        }
+
+        final int length = Math.min(len, this.current.remaining());
+        System.arraycopy(this.current.data, this.current.position, b, off, length);
+        this.current.position += length;
+        return length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available() throws IOException {
+        return this.current == null || this.current == EOF ? 0 : this.current.remaining();
+    }
+
+    /**
+     * Make sure that there is at least one byte left in the current block,
+     * which may mean we have to wait for the reading thread.
+     *
+     * @return false if the source has been read to the end.
+     * @throws IOException
+     *             in case we have been stopped or the reading thread failed.
+     *             Whatever else the reading thread failed with, be it a
+     *             {@link RuntimeException} or an {@link Error}, is re-thrown
+     *             as is.
+     */
+    private boolean ensureReadable() throws IOException {
+        while (this.current == null || this.current.remaining() == 0) {
+            if (this.current == EOF) {
+                return false;
+            }
+
+            if (this.stopped) {
+                throw new IOException("The stream has been closed");
+            }
+
+            if (this.current != null) {
+                this.current.clear();
+                this.free.offer(this.current);
+                this.current = null;
+            }
+
+            try {
+                this.current = this.filled.take();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the stream");
+            }
+
+            if (this.current.failure != null) {
+                final Throwable failure = this.current.failure;
+                this.current = EOF;
+                if (failure instanceof IOException) {
+                    throw (IOException) failure;
+                }
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                }
+                if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+                throw new IOException(failure);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Stop reading ahead but leave the source alone, i.e., it is up to the
+     * owner of the source to close it.
+     *
+     * Note that the background thread will not notice until a read that it
+     * is blocked on returns.
+     */
+    public void stop() {
+        this.stopped = true;
+        this.thread.interrupt();
+    }
+
+    /**
+     * Stop reading ahead and close the source.
+     */
+    @Override
+    public void close() throws IOException {
+        stop();
+        this.source.close();
+    }
+
+    /**
+     * The background thread. Hands over a block once it is full, or once it
+     * has something and the source has nothing more to give right away, so
+     * that a slow source doesn't keep the consumer waiting for a full block.
+     */
+    private void run() {
+        try {
+            while (!this.stopped) {
+                final Block block = this.free.take();
+                final boolean eof;
+                try {
+                    eof = fill(block);
+                } catch (final Throwable t) {
+                    // anything, or the consumer would wait for us forever
+                    final Block failure = new Block(0);
+                    failure.failure = t;
+                    this.filled.put(failure);
+                    return;
+                }
+
+                if (block.limit > 0) {
+                    this.filled.put(block);
+                }
+                if (eof) {
+                    this.filled.put(EOF);
+                    return;
+                }
+            }
+        } catch (final InterruptedException e) {
+            // we have been stopped
+        }
+    }
+
+    /**
+     * @return true if we hit the end of the source.
+     */
+    private boolean fill(final Block block) throws IOException {
+        while (block.limit < block.data.length) {
+            final int read = this.source.read(block.data, block.limit, block.data.length - block.limit);
+            if (read == -1) {
+                return true;
+            }
+
+            block.limit += read;
+            if (block.limit > 0 && this.source.available() == 0) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static final class Block {
+        private final byte[] data;
+        private int position;
+        private int limit;
+        private Throwable failure;
+
+        private Block(final int size) {
+            this.data = new byte[size];
+        }
+
+        private int remaining() {
+            return this.limit - this.position;
+        }
+
+        private void clear() {
+            this.position = 0;
+            this.limit = 0;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package io.pkts.buffer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue for exactly one producing thread and one
+ * consuming thread. The producer only ever writes the tail and the consumer
+ * only ever writes the head, so neither side has to lock or even
+ * compare-and-swap.
+ *
+ * When the queue is full (or empty) the producer (or consumer) parks until
+ * the other side has made room (or has handed over something), which it is
+ * told about through {@link LockSupport#unpark(Thread)}.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+final class SpscQueue<T> {
+
+    private final Object[] elements;
+
+    private final int mask;
+
+    /**
+     * The sequence number of the next element to take. Only written by the
+     * consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The sequence number of the next element to put. Only written by the
+     * producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile Thread waitingProducer;
+
+    private volatile Thread waitingConsumer;
+
+    /**
+     * @param capacity the minimum capacity, which will be rounded up to the
+     *        nearest power of two.
+     */
+    SpscQueue(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be a positive number");
+        }
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.elements = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Producer only.
+     *
+     * @return false if the queue is full.
+     */
+    boolean offer(final T element) {
+        final long tail = this.tail.get();
+        if (tail - this.head.get() == this.elements.length) {
+            return false;
+        }
+
+        this.elements[(int) (tail & this.mask)] = element;
+        this.tail.set(tail + 1);
+        unpark(this.waitingConsumer);
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return the next element or null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        final long head = this.head.get();
+        if (head == this.tail.get()) {
+            return null;
+        }
+
+        final int index = (int) (head & this.mask);
+        final T element = (T) this.elements[index];
+        this.elements[index] = null;
+        this.head.set(head + 1);
+        unpark(this.waitingProducer);
+        return element;
+    }
+
+    /**
+     * Producer only. Wait for room if the queue is full.
+     */
+    void put(final T element) throws InterruptedException {
+        while (!offer(element)) {
+            this.waitingProducer = Thread.currentThread();
+            try {
+                // the consumer may have made room before it could see us
+                if (offer(element)) {
+                    return;
+                }
+                park();
+            } finally {
+                this.waitingProducer = null;
+            }
+        }
+    }
+
+    /**
+     * Consumer only. Wait for an element if the queue is empty.
+     */
+    T take() throws InterruptedException {
+        T element = null;
+        while ((element = poll()) == null) {
+            this.waitingConsumer = Thread.currentThread();
+            try {
+                // the producer may have handed something over before it could
+                // see us
+                if ((element = poll()) != null) {
+                    return element;
+                }
+                park();
+            } finally {
+                this.waitingConsumer = null;
+            }
+        }
+        return element;
+    }
+
+    private void park() throws InterruptedException {
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private static void unpark(final Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
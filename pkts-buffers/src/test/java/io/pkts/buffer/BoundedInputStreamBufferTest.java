@@ -156,17 +156,199 @@ public class BoundedInputStreamBufferTest {
 
         // Make internal buffer _only_ 50% bigger than content.
         final BoundedInputStreamBuffer buffer = new BoundedInputStreamBuffer(bufferSize, in);
+        buffer.setPinning(true);
 
         // Read more than twice! Second iteration should hit buffer roll-around logic.
         for (int counter = 0; counter < 20; counter++) {
 
-//            final Buffer slice = buffer.slice((long)buffer.getReaderIndex(), buffer.getReaderIndex() + content.length);
-//            assertContent(slice, content, 0, content.length);
+            final Buffer slice = buffer.slice((long)buffer.getReaderIndex(), buffer.getReaderIndex() + content.length);
+            assertContent(slice, content, 0, content.length);
 
             final Buffer data = buffer.readBytes(content.length);
             assertContent(data, content, 0, content.length);
+            assertThat(slice.release(), is(true));
+            assertThat(data.release(), is(true));
 
             in.reset();
         }
     }
+
+    /**
+     * When pinning, slices are views of the ring, which is only ever copied
+     * by {@link Buffer#clone()} and the like.
+     */
+    @Test
+    public void testSliceIsView() throws Exception {
+        final byte[] content = RawData.rawEthernetFrame;
+        final BoundedInputStreamBuffer buffer = new BoundedInputStreamBuffer(100, new ByteArrayInputStream(content));
+        buffer.setPinning(true);
+
+        final Buffer first = buffer.slice(10, 20);
+        final Buffer second = buffer.slice(30, 50);
+        assertThat(first.getRawArray() == second.getRawArray(), is(true));
+        assertContent(first.slice(2, 5), content, 12, 3);
+        assertThat(first.release(), is(true));
+        assertThat(second.release(), is(true));
+
+        // 100 - 170 wraps around the end of the ring
+        buffer.skipBytes(70);
+        final Buffer wrapped = buffer.slice(70, 130);
+        assertContent(wrapped, content, 70, 60);
+        assertContent(wrapped.slice(10, 40), content, 80, 30);
+        assertContent(wrapped.slice(35, 45), content, 105, 10);
+        assertThat(wrapped.toString(), is(Buffers.wrap(content).slice(70, 130).toString()));
+
+        // the two segments share one reference count
+        assertThat(wrapped.retain().refCnt(), is(2));
+        assertThat(wrapped.release(), is(false));
+        assertThat(wrapped.release(), is(true));
+        try {
+            wrapped.release();
+            fail("Expected an IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The ring must not come around and overwrite a slice that is still in
+     * use.
+     */
+    @Test
+    public void testUnreleasedSliceIsNotOverwritten() throws Exception {
+        final byte[] content = RawData.rawEthernetFrame;
+        final BoundedInputStreamBuffer buffer = new BoundedInputStreamBuffer(100, new ByteArrayInputStream(content));
+        buffer.setPinning(true);
+
+        final Buffer slice = buffer.slice(10, 20);
+        assertRead(buffer, content, 0, 50);
+        assertRead(buffer, content, 50, 50);
+        assertRead(buffer, content, 100, 10);
+
+        try {
+            buffer.readBytes(10);
+            fail("Expected an IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        assertContent(slice, content, 10, 10);
+
+        slice.release();
+        assertRead(buffer, content, 110, 100);
+
+        // and what has been overwritten is gone
+        try {
+            buffer.slice(100, 120);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (final IndexOutOfBoundsException e) {
+            // expected
+        }
+        assertContent(buffer.slice(110, 210), content, 110, 100);
+    }
+
+    private void assertRead(final Buffer buffer, final byte[] actual, final int offset, final int length) throws Exception {
+        final Buffer read = buffer.readBytes(length);
+        assertContent(read, actual, offset, length);
+        assertThat(read.release(), is(true));
+    }
+
+    /**
+     * Unless pinning, slices and whatever we read are copies that stay
+     * intact no matter how far the ring goes.
+     */
+    @Test
+    public void testSliceIsCopy() throws Exception {
+        final byte[] content = RawData.rawEthernetFrame;
+        final BoundedInputStreamBuffer buffer = new BoundedInputStreamBuffer(100, new ByteArrayInputStream(content));
+
+        final Buffer slice = buffer.slice(40, 60);
+        final Buffer read = buffer.readBytes(50);
+        assertThat(slice.getRawArray() == read.getRawArray(), is(false));
+        assertThat(buffer.getPinned(), is(0));
+
+        // goes around the ring a few times over the slice
+        for (int i = 0; i < 8; ++i) {
+            assertContent(buffer.readBytes(50), content, 50 + i * 50, 50);
+        }
+        assertContent(slice, content, 40, 20);
+        assertContent(read, content, 0, 50);
+    }
+
+    /**
+     * When pinning, what we read is a view of the ring as well.
+     */
+    @Test
+    public void testReadBytesIsView() throws Exception {
+        final byte[] content = RawData.rawEthernetFrame;
+        final BoundedInputStreamBuffer buffer = new BoundedInputStreamBuffer(100, new ByteArrayInputStream(content));
+        buffer.setPinning(true);
+
+        final Buffer first = buffer.readBytes(60);
+        final Buffer second = buffer.readBytes(30);
+        assertThat(first.getRawArray() == second.getRawArray(), is(true));
+        assertContent(first, content, 0, 60);
+        assertContent(second, content, 60, 30);
+        assertThat(first.release(), is(true));
+
+        // 90 - 150 wraps around the end of the ring
+        final Buffer wrapped = buffer.readBytes(60);
+        assertContent(wrapped, content, 90, 60);
+
+        try {
+            buffer.readBytes(50);
+            fail("Expected an IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+
+        assertThat(second.release(), is(true));
+        assertThat(wrapped.release(), is(true));
+        assertContent(buffer.readBytes(50), content, 150, 50);
+    }
+
+    /**
+     * A pin is gone as soon as the view is released, even if there are
+     * unreleased views before it.
+     */
+    @Test
+    public void testReleasedViewsArePruned() throws Exception {
+        final byte[] content = RawData.rawEthernetFrame;
+        final BoundedInputStreamBuffer buffer = new BoundedInputStreamBuffer(100, new ByteArrayInputStream(content));
+        buffer.setPinning(true);
+
+        final Buffer first = buffer.slice(10, 20);
+        final Buffer second = buffer.slice(10, 20);
+        for (int i = 0; i < 10; ++i) {
+            buffer.readBytes(5).release();
+        }
+        assertThat(buffer.getPinned(), is(2));
+
+        assertThat(second.release(), is(true));
+        assertThat(buffer.getPinned(), is(1));
+        assertThat(first.retain().release(), is(false));
+        assertThat(buffer.getPinned(), is(1));
+        assertThat(first.release(), is(true));
+        assertThat(buffer.getPinned(), is(0));
+    }
+
+    /**
+     * A clone is a copy of what has been read off of the stream but not
+     * consumed.
+     */
+    @Test
+    public void testClone() throws Exception {
+        final byte[] content = RawData.rawEthernetFrame;
+        final BoundedInputStreamBuffer buffer = new BoundedInputStreamBuffer(100, new ByteArrayInputStream(content));
+        assertThat(buffer.clone().isEmpty(), is(true));
+
+        // 80 - 120 wraps around the end of the ring
+        buffer.skipBytes(80);
+        buffer.slice(80, 120);
+        final Buffer clone = buffer.clone();
+        assertContent(clone, content, 80, 40);
+        assertThat(buffer.getReaderIndex(), is(80));
+
+        assertContent(buffer.readBytes(100), content, 80, 100);
+        assertContent(clone, content, 80, 40);
+    }
 }
@@ -6,12 +6,31 @@ package io.pkts.buffer;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
+import java.nio.charset.StandardCharsets;
+
 import org.junit.Test;
 
 /**
  * @author jonas@jonasborjesson.com
  */
-public class CompositeBufferTest {
+public class CompositeBufferTest extends AbstractBufferTest {
+
+    /**
+     * Split the array up into pieces of three bytes, each one in its own
+     * component, which forces pretty much every operation across the
+     * component boundaries. The pieces are wrapped one by one so this also
+     * makes sure that wrapping a composite buffer flattens it.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer createBuffer(final byte[] array) {
+        Buffer buffer = Buffers.EMPTY_BUFFER;
+        for (int i = 0; i < array.length; i += 3) {
+            buffer = Buffers.wrap(buffer, Buffers.wrap(array, i, Math.min(i + 3, array.length)));
+        }
+        return buffer;
+    }
 
     @Test
     public void testBasicStuff() throws Exception {
@@ -60,4 +79,92 @@ public class CompositeBufferTest {
         assertThat(buffer.isEmpty(), is(true));
     }
 
+    @Test
+    public void testFlatten() throws Exception {
+        final Buffer buffer = createBuffer(allocateByteArray(100));
+        assertThat(buffer instanceof CompositeBuffer, is(true));
+
+        // a slice within a single component is an ordinary buffer
+        final Buffer slice = buffer.slice(30, 33);
+        assertThat(slice instanceof ByteBuffer, is(true));
+        assertThat(slice.getByte(0), is((byte) 30));
+
+        // wrapping composites flattens them rather than stacking them
+        final Buffer nested = Buffers.wrap(buffer.slice(10, 50), Buffers.wrap("hello"), buffer.slice(50, 100));
+        assertThat(nested.getReadableBytes(), is(95));
+        assertThat(nested.getByte(39), is((byte) 49));
+        assertThat(nested.slice(40, 45).toString(), is("hello"));
+        assertThat(nested.getByte(45), is((byte) 50));
+        assertThat(nested.getByte(94), is((byte) 99));
+    }
+
+    /**
+     * Multi-byte numbers that straddle a component boundary.
+     */
+    @Test
+    public void testGetNumbersAcrossComponents() throws Exception {
+        final Buffer buffer = createBuffer(allocateByteArray(20));
+        assertThat(buffer.getUnsignedShort(2), is(0x0203));
+        assertThat(buffer.getShort(5), is((short) 0x0506));
+        assertThat(buffer.getInt(1), is(0x01020304));
+        assertThat(buffer.getUnsignedInt(4), is(0x04050607L));
+
+        // and within a single component
+        assertThat(buffer.getUnsignedShort(3), is(0x0304));
+
+        buffer.readBytes(1);
+        assertThat(buffer.readInt(), is(0x01020304));
+        assertThat(buffer.readUnsignedShort(), is(0x0506));
+        assertThat(buffer.getReaderIndex(), is(7));
+    }
+
+    /**
+     * The components share their bytes with the buffers they were wrapped
+     * from, in both directions.
+     */
+    @Test
+    public void testSharedStorage() throws Exception {
+        final byte[] one = "hello".getBytes(StandardCharsets.UTF_8);
+        final byte[] two = "world".getBytes(StandardCharsets.UTF_8);
+        final Buffer buffer = Buffers.wrap(Buffers.wrap(one), Buffers.wrap(two));
+
+        one[0] = 'j';
+        assertThat(buffer.toString(), is("jelloworld"));
+
+        buffer.setInt(3, 0x41424344);
+        assertThat(new String(one, StandardCharsets.UTF_8), is("jelAB"));
+        assertThat(new String(two, StandardCharsets.UTF_8), is("CDrld"));
+    }
+
+    @Test
+    public void testEqualsAndHashCode() throws Exception {
+        final Buffer buffer = createBuffer("hello world".getBytes());
+        final Buffer other = Buffers.wrap("hello world");
+        assertThat(buffer.equals(other), is(true));
+        assertThat(other.equals(buffer), is(true));
+        assertThat(buffer.hashCode(), is(other.hashCode()));
+        assertThat(buffer.equalsIgnoreCase(Buffers.wrap("HELLO World")), is(true));
+        assertThat(buffer.equals(Buffers.wrap("hello worlD")), is(false));
+
+        buffer.readBytes(6);
+        assertThat(buffer.equals(Buffers.wrap("world")), is(true));
+        assertThat(buffer.hashCode(), is(Buffers.wrap("world").hashCode()));
+    }
+
+    @Test
+    public void testGetArray() throws Exception {
+        final Buffer buffer = createBuffer("hello world".getBytes());
+        buffer.readBytes(2);
+        assertThat(new String(buffer.getArray(), StandardCharsets.UTF_8), is("llo world"));
+
+        final byte[] bytes = new byte[4];
+        buffer.getBytes(bytes);
+        assertThat(new String(bytes, StandardCharsets.UTF_8), is("llo "));
+
+        final java.nio.ByteBuffer nio = buffer.toByteBuffer();
+        assertThat(nio.remaining(), is(9));
+        assertThat(nio.get(0), is((byte) 'l'));
+        assertThat(buffer.clone().toString(), is("hello world"));
+    }
+
 }
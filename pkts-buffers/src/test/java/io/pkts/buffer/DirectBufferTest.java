@@ -0,0 +1,104 @@
+package io.pkts.buffer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class DirectBufferTest extends AbstractBufferTest {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer createBuffer(final byte[] array) {
+        final java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocateDirect(array.length);
+        buffer.put(array);
+        buffer.flip();
+        return Buffers.wrapDirect(buffer);
+    }
+
+    /**
+     * Slices share the memory with the buffer they were sliced out of.
+     */
+    @Test
+    public void testSliceSharesMemory() throws Exception {
+        final Buffer buffer = createBuffer(allocateByteArray(100));
+        final Buffer slice = buffer.slice(10, 20);
+        assertThat(slice.getByte(0), is((byte) 10));
+
+        slice.setByte(0, (byte) 0x7f);
+        assertThat(buffer.getByte(10), is((byte) 0x7f));
+
+        slice.setUnsignedShort(2, 0xCAFE);
+        assertThat(buffer.getUnsignedShort(12), is(0xCAFE));
+        assertThat(buffer.slice(12, 14).equals(Buffers.wrap(new byte[] { (byte) 0xCA, (byte) 0xFE })), is(true));
+    }
+
+    /**
+     * Only the remaining bytes of the nio buffer are wrapped and moving its
+     * position afterwards doesn't affect us.
+     */
+    @Test
+    public void testWrapDirectRemaining() throws Exception {
+        final java.nio.ByteBuffer nio = java.nio.ByteBuffer.allocateDirect(10);
+        nio.put("hello world".getBytes(), 0, 10);
+        nio.position(6);
+        nio.limit(9);
+
+        final Buffer buffer = Buffers.wrapDirect(nio);
+        nio.position(0);
+        assertThat(buffer.getReadableBytes(), is(3));
+        assertThat(buffer.toString(), is("wor"));
+        assertThat(buffer.toByteBuffer().isDirect(), is(true));
+
+        assertThat(Buffers.wrapDirect(nio.position(nio.limit())).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        final Buffer buffer = Buffers.createDirectBuffer(100);
+        assertThat(buffer.hasWriteSupport(), is(true));
+        assertThat(buffer.getReadableBytes(), is(0));
+
+        buffer.write("hello ");
+        buffer.writeAsString(4711);
+        buffer.write((byte) ' ');
+        buffer.writeAsString(-17L);
+        assertThat(buffer.toString(), is("hello 4711 -17"));
+
+        buffer.write(0x01020304);
+        buffer.write(0x05060708090A0B0CL);
+        assertThat(buffer.getReadableBytes(), is(26));
+        assertThat(buffer.getInt(14), is(0x01020304));
+        assertThat(buffer.getUnsignedInt(22), is(0x090A0B0CL));
+        assertThat(buffer.getWritableBytes(), is(74));
+    }
+
+    @Test
+    public void testWriteReadOnly() throws Exception {
+        final Buffer buffer = Buffers.wrapDirect(java.nio.ByteBuffer.allocateDirect(10).asReadOnlyBuffer());
+        assertThat(buffer.hasWriteSupport(), is(false));
+        try {
+            buffer.setByte(0, (byte) 1);
+            fail("Expected a ReadOnlyBufferException");
+        } catch (final java.nio.ReadOnlyBufferException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEqualsHeapBuffer() throws Exception {
+        final Buffer buffer = createBuffer("hello world".getBytes());
+        final Buffer heap = Buffers.wrap("hello world");
+        assertThat(buffer.equals(heap), is(true));
+        assertThat(heap.equals(buffer), is(true));
+        assertThat(buffer.hashCode(), is(heap.hashCode()));
+        assertThat(buffer.clone() instanceof ByteBuffer, is(true));
+        assertThat(buffer.getArray(), is("hello world".getBytes()));
+    }
+}
@@ -11,6 +11,8 @@ import io.pkts.buffer.Buffer;
 import io.pkts.buffer.InputStreamBuffer;
 
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -120,6 +122,148 @@ public class InputStreamBufferTest extends AbstractBufferTest {
 
     }
 
+    /**
+     * Getting and slicing should work across the rows as well.
+     */
+    @Test
+    public void testGetAcrossRows() throws Exception {
+        final byte[] content = RawData.sipBuffer.getArray();
+        final Buffer buffer = new InputStreamBuffer(16, new ByteArrayInputStream(content));
+        assertContent(buffer, content, 0);
+        assertContent(buffer.slice(20, 30), content, 20);
+        assertContent(buffer.slice(10, 300), content, 10);
+        assertThat(buffer.slice(17, 17).isEmpty(), is(true));
+    }
+
+    /**
+     * In the sliding window mode, the rows we have read past are discarded
+     * but whatever we read or sliced out of them must stay intact.
+     */
+    @Test
+    public void testSlidingWindow() throws Exception {
+        final byte[] content = RawData.sipBuffer.getArray();
+        final InputStreamBuffer buffer = new InputStreamBuffer(16, new ByteArrayInputStream(content), true);
+
+        final Buffer slice = buffer.slice(33, 40);
+        final Buffer initial = buffer.readBytes(50);
+        assertContent(initial, content, 0);
+
+        // the reader index is in the fourth row so the first three are gone
+        // and the indices are now relative to the fourth row
+        assertThat(buffer.getStreamOffset(), is(48L));
+        assertThat(buffer.getReaderIndex(), is(2));
+        assertThat(getByte(buffer, 48), is(content[48]));
+        assertDiscarded(buffer, 47);
+        assertContent(slice, content, 33);
+
+        // everything from the mark and onwards must be kept around
+        buffer.markReaderIndex();
+        assertContent(buffer.readBytes(300), content, 50);
+        assertThat(getByte(buffer, 48), is(content[48]));
+        buffer.resetReaderIndex();
+        assertContent(buffer.readBytes(300), content, 50);
+
+        // until we mark again
+        buffer.markReaderIndex();
+        assertContent(buffer.readBytes(100), content, 350);
+        assertDiscarded(buffer, 335);
+        assertThat(getByte(buffer, 336), is(content[336]));
+
+        assertContent(buffer.readBytes(55), content, 450);
+        assertThat(buffer.hasReadableBytes(), is(false));
+    }
+
+    /**
+     * The indices of a sliding window are rebased as rows are discarded so
+     * we can keep going past what fits in an int.
+     */
+    @Test(timeout = 60000)
+    public void testSlidingWindowPastIntegerMaxValue() throws Exception {
+        final int rowSize = 64 * 1024;
+        final long length = Integer.MAX_VALUE + 10L * rowSize;
+        final InputStreamBuffer buffer = new InputStreamBuffer(rowSize, new RowStream(rowSize, length), true);
+
+        // read a few bytes on each side of every row boundary
+        final int chunk = 16 * rowSize;
+        long position = 0;
+        while (position + chunk <= length) {
+            buffer.skipBytes(chunk - 3);
+            position += chunk - 3;
+            final Buffer bytes = buffer.readBytes(6);
+            for (int i = 0; i < 6; ++i) {
+                assertThat(bytes.getByte(i), is(RowStream.byteAt(rowSize, position + i)));
+            }
+            position += 6;
+            assertThat(buffer.getStreamOffset() + buffer.getReaderIndex(), is(position));
+        }
+
+        assertThat(position > Integer.MAX_VALUE, is(true));
+        buffer.markReaderIndex();
+        final long left = length - position;
+        assertThat(buffer.readBytes((int) left).capacity(), is((int) left));
+        assertThat(buffer.hasReadableBytes(), is(false));
+        buffer.resetReaderIndex();
+        assertThat(buffer.readByte(), is(RowStream.byteAt(rowSize, position)));
+    }
+
+    /**
+     * A stream of the given length where every byte of a row is the number of
+     * the row, which is a lot cheaper to produce than anything random.
+     */
+    private static final class RowStream extends InputStream {
+
+        private final int rowSize;
+        private final long length;
+        private long position;
+
+        private RowStream(final int rowSize, final long length) {
+            this.rowSize = rowSize;
+            this.length = length;
+        }
+
+        private static byte byteAt(final int rowSize, final long position) {
+            return (byte) (position / rowSize);
+        }
+
+        @Override
+        public int read() {
+            if (this.position == this.length) {
+                return -1;
+            }
+            return byteAt(this.rowSize, this.position++) & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (this.position == this.length) {
+                return -1;
+            }
+
+            // never across a row so that it is all the same byte
+            final int rowLeft = this.rowSize - (int) (this.position % this.rowSize);
+            final int count = (int) Math.min(Math.min(len, rowLeft), this.length - this.position);
+            Arrays.fill(b, off, off + count, byteAt(this.rowSize, this.position));
+            this.position += count;
+            return count;
+        }
+    }
+
+    /**
+     * Get the byte at the given position in the stream.
+     */
+    private static byte getByte(final InputStreamBuffer buffer, final long position) throws Exception {
+        return buffer.getByte((int) (position - buffer.getStreamOffset()));
+    }
+
+    private static void assertDiscarded(final InputStreamBuffer buffer, final long position) throws Exception {
+        try {
+            getByte(buffer, position);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (final IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
     /**
      * After we have been reading etc it is also important that we actually
      * verify that the new read buffers indeed contains the correct content.
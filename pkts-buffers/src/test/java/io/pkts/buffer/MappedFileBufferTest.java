@@ -0,0 +1,118 @@
+package io.pkts.buffer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class MappedFileBufferTest {
+
+    private Path file;
+
+    private FileChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        final byte[] content = new byte[1000];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) i;
+        }
+        this.file = Files.createTempFile("pkts", ".bin");
+        Files.write(this.file, content);
+        this.channel = FileChannel.open(this.file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.channel.close();
+        Files.deleteIfExists(this.file);
+    }
+
+    /**
+     * Use really small segments so that we are forced to read across the
+     * segment boundaries, both within the overlap and beyond it.
+     */
+    @Test
+    public void testReadAcrossSegments() throws Exception {
+        final MappedFileBuffer buffer = new MappedFileBuffer(this.channel, 64, 16);
+        assertThat(buffer.size(), is(1000L));
+
+        // 60 - 70 is within the overlap of the first segment
+        buffer.position(60);
+        Buffer b = buffer.readBytes(10);
+        assertThat(b.capacity(), is(10));
+        assertThat(b.getByte(0), is((byte) 60));
+        assertThat(b.getByte(9), is((byte) 69));
+        assertThat(buffer.position(), is(70L));
+
+        // 100 - 200 spans several segments and is larger than the overlap
+        buffer.position(100);
+        b = buffer.readBytes(100);
+        for (int i = 0; i < 100; ++i) {
+            assertThat(b.readByte(), is((byte) (100 + i)));
+        }
+
+        // the last segment is shorter than the others
+        buffer.position(990);
+        b = buffer.readBytes(10);
+        assertThat(b.getByte(9), is((byte) 999));
+        assertThat(buffer.hasReadableBytes(), is(false));
+    }
+
+    /**
+     * A clone is a copy of the readable bytes, across the segments, that has
+     * nothing to do with the file anymore.
+     */
+    @Test
+    public void testClone() throws Exception {
+        final MappedFileBuffer buffer = new MappedFileBuffer(this.channel, 64, 16);
+        buffer.position(900);
+        final Buffer clone = buffer.clone();
+        assertThat(clone.capacity(), is(100));
+        assertThat(clone.getByte(0), is((byte) 900));
+        assertThat(clone.getByte(99), is((byte) 999));
+
+        clone.setByte(0, (byte) 0);
+        assertThat(buffer.getByte(900), is((byte) 900));
+
+        buffer.position(1000);
+        assertThat(buffer.clone().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testReadPastEndOfFile() throws Exception {
+        final MappedFileBuffer buffer = new MappedFileBuffer(this.channel, 64, 16);
+        buffer.position(995);
+        try {
+            buffer.readBytes(10);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (final IndexOutOfBoundsException e) {
+            // expected
+        }
+
+        // nothing should have been consumed
+        assertThat(buffer.position(), is(995L));
+        assertThat(buffer.getReadableBytes(), is(5));
+    }
+
+    @Test
+    public void testReadPrimitives() throws Exception {
+        final MappedFileBuffer buffer = new MappedFileBuffer(this.channel, 64, 0);
+        buffer.position(62);
+        assertThat(buffer.readUnsignedInt(), is(0x3E3F4041L));
+        assertThat(buffer.readUnsignedShort(), is(0x4243));
+        assertThat(buffer.getUnsignedByte(255), is((short) 255));
+    }
+
+}
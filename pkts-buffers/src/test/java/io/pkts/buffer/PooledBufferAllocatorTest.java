@@ -0,0 +1,158 @@
+package io.pkts.buffer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class PooledBufferAllocatorTest {
+
+    /**
+     * A released array should be handed out again, whereas one that is still
+     * in use must not.
+     */
+    @Test
+    public void testReuse() throws Exception {
+        final PooledBufferAllocator allocator = PooledBufferAllocator.with().build();
+        final Buffer first = allocator.allocate(100);
+        final Buffer second = allocator.allocate(100);
+        assertThat(second.getRawArray(), not(sameInstance(first.getRawArray())));
+        assertThat(allocator.getAllocatedArrays(), is(2L));
+
+        final byte[] array = first.getRawArray();
+        assertThat(first.release(), is(true));
+        final Buffer third = allocator.allocate(120);
+        assertThat(third.getRawArray(), sameInstance(array));
+        assertThat(allocator.getAllocatedArrays(), is(2L));
+    }
+
+    /**
+     * The arrays are rounded up to the nearest power of two but the buffer
+     * itself is of the capacity asked for.
+     */
+    @Test
+    public void testSizeClasses() throws Exception {
+        final PooledBufferAllocator allocator = PooledBufferAllocator.with().build();
+        assertSizeClass(allocator, 0, 16);
+        assertSizeClass(allocator, 1, 16);
+        assertSizeClass(allocator, 16, 16);
+        assertSizeClass(allocator, 17, 32);
+        assertSizeClass(allocator, 100, 128);
+        assertSizeClass(allocator, 1500, 2048);
+        assertSizeClass(allocator, 64 * 1024, 64 * 1024);
+    }
+
+    private static void assertSizeClass(final PooledBufferAllocator allocator, final int capacity, final int size) {
+        final Buffer buffer = allocator.allocate(capacity);
+        assertThat(buffer.getRawArray().length, is(size));
+        assertThat(buffer.capacity(), is(capacity));
+        assertThat(buffer.getReadableBytes(), is(0));
+        assertThat(buffer.getWritableBytes(), is(capacity));
+        buffer.release();
+    }
+
+    /**
+     * Anything larger than the largest size class is just a regular buffer.
+     */
+    @Test
+    public void testNotPooled() throws Exception {
+        final PooledBufferAllocator allocator = PooledBufferAllocator.with().withMaxPooledSize(1000).build();
+        final Buffer pooled = allocator.allocate(1024);
+        assertThat(pooled.refCnt(), is(1));
+        assertThat(allocator.getAllocatedArrays(), is(1L));
+
+        final Buffer buffer = allocator.allocate(1025);
+        assertThat(buffer.getRawArray().length, is(1025));
+        assertThat(buffer.release(), is(false));
+        assertThat(allocator.getAllocatedArrays(), is(1L));
+    }
+
+    @Test
+    public void testRetainRelease() throws Exception {
+        final PooledBufferAllocator allocator = PooledBufferAllocator.with().build();
+        final Buffer buffer = allocator.allocate(10);
+        assertThat(buffer.refCnt(), is(1));
+        assertThat(buffer.retain(), sameInstance(buffer));
+        assertThat(buffer.refCnt(), is(2));
+        assertThat(buffer.release(), is(false));
+        assertThat(buffer.release(), is(true));
+        assertThat(buffer.refCnt(), is(0));
+
+        try {
+            buffer.release();
+            fail("Expected an IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            buffer.retain();
+            fail("Expected an IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Slices share the array, and therefore the reference count, with the
+     * buffer they were sliced out of.
+     */
+    @Test
+    public void testSliceSharesReferenceCount() throws Exception {
+        final PooledBufferAllocator allocator = PooledBufferAllocator.with().build();
+        final Buffer buffer = allocator.allocate(20);
+        buffer.write("hello world");
+
+        final Buffer slice = buffer.slice(6, 11).retain();
+        final Buffer hello = buffer.readBytes(5);
+        assertThat(slice.toString(), is("world"));
+        assertThat(hello.toString(), is("hello"));
+        assertThat(buffer.refCnt(), is(2));
+
+        assertThat(buffer.release(), is(false));
+        assertThat(slice.toString(), is("world"));
+        assertThat(hello.release(), is(true));
+        assertThat(slice.refCnt(), is(0));
+    }
+
+    /**
+     * A buffer that is garbage collected without being released should be
+     * reported as a leak, which we find out about on the next allocation.
+     */
+    @Test(timeout = 10000)
+    public void testLeakDetection() throws Exception {
+        final PooledBufferAllocator allocator = PooledBufferAllocator.with().withLeakDetection(true).build();
+        allocator.allocate(10).release();
+        allocator.allocate(10);
+
+        while (allocator.getLeaks() == 0) {
+            System.gc();
+            Thread.sleep(10);
+            allocator.allocate(10).release();
+        }
+        assertThat(allocator.getLeaks(), is(1L));
+    }
+
+    @Test
+    public void testBuilder() throws Exception {
+        assertIllegal(() -> PooledBufferAllocator.with().withMaxPooledSize(0));
+        assertIllegal(() -> PooledBufferAllocator.with().withThreadCacheSize(-1));
+        assertIllegal(() -> PooledBufferAllocator.with().withArenaSize(0));
+        assertIllegal(() -> PooledBufferAllocator.with().build().allocate(-1));
+    }
+
+    private static void assertIllegal(final Runnable runnable) {
+        try {
+            runnable.run();
+            fail("Expected an IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
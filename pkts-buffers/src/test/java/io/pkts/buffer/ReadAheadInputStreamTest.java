@@ -0,0 +1,115 @@
+package io.pkts.buffer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class ReadAheadInputStreamTest {
+
+    @Test
+    public void testReadAll() throws Exception {
+        final byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+
+        // small blocks so that we go around the ring many times
+        final ReadAheadInputStream stream = new ReadAheadInputStream(new ByteArrayInputStream(data), 3, 1000);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[333];
+        int read = 0;
+        while ((read = stream.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
+        }
+
+        assertThat(Arrays.equals(out.toByteArray(), data), is(true));
+        assertThat(stream.read(), is(-1));
+        stream.close();
+    }
+
+    @Test
+    public void testReadSingleBytes() throws Exception {
+        final byte[] data = { 1, 2, (byte) 0xFF };
+        final ReadAheadInputStream stream = new ReadAheadInputStream(new ByteArrayInputStream(data));
+        assertThat(stream.read(), is(1));
+        assertThat(stream.read(), is(2));
+        assertThat(stream.read(), is(0xFF));
+        assertThat(stream.read(), is(-1));
+        stream.close();
+    }
+
+    /**
+     * Whatever goes wrong on the reading thread should surface to the
+     * consumer, after the bytes read before that.
+     */
+    @Test
+    public void testFailure() throws Exception {
+        final InputStream failing = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                if (this.count++ >= 10) {
+                    throw new IOException("boom");
+                }
+                return 'a';
+            }
+        };
+
+        final ReadAheadInputStream stream = new ReadAheadInputStream(failing, 2, 4);
+        for (int i = 0; i < 10; ++i) {
+            assertThat(stream.read(), is((int) 'a'));
+        }
+
+        try {
+            stream.read();
+            fail("Expected an IOException");
+        } catch (final IOException e) {
+            assertThat(e.getMessage(), is("boom"));
+        }
+        stream.close();
+    }
+
+    /**
+     * An unchecked exception on the reading thread must not leave the
+     * consumer waiting forever.
+     */
+    @Test(timeout = 5000)
+    public void testUncheckedFailure() throws Exception {
+        final InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IllegalStateException("boom");
+            }
+        };
+
+        final ReadAheadInputStream stream = new ReadAheadInputStream(failing, 2, 4);
+        try {
+            stream.read();
+            fail("Expected an IllegalStateException");
+        } catch (final IllegalStateException e) {
+            assertThat(e.getMessage(), is("boom"));
+        }
+
+        // and after that, the stream is at its end
+        assertThat(stream.read(), is(-1));
+        stream.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadAfterClose() throws Exception {
+        final ReadAheadInputStream stream = new ReadAheadInputStream(new ByteArrayInputStream(new byte[10]));
+        stream.close();
+        stream.read();
+    }
+}
@@ -0,0 +1,53 @@
+package io.pkts.buffer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class SpscQueueTest {
+
+    @Test
+    public void testOfferPoll() throws Exception {
+        // rounded up to four
+        final SpscQueue<Integer> queue = new SpscQueue<>(3);
+        for (int i = 0; i < 4; ++i) {
+            assertThat(queue.offer(i), is(true));
+        }
+        assertThat(queue.offer(4), is(false));
+
+        for (int i = 0; i < 4; ++i) {
+            assertThat(queue.poll(), is(i));
+        }
+        assertThat(queue.poll() == null, is(true));
+    }
+
+    /**
+     * A tiny queue between two threads, so both sides will have to wait on
+     * the other every now and then, and everything must come out in order.
+     */
+    @Test(timeout = 10000)
+    public void testProducerConsumer() throws Exception {
+        final int count = 200000;
+        final SpscQueue<Integer> queue = new SpscQueue<>(2);
+        final Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < count; ++i) {
+                    queue.put(i);
+                }
+            } catch (final InterruptedException e) {
+                // test will fail
+            }
+        });
+        producer.start();
+
+        for (int i = 0; i < count; ++i) {
+            assertThat(queue.take(), is(i));
+        }
+        producer.join();
+        assertThat(queue.poll() == null, is(true));
+    }
+}
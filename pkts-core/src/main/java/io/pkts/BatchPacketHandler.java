@@ -0,0 +1,39 @@
+package io.pkts;
+
+import io.pkts.packet.Packet;
+
+import java.io.IOException;
+
+/**
+ * Same as the {@link PacketHandler} but the packets are handed over in
+ * batches, see {@link Pcap#loopBatch(BatchPacketHandler, int)}. This
+ * amortises the cost of the callback over many packets and allows for
+ * processing e.g. the arrival times of a whole batch in a tight loop.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public interface BatchPacketHandler {
+
+    /**
+     * Will be called by the {@link Pcap} class every time a batch of packets
+     * has been read off of the pcap stream.
+     *
+     * Note that the arrays are re-used between calls so only the first
+     * <code>count</code> elements are valid and if you need to hang on to the
+     * packets after returning, you have to copy them.
+     *
+     * @param packets
+     *            the new packets, in the order they were read off of the pcap
+     *            stream.
+     * @param arrivalTimes
+     *            the arrival time of each one of the packets, i.e. the same as
+     *            {@link Packet#getArrivalTime()}.
+     * @param count
+     *            the number of packets in this batch, which is never zero.
+     * @return true if this instance wants to handle subsequent packets, false
+     *         otherwise.
+     * @throws IOException
+     */
+    boolean nextBatch(Packet[] packets, long[] arrivalTimes, int count) throws IOException;
+
+}
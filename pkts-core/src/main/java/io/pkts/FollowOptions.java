@@ -0,0 +1,119 @@
+package io.pkts;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options for following a growing pcap file, see
+ * {@link Pcap#follow(Path, PacketHandler, FollowOptions)}.
+ *
+ * <pre>
+ * FollowOptions options = FollowOptions.with()
+ *         .withRotation("capture.pcap*")
+ *         .withIdleTimeout(10, TimeUnit.MINUTES)
+ *         .build();
+ * </pre>
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class FollowOptions {
+
+    /**
+     * Poll every 10 ms to begin with, backing off to every 250 ms when
+     * nothing is happening, and never move on to another file.
+     */
+    public static final FollowOptions DEFAULT = with().build();
+
+    private final long minPollIntervalMillis;
+    private final long maxPollIntervalMillis;
+    private final long idleTimeoutMillis;
+    private final String rotationPattern;
+
+    private FollowOptions(final Builder builder) {
+        this.minPollIntervalMillis = builder.minPollIntervalMillis;
+        this.maxPollIntervalMillis = builder.maxPollIntervalMillis;
+        this.idleTimeoutMillis = builder.idleTimeoutMillis;
+        this.rotationPattern = builder.rotationPattern;
+    }
+
+    public static Builder with() {
+        return new Builder();
+    }
+
+    /**
+     * How long to wait before checking for more data the first time we run
+     * out of it. Every time there still is nothing new, the wait is doubled,
+     * up until {@link #getMaxPollIntervalMillis()}.
+     */
+    public long getMinPollIntervalMillis() {
+        return this.minPollIntervalMillis;
+    }
+
+    public long getMaxPollIntervalMillis() {
+        return this.maxPollIntervalMillis;
+    }
+
+    /**
+     * Stop following if nothing has been appended for this long. Zero means
+     * follow forever.
+     */
+    public long getIdleTimeoutMillis() {
+        return this.idleTimeoutMillis;
+    }
+
+    /**
+     * A glob, such as "capture.pcap*", for the files in the same directory as
+     * the followed file that make up the rotation. Null if we should stick to
+     * the one file.
+     */
+    public String getRotationPattern() {
+        return this.rotationPattern;
+    }
+
+    public static final class Builder {
+
+        private long minPollIntervalMillis = 10;
+        private long maxPollIntervalMillis = 250;
+        private long idleTimeoutMillis;
+        private String rotationPattern;
+
+        private Builder() {
+            // use FollowOptions.with()
+        }
+
+        public Builder withPollInterval(final long min, final long max, final TimeUnit unit) {
+            if (min <= 0 || max < min) {
+                throw new IllegalArgumentException("The poll interval must be positive and min cannot exceed max");
+            }
+            this.minPollIntervalMillis = Math.max(1, unit.toMillis(min));
+            this.maxPollIntervalMillis = Math.max(this.minPollIntervalMillis, unit.toMillis(max));
+            return this;
+        }
+
+        public Builder withIdleTimeout(final long timeout, final TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("The idle timeout cannot be negative");
+            }
+            this.idleTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Move on to the next file of the rotation once the current one is
+         * done with, i.e., once a newer file matching the glob shows up in
+         * the same directory. The files are taken in the order they were
+         * last modified.
+         */
+        public Builder withRotation(final String glob) {
+            if (glob == null || glob.isEmpty()) {
+                throw new IllegalArgumentException("The rotation pattern cannot be null or empty");
+            }
+            this.rotationPattern = glob;
+            return this;
+        }
+
+        public FollowOptions build() {
+            return new FollowOptions(this);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package io.pkts;
+
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.buffer.MappedFileBuffer;
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.framer.FramerManager;
+import io.pkts.framer.PcapFramer;
+import io.pkts.packet.Packet;
+import io.pkts.packet.impl.AbstractPacket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Frames and decodes the packets of a pcap file on a {@link ForkJoinPool}
+ * while still delivering them in order.
+ *
+ * The calling thread walks the record headers only (see
+ * {@link RecordHeaderReader}) and cuts the file into record aligned chunks of
+ * roughly {@link #CHUNK_SIZE} bytes. Every chunk is handed off to the pool,
+ * which frames all the packets within it and decodes every layer of them.
+ * Since the packets remember what has been framed, the handler gets fully
+ * decoded packets.
+ *
+ * The chunks are kept in a queue in file order and the calling thread
+ * delivers the packets of the oldest chunk as soon as it is done. At most
+ * {@link #maxInFlight} chunks are ever queued, which bounds the memory used
+ * when the handler is slower than the decoding.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+final class ParallelLoop {
+
+    /**
+     * The target size of a chunk. Big enough to make the hand-off cost
+     * negligible and small enough to keep all workers busy.
+     */
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final PcapGlobalHeader header;
+    private final Buffer buffer;
+    private final FileChannel channel;
+    private final FramerManager framerManager;
+    private final ForkJoinPool pool;
+    private final int maxInFlight;
+
+    /**
+     * The offset right after the last packet handed to the handler.
+     */
+    private long position;
+
+    ParallelLoop(final PcapGlobalHeader header, final Buffer buffer, final FileChannel channel,
+            final FramerManager framerManager, final ForkJoinPool pool) {
+        this.header = header;
+        this.buffer = buffer;
+        this.channel = channel;
+        this.framerManager = framerManager;
+        this.pool = pool;
+        this.maxInFlight = 2 * pool.getParallelism();
+    }
+
+    /**
+     * Process all records from the given offset and onwards.
+     *
+     * @param offset where to start, which has to be the start of a record.
+     * @param handler gets the packets in file order. Any filtering etc is up
+     *        to the handler.
+     * @return the offset after the last record handed to the handler.
+     * @throws IOException
+     */
+    long loop(final long offset, final PacketHandler handler) throws IOException {
+        this.position = offset;
+        final RecordHeaderReader reader = new RecordHeaderReader(this.channel, this.header);
+        final long size = reader.size();
+        final Deque<ForkJoinTask<Chunk>> inFlight = new ArrayDeque<>();
+
+        try {
+            long start = offset;
+            long end = offset;
+            while (reader.read(end) && reader.nextOffset() <= size) {
+                end = reader.nextOffset();
+                if (end - start >= CHUNK_SIZE) {
+                    if (!submit(inFlight, start, end, handler)) {
+                        return this.position;
+                    }
+                    start = end;
+                }
+            }
+
+            if (end > start && !submit(inFlight, start, end, handler)) {
+                return this.position;
+            }
+
+            while (!inFlight.isEmpty()) {
+                if (!deliver(inFlight.poll(), handler)) {
+                    return this.position;
+                }
+            }
+
+            return this.position;
+        } finally {
+            for (final ForkJoinTask<Chunk> task : inFlight) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Queue up a new chunk, but before doing so, make room for it by
+     * delivering the oldest chunk if we have too many in flight.
+     *
+     * @return false if the handler doesn't want any more packets.
+     */
+    private boolean submit(final Deque<ForkJoinTask<Chunk>> inFlight, final long start, final long end,
+            final PacketHandler handler) throws IOException {
+        while (inFlight.size() >= this.maxInFlight) {
+            if (!deliver(inFlight.poll(), handler)) {
+                return false;
+            }
+        }
+
+        // the mapped file maps its segments lazily so it is sliced right here,
+        // on the calling thread, while reading from the channel is left to
+        // the pool
+        final Buffer mapped = this.buffer instanceof MappedFileBuffer
+                ? ((MappedFileBuffer) this.buffer).view(start, (int) (end - start))
+                : null;
+        inFlight.add(this.pool.submit(() -> decode(start, end, mapped)));
+        return true;
+    }
+
+    private boolean deliver(final ForkJoinTask<Chunk> task, final PacketHandler handler) throws IOException {
+        final Chunk chunk = await(task);
+        for (int i = 0; i < chunk.packets.size(); ++i) {
+            this.position = chunk.ends[i];
+            if (!handler.nextPacket(chunk.packets.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Chunk await(final ForkJoinTask<Chunk> task) throws IOException {
+        try {
+            return task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for packets to be decoded");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Unable to decode packets", cause);
+        }
+    }
+
+    /**
+     * Runs on the pool. Frames all the records of the chunk and decodes every
+     * layer of the packets.
+     */
+    private Chunk decode(final long start, final long end, final Buffer mapped) throws IOException {
+        final Buffer bytes = mapped != null ? mapped : read(start, (int) (end - start));
+        final PcapFramer framer = new PcapFramer(this.header, this.framerManager);
+        final Chunk chunk = new Chunk();
+
+        long offset = start;
+        Packet packet = null;
+        while ((packet = framer.frame(null, bytes)) != null) {
+            offset += PcapRecordHeader.SIZE + packet.getPayload().getReadableBytes();
+
+            // anything that fails to frame is left for the handler to find
+            // out about
+            if (packet instanceof AbstractPacket) {
+                ((AbstractPacket) packet).frameAll();
+            }
+
+            chunk.add(packet, offset);
+        }
+
+        return chunk;
+    }
+
+    private Buffer read(final long start, final int length) throws IOException {
+        final ByteBuffer bytes = ByteBuffer.allocate(length);
+        while (bytes.hasRemaining()) {
+            if (this.channel.read(bytes, start + bytes.position()) == -1) {
+                throw new IOException("The file was truncated while reading it");
+            }
+        }
+        return Buffers.wrap(bytes.array());
+    }
+
+    /**
+     * The packets of a chunk along with the offset where each one of them
+     * ends, which is where we are positioned after having delivered it.
+     */
+    private static final class Chunk {
+        private final List<Packet> packets = new ArrayList<>();
+        private long[] ends = new long[64];
+
+        private void add(final Packet packet, final long end) {
+            if (this.packets.size() == this.ends.length) {
+                final long[] tmp = new long[this.ends.length * 2];
+                System.arraycopy(this.ends, 0, tmp, 0, this.ends.length);
+                this.ends = tmp;
+            }
+            this.ends[this.packets.size()] = end;
+            this.packets.add(packet);
+        }
+    }
+}
@@ -3,23 +3,45 @@ package io.pkts;
 import io.pkts.buffer.BoundedInputStreamBuffer;
 import io.pkts.buffer.Buffer;
 import io.pkts.buffer.Buffers;
+import io.pkts.buffer.MappedFileBuffer;
+import io.pkts.buffer.PooledBufferAllocator;
+import io.pkts.buffer.ReadAheadInputStream;
 import io.pkts.filters.Filter;
 import io.pkts.filters.FilterException;
 import io.pkts.filters.FilterFactory;
 import io.pkts.filters.FilterParseException;
 import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.framer.Framer;
 import io.pkts.framer.FramerManager;
 import io.pkts.framer.FramingException;
 import io.pkts.framer.PcapFramer;
+import io.pkts.framer.PcapNgFramer;
+import io.pkts.packet.PCapPacket;
 import io.pkts.packet.Packet;
+import io.pkts.packet.impl.PCapPacketImpl;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.nio.ByteOrder;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
 
 /**
  * 
@@ -28,10 +50,44 @@ import java.nio.ByteOrder;
  */
 public class Pcap {
 
+    /**
+     * The first two bytes of a gzip stream.
+     */
+    private static final byte[] GZIP_MAGIC = { (byte) 0x1f, (byte) 0x8b };
+
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
     private final PcapGlobalHeader header;
-    private final Buffer buffer;
+    private Buffer buffer;
     private final FramerManager framerManager;
 
+    /**
+     * Frames the records of the capture, which is either a
+     * {@link PcapFramer} or, for pcapng captures, a {@link PcapNgFramer}.
+     */
+    private final Framer<Packet, PCapPacket> framer;
+
+    /**
+     * The underlying resource (file, channel) that we opened ourselves and
+     * therefore also are responsible for closing. Will be null if the user
+     * handed us e.g. an {@link InputStream}, in which case it is up to the
+     * user to close it.
+     */
+    private final Closeable source;
+
+    /**
+     * The file we are reading from, if we are reading from a file, which is
+     * what makes it possible to seek.
+     */
+    private final Path file;
+
+    private final FileChannel channel;
+
+    /**
+     * The index used for seeking. Loaded, or built, on first use.
+     */
+    private PcapIndex index;
+
     /**
      * If the filter is set then only frames that are accepted by the filter
      * will be further processed.
@@ -40,12 +96,24 @@ public class Pcap {
 
     private final FilterFactory filterFactory = FilterFactory.getInstance();
 
-    private Pcap(final PcapGlobalHeader header, final Buffer buffer) {
+    /**
+     * Whether the records are read into pooled buffers, in which case the
+     * loops release every packet once the handler is done with it. See
+     * {@link #openStream(InputStream, PooledBufferAllocator)}.
+     */
+    private boolean pooled;
+
+    private Pcap(final PcapGlobalHeader header, final Buffer buffer, final Closeable source, final Path file,
+            final FileChannel channel, final Framer<Packet, PCapPacket> framer) {
         assert header != null;
         assert buffer != null;
         this.header = header;
         this.buffer = buffer;
+        this.source = source;
+        this.file = file;
+        this.channel = channel;
         this.framerManager = FramerManager.getInstance();
+        this.framer = framer != null ? framer : new PcapFramer(header, this.framerManager);
     }
 
     /**
@@ -70,15 +138,14 @@ public class Pcap {
     }
 
     public void loop(final PacketHandler callback) throws IOException, FramingException {
-        final ByteOrder byteOrder = this.header.getByteOrder();
-        final PcapFramer framer = new PcapFramer(this.header, this.framerManager);
-        int count = 1;
-
         Packet packet = null;
         boolean processNext = true;
-        while ((packet = framer.frame(null, this.buffer)) != null && processNext) {
+        long offset = originOffset();
+        while ((packet = this.framer.frame(null, this.buffer)) != null && processNext) {
+            if (offset != -1) {
+                offset = setOrigin((PCapPacketImpl) packet, offset);
+            }
             try {
-                // System.out.println(" - " + (count++));
                 final long time = packet.getArrivalTime();
                 this.framerManager.tick(time);
                 if (this.filter == null) {
@@ -91,10 +158,285 @@ public class Pcap {
                 // exceptions
                 System.err.println("WARN: the filter complained about the last frame. Msg (if any) - " +
                         e.getMessage());
+            } finally {
+                release(packet);
+            }
+        }
+
+        // the one we framed after the handler told us to stop
+        if (packet != null) {
+            release(packet);
+        }
+    }
+
+    /**
+     * Same as {@link #loop(PacketHandler)} but the very same packet object is
+     * re-used for every record, which means that a packet, and anything
+     * framed out of it, is only valid until
+     * {@link PacketHandler#nextPacket(Packet)} returns. If you need to hang on
+     * to a packet, you have to {@link Packet#retain()} it.
+     *
+     * Since the layers above the pcap record are only framed if you ask for
+     * them, a handler that only looks at e.g. the arrival time or the length
+     * of the packets will hardly allocate anything at all, which is what
+     * makes this the preferred way of filtering very large captures.
+     *
+     * For pcapng captures this is the same as {@link #loop(PacketHandler)}.
+     *
+     * @param callback
+     * @throws IOException
+     * @throws FramingException
+     */
+    public void loopEphemeral(final PacketHandler callback) throws IOException, FramingException {
+        if (!(this.framer instanceof PcapFramer)) {
+            loop(callback);
+            return;
+        }
+
+        final PcapFramer pcapFramer = (PcapFramer) this.framer;
+        final PCapPacketImpl packet = PCapPacketImpl.createFlyweight(this.header);
+        boolean processNext = true;
+        long offset = originOffset();
+        while (processNext && pcapFramer.frameInto(packet, this.buffer)) {
+            if (offset != -1) {
+                offset = setOrigin(packet, offset);
+            }
+            try {
+                this.framerManager.tick(packet.getArrivalTime());
+                if (this.filter == null || this.filter.accept(packet)) {
+                    processNext = callback.nextPacket(packet);
+                }
+            } catch (final FilterException e) {
+                System.err.println("WARN: the filter complained about the last frame. Msg (if any) - " +
+                        e.getMessage());
+            } finally {
+                release(packet);
             }
         }
     }
 
+    /**
+     * Same as {@link #loop(PacketHandler)} but the packets are handed over in
+     * batches of up to <code>maxBatch</code> packets at a time. A batch is
+     * handed over once it is full or when the end of the capture is reached.
+     * The filter, if any, is applied before the packets are added to the
+     * batch.
+     *
+     * @param callback
+     * @param maxBatch
+     *            the maximum number of packets in a batch.
+     * @throws IOException
+     * @throws FramingException
+     */
+    public void loopBatch(final BatchPacketHandler callback, final int maxBatch) throws IOException,
+            FramingException {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("The batch size must be a positive number");
+        }
+
+        final Packet[] packets = new Packet[maxBatch];
+        final long[] arrivalTimes = new long[maxBatch];
+        int count = 0;
+        Packet packet = null;
+        while ((packet = this.framer.frame(null, this.buffer)) != null) {
+            final long time = packet.getArrivalTime();
+            try {
+                if (this.filter != null && !this.filter.accept(packet)) {
+                    release(packet);
+                    continue;
+                }
+            } catch (final FilterException e) {
+                System.err.println("WARN: the filter complained about the last frame. Msg (if any) - " +
+                        e.getMessage());
+                release(packet);
+                continue;
+            }
+
+            packets[count] = packet;
+            arrivalTimes[count] = time;
+            if (++count == maxBatch) {
+                // the clock only needs to be right as of the latest packet
+                // that has been handed over
+                this.framerManager.tick(time);
+                final boolean processNext;
+                try {
+                    processNext = callback.nextBatch(packets, arrivalTimes, count);
+                } finally {
+                    release(packets, count);
+                }
+                Arrays.fill(packets, null);
+                count = 0;
+                if (!processNext) {
+                    return;
+                }
+            }
+        }
+
+        if (count > 0) {
+            this.framerManager.tick(arrivalTimes[count - 1]);
+            try {
+                callback.nextBatch(packets, arrivalTimes, count);
+            } finally {
+                release(packets, count);
+            }
+        }
+    }
+
+    /**
+     * If the packets are pooled, we are done with the packet and it is up to
+     * the handler to have retained it if it needs it for any longer.
+     */
+    private void release(final Packet packet) {
+        if (this.pooled) {
+            packet.release();
+        }
+    }
+
+    private void release(final Packet[] packets, final int count) {
+        for (int i = 0; i < count; ++i) {
+            release(packets[i]);
+        }
+    }
+
+    /**
+     * Pull the next packet off of the capture, for those that need to be in
+     * control of the pace, such as the {@link PcapMerger}. Note that the
+     * filter isn't applied and that a pooled packet is never released by us,
+     * it is up to the caller to {@link Packet#release()} it.
+     *
+     * @return the next packet or null if there are no more.
+     */
+    PCapPacket next() throws IOException, FramingException {
+        final PCapPacket packet = this.framer.frame(null, this.buffer);
+        if (packet != null) {
+            this.framerManager.tick(packet.getArrivalTime());
+        }
+        return packet;
+    }
+
+    /**
+     * All the packets from where we are right now and onwards as a
+     * {@link Stream}. Note that the filter isn't applied, use
+     * {@link Stream#filter(java.util.function.Predicate)} instead.
+     *
+     * If this {@link Pcap} was opened from a pcap file, through either
+     * {@link #openStream(File)} or {@link #openMapped(Path)}, the stream can be
+     * split at record boundaries (see {@link PcapSpliterator}) so a parallel
+     * stream will frame and process the packets on many cores. This
+     * {@link Pcap} itself is not moved forward by the stream in that case.
+     *
+     * Otherwise, the stream pulls the packets off of this {@link Pcap} one by
+     * one, just like {@link #loop(PacketHandler)} does. That also goes for
+     * the pooled packets of
+     * {@link #openStream(InputStream, PooledBufferAllocator)}, which are
+     * released as soon as the stream is done with them, so you have to
+     * {@link Packet#retain()} any packet that you e.g. collect. Such a stream
+     * is never split.
+     *
+     * <pre>
+     * long invites = pcap.stream().parallel()
+     *         .filter(packet -&gt; packet.hasProtocol(Protocol.SIP))
+     *         .count();
+     * </pre>
+     *
+     * Any {@link IOException} while streaming is thrown as an
+     * {@link UncheckedIOException}.
+     *
+     * @return
+     * @throws IOException
+     */
+    public Stream<Packet> stream() throws IOException {
+        if (this.channel != null && this.framer instanceof PcapFramer) {
+            final PcapSpliterator spliterator = new PcapSpliterator(this.header, this.channel, this.framerManager,
+                    currentOffset(), this.channel.size());
+            return StreamSupport.stream(spliterator, false);
+        }
+
+        final int characteristics = Spliterator.ORDERED | Spliterator.NONNULL;
+        final Spliterator<Packet> spliterator = new Spliterators.AbstractSpliterator<Packet>(Long.MAX_VALUE,
+                characteristics) {
+            @Override
+            public boolean tryAdvance(final Consumer<? super Packet> action) {
+                final Packet packet;
+                try {
+                    packet = Pcap.this.next();
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                if (packet == null) {
+                    return false;
+                }
+
+                try {
+                    action.accept(packet);
+                } finally {
+                    release(packet);
+                }
+                return true;
+            }
+
+            /**
+             * Splitting buffers up the packets, which would be released
+             * before anyone got to them if they are pooled.
+             */
+            @Override
+            public Spliterator<Packet> trySplit() {
+                return Pcap.this.pooled ? null : super.trySplit();
+            }
+        };
+
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    /**
+     * Same as {@link #loopParallel(PacketHandler, ForkJoinPool)} but using the
+     * common pool.
+     */
+    public void loopParallel(final PacketHandler callback) throws IOException, FramingException,
+            IllegalStateException {
+        loopParallel(callback, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Same as {@link #loop(PacketHandler)} but the packets are framed and all
+     * their layers decoded (Ethernet, IP, UDP/TCP, SIP/RTP etc) in parallel
+     * on the given pool. The packets are still handed to the
+     * {@link PacketHandler}, on the calling thread, in the order they appear
+     * in the file. See {@link ParallelLoop} for the details.
+     *
+     * This is only possible for pcap files, opened through either
+     * {@link #openStream(File)} or {@link #openMapped(Path)}, since the file
+     * is cut into chunks that are read independently of each other. Once
+     * done, this {@link Pcap} is positioned right after the last packet
+     * handed to the {@link PacketHandler}.
+     *
+     * @param callback
+     * @param pool
+     * @throws IOException
+     * @throws FramingException
+     * @throws IllegalStateException
+     *             in case this {@link Pcap} wasn't opened from a pcap file.
+     */
+    public void loopParallel(final PacketHandler callback, final ForkJoinPool pool) throws IOException,
+            FramingException, IllegalStateException {
+        assertPcapFile();
+        final ParallelLoop loop = new ParallelLoop(this.header, this.buffer, this.channel, this.framerManager, pool);
+        final long position = loop.loop(currentOffset(), packet -> {
+            try {
+                this.framerManager.tick(packet.getArrivalTime());
+                if (this.filter == null || this.filter.accept(packet)) {
+                    return callback.nextPacket(packet);
+                }
+            } catch (final FilterException e) {
+                System.err.println("WARN: the filter complained about the last frame. Msg (if any) - " +
+                        e.getMessage());
+            }
+            return true;
+        });
+        position(position);
+    }
+
     /**
      * Create an {@link PcapOutputStream} based on this {@link Pcap}. The new
      * {@link PcapOutputStream} is configured to use the same
@@ -112,20 +454,21 @@ public class Pcap {
     }
 
     /**
-     * Capture packets from the input stream
+     * Capture packets from the input stream. Both pcap and pcapng captures
+     * are supported, as well as gzipped ones, which are inflated on a
+     * separate thread (see {@link ReadAheadInputStream}).
      * 
      * @param is
      * @return
      * @throws IOException
      */
     public static Pcap openStream(final InputStream is) throws IOException {
-        final Buffer stream = Buffers.wrap(is);
-        final PcapGlobalHeader header = PcapGlobalHeader.parse(stream);
-        return new Pcap(header, stream);
+        return openStream(is, BoundedInputStreamBuffer.DEFAULT_CAPACITY);
     }
 
     /**
-     * Capture packets from the input stream
+     * Capture packets from the input stream. Both pcap and pcapng captures
+     * are supported, as well as gzipped ones.
      *
      * @param is
      * @param bufferCapacity Size of buffer, must be larger than PCAPs largest framesize. See SNAPLENGTH for tcpdump, et.al.
@@ -133,13 +476,88 @@ public class Pcap {
      * @throws IOException
      */
     public static Pcap openStream(final InputStream is, final int bufferCapacity) throws IOException {
-        final Buffer stream = new BoundedInputStreamBuffer(bufferCapacity, is);
-        final PcapGlobalHeader header = PcapGlobalHeader.parse(stream);
-        return new Pcap(header, stream);
+        return openStream(is, bufferCapacity, 0, 0, null);
     }
 
     /**
-     * 
+     * Capture packets from the input stream, reading every record into
+     * buffers of the given pool rather than allocating new ones, which is
+     * what you want when replaying large captures at high rates.
+     *
+     * The memory of a packet is recycled as soon as the handler of
+     * {@link #loop(PacketHandler)}, {@link #loopEphemeral(PacketHandler)} or
+     * {@link #loopBatch(BatchPacketHandler, int)} is done with it. So, a
+     * packet, and anything framed out of it, is only valid until the handler
+     * returns, unless you {@link Packet#retain()} it, in which case you must
+     * {@link Packet#release()} it once you are done.
+     *
+     * Only the records of classic pcap captures are pooled. For pcapng, the
+     * allocator is ignored.
+     *
+     * @param is
+     * @param allocator
+     * @return
+     * @throws IOException
+     */
+    public static Pcap openStream(final InputStream is, final PooledBufferAllocator allocator) throws IOException {
+        if (allocator == null) {
+            throw new IllegalArgumentException("The allocator cannot be null");
+        }
+        return openStream(is, BoundedInputStreamBuffer.DEFAULT_CAPACITY, 0, 0, allocator);
+    }
+
+    /**
+     * Capture packets from the input stream, which is read ahead of the
+     * framing on a separate thread (see {@link ReadAheadInputStream}). Use
+     * this when the stream is prone to stalls, such as a capture piped in from
+     * "tcpdump -w -" or a file on a network file system, since the framing
+     * then keeps going on the blocks that already have been read.
+     *
+     * @param is
+     * @param blocks the number of blocks to read ahead, at least two.
+     * @param blockSize the size of each block.
+     * @return
+     * @throws IOException
+     */
+    public static Pcap openStream(final InputStream is, final int blocks, final int blockSize) throws IOException {
+        if (blocks < 2 || blockSize < 1) {
+            throw new IllegalArgumentException("There must be at least two blocks of at least one byte each");
+        }
+        return openStream(is, BoundedInputStreamBuffer.DEFAULT_CAPACITY, blocks, blockSize, null);
+    }
+
+    /**
+     * @param blocks the number of blocks to read ahead or zero to only read
+     *        ahead if we have to inflate the stream.
+     * @param allocator the pool of the records, if any.
+     */
+    private static Pcap openStream(final InputStream is, final int bufferCapacity, final int blocks,
+            final int blockSize, final PooledBufferAllocator allocator) throws IOException {
+        final PushbackInputStream stream = new PushbackInputStream(is, GZIP_MAGIC.length);
+        final boolean gzip = isGzip(stream);
+        if (!gzip && blocks == 0) {
+            return open(new BoundedInputStreamBuffer(bufferCapacity, stream), null, null, null).pool(allocator);
+        }
+
+        final InputStream source = gzip ? new GZIPInputStream(stream, GZIP_BUFFER_SIZE) : stream;
+        final ReadAheadInputStream readAhead = blocks == 0 ? new ReadAheadInputStream(source)
+                : new ReadAheadInputStream(source, blocks, blockSize);
+
+        // the stream is still yours to close, we only stop reading ahead
+        try {
+            return open(new BoundedInputStreamBuffer(bufferCapacity, readAhead), readAhead::stop, null, null)
+                    .pool(allocator);
+        } catch (final IOException | RuntimeException e) {
+            readAhead.stop();
+            throw e;
+        }
+    }
+
+    /**
+     * Capture packets from the file, which is read as a stream into a buffer
+     * on the heap. Use {@link #openMapped(Path)} to have the packets be views
+     * into the memory mapped file instead, which lives outside of the heap.
+     *
      * @param file
      *            the pcap file
      * @return a new {@link Pcap}
@@ -148,8 +566,26 @@ public class Pcap {
      * @throws IOException
      */
     public static Pcap openStream(final File file) throws FileNotFoundException, IOException {
-        final InputStream is = new FileInputStream(file);
-        return openStream(is);
+        final FileInputStream is = new FileInputStream(file);
+        try {
+            final PushbackInputStream stream = new PushbackInputStream(is, GZIP_MAGIC.length);
+            if (isGzip(stream)) {
+                // we can't seek etc within a compressed file so as far as
+                // everyone else is concerned, this is just a stream. Closing
+                // the inflating stream closes the file as well
+                final ReadAheadInputStream inflated = inflate(stream);
+                try {
+                    return open(Buffers.wrap(inflated), inflated, null, null);
+                } catch (final IOException | RuntimeException e) {
+                    inflated.stop();
+                    throw e;
+                }
+            }
+            return open(Buffers.wrap(stream), is, file.toPath(), is.getChannel());
+        } catch (final IOException | RuntimeException e) {
+            is.close();
+            throw e;
+        }
     }
 
     /**
@@ -163,8 +599,321 @@ public class Pcap {
         return openStream(new File(file));
     }
 
+    /**
+     * Open the pcap by memory mapping the file. Every packet read off of the
+     * pcap will be a view into the mapped file, i.e., no bytes will be copied
+     * onto the heap, which makes this the preferred way of reading large
+     * pcaps. Files larger than 2 GB are supported since the file is mapped in
+     * segments. See {@link MappedFileBuffer}.
+     *
+     * Note that the mapping is private so any changes made to the packets
+     * will not be written back to the file. If we are not allowed to write to
+     * the file the mapping will be read-only, and so will the packets. They
+     * can still be written to a {@link PcapOutputStream} as long as you
+     * haven't tried to change them.
+     *
+     * @param file
+     *            the pcap file
+     * @return a new {@link Pcap}
+     * @throws IOException
+     *             in case the file doesn't exist or cannot be mapped.
+     */
+    public static Pcap openMapped(final Path file) throws IOException {
+        return openMapped(openChannel(file), file);
+    }
+
+    /**
+     * Same as {@link #openMapped(Path)} but on an already opened channel,
+     * which this {@link Pcap} takes ownership of.
+     */
+    static Pcap openMapped(final FileChannel channel, final Path file) throws IOException {
+        try {
+            return open(new MappedFileBuffer(channel), channel, file, channel);
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Same as {@link #follow(Path, PacketHandler, FollowOptions)} with the
+     * {@link FollowOptions#DEFAULT} options.
+     */
+    public static void follow(final Path file, final PacketHandler handler) throws IOException {
+        follow(file, handler, FollowOptions.DEFAULT);
+    }
+
+    /**
+     * Follow a pcap file that is still being written to, such as the output
+     * of "tcpdump -w", much like "tail -f" does. The packets are handed to
+     * the {@link PacketHandler} as soon as they have been written in full.
+     * See {@link PcapFollower} for the details.
+     *
+     * This method doesn't return until the handler asks us to stop, the
+     * file has been idle for longer than
+     * {@link FollowOptions#getIdleTimeoutMillis()} or the calling thread is
+     * interrupted, in which case an {@link InterruptedIOException} is thrown.
+     *
+     * @param file
+     * @param handler
+     * @param options
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             in case the file isn't a pcap. Only classic pcap can be
+     *             followed, not pcapng.
+     */
+    public static void follow(final Path file, final PacketHandler handler, final FollowOptions options)
+            throws IOException, IllegalArgumentException {
+        if (file == null || handler == null || options == null) {
+            throw new IllegalArgumentException("The file, handler and options cannot be null");
+        }
+        new PcapFollower(file, handler, options).follow();
+    }
+
+    /**
+     * Check whether the stream starts with the gzip magic without consuming
+     * any bytes off of it.
+     */
+    private static boolean isGzip(final PushbackInputStream stream) throws IOException {
+        final byte[] magic = new byte[GZIP_MAGIC.length];
+        int read = 0;
+        int actual = 0;
+        while (read < magic.length && (actual = stream.read(magic, read, magic.length - read)) != -1) {
+            read += actual;
+        }
+        stream.unread(magic, 0, read);
+        return read == magic.length && magic[0] == GZIP_MAGIC[0] && magic[1] == GZIP_MAGIC[1];
+    }
+
+    /**
+     * Inflate the stream on a separate thread, ahead of the framing, so that
+     * the two overlap.
+     */
+    private static ReadAheadInputStream inflate(final InputStream stream) throws IOException {
+        return new ReadAheadInputStream(new GZIPInputStream(stream, GZIP_BUFFER_SIZE));
+    }
+
+    /**
+     * Start reading the records into buffers of the given pool. The global
+     * header, or the section header of a pcapng, has already been read by
+     * now so it is only ever the records that are pooled.
+     */
+    private Pcap pool(final PooledBufferAllocator allocator) {
+        if (allocator != null && !isPcapNg()) {
+            ((BoundedInputStreamBuffer) this.buffer).setAllocator(allocator);
+            this.pooled = true;
+        }
+        return this;
+    }
+
+    /**
+     * Figure out whether the stream is a pcap or a pcapng capture and parse
+     * the header accordingly. None of the classic pcap magic numbers starts
+     * with the same byte as the pcapng section header block so peeking at a
+     * single byte is enough.
+     */
+    private static Pcap open(final Buffer stream, final Closeable source, final Path file,
+            final FileChannel channel) throws IOException {
+        if (stream.peekByte() == PcapGlobalHeader.MAGIC_NGPCAP[0]) {
+            final PcapNgFramer framer = new PcapNgFramer();
+            final PcapGlobalHeader header = framer.readSectionHeader(stream);
+            return new Pcap(header, stream, source, file, channel, framer);
+        }
+
+        final PcapGlobalHeader header = PcapGlobalHeader.parse(stream);
+        return new Pcap(header, stream, source, file, channel, null);
+    }
+
+    /**
+     * A private mapping needs a channel that is open for writing as well, even
+     * though nothing ever will be written to the file. If we aren't allowed to
+     * write to the file, be it for lack of permissions or because it is on a
+     * read-only file system, we'll settle for a read-only channel.
+     */
+    private static FileChannel openChannel(final Path file) throws IOException {
+        try {
+            return FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (final FileSystemException | UnsupportedOperationException e) {
+            return FileChannel.open(file, StandardOpenOption.READ);
+        }
+    }
+
+    /**
+     * Position this {@link Pcap} at the first record with a timestamp equal
+     * to or later than the given timestamp, so that the next call to
+     * {@link #loop(PacketHandler)} starts from there. If there is no such
+     * record, we'll be positioned at the end of the file.
+     *
+     * If there is a {@link PcapIndex} in a sidecar file next to the pcap (see
+     * {@link PcapIndex#sidecarOf(Path)}) it is used for finding the record.
+     * If not, the file is bisected on the timestamps of the records, which
+     * relies on the records being in time order. Which they pretty much
+     * always are.
+     *
+     * @param epochMicros
+     *            the timestamp in microseconds since epoch, regardless of the
+     *            resolution of the capture.
+     * @throws IOException
+     * @throws IllegalStateException
+     *             in case this {@link Pcap} wasn't opened from a pcap file.
+     */
+    public void seek(final long epochMicros) throws IOException, IllegalStateException {
+        final RecordHeaderReader reader = createRecordHeaderReader();
+        if (this.index == null) {
+            this.index = PcapIndex.load(this.file);
+        }
+
+        long offset;
+        if (this.index != null) {
+            final int entry = this.index.findByTimestamp(epochMicros);
+            offset = entry == -1 ? PcapGlobalHeader.SIZE : this.index.getOffset(entry);
+        } else {
+            offset = reader.bisect(epochMicros);
+        }
+
+        while (reader.read(offset) && reader.timestamp() < epochMicros) {
+            offset = reader.nextOffset();
+        }
+        position(Math.min(offset, reader.size()));
+    }
+
+    /**
+     * Position this {@link Pcap} at the given record so that the next call to
+     * {@link #loop(PacketHandler)} starts from there. If the file doesn't
+     * have that many records, we'll be positioned at the end of the file.
+     *
+     * The {@link PcapIndex} in the sidecar file next to the pcap is used for
+     * finding the record. If there is no sidecar file, the index will be built
+     * and an attempt will be made to save it so that the cost only has to be
+     * paid once.
+     *
+     * @param record
+     *            the record number, zero based.
+     * @throws IOException
+     * @throws IllegalStateException
+     *             in case this {@link Pcap} wasn't opened from a pcap file.
+     */
+    public void seekRecord(final long record) throws IOException, IllegalStateException {
+        if (record < 0) {
+            throw new IllegalArgumentException("The record number cannot be negative");
+        }
+
+        final RecordHeaderReader reader = createRecordHeaderReader();
+        final PcapIndex index = getIndex();
+        final int entry = index.findByRecord(record);
+        long offset = entry == -1 ? PcapGlobalHeader.SIZE : index.getOffset(entry);
+        long current = entry == -1 ? 0 : index.getRecordNumber(entry);
+        while (current < record && reader.read(offset)) {
+            offset = reader.nextOffset();
+            ++current;
+        }
+        position(Math.min(offset, reader.size()));
+    }
+
+    private RecordHeaderReader createRecordHeaderReader() throws IllegalStateException {
+        assertPcapFile();
+        return new RecordHeaderReader(this.channel, this.header);
+    }
+
+    private void assertPcapFile() throws IllegalStateException {
+        if (this.channel == null) {
+            throw new IllegalStateException("Only possible when the pcap was opened from a file");
+        }
+
+        if (!(this.framer instanceof PcapFramer)) {
+            throw new IllegalStateException("Only supported for pcap, not pcapng");
+        }
+    }
+
+    private PcapIndex getIndex() throws IOException {
+        if (this.index == null) {
+            this.index = PcapIndex.load(this.file);
+        }
+
+        if (this.index == null) {
+            this.index = PcapIndex.build(this.file, this.channel, this.header, PcapIndex.DEFAULT_INTERVAL);
+            try {
+                this.index.write(PcapIndex.sidecarOf(this.file));
+            } catch (final IOException e) {
+                // we may not be allowed to write next to the pcap but
+                // we'll still keep the index around for this Pcap
+            }
+        }
+
+        return this.index;
+    }
+
+    /**
+     * Whether this is a pcapng capture, as opposed to a classic pcap.
+     */
+    boolean isPcapNg() {
+        return !(this.framer instanceof PcapFramer);
+    }
+
+    /**
+     * The offset in the file of the next record to be read, if the records
+     * are read straight off of a classic pcap file, otherwise -1. This is
+     * where the packets handed over by the loops are told they came from, so
+     * that their records can be copied straight from the file, see
+     * {@link PcapOutputStream#writeRaw(PCapPacket)}. We only ask for the
+     * offset once per loop and keep track of it from there on.
+     */
+    private long originOffset() throws IOException {
+        return this.channel != null && this.framer instanceof PcapFramer ? currentOffset() : -1;
+    }
+
+    /**
+     * @return the offset of the record following the one of the packet.
+     */
+    private long setOrigin(final PCapPacketImpl packet, final long offset) {
+        packet.setOrigin(this.channel, offset);
+        return offset + packet.getRecordLength();
+    }
+
+    /**
+     * The offset in the file of the next record to be read.
+     */
+    private long currentOffset() throws IOException {
+        if (this.buffer instanceof MappedFileBuffer) {
+            return ((MappedFileBuffer) this.buffer).position();
+        }
+
+        // whatever we have buffered has been read from the file
+        // but not yet been consumed
+        return this.channel.position() - this.buffer.getReadableBytes();
+    }
+
+    /**
+     * Move the underlying buffer to the given offset in the file. A mapped
+     * buffer is simply moved but for a stream we have to throw away whatever
+     * we have buffered and start over on the new position.
+     */
+    private void position(final long offset) throws IOException {
+        if (this.buffer instanceof MappedFileBuffer) {
+            ((MappedFileBuffer) this.buffer).position(offset);
+            return;
+        }
+
+        this.channel.position(offset);
+        this.buffer = Buffers.wrap((InputStream) this.source);
+    }
+
+    /**
+     * Close this {@link Pcap}. If the {@link Pcap} was opened from a file,
+     * the file will be closed. If you gave us an {@link InputStream} it is
+     * still your responsibility to close it.
+     */
     public void close() {
-        // TODO
+        if (this.source == null) {
+            return;
+        }
+
+        try {
+            this.source.close();
+        } catch (final IOException e) {
+            // nothing we can do about it and the user
+            // is done with us anyway
+        }
     }
 
     /**
@@ -0,0 +1,232 @@
+package io.pkts;
+
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.framer.FramerManager;
+import io.pkts.framer.PcapFramer;
+import io.pkts.packet.Packet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Follows a pcap file that is still being written to, e.g. by "tcpdump -w",
+ * and hands the records to a {@link PacketHandler} as they are appended. See
+ * {@link Pcap#follow(Path, PacketHandler, FollowOptions)}.
+ *
+ * Only complete records are ever framed. We keep track of the size of the
+ * file and walk the record headers (see {@link RecordHeaderReader}) up until
+ * the last record that fits within it, so a partially written record is left
+ * alone until the rest of it has been written. When there is nothing new we
+ * poll the size of the file with a backoff, starting out short in order to
+ * keep the latency down when packets keep coming.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+final class PcapFollower {
+
+    private final FollowOptions options;
+    private final PacketHandler handler;
+    private final FramerManager framerManager;
+
+    /**
+     * The files of the rotation we are done with.
+     */
+    private final Set<Path> done = new HashSet<>();
+
+    private Path file;
+    private FileChannel channel;
+    private PcapGlobalHeader header;
+    private PcapFramer framer;
+    private RecordHeaderReader reader;
+    private long offset;
+
+    /**
+     * Whether the handler has asked us to stop.
+     */
+    private boolean stopped;
+
+    PcapFollower(final Path file, final PacketHandler handler, final FollowOptions options) {
+        this.file = file;
+        this.handler = handler;
+        this.options = options;
+        this.framerManager = FramerManager.getInstance();
+    }
+
+    void follow() throws IOException {
+        try {
+            this.channel = FileChannel.open(this.file, StandardOpenOption.READ);
+            long wait = this.options.getMinPollIntervalMillis();
+            long idle = 0;
+            while (true) {
+                final long size = this.channel.size();
+                if (size < this.offset) {
+                    throw new IOException("The file " + this.file + " was truncated while following it");
+                }
+
+                final boolean progress = this.header == null ? readHeader(size) : readRecords(size);
+                if (this.stopped) {
+                    return;
+                }
+
+                if (progress) {
+                    wait = this.options.getMinPollIntervalMillis();
+                    idle = 0;
+                    continue;
+                }
+
+                // nothing new, but if the next file of the rotation is there,
+                // this one is done with. It may still have gotten something
+                // written to it before the next one was created though
+                final Path next = nextFile();
+                if (next != null) {
+                    if (this.header == null || !readRecords(this.channel.size())) {
+                        if (this.stopped) {
+                            return;
+                        }
+                        switchTo(next);
+                    }
+                    continue;
+                }
+
+                final long timeout = this.options.getIdleTimeoutMillis();
+                if (timeout > 0 && idle >= timeout) {
+                    return;
+                }
+
+                sleep(wait);
+                idle += wait;
+                wait = Math.min(wait * 2, this.options.getMaxPollIntervalMillis());
+            }
+        } finally {
+            if (this.channel != null) {
+                this.channel.close();
+            }
+        }
+    }
+
+    /**
+     * @return true if the global header has been read, false if it hasn't
+     *         been written in full yet.
+     */
+    private boolean readHeader(final long size) throws IOException {
+        if (size < PcapGlobalHeader.SIZE) {
+            return false;
+        }
+
+        final Buffer bytes = read(0, PcapGlobalHeader.SIZE);
+        if (bytes.getByte(0) == PcapGlobalHeader.MAGIC_NGPCAP[0]) {
+            throw new IllegalArgumentException("Only supported for pcap, not pcapng");
+        }
+
+        this.header = PcapGlobalHeader.parse(bytes);
+        this.framer = new PcapFramer(this.header, this.framerManager);
+        this.reader = new RecordHeaderReader(this.channel, this.header);
+        this.offset = PcapGlobalHeader.SIZE;
+        return true;
+    }
+
+    /**
+     * Hand over all complete records that have been written so far, a chunk
+     * at a time.
+     *
+     * @return true if there were any records.
+     */
+    private boolean readRecords(final long size) throws IOException {
+        long end = this.offset;
+        while (end - this.offset < ParallelLoop.CHUNK_SIZE && this.reader.read(end)
+                && this.reader.nextOffset() <= size) {
+            end = this.reader.nextOffset();
+        }
+
+        if (end == this.offset) {
+            return false;
+        }
+
+        final Buffer chunk = read(this.offset, (int) (end - this.offset));
+        this.offset = end;
+        Packet packet = null;
+        while ((packet = this.framer.frame(null, chunk)) != null) {
+            this.framerManager.tick(packet.getArrivalTime());
+            if (!this.handler.nextPacket(packet)) {
+                this.stopped = true;
+                return true;
+            }
+        }
+        return true;
+    }
+
+    private Buffer read(final long position, final int length) throws IOException {
+        final ByteBuffer bytes = ByteBuffer.allocate(length);
+        while (bytes.hasRemaining()) {
+            if (this.channel.read(bytes, position + bytes.position()) == -1) {
+                throw new IOException("The file " + this.file + " was truncated while following it");
+            }
+        }
+        return Buffers.wrap(bytes.array());
+    }
+
+    /**
+     * The oldest file of the rotation that is newer than the one we are
+     * following right now, if any.
+     */
+    private Path nextFile() throws IOException {
+        final String pattern = this.options.getRotationPattern();
+        if (pattern == null) {
+            return null;
+        }
+
+        final Path directory = this.file.toAbsolutePath().getParent();
+        final FileTime current = Files.getLastModifiedTime(this.file);
+        Path next = null;
+        FileTime nextTime = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, pattern)) {
+            for (final Path candidate : files) {
+                if (candidate.equals(this.file.toAbsolutePath()) || this.done.contains(candidate)) {
+                    continue;
+                }
+
+                final FileTime time = Files.getLastModifiedTime(candidate);
+                if (time.compareTo(current) < 0) {
+                    continue;
+                }
+
+                if (next == null || time.compareTo(nextTime) < 0
+                        || time.equals(nextTime) && candidate.compareTo(next) < 0) {
+                    next = candidate;
+                    nextTime = time;
+                }
+            }
+        }
+        return next;
+    }
+
+    private void switchTo(final Path next) throws IOException {
+        this.done.add(this.file.toAbsolutePath());
+        this.channel.close();
+        this.channel = null;
+        this.file = next;
+        this.header = null;
+        this.offset = 0;
+        this.channel = FileChannel.open(this.file, StandardOpenOption.READ);
+    }
+
+    private static void sleep(final long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while following the file");
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package io.pkts;
+
+import io.pkts.buffer.Buffers;
+import io.pkts.frame.PcapGlobalHeader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A sparse index over the records of a classic pcap file, which allows
+ * {@link Pcap#seek(long)} and {@link Pcap#seekRecord(long)} to jump straight
+ * to (or at least very close to) the record of interest instead of reading
+ * the entire file up until that point.
+ *
+ * The index is built by walking the record headers of the file once, never
+ * reading the packets themselves, and every {@link #getInterval()} record is
+ * added as an entry of (timestamp, file offset, record number). The index can
+ * be written to a sidecar file next to the pcap (see {@link #sidecarOf(Path)})
+ * so that it only has to be built once.
+ *
+ * A sidecar only is of any use as long as it matches the pcap so along with
+ * the entries we keep the modification time of the pcap and a fingerprint of
+ * it, which is made up of the first bytes of the file, i.e., the global header
+ * and the first record header, and the record header of the last entry. See
+ * {@link #load(Path)}.
+ *
+ * Note that the timestamp of an entry is the highest timestamp seen up until
+ * and including that record. For a capture where the records are in time
+ * order, which is pretty much all of them, that is simply the timestamp of
+ * the record but it means that a lookup is correct even if the records are
+ * slightly out of order.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class PcapIndex {
+
+    /**
+     * By default every 1024th record will be in the index.
+     */
+    public static final int DEFAULT_INTERVAL = 1024;
+
+    /**
+     * The file extension of the sidecar file.
+     */
+    public static final String SIDECAR_SUFFIX = ".pktsidx";
+
+    private static final byte[] MAGIC = { 'p', 'k', 't', 's', 'i', 'd', 'x', 2 };
+
+    /**
+     * The global header and the first record header.
+     */
+    private static final int FINGERPRINT_HEAD = PcapGlobalHeader.SIZE + 16;
+
+    /**
+     * The record header of the last entry.
+     */
+    private static final int FINGERPRINT_TAIL = 16;
+
+    private final int interval;
+
+    /**
+     * The number of bytes of the pcap this index covers.
+     */
+    private final long size;
+
+    /**
+     * The number of records within the covered bytes.
+     */
+    private final long records;
+
+    /**
+     * The modification time of the pcap, in milliseconds since epoch, when
+     * the index was built.
+     */
+    private final long lastModified;
+
+    private final byte[] fingerprint;
+
+    private final long[] timestamps;
+    private final long[] offsets;
+    private final long[] recordNumbers;
+
+    private PcapIndex(final int interval, final long size, final long records, final long lastModified,
+            final byte[] fingerprint, final long[] timestamps, final long[] offsets, final long[] recordNumbers) {
+        this.interval = interval;
+        this.size = size;
+        this.records = records;
+        this.lastModified = lastModified;
+        this.fingerprint = fingerprint;
+        this.timestamps = timestamps;
+        this.offsets = offsets;
+        this.recordNumbers = recordNumbers;
+    }
+
+    /**
+     * Build an index for the given pcap using the {@link #DEFAULT_INTERVAL}.
+     *
+     * @param pcap
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException in case the file isn't a classic pcap.
+     */
+    public static PcapIndex build(final Path pcap) throws IOException, IllegalArgumentException {
+        return build(pcap, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Build an index for the given pcap.
+     *
+     * @param pcap
+     * @param interval how many records there should be between each entry in
+     *        the index.
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException in case the file isn't a classic pcap.
+     */
+    public static PcapIndex build(final Path pcap, final int interval) throws IOException,
+            IllegalArgumentException {
+        try (FileChannel channel = FileChannel.open(pcap, StandardOpenOption.READ)) {
+            return build(pcap, channel, readHeader(channel), interval);
+        }
+    }
+
+    static PcapIndex build(final Path pcap, final FileChannel channel, final PcapGlobalHeader header,
+            final int interval) throws IOException {
+        if (interval < 1) {
+            throw new IllegalArgumentException("The interval must be at least one");
+        }
+
+        // before we start reading so that if the pcap is written to while we
+        // are at it, it will look as if it has grown since
+        final long lastModified = Files.getLastModifiedTime(pcap).toMillis();
+
+        final RecordHeaderReader reader = new RecordHeaderReader(channel, header);
+        final long size = reader.size();
+
+        int count = 0;
+        long[] timestamps = new long[64];
+        long[] offsets = new long[64];
+        long[] recordNumbers = new long[64];
+
+        long max = Long.MIN_VALUE;
+        long record = 0;
+        long offset = PcapGlobalHeader.SIZE;
+        while (reader.read(offset) && reader.nextOffset() <= size) {
+            max = Math.max(max, reader.timestamp());
+            if (record % interval == 0) {
+                if (count == timestamps.length) {
+                    timestamps = Arrays.copyOf(timestamps, count * 2);
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    recordNumbers = Arrays.copyOf(recordNumbers, count * 2);
+                }
+                timestamps[count] = max;
+                offsets[count] = offset;
+                recordNumbers[count] = record;
+                ++count;
+            }
+
+            offset = reader.nextOffset();
+            ++record;
+        }
+
+        offsets = Arrays.copyOf(offsets, count);
+        return new PcapIndex(interval, offset, record, lastModified, fingerprint(channel, offset, offsets),
+                Arrays.copyOf(timestamps, count), offsets, Arrays.copyOf(recordNumbers, count));
+    }
+
+    /**
+     * The first bytes of the pcap and the record header of the last entry,
+     * within the given number of bytes.
+     */
+    private static byte[] fingerprint(final FileChannel channel, final long size, final long[] offsets)
+            throws IOException {
+        final int head = (int) Math.min(FINGERPRINT_HEAD, size);
+        final long last = offsets.length == 0 ? size : offsets[offsets.length - 1];
+        final int tail = (int) Math.min(FINGERPRINT_TAIL, size - last);
+        final byte[] fingerprint = new byte[head + tail];
+        read(channel, ByteBuffer.wrap(fingerprint, 0, head), 0);
+        read(channel, ByteBuffer.wrap(fingerprint, head, tail), last);
+        return fingerprint;
+    }
+
+    private static void read(final FileChannel channel, final ByteBuffer dst, final long position)
+            throws IOException {
+        final int start = dst.position();
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position() - start) == -1) {
+                // the pcap has shrunk, which the fingerprint will tell
+                return;
+            }
+        }
+    }
+
+    private static PcapGlobalHeader readHeader(final FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(PcapGlobalHeader.SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) != -1) {
+            // keep reading
+        }
+        return PcapGlobalHeader.parse(Buffers.wrap(header.array(), 0, header.position()));
+    }
+
+    /**
+     * The sidecar file of the given pcap, which simply is the name of the pcap
+     * with {@link #SIDECAR_SUFFIX} added to it.
+     *
+     * @param pcap
+     * @return
+     */
+    public static Path sidecarOf(final Path pcap) {
+        return pcap.resolveSibling(pcap.getFileName() + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Load the sidecar index of the given pcap, if there is one and it still
+     * matches the pcap.
+     *
+     * The fingerprint of the pcap must be the same as when the index was
+     * built and so must the modification time, unless the pcap has grown.
+     * A pcap that is still being captured to is fine since the index still is
+     * valid for everything it covers. A pcap that has been rotated, or
+     * replaced in some other way, is not. Neither is a sidecar that cannot be
+     * read, e.g. because it has been truncated, in which case it will simply
+     * be ignored.
+     *
+     * @param pcap
+     * @return the index or null if there is no usable sidecar file.
+     * @throws IOException
+     *             in case the pcap cannot be read.
+     */
+    public static PcapIndex load(final Path pcap) throws IOException {
+        final Path sidecar = sidecarOf(pcap);
+        if (!Files.isRegularFile(sidecar)) {
+            return null;
+        }
+
+        final PcapIndex index;
+        try {
+            index = read(sidecar);
+        } catch (final IOException | RuntimeException e) {
+            // whatever is wrong with it, it is of no use to us
+            return null;
+        }
+
+        return index.matches(pcap) ? index : null;
+    }
+
+    private boolean matches(final Path pcap) throws IOException {
+        final long size = Files.size(pcap);
+        if (this.size > size) {
+            return false;
+        }
+
+        if (this.size == size && Files.getLastModifiedTime(pcap).toMillis() != this.lastModified) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(pcap, StandardOpenOption.READ)) {
+            return Arrays.equals(this.fingerprint, fingerprint(channel, this.size, this.offsets));
+        }
+    }
+
+    /**
+     * Read an index previously written by {@link #write(Path)}.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException in case the file isn't an index, or is
+     *         a corrupt one.
+     */
+    public static PcapIndex read(final Path file) throws IOException, IllegalArgumentException {
+        try (InputStream is = Files.newInputStream(file)) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+            final byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IllegalArgumentException("Not a pcap index file");
+            }
+
+            final int interval = in.readInt();
+            final long size = in.readLong();
+            final long records = in.readLong();
+            final long lastModified = in.readLong();
+            final byte[] fingerprint = new byte[in.readUnsignedByte()];
+            in.readFully(fingerprint);
+            final int count = in.readInt();
+            // every entry is three longs, which puts a cap on how many there
+            // can be before we allocate room for them
+            if (interval < 1 || size < 0 || records < 0 || count < 0 || count > records
+                    || count > Files.size(file) / 24) {
+                throw new IllegalArgumentException("Corrupt pcap index file");
+            }
+
+            final long[] timestamps = new long[count];
+            final long[] offsets = new long[count];
+            final long[] recordNumbers = new long[count];
+            for (int i = 0; i < count; ++i) {
+                timestamps[i] = in.readLong();
+                offsets[i] = in.readLong();
+                recordNumbers[i] = in.readLong();
+            }
+
+            return new PcapIndex(interval, size, records, lastModified, fingerprint, timestamps, offsets,
+                    recordNumbers);
+        }
+    }
+
+    /**
+     * Write this index to the given file.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(final Path file) throws IOException {
+        try (OutputStream os = Files.newOutputStream(file)) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+            out.write(MAGIC);
+            out.writeInt(this.interval);
+            out.writeLong(this.size);
+            out.writeLong(this.records);
+            out.writeLong(this.lastModified);
+            out.writeByte(this.fingerprint.length);
+            out.write(this.fingerprint);
+            out.writeInt(this.timestamps.length);
+            for (int i = 0; i < this.timestamps.length; ++i) {
+                out.writeLong(this.timestamps[i]);
+                out.writeLong(this.offsets[i]);
+                out.writeLong(this.recordNumbers[i]);
+            }
+            out.flush();
+        }
+    }
+
+    public int getInterval() {
+        return this.interval;
+    }
+
+    /**
+     * The number of bytes of the pcap that this index covers, including the
+     * global header.
+     *
+     * @return
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * The number of records within the bytes covered by this index.
+     *
+     * @return
+     */
+    public long getRecordCount() {
+        return this.records;
+    }
+
+    /**
+     * The number of entries in this index.
+     *
+     * @return
+     */
+    public int size() {
+        return this.timestamps.length;
+    }
+
+    public long getTimestamp(final int entry) {
+        return this.timestamps[entry];
+    }
+
+    public long getOffset(final int entry) {
+        return this.offsets[entry];
+    }
+
+    public long getRecordNumber(final int entry) {
+        return this.recordNumbers[entry];
+    }
+
+    /**
+     * Find the entry from where to start looking for the first record with a
+     * timestamp equal to or later than the given timestamp. All records before
+     * the entry are guaranteed to be earlier.
+     *
+     * @param epochMicros
+     * @return the entry or -1 if the index is empty.
+     */
+    public int findByTimestamp(final long epochMicros) {
+        if (this.timestamps.length == 0) {
+            return -1;
+        }
+
+        // the timestamps are the running max and as such sorted. We want the
+        // last entry that is strictly earlier than what we're looking for
+        int index = Arrays.binarySearch(this.timestamps, epochMicros);
+        if (index < 0) {
+            index = -index - 1;
+        } else {
+            // there could be several entries with the same timestamp
+            while (index > 0 && this.timestamps[index - 1] == epochMicros) {
+                --index;
+            }
+        }
+        return Math.max(0, index - 1);
+    }
+
+    /**
+     * Find the entry closest to, but not after, the given record.
+     *
+     * @param record the record number, zero based.
+     * @return the entry or -1 if the index is empty.
+     */
+    public int findByRecord(final long record) {
+        if (this.recordNumbers.length == 0) {
+            return -1;
+        }
+
+        final int index = Arrays.binarySearch(this.recordNumbers, record);
+        if (index >= 0) {
+            return index;
+        }
+        return Math.max(0, -index - 2);
+    }
+
+}
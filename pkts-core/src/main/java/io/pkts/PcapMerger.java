@@ -0,0 +1,227 @@
+package io.pkts;
+
+import io.pkts.framer.FramingException;
+import io.pkts.packet.PCapPacket;
+import io.pkts.packet.Packet;
+import io.pkts.packet.impl.PCapPacketImpl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges any number of captures into a single sequence of packets in arrival
+ * time order, as if they had been captured on the same box. Typically used
+ * when capturing on several interfaces at the same time.
+ *
+ * Each capture is assumed to be in time order on its own and only the next
+ * packet of every capture is kept in memory, in a min-heap keyed on the
+ * arrival time. Hence, merging is O(log n) per packet and O(n) in memory,
+ * where n is the number of captures, regardless of how large they are.
+ *
+ * Packets with the exact same arrival time are delivered in the order of the
+ * captures as they were given to us.
+ *
+ * <pre>
+ * PcapMerger merger = PcapMerger.openStreams(Arrays.asList(one, two));
+ * PcapOutputStream out = PcapOutputStream.createPcapNg(new FileOutputStream("merged.pcapng"));
+ * merger.write(out);
+ * merger.close();
+ * </pre>
+ *
+ * If all captures are of the same link type and timestamp resolution, the
+ * merged packets can be written to a classic pcap as well, e.g. through
+ * {@link Pcap#createOutputStream(java.io.OutputStream)} of the first capture.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class PcapMerger implements Closeable {
+
+    private final List<Pcap> pcaps;
+
+    private final PriorityQueue<Pending> pending;
+
+    /**
+     * Whether we have pulled the first packet of every capture.
+     */
+    private boolean started;
+
+    private PcapMerger(final List<Pcap> pcaps) {
+        this.pcaps = pcaps;
+        this.pending = new PriorityQueue<>(Math.max(1, pcaps.size()));
+    }
+
+    /**
+     * Merge the given captures.
+     *
+     * @param pcaps
+     * @return
+     */
+    public static PcapMerger create(final List<Pcap> pcaps) {
+        if (pcaps == null || pcaps.isEmpty()) {
+            throw new IllegalArgumentException("You must specify at least one pcap to merge");
+        }
+        return new PcapMerger(new ArrayList<>(pcaps));
+    }
+
+    /**
+     * Merge the given pcap files.
+     *
+     * @param files
+     * @return
+     * @throws IOException
+     */
+    public static PcapMerger open(final File... files) throws IOException {
+        final List<Pcap> pcaps = new ArrayList<>(files.length);
+        try {
+            for (final File file : files) {
+                pcaps.add(Pcap.openStream(file));
+            }
+        } catch (final IOException | RuntimeException e) {
+            pcaps.forEach(Pcap::close);
+            throw e;
+        }
+        return create(pcaps);
+    }
+
+    /**
+     * Merge the captures read off of the given streams. Note that you are
+     * responsible for closing the streams.
+     *
+     * @param streams
+     * @return
+     * @throws IOException
+     */
+    public static PcapMerger openStreams(final List<InputStream> streams) throws IOException {
+        final List<Pcap> pcaps = new ArrayList<>(streams.size());
+        try {
+            for (final InputStream stream : streams) {
+                pcaps.add(Pcap.openStream(stream));
+            }
+        } catch (final IOException | RuntimeException e) {
+            // stops reading ahead on the ones we did open but leaves the
+            // streams themselves alone
+            pcaps.forEach(Pcap::close);
+            throw e;
+        }
+        return create(pcaps);
+    }
+
+    /**
+     * Same as {@link #openStreams(List)}.
+     */
+    public static PcapMerger openStreams(final InputStream... streams) throws IOException {
+        return openStreams(Arrays.asList(streams));
+    }
+
+    /**
+     * The next packet across all the captures.
+     *
+     * @return the next packet or null if all captures have been read to the
+     *         end.
+     * @throws IOException
+     * @throws FramingException
+     */
+    public Packet next() throws IOException, FramingException {
+        if (!this.started) {
+            this.started = true;
+            for (int i = 0; i < this.pcaps.size(); ++i) {
+                pull(i);
+            }
+        }
+
+        final Pending next = this.pending.poll();
+        if (next == null) {
+            return null;
+        }
+
+        pull(next.source);
+        return next.packet;
+    }
+
+    private void pull(final int source) throws IOException {
+        final PCapPacket packet = this.pcaps.get(source).next();
+        if (packet != null) {
+            this.pending.add(new Pending(source, packet));
+        }
+    }
+
+    /**
+     * Hand every packet, across all the captures and in arrival time order,
+     * to the given {@link PacketHandler}.
+     *
+     * @param callback
+     * @throws IOException
+     * @throws FramingException
+     */
+    public void loop(final PacketHandler callback) throws IOException, FramingException {
+        Packet packet = null;
+        while ((packet = next()) != null) {
+            if (!callback.nextPacket(packet)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write every packet, across all the captures and in arrival time order,
+     * to the given {@link PcapOutputStream}.
+     *
+     * @param out
+     * @throws IOException
+     * @throws FramingException
+     */
+    public void write(final PcapOutputStream out) throws IOException, FramingException {
+        Packet packet = null;
+        while ((packet = next()) != null) {
+            out.write(packet);
+        }
+    }
+
+    /**
+     * Close all the captures.
+     */
+    @Override
+    public void close() {
+        this.pcaps.forEach(Pcap::close);
+        this.pending.clear();
+    }
+
+    /**
+     * The arrival time of a packet in nanoseconds, regardless of the
+     * resolution of the capture it came from, so that captures of different
+     * resolutions can be merged.
+     */
+    private static long arrivalTimeInNs(final PCapPacket packet) {
+        if (packet instanceof PCapPacketImpl && ((PCapPacketImpl) packet).getPcapGlobalHeader().timestampsInNs()) {
+            return packet.getArrivalTime();
+        }
+        return packet.getArrivalTime() * 1000L;
+    }
+
+    /**
+     * The next packet of one of the captures.
+     */
+    private static final class Pending implements Comparable<Pending> {
+        private final int source;
+        private final PCapPacket packet;
+        private final long time;
+
+        private Pending(final int source, final PCapPacket packet) {
+            this.source = source;
+            this.packet = packet;
+            this.time = arrivalTimeInNs(packet);
+        }
+
+        @Override
+        public int compareTo(final Pending other) {
+            final int result = Long.compare(this.time, other.time);
+            return result != 0 ? result : Integer.compare(this.source, other.source);
+        }
+    }
+}
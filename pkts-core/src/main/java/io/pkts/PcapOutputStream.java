@@ -3,15 +3,56 @@
  */
 package io.pkts;
 
+import io.pkts.buffer.Buffer;
 import io.pkts.frame.Frame;
 import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.framer.PcapNgFramer;
+import io.pkts.packet.PCapPacket;
 import io.pkts.packet.Packet;
+import io.pkts.packet.impl.PCapPacketImpl;
+import io.pkts.protocol.Protocol;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 
 /**
+ * Writes packets to a stream in either the classic pcap format (see
+ * {@link #create(PcapGlobalHeader, OutputStream)}) or the pcapng format (see
+ * {@link #createPcapNg(OutputStream)}).
+ *
+ * The pcapng format allows for packets of different link types, captured on
+ * different interfaces, to be written to the same stream and for every packet
+ * to carry a comment.
+ *
+ * In order to keep the size of a capture down, the packets of a particular
+ * protocol can be truncated as they are written (see
+ * {@link #setSnapLength(Protocol, int)}), e.g. keeping all of SIP but only the
+ * headers of RTP.
+ *
+ * When writing classic pcap to a {@link GatheringByteChannel}, or to a
+ * {@link FileOutputStream} since it has one, every {@link Packet} is written
+ * with a single gathering write of its record header and the headers of all
+ * of its layers followed by its payload, without ever copying them into one
+ * buffer (see {@link Packet#write(OutputStream, java.util.Deque)}).
+ *
+ * Packets that haven't been changed can also be written exactly as they were
+ * captured, without writing any of their layers, through
+ * {@link #writeRaw(PCapPacket)}.
+ *
  * @author jonas@jonasborjesson.com
  */
 public class PcapOutputStream extends OutputStream {
@@ -22,12 +63,64 @@ public class PcapOutputStream extends OutputStream {
      */
     private final OutputStream out;
 
+    /**
+     * The channel behind {@link #out}, if it is a gathering one, or null.
+     */
+    private final GatheringByteChannel channel;
+
     /**
      * The {@link PcapGlobalHeader} that tells us how to write out the various
      * info to the stream such as the byte order.
      */
     private final PcapGlobalHeader pcapHeader;
 
+    /**
+     * The interfaces we have written interface description blocks for so far.
+     * The index is the interface id. Null unless we are writing pcapng.
+     */
+    private final List<Interface> interfaces;
+
+    /**
+     * The snap length of each protocol, in the order they were added, which
+     * is also the order in which a packet is checked against them.
+     */
+    private final Map<Protocol, Integer> snapLengths = new LinkedHashMap<>();
+
+    /**
+     * A run of consecutive records of the same file that have been passed to
+     * {@link #writeRaw(PCapPacket)} but not yet written, so that the whole run
+     * can be transferred from that file in one go. Null if there is none.
+     */
+    private FileChannel pendingOrigin;
+    private long pendingStart;
+    private long pendingEnd;
+
+    /**
+     * The very same records as the pending run, in case the file they were
+     * read from has been closed by the time we get around to write them.
+     */
+    private final List<ByteBuffer> pendingRecords = new ArrayList<>();
+
+    /**
+     * The maximum size of a pending run of records.
+     */
+    private static final int MAX_PENDING = 1024 * 1024;
+
+    private static final int OPTION_END_OF_OPTIONS = 0;
+
+    private static final int OPTION_COMMENT = 1;
+
+    private static final int OPTION_IF_NAME = 2;
+
+    private static final int OPTION_IF_TSRESOL = 9;
+
+    private static final int MAX_OPTION_LENGTH = 0xFFFF;
+
+    /**
+     * The size of the enhanced packet block up until the packet data.
+     */
+    private static final int ENHANCED_PACKET_BLOCK_HEADER_SIZE = 28;
+
     public static PcapOutputStream create(final PcapGlobalHeader pcapHeader, final OutputStream out) {
         if (out == null) {
             throw new IllegalArgumentException("The OutputStream cannot be null");
@@ -43,16 +136,161 @@ public class PcapOutputStream extends OutputStream {
             throw new IllegalArgumentException("Could not write the pcapheader to the stream due to IOException.", e);
         }
 
-        return new PcapOutputStream(pcapHeader, out);
+        final GatheringByteChannel channel = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel()
+                : null;
+        return new PcapOutputStream(pcapHeader, out, channel, null);
+    }
+
+    /**
+     * Create a {@link PcapOutputStream} that writes the classic pcap format to
+     * a {@link GatheringByteChannel}, such as a {@link java.nio.channels.FileChannel}
+     * or a {@link java.nio.channels.SocketChannel}.
+     *
+     * @param pcapHeader
+     * @param channel
+     * @return
+     * @throws IllegalArgumentException
+     */
+    public static PcapOutputStream create(final PcapGlobalHeader pcapHeader, final GatheringByteChannel channel)
+            throws IllegalArgumentException {
+        if (channel == null) {
+            throw new IllegalArgumentException("The channel cannot be null");
+        }
+
+        if (pcapHeader == null) {
+            throw new IllegalArgumentException("The PcapGlobalHeader cannot be null");
+        }
+
+        final OutputStream out = Channels.newOutputStream(channel);
+        try {
+            pcapHeader.write(out);
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Could not write the pcapheader to the channel due to IOException.", e);
+        }
+
+        return new PcapOutputStream(pcapHeader, out, channel, null);
     }
 
+    /**
+     * Create a {@link PcapOutputStream} that writes the pcapng format. A
+     * section header block is written straight away and the interface
+     * description blocks are written as they are needed, either when a packet
+     * of a new link type shows up or when one is added explicitly through
+     * {@link #addInterface(int, long, String)}.
+     *
+     * @param out
+     * @return
+     * @throws IllegalArgumentException
+     */
+    public static PcapOutputStream createPcapNg(final OutputStream out) throws IllegalArgumentException {
+        if (out == null) {
+            throw new IllegalArgumentException("The OutputStream cannot be null");
+        }
+
+        final ByteBuffer shb = ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN);
+        shb.putInt(PcapNgFramer.SECTION_HEADER_BLOCK).putInt(28);
+        shb.putInt(0x1A2B3C4D);
+        // version 1.0
+        shb.putShort((short) 1).putShort((short) 0);
+        // section length, -1 means unknown
+        shb.putLong(-1L);
+        shb.putInt(28);
+
+        try {
+            out.write(shb.array());
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Could not write the section header to the stream due to IOException.",
+                    e);
+        }
+
+        return new PcapOutputStream(null, out, null, new ArrayList<>());
+    }
 
     /**
      * 
      */
-    private PcapOutputStream(final PcapGlobalHeader pcapHeader, final OutputStream out) {
+    private PcapOutputStream(final PcapGlobalHeader pcapHeader, final OutputStream out,
+            final GatheringByteChannel channel, final List<Interface> interfaces) {
         this.out = out;
+        this.channel = channel;
         this.pcapHeader = pcapHeader;
+        this.interfaces = interfaces;
+    }
+
+    /**
+     * Whether this stream writes the pcapng format or the classic pcap
+     * format.
+     *
+     * @return
+     */
+    public boolean isPcapNg() {
+        return this.interfaces != null;
+    }
+
+    /**
+     * Add a new interface to this pcapng stream, which means that an interface
+     * description block is written to the stream straight away. The
+     * timestamps of all packets written to this interface will be in
+     * nanosecond resolution.
+     *
+     * @param dataLinkType
+     *            the link type of the packets, see
+     *            http://www.tcpdump.org/linktypes.html
+     * @param snapLength
+     *            zero if there is no limit.
+     * @param name
+     *            the name of the interface, may be null.
+     * @return the id of the new interface, which is what you pass to
+     *         {@link #write(Packet, int, String)}.
+     * @throws IOException
+     * @throws IllegalStateException
+     *             in case this isn't a pcapng stream.
+     * @throws IllegalArgumentException
+     *             in case the name is longer than 65535 bytes when encoded as
+     *             UTF-8.
+     */
+    public int addInterface(final int dataLinkType, final long snapLength, final String name) throws IOException {
+        assertPcapNg();
+        return writeInterface(new Interface(dataLinkType, snapLength, true, name, true));
+    }
+
+    /**
+     * Truncate every packet of the given protocol to the given number of
+     * bytes when writing it, e.g. 54 bytes to keep nothing but the ethernet,
+     * IP, UDP and RTP headers of an RTP packet. The captured length of the
+     * record is adjusted accordingly but the original length is kept, just as
+     * if the packet had been captured with a smaller snap length to begin
+     * with.
+     *
+     * Whether a packet is of the given protocol is decided through
+     * {@link Packet#hasProtocol(Protocol)}, which means that the packet is
+     * framed up until that protocol if it hasn't been already. If a packet is
+     * of several protocols with a snap length, the one set first wins. Note
+     * that the bytes of a truncated packet are taken straight off of the
+     * captured record, so any changes made to a packet that aren't reflected
+     * in the record itself are lost.
+     *
+     * @param protocol
+     * @param snapLength
+     *            the maximum number of bytes to keep, counting from the start
+     *            of the record. Zero removes the snap length of the protocol.
+     * @throws IllegalArgumentException
+     *             in case the protocol is null or the snap length negative.
+     */
+    public void setSnapLength(final Protocol protocol, final int snapLength) throws IllegalArgumentException {
+        if (protocol == null) {
+            throw new IllegalArgumentException("The protocol cannot be null");
+        }
+
+        if (snapLength < 0) {
+            throw new IllegalArgumentException("The snap length cannot be negative");
+        }
+
+        if (snapLength == 0) {
+            this.snapLengths.remove(protocol);
+        } else {
+            this.snapLengths.put(protocol, snapLength);
+        }
     }
 
     /**
@@ -67,6 +305,10 @@ public class PcapOutputStream extends OutputStream {
             return;
         }
 
+        if (isPcapNg()) {
+            throw new IllegalStateException("Frames cannot be written to a pcapng stream, write the packet instead");
+        }
+
         frame.write(this);
     }
 
@@ -78,10 +320,456 @@ public class PcapOutputStream extends OutputStream {
      *            ignored.
      */
     public void write(final Packet packet) throws IOException {
+        write(packet, null);
+    }
+
+    /**
+     * Write a {@link Packet} along with a comment to the outputstream. The
+     * comment is only kept if this is a pcapng stream, the classic pcap format
+     * has no place for it.
+     *
+     * When writing pcapng, the packet is written to an interface matching the
+     * link type, snap length and timestamp resolution of the capture it was
+     * read from. If there is no such interface yet one is added.
+     *
+     * @param packet
+     *            the packet to write. If null is passed in, it will silently be
+     *            ignored.
+     * @param comment
+     *            the comment, may be null.
+     * @throws IllegalArgumentException
+     *             in case the comment is longer than 65535 bytes when encoded
+     *             as UTF-8.
+     */
+    public void write(final Packet packet, final String comment) throws IOException {
+        if (packet == null) {
+            return;
+        }
+
+        flushPending();
+
+        final int snapLength = getSnapLength(packet);
+        if (!isPcapNg()) {
+            if (snapLength == 0) {
+                packet.write(this);
+            } else {
+                writeTruncated(getPCapPacket(packet), snapLength);
+            }
+            return;
+        }
+
+        final PCapPacketImpl pcap = getPCapPacket(packet);
+        writeEnhancedPacket(findInterface(pcap.getPcapGlobalHeader()), pcap, truncate(pcap, snapLength), comment);
+    }
+
+    /**
+     * Write a {@link Packet} to a specific interface of this pcapng stream.
+     *
+     * @param packet
+     *            the packet to write. If null is passed in, it will silently be
+     *            ignored.
+     * @param interfaceId
+     *            the id as returned by {@link #addInterface(int, long, String)}
+     * @param comment
+     *            the comment, may be null.
+     * @throws IllegalStateException
+     *             in case this isn't a pcapng stream.
+     * @throws IllegalArgumentException
+     *             in case the interface doesn't exist, if its link type
+     *             doesn't match the one of the packet or if the comment is
+     *             longer than 65535 bytes when encoded as UTF-8.
+     */
+    public void write(final Packet packet, final int interfaceId, final String comment) throws IOException {
+        assertPcapNg();
         if (packet == null) {
             return;
         }
-        packet.write(this);
+
+        if (interfaceId < 0 || interfaceId >= this.interfaces.size()) {
+            throw new IllegalArgumentException("Unknown interface " + interfaceId);
+        }
+
+        final PCapPacketImpl pcap = getPCapPacket(packet);
+        final Interface iface = this.interfaces.get(interfaceId);
+        if (iface.dataLinkType != pcap.getPcapGlobalHeader().getDataLinkType()) {
+            throw new IllegalArgumentException("Interface " + interfaceId + " is of link type " + iface.dataLinkType
+                    + " but the packet is of link type " + pcap.getPcapGlobalHeader().getDataLinkType());
+        }
+
+        writeEnhancedPacket(interfaceId, pcap, truncate(pcap, getSnapLength(packet)), comment);
+    }
+
+    /**
+     * @return the snap length of the first protocol the packet is of, or zero
+     *         if there is none.
+     */
+    private int getSnapLength(final Packet packet) throws IOException {
+        for (final Map.Entry<Protocol, Integer> entry : this.snapLengths.entrySet()) {
+            if (packet.hasProtocol(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return a slice of the record with at most snap length bytes, or all of
+     *         it if the snap length is zero.
+     */
+    private static Buffer truncate(final PCapPacketImpl pcap, final int snapLength) {
+        final Buffer payload = pcap.getPayload();
+        if (snapLength == 0 || payload.getReadableBytes() <= snapLength) {
+            return payload;
+        }
+        return payload.slice(snapLength);
+    }
+
+    /**
+     * Write a classic pcap record with at most snap length bytes of the
+     * packet, keeping the original length. The record header of the packet
+     * itself is left untouched.
+     */
+    private void writeTruncated(final PCapPacketImpl pcap, final int snapLength) throws IOException {
+        final PcapRecordHeader original = pcap.getPcapRecordHeader();
+        final Buffer payload = truncate(pcap, snapLength);
+        final int captured = payload.getReadableBytes();
+
+        final PcapRecordHeader record = original.clone();
+        record.setCapturedLength(captured);
+        record.setTotalLength(Math.max(Math.max(captured, original.getCapturedLength()), original.getTotalLength()));
+        record.write(this.out);
+        write(payload.toByteBuffer());
+    }
+
+    /**
+     * Write a classic pcap record made up of the given header followed by the
+     * given segments, which is what a {@link Packet} does when it is written
+     * to this stream. If we have a {@link GatheringByteChannel} all of it is
+     * written in a single gathering write, otherwise one segment at a time.
+     *
+     * @param header
+     *            the record header, whose captured length must match the
+     *            total size of the segments.
+     * @param segments
+     * @throws IOException
+     * @throws IllegalStateException
+     *             in case this is a pcapng stream.
+     */
+    public void write(final PcapRecordHeader header, final Collection<Buffer> segments) throws IOException,
+            IllegalStateException {
+        if (isPcapNg()) {
+            throw new IllegalStateException("Records cannot be written to a pcapng stream, write the packet instead");
+        }
+
+        flushPending();
+        final ByteBuffer[] buffers = new ByteBuffer[segments.size() + 1];
+        buffers[0] = header.toByteBuffer();
+        int i = 1;
+        for (final Buffer segment : segments) {
+            buffers[i++] = segment.toByteBuffer();
+        }
+        write(buffers);
+    }
+
+    /**
+     * Write the record of the packet exactly as it was captured, i.e., the
+     * record header followed by the captured bytes, without writing, or even
+     * looking at, any of the layers of the packet. This is meant for
+     * filtering captures, where all that is needed is to copy the records
+     * that are kept.
+     *
+     * If the packet was read straight off of a pcap file (see
+     * {@link Pcap#loop(PacketHandler)}) and we are writing to a file as well,
+     * consecutive records are gathered into runs that are transferred from
+     * one file to the other in one go (see
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}),
+     * which means that the last run may not be written until the next call to
+     * any of the other write methods, {@link #flush()} or {@link #close()}.
+     *
+     * Note that since the record is written as it was captured, any changes
+     * made to the packet are not guaranteed to be written. Use
+     * {@link #write(Packet)} for those.
+     *
+     * @param packet
+     *            the packet to write. If null is passed in, it will silently be
+     *            ignored.
+     * @throws IOException
+     * @throws IllegalStateException
+     *             in case this is a pcapng stream.
+     * @throws IllegalArgumentException
+     *             in case the link type, byte order or timestamp resolution of
+     *             the capture the packet was read from doesn't match this
+     *             stream, in which case the packet has to be written through
+     *             {@link #write(Packet)} instead.
+     */
+    public void writeRaw(final PCapPacket packet) throws IOException, IllegalStateException,
+            IllegalArgumentException {
+        if (packet == null) {
+            return;
+        }
+
+        if (isPcapNg()) {
+            throw new IllegalStateException("Raw records cannot be written to a pcapng stream, write the packet instead");
+        }
+
+        final PCapPacketImpl pcap = getPCapPacket(packet);
+        assertSameFormat(pcap.getPcapGlobalHeader());
+
+        final ByteBuffer record = pcap.getPcapRecordHeader().toByteBuffer();
+        final ByteBuffer payload = pcap.getPayload().toByteBuffer();
+        final FileChannel origin = pcap.getOrigin();
+        if (origin == null || !(this.channel instanceof FileChannel)) {
+            flushPending();
+            write(new ByteBuffer[] { record, payload });
+            return;
+        }
+
+        final long offset = pcap.getOriginOffset();
+        if (origin != this.pendingOrigin || offset != this.pendingEnd) {
+            flushPending();
+            this.pendingOrigin = origin;
+            this.pendingStart = offset;
+            this.pendingEnd = offset;
+        }
+
+        this.pendingEnd += pcap.getRecordLength();
+        this.pendingRecords.add(record);
+        this.pendingRecords.add(payload);
+        if (this.pendingEnd - this.pendingStart >= MAX_PENDING) {
+            flushPending();
+        }
+    }
+
+    /**
+     * Write a record, i.e., the record header followed by the captured bytes,
+     * straight from an array. Only for those that already have the raw
+     * records at hand, such as the {@link PcapSorter}.
+     *
+     * @param header
+     *            the global header of the capture the record was read from.
+     */
+    void writeRaw(final PcapGlobalHeader header, final byte[] record, final int offset, final int length)
+            throws IOException {
+        if (isPcapNg()) {
+            throw new IllegalStateException("Raw records cannot be written to a pcapng stream, write the packet instead");
+        }
+
+        assertSameFormat(header);
+        flushPending();
+        this.out.write(record, offset, length);
+    }
+
+    /**
+     * Raw records can only be written if they are of the same format as the
+     * records of this stream.
+     */
+    private void assertSameFormat(final PcapGlobalHeader header) throws IllegalArgumentException {
+        if (header.getDataLinkType() != this.pcapHeader.getDataLinkType()
+                || header.getByteOrder() != this.pcapHeader.getByteOrder()
+                || header.timestampsInNs() != this.pcapHeader.timestampsInNs()) {
+            throw new IllegalArgumentException("The record doesn't match the format of this stream, "
+                    + "write the packet instead");
+        }
+    }
+
+    /**
+     * Write the pending run of records, if any, see
+     * {@link #writeRaw(PCapPacket)}.
+     */
+    private void flushPending() throws IOException {
+        if (this.pendingOrigin == null) {
+            return;
+        }
+
+        final FileChannel origin = this.pendingOrigin;
+        this.pendingOrigin = null;
+        try {
+            if (origin.isOpen()) {
+                long position = this.pendingStart;
+                while (position < this.pendingEnd) {
+                    final long transferred = origin.transferTo(position, this.pendingEnd - position, this.channel);
+                    if (transferred <= 0) {
+                        throw new IOException("Unable to transfer the records, has the file been truncated?");
+                    }
+                    position += transferred;
+                }
+            } else {
+                write(this.pendingRecords.toArray(new ByteBuffer[this.pendingRecords.size()]));
+            }
+        } finally {
+            this.pendingRecords.clear();
+        }
+    }
+
+    /**
+     * Write all of the buffers, which is done in a single gathering write if
+     * we have a {@link GatheringByteChannel}, otherwise one at a time.
+     */
+    private void write(final ByteBuffer[] buffers) throws IOException {
+        if (this.channel == null) {
+            for (final ByteBuffer buffer : buffers) {
+                write(buffer);
+            }
+            return;
+        }
+
+        long remaining = 0;
+        for (final ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+
+        // a gathering write may write less than asked for, but will pick up
+        // where it left off next time since it advances the buffers
+        while (remaining > 0) {
+            remaining -= this.channel.write(buffers);
+        }
+    }
+
+    /**
+     * Write the remaining bytes of the buffer, without copying them unless
+     * they live outside of the heap.
+     */
+    private void write(final ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            this.out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            this.out.write(bytes);
+        }
+    }
+
+    private void assertPcapNg() throws IllegalStateException {
+        if (!isPcapNg()) {
+            throw new IllegalStateException("Interfaces are only supported when writing pcapng");
+        }
+    }
+
+    /**
+     * The packet is written exactly as it was captured so we only care about
+     * the pcap packet at the very bottom of the stack.
+     */
+    private static PCapPacketImpl getPCapPacket(final Packet packet) {
+        Packet p = packet;
+        while (p != null && !(p instanceof PCapPacketImpl)) {
+            p = p.getParentPacket();
+        }
+
+        if (p == null) {
+            throw new IllegalArgumentException("The packet wasn't read from a pcap");
+        }
+
+        return (PCapPacketImpl) p;
+    }
+
+    private int findInterface(final PcapGlobalHeader header) throws IOException {
+        final int dataLinkType = header.getDataLinkType();
+        final long snapLength = header.getSnapLength();
+        final boolean nsTimestamps = header.timestampsInNs();
+        for (int i = 0; i < this.interfaces.size(); ++i) {
+            final Interface iface = this.interfaces.get(i);
+            if (!iface.explicit && iface.dataLinkType == dataLinkType && iface.snapLength == snapLength
+                    && iface.nsTimestamps == nsTimestamps) {
+                return i;
+            }
+        }
+
+        return writeInterface(new Interface(dataLinkType, snapLength, nsTimestamps, null, false));
+    }
+
+    private int writeInterface(final Interface iface) throws IOException {
+        final byte[] name = toOptionValue(iface.name);
+        final int length = 20 + (name != null ? 4 + pad(name.length) : 0) + (iface.nsTimestamps ? 8 : 0) + 4;
+
+        final ByteBuffer idb = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        idb.putInt(PcapNgFramer.INTERFACE_DESCRIPTION_BLOCK).putInt(length);
+        idb.putShort((short) iface.dataLinkType).putShort((short) 0);
+        idb.putInt((int) iface.snapLength);
+        if (name != null) {
+            putOption(idb, OPTION_IF_NAME, name);
+        }
+        if (iface.nsTimestamps) {
+            putOption(idb, OPTION_IF_TSRESOL, new byte[] { 9 });
+        }
+        idb.putShort((short) OPTION_END_OF_OPTIONS).putShort((short) 0);
+        idb.putInt(length);
+        this.out.write(idb.array());
+
+        this.interfaces.add(iface);
+        return this.interfaces.size() - 1;
+    }
+
+    private void writeEnhancedPacket(final int interfaceId, final PCapPacketImpl pcap, final Buffer payload,
+            final String comment) throws IOException {
+        final Interface iface = this.interfaces.get(interfaceId);
+        final PcapRecordHeader record = pcap.getPcapRecordHeader();
+        final int captured = payload.getReadableBytes();
+        final long total = Math.max(Math.max(captured, record.getCapturedLength()), record.getTotalLength());
+
+        final long subSeconds = record.getTimeStampMicroOrNanoSeconds();
+        final boolean nsRecord = pcap.getPcapGlobalHeader().timestampsInNs();
+        final long timestamp;
+        if (iface.nsTimestamps) {
+            timestamp = record.getTimeStampSeconds() * 1000000000L + (nsRecord ? subSeconds : subSeconds * 1000L);
+        } else {
+            timestamp = record.getTimeStampSeconds() * 1000000L + (nsRecord ? subSeconds / 1000L : subSeconds);
+        }
+
+        final byte[] text = toOptionValue(comment);
+        final int optionsLength = text != null ? 4 + pad(text.length) + 4 : 0;
+        final int length = ENHANCED_PACKET_BLOCK_HEADER_SIZE + pad(captured) + optionsLength + 4;
+
+        final ByteBuffer header = ByteBuffer.allocate(ENHANCED_PACKET_BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(PcapNgFramer.ENHANCED_PACKET_BLOCK).putInt(length);
+        header.putInt(interfaceId);
+        header.putInt((int) (timestamp >>> 32)).putInt((int) timestamp);
+        header.putInt(captured).putInt((int) total);
+        this.out.write(header.array());
+
+        write(payload.toByteBuffer());
+
+        final ByteBuffer trailer = ByteBuffer.allocate(pad(captured) - captured + optionsLength + 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        trailer.position(pad(captured) - captured);
+        if (text != null) {
+            putOption(trailer, OPTION_COMMENT, text);
+            trailer.putShort((short) OPTION_END_OF_OPTIONS).putShort((short) 0);
+        }
+        trailer.putInt(length);
+        this.out.write(trailer.array());
+    }
+
+    /**
+     * The length of an option is an unsigned short so anything longer than
+     * that just can't be written.
+     *
+     * @return the UTF-8 encoded value or null if the value is null.
+     * @throws IllegalArgumentException in case the encoded value is longer
+     *         than 65535 bytes.
+     */
+    private static byte[] toOptionValue(final String value) throws IllegalArgumentException {
+        if (value == null) {
+            return null;
+        }
+
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_OPTION_LENGTH) {
+            throw new IllegalArgumentException("A pcapng option cannot be longer than " + MAX_OPTION_LENGTH
+                    + " bytes but this one is " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    private static void putOption(final ByteBuffer block, final int code, final byte[] value) {
+        block.putShort((short) code).putShort((short) value.length).put(value);
+        block.position(block.position() + pad(value.length) - value.length);
+    }
+
+    /**
+     * Everything in a pcapng block is padded to 32 bits.
+     */
+    private static int pad(final int length) {
+        return length + 3 & ~3;
     }
 
     /**
@@ -90,14 +778,25 @@ public class PcapOutputStream extends OutputStream {
     @Override
     public void write(final int b) throws IOException {
         // TODO: should we allow this?
+        flushPending();
         this.out.write(b);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        flushPending();
+        this.out.write(b, off, len);
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void flush() throws IOException {
+        flushPending();
         super.flush();
         this.out.flush();
     }
@@ -107,8 +806,35 @@ public class PcapOutputStream extends OutputStream {
      */
     @Override
     public void close() throws IOException {
+        flushPending();
         super.close();
         this.out.close();
     }
 
+    /**
+     * An interface we have written an interface description block for.
+     */
+    private static final class Interface {
+        private final int dataLinkType;
+        private final long snapLength;
+        private final boolean nsTimestamps;
+        private final String name;
+
+        /**
+         * Whether we added this interface on our own, in which case it is
+         * shared by all packets with the same link type, snap length and
+         * timestamp resolution, or if the user added it explicitly.
+         */
+        private final boolean explicit;
+
+        private Interface(final int dataLinkType, final long snapLength, final boolean nsTimestamps,
+                final String name, final boolean explicit) {
+            this.dataLinkType = dataLinkType;
+            this.snapLength = snapLength;
+            this.nsTimestamps = nsTimestamps;
+            this.name = name;
+            this.explicit = explicit;
+        }
+    }
+
 }
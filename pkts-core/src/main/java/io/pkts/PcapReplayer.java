@@ -0,0 +1,253 @@
+package io.pkts;
+
+import io.pkts.packet.Packet;
+import io.pkts.packet.UDPPacket;
+import io.pkts.packet.impl.PCapPacketImpl;
+import io.pkts.protocol.Protocol;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the UDP packets of a capture, e.g. SIP and RTP, by sending their
+ * payloads to local endpoints, which is handy for load testing a SIP stack
+ * with real traffic. The time between the packets is kept the same as in the
+ * capture, scaled by the speed of the replayer.
+ *
+ * <pre>
+ * PcapReplayer replayer = PcapReplayer.with()
+ *         .withEndpoint(5060, new InetSocketAddress("127.0.0.1", 5070))
+ *         .withDefaultEndpoint(new InetSocketAddress("127.0.0.1", 20000))
+ *         .withSpeed(10)
+ *         .build();
+ * Pcap pcap = Pcap.openStream("sipp.pcap");
+ * replayer.replay(pcap);
+ * pcap.close();
+ * </pre>
+ *
+ * Each packet is sent at the time given by its arrival time relative to the
+ * first packet of the capture. Sleeping isn't nearly accurate enough for
+ * that, so we park until we are close to that time and then spin the rest of
+ * the way (see {@link Builder#withSpinThreshold(long, TimeUnit)}). If we fall
+ * behind, e.g. since the receiver can't keep up, the packets are sent as fast
+ * as possible until we have caught up.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class PcapReplayer {
+
+    /**
+     * The speed at which the packets are sent as fast as possible, without
+     * any regard to the time between them.
+     */
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    private final Map<Integer, SocketAddress> endpoints;
+    private final SocketAddress defaultEndpoint;
+    private final double speed;
+    private final long spinThreshold;
+
+    private PcapReplayer(final Map<Integer, SocketAddress> endpoints, final SocketAddress defaultEndpoint,
+            final double speed, final long spinThreshold) {
+        this.endpoints = endpoints;
+        this.defaultEndpoint = defaultEndpoint;
+        this.speed = speed;
+        this.spinThreshold = spinThreshold;
+    }
+
+    public static Builder with() {
+        return new Builder();
+    }
+
+    /**
+     * Replay all the UDP packets of the capture, from where it is right now
+     * and on. Packets without an endpoint are skipped, as are all packets
+     * that aren't UDP.
+     *
+     * This method doesn't return until all of the packets have been sent.
+     * The capture is left open, closing it is up to the caller.
+     *
+     * @param pcap
+     * @return the number of packets sent.
+     * @throws IOException
+     *             in case we failed to send a packet or the calling thread was
+     *             interrupted, in which case an {@link InterruptedIOException}
+     *             is thrown.
+     */
+    public long replay(final Pcap pcap) throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            final Sender sender = new Sender(channel);
+            pcap.loop(sender);
+            return sender.sent;
+        }
+    }
+
+    /**
+     * The arrival time of a packet in nanoseconds. The resolution may differ
+     * from packet to packet, e.g. a pcapng capture may have interfaces with
+     * both micro and nanosecond resolution, so it has to be the resolution of
+     * the packet itself and not that of the capture.
+     */
+    private static long arrivalTimeInNs(final Packet packet) {
+        if (packet instanceof PCapPacketImpl && ((PCapPacketImpl) packet).getPcapGlobalHeader().timestampsInNs()) {
+            return packet.getArrivalTime();
+        }
+        return packet.getArrivalTime() * 1000L;
+    }
+
+    /**
+     * Wait until the given time, as given by {@link System#nanoTime()}, by
+     * parking until we are within the spin threshold and then spinning.
+     */
+    private void awaitDeadline(final long deadline) throws InterruptedIOException {
+        long remaining = 0;
+        while ((remaining = deadline - System.nanoTime()) > this.spinThreshold) {
+            LockSupport.parkNanos(this, remaining - this.spinThreshold);
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted while replaying");
+            }
+        }
+
+        while (deadline - System.nanoTime() > 0) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private SocketAddress getEndpoint(final UDPPacket udp) {
+        final SocketAddress endpoint = this.endpoints.get(udp.getDestinationPort());
+        return endpoint != null ? endpoint : this.defaultEndpoint;
+    }
+
+    private final class Sender implements PacketHandler {
+
+        private final DatagramChannel channel;
+
+        private long first = -1;
+
+        private long start;
+
+        private long sent;
+
+        private Sender(final DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public boolean nextPacket(final Packet packet) throws IOException {
+            if (!packet.hasProtocol(Protocol.UDP)) {
+                return true;
+            }
+
+            final UDPPacket udp = (UDPPacket) packet.getPacket(Protocol.UDP);
+            final SocketAddress endpoint = getEndpoint(udp);
+            if (endpoint == null) {
+                return true;
+            }
+
+            final long arrivalTime = arrivalTimeInNs(packet);
+            if (this.first == -1) {
+                this.first = arrivalTime;
+                this.start = System.nanoTime();
+            } else if (PcapReplayer.this.speed != MAX_SPEED) {
+                final double offset = (arrivalTime - this.first) / PcapReplayer.this.speed;
+                awaitDeadline(this.start + (long) offset);
+            }
+
+            final ByteBuffer payload = udp.getPayload().toByteBuffer();
+            this.channel.send(payload, endpoint);
+            ++this.sent;
+            return true;
+        }
+    }
+
+    public static final class Builder {
+
+        private final Map<Integer, SocketAddress> endpoints = new HashMap<>();
+        private SocketAddress defaultEndpoint;
+        private double speed = 1;
+        private long spinThreshold = TimeUnit.MICROSECONDS.toNanos(100);
+
+        private Builder() {
+            // use PcapReplayer.with()
+        }
+
+        /**
+         * Send the packets with the given destination port in the capture to
+         * the given endpoint.
+         *
+         * @param destinationPort
+         * @param endpoint
+         * @return
+         */
+        public Builder withEndpoint(final int destinationPort, final InetSocketAddress endpoint) {
+            if (endpoint == null) {
+                throw new IllegalArgumentException("The endpoint cannot be null");
+            }
+            this.endpoints.put(destinationPort, endpoint);
+            return this;
+        }
+
+        /**
+         * Send all packets without an endpoint of their own (see
+         * {@link #withEndpoint(int, InetSocketAddress)}) to the given endpoint.
+         * If there is no default endpoint, those packets are skipped.
+         *
+         * @param endpoint
+         * @return
+         */
+        public Builder withDefaultEndpoint(final InetSocketAddress endpoint) {
+            this.defaultEndpoint = endpoint;
+            return this;
+        }
+
+        /**
+         * The speed relative to the capture, e.g. 0.5 for half the speed or
+         * 10 for ten times as fast. Default is 1, i.e., the speed of the
+         * capture. Use {@link PcapReplayer#MAX_SPEED} to send the packets as
+         * fast as possible.
+         *
+         * @param speed
+         * @return
+         */
+        public Builder withSpeed(final double speed) {
+            if (!(speed > 0)) {
+                throw new IllegalArgumentException("The speed must be a positive number");
+            }
+            this.speed = speed;
+            return this;
+        }
+
+        /**
+         * How close to the time of the next packet we stop parking the thread
+         * and start spinning instead, which is a trade off between accuracy
+         * and burning CPU. Default is 100 microseconds.
+         *
+         * @param threshold
+         * @param unit
+         * @return
+         */
+        public Builder withSpinThreshold(final long threshold, final TimeUnit unit) {
+            if (threshold < 0) {
+                throw new IllegalArgumentException("The spin threshold cannot be negative");
+            }
+            this.spinThreshold = unit.toNanos(threshold);
+            return this;
+        }
+
+        public PcapReplayer build() {
+            if (this.endpoints.isEmpty() && this.defaultEndpoint == null) {
+                throw new IllegalArgumentException("There has to be at least one endpoint");
+            }
+            return new PcapReplayer(new HashMap<>(this.endpoints), this.defaultEndpoint, this.speed,
+                    this.spinThreshold);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package io.pkts;
+
+import io.pkts.buffer.Buffers;
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Gathers statistics about a pcap file, such as the number of records and the
+ * first and last timestamp (see {@link PcapSummary}), by reading nothing but
+ * the record headers. The packets themselves are skipped over, without ever
+ * being framed, which makes scanning a lot cheaper than looping over the
+ * {@link Pcap}.
+ *
+ * <pre>
+ * PcapSummary summary = PcapScanner.scan(Paths.get("archive.pcap"));
+ * </pre>
+ *
+ * Only classic pcap is supported, not pcapng.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class PcapScanner {
+
+    private final PcapGlobalHeader header;
+    private final long snapLength;
+
+    private long recordCount;
+    private long capturedBytes;
+    private long originalBytes;
+    private long firstTimestamp = -1;
+    private long lastTimestamp = -1;
+    private long snapLengthViolations;
+    private long slicedRecords;
+    private boolean truncated;
+
+    private PcapScanner(final PcapGlobalHeader header) {
+        this.header = header;
+        this.snapLength = header.getSnapLength() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Scan the given pcap file. Gzipped files are supported as well but since
+     * they have to be inflated, all of the file has to be read.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             in case the file isn't a pcap.
+     */
+    public static PcapSummary scan(final Path file) throws IOException, IllegalArgumentException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer bytes = ByteBuffer.allocate(PcapGlobalHeader.SIZE);
+            while (bytes.hasRemaining() && channel.read(bytes, bytes.position()) != -1) {
+                // keep reading
+            }
+
+            if (bytes.position() >= 2 && bytes.get(0) == (byte) 0x1f && bytes.get(1) == (byte) 0x8b) {
+                try (InputStream is = new GZIPInputStream(Files.newInputStream(file), 64 * 1024)) {
+                    return scan(is);
+                }
+            }
+
+            if (bytes.hasRemaining()) {
+                throw new IllegalArgumentException("The file is too short to be a pcap");
+            }
+
+            final PcapScanner scanner = new PcapScanner(parseHeader(bytes.array()));
+            scanner.walk(channel);
+            return scanner.summarize();
+        }
+    }
+
+    /**
+     * Scan the pcap read off of the given stream, which will be read to the
+     * end but it is still up to you to close it.
+     *
+     * @param is
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             in case the stream isn't a pcap.
+     */
+    public static PcapSummary scan(final InputStream is) throws IOException, IllegalArgumentException {
+        final byte[] bytes = new byte[PcapGlobalHeader.SIZE];
+        if (readFully(is, bytes) < bytes.length) {
+            throw new IllegalArgumentException("The stream is too short to be a pcap");
+        }
+
+        final PcapScanner scanner = new PcapScanner(parseHeader(bytes));
+        scanner.walk(is);
+        return scanner.summarize();
+    }
+
+    private static PcapGlobalHeader parseHeader(final byte[] bytes) throws IOException {
+        if (bytes[0] == PcapGlobalHeader.MAGIC_NGPCAP[0] && bytes[1] == PcapGlobalHeader.MAGIC_NGPCAP[1]) {
+            throw new IllegalArgumentException("Only supported for pcap, not pcapng");
+        }
+        return PcapGlobalHeader.parse(Buffers.wrap(bytes));
+    }
+
+    /**
+     * Walk the record headers by reading them positionally, which means that
+     * large records are skipped without reading them at all.
+     */
+    private void walk(final FileChannel channel) throws IOException {
+        final RecordHeaderReader reader = new RecordHeaderReader(channel, this.header);
+        final long size = reader.size();
+        long offset = PcapGlobalHeader.SIZE;
+        while (reader.read(offset)) {
+            if (reader.nextOffset() > size) {
+                this.truncated = true;
+                return;
+            }
+            add(reader.timestamp(), reader.capturedLength(), reader.totalLength());
+            offset = reader.nextOffset();
+        }
+
+        this.truncated = offset < size;
+    }
+
+    private void walk(final InputStream in) throws IOException {
+        final byte[] bytes = new byte[PcapRecordHeader.SIZE];
+        final ByteBuffer record = ByteBuffer.wrap(bytes).order(this.header.getByteOrder());
+        final boolean ns = this.header.timestampsInNs();
+
+        while (true) {
+            final int read = readFully(in, bytes);
+            if (read < bytes.length) {
+                this.truncated = read > 0;
+                return;
+            }
+
+            final long seconds = record.getInt(0) & 0xFFFFFFFFL;
+            final long subSeconds = record.getInt(4) & 0xFFFFFFFFL;
+            final long capturedLength = record.getInt(8) & 0xFFFFFFFFL;
+            final long totalLength = record.getInt(12) & 0xFFFFFFFFL;
+
+            if (skipFully(in, capturedLength) < capturedLength) {
+                this.truncated = true;
+                return;
+            }
+
+            add(seconds * 1000000L + (ns ? subSeconds / 1000L : subSeconds), capturedLength, totalLength);
+        }
+    }
+
+    private static int readFully(final InputStream in, final byte[] bytes) throws IOException {
+        int total = 0;
+        int read = 0;
+        while (total < bytes.length && (read = in.read(bytes, total, bytes.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * {@link InputStream#skip(long)} may skip less than asked for, even zero
+     * bytes, without that meaning that we have reached the end of the
+     * stream. Hence, if nothing is skipped we read a byte to find out.
+     */
+    private static long skipFully(final InputStream in, final long length) throws IOException {
+        long total = 0;
+        while (total < length) {
+            final long skipped = in.skip(length - total);
+            if (skipped > 0) {
+                total += skipped;
+            } else if (in.read() == -1) {
+                break;
+            } else {
+                ++total;
+            }
+        }
+        return total;
+    }
+
+    private void add(final long timestamp, final long capturedLength, final long totalLength) {
+        ++this.recordCount;
+        this.capturedBytes += capturedLength;
+        this.originalBytes += totalLength;
+
+        if (this.firstTimestamp == -1 || timestamp < this.firstTimestamp) {
+            this.firstTimestamp = timestamp;
+        }
+        if (timestamp > this.lastTimestamp) {
+            this.lastTimestamp = timestamp;
+        }
+
+        if (this.snapLength > 0 && capturedLength > this.snapLength) {
+            ++this.snapLengthViolations;
+        }
+        if (capturedLength < totalLength) {
+            ++this.slicedRecords;
+        }
+    }
+
+    private PcapSummary summarize() {
+        return new PcapSummary(this.header.getDataLinkType(), this.snapLength, this.header.timestampsInNs(),
+                this.recordCount, this.capturedBytes, this.originalBytes, this.firstTimestamp, this.lastTimestamp,
+                this.snapLengthViolations, this.slicedRecords, this.truncated);
+    }
+}
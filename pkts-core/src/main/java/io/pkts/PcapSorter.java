@@ -0,0 +1,520 @@
+package io.pkts;
+
+import io.pkts.buffer.Buffers;
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.packet.PCapPacket;
+import io.pkts.packet.Packet;
+import io.pkts.packet.impl.PCapPacketImpl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts the records of a capture by their arrival time, which is needed for
+ * captures that are out of order, e.g. since they were captured on a
+ * multi-queue NIC or merged from several probes without regard to time.
+ *
+ * <pre>
+ * PcapSorter sorter = PcapSorter.with().withMemoryLimit(256 * 1024 * 1024).build();
+ * sorter.sort(Paths.get("unordered.pcap"), PcapOutputStream.create(header, new FileOutputStream("sorted.pcap")));
+ * </pre>
+ *
+ * The capture may be larger than memory. The records are read into a run of
+ * raw records, up to the memory limit, which is sorted and spilled to a
+ * temporary file once full. The runs are then merged (see
+ * {@link PcapMerger}), at most {@link Builder#withMaxFanIn(int)} at a time, into
+ * the {@link PcapOutputStream}. If it all fits into one run, nothing is
+ * spilled at all.
+ *
+ * Most captures are only slightly out of order though, in which case we
+ * don't need all of that. When sorting a file, we first walk its record
+ * headers to see if every record is within
+ * {@link Builder#withReorderWindow(int)} records of where it belongs, and if
+ * so, the file is sorted in a single pass through a window of that many
+ * records.
+ *
+ * Records with the same arrival time are kept in the order they were
+ * captured. Only classic pcap is supported, not pcapng, and the records are
+ * written raw (see {@link PcapOutputStream#writeRaw(PCapPacket)}) so the
+ * output stream must be of the same format as the capture.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class PcapSorter {
+
+    /**
+     * 64 MB
+     */
+    public static final int DEFAULT_MEMORY_LIMIT = 64 * 1024 * 1024;
+
+    public static final int DEFAULT_REORDER_WINDOW = 4096;
+
+    public static final int DEFAULT_MAX_FAN_IN = 64;
+
+    private final int memoryLimit;
+    private final int reorderWindow;
+    private final int maxFanIn;
+    private final Path tempDirectory;
+
+    private PcapSorter(final int memoryLimit, final int reorderWindow, final int maxFanIn,
+            final Path tempDirectory) {
+        this.memoryLimit = memoryLimit;
+        this.reorderWindow = reorderWindow;
+        this.maxFanIn = maxFanIn;
+        this.tempDirectory = tempDirectory;
+    }
+
+    public static Builder with() {
+        return new Builder();
+    }
+
+    /**
+     * Sort the given pcap file, through the reorder window if the file is
+     * nearly sorted and through an external merge sort otherwise.
+     *
+     * @param file
+     * @param out
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             in case the file isn't a classic pcap.
+     */
+    public void sort(final Path file, final PcapOutputStream out) throws IOException, IllegalArgumentException {
+        final boolean nearlySorted = isNearlySorted(file);
+        final Pcap pcap = Pcap.openStream(file.toFile());
+        try {
+            if (nearlySorted) {
+                reorder(pcap, out);
+            } else {
+                sort(pcap, out);
+            }
+        } finally {
+            pcap.close();
+        }
+    }
+
+    /**
+     * Sort the records of the capture, from where it is right now and on,
+     * through an external merge sort. Since the capture can only be read
+     * once, we can't tell up front whether it is nearly sorted. It is still
+     * up to you to close the capture.
+     *
+     * @param pcap
+     * @param out
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             in case the capture isn't a classic pcap.
+     */
+    public void sort(final Pcap pcap, final PcapOutputStream out) throws IOException, IllegalArgumentException {
+        if (pcap.isPcapNg()) {
+            throw new IllegalArgumentException("Only supported for pcap, not pcapng");
+        }
+
+        final PcapGlobalHeader header = pcap.getPcapHeader();
+        final List<Path> runs = new ArrayList<>();
+        final List<Path> temporary = new ArrayList<>();
+        try {
+            final Run run = new Run(this.memoryLimit);
+            pcap.loopEphemeral(packet -> {
+                if (!run.add((PCapPacketImpl) packet)) {
+                    runs.add(spill(header, run, temporary));
+                    run.add((PCapPacketImpl) packet);
+                }
+                return true;
+            });
+
+            if (runs.isEmpty()) {
+                run.write(header, out);
+                return;
+            }
+
+            if (!run.isEmpty()) {
+                runs.add(spill(header, run, temporary));
+            }
+            merge(header, runs, out, temporary);
+        } finally {
+            for (final Path file : temporary) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Check whether every record of the file is within the reorder window of
+     * where it belongs, by running the arrival times, and nothing but the
+     * arrival times, through the window.
+     *
+     * @return false if it isn't, if the file isn't a classic pcap or if the
+     *         single pass has been turned off by a reorder window of zero.
+     */
+    boolean isNearlySorted(final Path file) throws IOException {
+        if (this.reorderWindow == 0) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer bytes = ByteBuffer.allocate(PcapGlobalHeader.SIZE);
+            while (bytes.hasRemaining() && channel.read(bytes, bytes.position()) != -1) {
+                // keep reading
+            }
+
+            // gzipped or pcapng, neither of which we can walk
+            if (bytes.hasRemaining() || bytes.get(0) == (byte) 0x1f && bytes.get(1) == (byte) 0x8b
+                    || bytes.get(0) == PcapGlobalHeader.MAGIC_NGPCAP[0]) {
+                return false;
+            }
+
+            final PcapGlobalHeader header = PcapGlobalHeader.parse(Buffers.wrap(bytes.array()));
+            final RecordHeaderReader reader = new RecordHeaderReader(channel, header);
+            final long multiplier = header.timestampsInNs() ? 1000000000L : 1000000L;
+            final PriorityQueue<Long> window = new PriorityQueue<>(this.reorderWindow + 1);
+            long last = Long.MIN_VALUE;
+            long offset = PcapGlobalHeader.SIZE;
+            while (reader.read(offset)) {
+                window.add(reader.seconds() * multiplier + reader.subSeconds());
+                if (window.size() > this.reorderWindow) {
+                    final long next = window.poll();
+                    if (next < last) {
+                        return false;
+                    }
+                    last = next;
+                }
+                offset = reader.nextOffset();
+            }
+
+            // whatever is left in the window comes out in order
+            return window.isEmpty() || window.peek() >= last;
+        }
+    }
+
+    /**
+     * Sort the records through the reorder window, which is only correct if
+     * every record is within the window of where it belongs.
+     */
+    private void reorder(final Pcap pcap, final PcapOutputStream out) throws IOException {
+        final PriorityQueue<Pending> window = new PriorityQueue<>(this.reorderWindow + 1);
+        final long[] sequence = new long[1];
+        pcap.loopEphemeral(packet -> {
+            window.add(new Pending(sequence[0]++, (PCapPacket) packet.retain()));
+            if (window.size() > this.reorderWindow) {
+                out.writeRaw(window.poll().packet);
+            }
+            return true;
+        });
+
+        while (!window.isEmpty()) {
+            out.writeRaw(window.poll().packet);
+        }
+    }
+
+    /**
+     * Sort the run and write it to a new temporary file.
+     */
+    private Path spill(final PcapGlobalHeader header, final Run run, final List<Path> temporary)
+            throws IOException {
+        final Path file = createTempFile(temporary);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024)) {
+            header.write(out);
+            run.write(out);
+        }
+        run.clear();
+        return file;
+    }
+
+    /**
+     * Merge the runs into the output stream. If there are more runs than we
+     * may merge at once, consecutive runs are merged into larger ones first,
+     * which keeps records with the same arrival time in order.
+     */
+    private void merge(final PcapGlobalHeader header, final List<Path> runs, final PcapOutputStream out,
+            final List<Path> temporary) throws IOException {
+        List<Path> level = runs;
+        while (level.size() > this.maxFanIn) {
+            final List<Path> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += this.maxFanIn) {
+                final List<Path> group = level.subList(i, Math.min(i + this.maxFanIn, level.size()));
+                if (group.size() == 1) {
+                    next.add(group.get(0));
+                    continue;
+                }
+
+                final Path merged = createTempFile(temporary);
+                try (PcapOutputStream mergedOut = PcapOutputStream.create(header,
+                        new FileOutputStream(merged.toFile()))) {
+                    merge(group, mergedOut);
+                }
+                for (final Path run : group) {
+                    Files.deleteIfExists(run);
+                }
+                next.add(merged);
+            }
+            level = next;
+        }
+
+        merge(level, out);
+    }
+
+    private static void merge(final List<Path> runs, final PcapOutputStream out) throws IOException {
+        final File[] files = new File[runs.size()];
+        for (int i = 0; i < files.length; ++i) {
+            files[i] = runs.get(i).toFile();
+        }
+
+        final PcapMerger merger = PcapMerger.open(files);
+        try {
+            Packet packet = null;
+            while ((packet = merger.next()) != null) {
+                out.writeRaw((PCapPacket) packet);
+            }
+        } finally {
+            merger.close();
+        }
+    }
+
+    private Path createTempFile(final List<Path> temporary) throws IOException {
+        final Path file = this.tempDirectory != null ? Files.createTempFile(this.tempDirectory, "pkts-sort", ".pcap")
+                : Files.createTempFile("pkts-sort", ".pcap");
+        temporary.add(file);
+        return file;
+    }
+
+    /**
+     * A run of raw records, i.e., record headers followed by the captured
+     * bytes, back to back in one array along with the arrival time of every
+     * record.
+     */
+    private static final class Run {
+
+        private final int capacity;
+
+        private byte[] records;
+
+        /**
+         * The number of bytes used of the records.
+         */
+        private int size;
+
+        private int count;
+
+        private int[] offsets = new int[1024];
+
+        private long[] arrivalTimes = new long[1024];
+
+        private Run(final int capacity) {
+            this.capacity = capacity;
+            this.records = new byte[capacity];
+        }
+
+        /**
+         * @return false if the run is full. A record that wouldn't even fit in
+         *         an empty run gets a run of its own.
+         */
+        private boolean add(final PCapPacketImpl packet) {
+            final ByteBuffer header = packet.getPcapRecordHeader().toByteBuffer();
+            final ByteBuffer payload = packet.getPayload().toByteBuffer();
+            final int length = header.remaining() + payload.remaining();
+            if (this.size + length > this.records.length) {
+                if (this.count > 0) {
+                    return false;
+                }
+                this.records = new byte[length];
+            }
+
+            if (this.count == this.offsets.length) {
+                this.offsets = Arrays.copyOf(this.offsets, this.count * 2);
+                this.arrivalTimes = Arrays.copyOf(this.arrivalTimes, this.count * 2);
+            }
+
+            this.offsets[this.count] = this.size;
+            this.arrivalTimes[this.count] = packet.getArrivalTime();
+            ++this.count;
+
+            final int headerLength = header.remaining();
+            header.get(this.records, this.size, headerLength);
+            payload.get(this.records, this.size + headerLength, length - headerLength);
+            this.size += length;
+            return true;
+        }
+
+        private boolean isEmpty() {
+            return this.count == 0;
+        }
+
+        private void clear() {
+            this.size = 0;
+            this.count = 0;
+            if (this.records.length != this.capacity) {
+                this.records = new byte[this.capacity];
+            }
+        }
+
+        private int length(final int record) {
+            return (record + 1 < this.count ? this.offsets[record + 1] : this.size) - this.offsets[record];
+        }
+
+        private void write(final OutputStream out) throws IOException {
+            for (final int record : sort()) {
+                out.write(this.records, this.offsets[record], length(record));
+            }
+        }
+
+        private void write(final PcapGlobalHeader header, final PcapOutputStream out) throws IOException {
+            for (final int record : sort()) {
+                out.writeRaw(header, this.records, this.offsets[record], length(record));
+            }
+        }
+
+        /**
+         * @return the records in arrival time order.
+         */
+        private int[] sort() {
+            final int[] order = new int[this.count];
+            for (int i = 0; i < order.length; ++i) {
+                order[i] = i;
+            }
+            sort(order, new int[this.count], 0, this.count);
+            return order;
+        }
+
+        /**
+         * A plain, and hence stable, merge sort, except that two halves that
+         * already are in order aren't merged at all, which makes a nearly
+         * sorted run close to linear.
+         */
+        private void sort(final int[] order, final int[] scratch, final int from, final int to) {
+            if (to - from < 2) {
+                return;
+            }
+
+            final int middle = (from + to) >>> 1;
+            sort(order, scratch, from, middle);
+            sort(order, scratch, middle, to);
+            if (this.arrivalTimes[order[middle - 1]] <= this.arrivalTimes[order[middle]]) {
+                return;
+            }
+
+            System.arraycopy(order, from, scratch, from, to - from);
+            int i = from;
+            int j = middle;
+            int k = from;
+            while (i < middle && j < to) {
+                order[k++] = this.arrivalTimes[scratch[j]] < this.arrivalTimes[scratch[i]] ? scratch[j++]
+                        : scratch[i++];
+            }
+            while (i < middle) {
+                order[k++] = scratch[i++];
+            }
+            while (j < to) {
+                order[k++] = scratch[j++];
+            }
+        }
+    }
+
+    /**
+     * A record in the reorder window.
+     */
+    private static final class Pending implements Comparable<Pending> {
+        private final long sequence;
+        private final long time;
+        private final PCapPacket packet;
+
+        private Pending(final long sequence, final PCapPacket packet) {
+            this.sequence = sequence;
+            this.time = packet.getArrivalTime();
+            this.packet = packet;
+        }
+
+        @Override
+        public int compareTo(final Pending other) {
+            final int result = Long.compare(this.time, other.time);
+            return result != 0 ? result : Long.compare(this.sequence, other.sequence);
+        }
+    }
+
+    public static final class Builder {
+
+        private int memoryLimit = DEFAULT_MEMORY_LIMIT;
+        private int reorderWindow = DEFAULT_REORDER_WINDOW;
+        private int maxFanIn = DEFAULT_MAX_FAN_IN;
+        private Path tempDirectory;
+
+        private Builder() {
+            // use PcapSorter.with()
+        }
+
+        /**
+         * Roughly how many bytes of records to keep in memory before they are
+         * spilled to a temporary file. Default is 64 MB.
+         *
+         * @param bytes
+         * @return
+         */
+        public Builder withMemoryLimit(final int bytes) {
+            if (bytes < 1) {
+                throw new IllegalArgumentException("The memory limit must be a positive number");
+            }
+            this.memoryLimit = bytes;
+            return this;
+        }
+
+        /**
+         * How many records away from where it belongs a record may be for a
+         * file to be sorted in a single pass. Default is 4096. Zero turns the
+         * single pass off, i.e., files are always sorted through the external
+         * merge sort, even those that already are sorted.
+         *
+         * @param records
+         * @return
+         */
+        public Builder withReorderWindow(final int records) {
+            if (records < 0) {
+                throw new IllegalArgumentException("The reorder window cannot be negative");
+            }
+            this.reorderWindow = records;
+            return this;
+        }
+
+        /**
+         * The maximum number of runs to merge at once, which is also the
+         * maximum number of temporary files that are open at once. Default is
+         * 64.
+         *
+         * @param runs
+         * @return
+         */
+        public Builder withMaxFanIn(final int runs) {
+            if (runs < 2) {
+                throw new IllegalArgumentException("At least two runs must be merged at once");
+            }
+            this.maxFanIn = runs;
+            return this;
+        }
+
+        /**
+         * Where to put the runs. Default is the temporary directory of the
+         * system.
+         *
+         * @param directory
+         * @return
+         */
+        public Builder withTempDirectory(final Path directory) {
+            this.tempDirectory = directory;
+            return this;
+        }
+
+        public PcapSorter build() {
+            return new PcapSorter(this.memoryLimit, this.reorderWindow, this.maxFanIn, this.tempDirectory);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package io.pkts;
+
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.framer.FramerManager;
+import io.pkts.framer.PcapFramer;
+import io.pkts.packet.Packet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A {@link Spliterator} over a byte range of a pcap file, which is what backs
+ * {@link Pcap#stream()} for files.
+ *
+ * The range always starts and ends on a record boundary. Splitting walks the
+ * record headers (see {@link RecordHeaderReader}) from the start of the range
+ * until the middle of it, which is where the range is cut in two. The packets
+ * are framed out of chunks of roughly {@link ParallelLoop#CHUNK_SIZE} bytes
+ * that are read positionally off of the channel, so any number of
+ * spliterators can work on the same file at the same time, which is what
+ * makes a parallel stream actually run in parallel.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+final class PcapSpliterator implements Spliterator<Packet> {
+
+    /**
+     * Don't bother splitting ranges smaller than this.
+     */
+    private static final long MIN_SPLIT_SIZE = 2L * ParallelLoop.CHUNK_SIZE;
+
+    private final PcapGlobalHeader header;
+    private final FileChannel channel;
+    private final FramerManager framerManager;
+
+    /**
+     * The offset of the first record not yet read into a chunk.
+     */
+    private long position;
+
+    /**
+     * The offset right after the last record of the range.
+     */
+    private long end;
+
+    private RecordHeaderReader reader;
+
+    private PcapFramer framer;
+
+    /**
+     * The records read off of the file but not yet framed.
+     */
+    private Buffer chunk;
+
+    PcapSpliterator(final PcapGlobalHeader header, final FileChannel channel, final FramerManager framerManager,
+            final long position, final long end) {
+        this.header = header;
+        this.channel = channel;
+        this.framerManager = framerManager;
+        this.position = position;
+        this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super Packet> action) {
+        try {
+            if ((this.chunk == null || !this.chunk.hasReadableBytes()) && !readChunk()) {
+                return false;
+            }
+
+            final Packet packet = this.framer.frame(null, this.chunk);
+            if (packet == null) {
+                return false;
+            }
+
+            action.accept(packet);
+            return true;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Spliterator<Packet> trySplit() {
+        if (this.end - this.position < MIN_SPLIT_SIZE) {
+            return null;
+        }
+
+        try {
+            final long middle = walk(this.position, this.position + (this.end - this.position) / 2);
+            if (middle <= this.position || middle >= this.end) {
+                return null;
+            }
+
+            // we keep the first half so that the order is maintained
+            final PcapSpliterator split = new PcapSpliterator(this.header, this.channel, this.framerManager,
+                    middle, this.end);
+            this.end = middle;
+            return split;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * An upper bound of the number of records left, since every record is
+     * at least as large as its header. We can't do better than that without
+     * walking all of them.
+     */
+    @Override
+    public long estimateSize() {
+        final long chunk = this.chunk != null ? this.chunk.getReadableBytes() : 0;
+        return (this.end - this.position + chunk) / PcapRecordHeader.SIZE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    /**
+     * Read the next record aligned chunk of the range.
+     *
+     * @return false if there are no more records in the range.
+     */
+    private boolean readChunk() throws IOException {
+        if (this.position >= this.end) {
+            return false;
+        }
+
+        final long stop = walk(this.position, Math.min(this.end, this.position + ParallelLoop.CHUNK_SIZE));
+        if (stop <= this.position) {
+            return false;
+        }
+
+        final ByteBuffer bytes = ByteBuffer.allocate((int) (stop - this.position));
+        while (bytes.hasRemaining()) {
+            if (this.channel.read(bytes, this.position + bytes.position()) == -1) {
+                throw new IOException("The file was truncated while reading it");
+            }
+        }
+
+        if (this.framer == null) {
+            this.framer = new PcapFramer(this.header, this.framerManager);
+        }
+        this.chunk = Buffers.wrap(bytes.array());
+        this.position = stop;
+        return true;
+    }
+
+    /**
+     * Walk the records from the given offset, which has to be the start of a
+     * record, until we are at or past the target offset, but never past the
+     * end of the range. A single record larger than the distance to the
+     * target is included in full.
+     *
+     * @return the offset of the record boundary where we stopped.
+     */
+    private long walk(final long from, final long target) throws IOException {
+        if (this.reader == null) {
+            this.reader = new RecordHeaderReader(this.channel, this.header);
+        }
+
+        long offset = from;
+        while (offset < target && this.reader.read(offset) && this.reader.nextOffset() <= this.end) {
+            offset = this.reader.nextOffset();
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,129 @@
+package io.pkts;
+
+/**
+ * Statistics about a pcap file, as gathered by the {@link PcapScanner}.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class PcapSummary {
+
+    private final int dataLinkType;
+    private final long snapLength;
+    private final boolean nsTimestamps;
+    private final long recordCount;
+    private final long capturedBytes;
+    private final long originalBytes;
+    private final long firstTimestamp;
+    private final long lastTimestamp;
+    private final long snapLengthViolations;
+    private final long slicedRecords;
+    private final boolean truncated;
+
+    PcapSummary(final int dataLinkType, final long snapLength, final boolean nsTimestamps, final long recordCount,
+            final long capturedBytes, final long originalBytes, final long firstTimestamp,
+            final long lastTimestamp, final long snapLengthViolations, final long slicedRecords,
+            final boolean truncated) {
+        this.dataLinkType = dataLinkType;
+        this.snapLength = snapLength;
+        this.nsTimestamps = nsTimestamps;
+        this.recordCount = recordCount;
+        this.capturedBytes = capturedBytes;
+        this.originalBytes = originalBytes;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.snapLengthViolations = snapLengthViolations;
+        this.slicedRecords = slicedRecords;
+        this.truncated = truncated;
+    }
+
+    /**
+     * The data link type as found in the global header, e.g. 1 for ethernet.
+     */
+    public int getDataLinkType() {
+        return this.dataLinkType;
+    }
+
+    public long getSnapLength() {
+        return this.snapLength;
+    }
+
+    public boolean timestampsInNs() {
+        return this.nsTimestamps;
+    }
+
+    public long getRecordCount() {
+        return this.recordCount;
+    }
+
+    /**
+     * The sum of the captured lengths of all records, i.e. the number of
+     * bytes actually in the file (minus the headers).
+     */
+    public long getCapturedBytes() {
+        return this.capturedBytes;
+    }
+
+    /**
+     * The sum of the original lengths of all records, i.e. the number of
+     * bytes seen on the wire.
+     */
+    public long getOriginalBytes() {
+        return this.originalBytes;
+    }
+
+    /**
+     * The earliest timestamp of all records in microseconds since epoch or -1
+     * if there are no records.
+     */
+    public long getFirstTimestamp() {
+        return this.firstTimestamp;
+    }
+
+    /**
+     * The latest timestamp of all records in microseconds since epoch or -1
+     * if there are no records.
+     */
+    public long getLastTimestamp() {
+        return this.lastTimestamp;
+    }
+
+    /**
+     * The number of records with a captured length larger than the snap
+     * length of the global header, which a well-behaved capture never has.
+     */
+    public long getSnapLengthViolations() {
+        return this.snapLengthViolations;
+    }
+
+    /**
+     * The number of records where only part of the packet was captured.
+     */
+    public long getSlicedRecords() {
+        return this.slicedRecords;
+    }
+
+    /**
+     * Whether the file ends with a partial record, which typically happens if
+     * the capture was killed or is still being written.
+     */
+    public boolean isTruncated() {
+        return this.truncated;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Network: ").append(this.dataLinkType).append("\n")
+          .append("SnapLength: ").append(this.snapLength).append("\n")
+          .append("Records: ").append(this.recordCount).append("\n")
+          .append("CapturedBytes: ").append(this.capturedBytes).append("\n")
+          .append("OriginalBytes: ").append(this.originalBytes).append("\n")
+          .append("First: ").append(this.firstTimestamp).append("\n")
+          .append("Last: ").append(this.lastTimestamp).append("\n")
+          .append("SnapLengthViolations: ").append(this.snapLengthViolations).append("\n")
+          .append("Sliced: ").append(this.slicedRecords).append("\n")
+          .append("Truncated: ").append(this.truncated).append("\n");
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,309 @@
+package io.pkts;
+
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the {@link PcapRecordHeader}s of a classic pcap file at arbitrary
+ * offsets, without touching the packets themselves. Used for building indexes
+ * and for seeking so the reads are positional and never change the position
+ * of the channel.
+ *
+ * To keep the number of reads down we read a whole window of the file at a
+ * time, which means that walking the headers of consecutive small records
+ * typically is served from memory.
+ *
+ * It can also find a record by timestamp without any index at all, see
+ * {@link #bisect(long)}.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+final class RecordHeaderReader {
+
+    private static final int WINDOW_SIZE = 65536;
+
+    /**
+     * When bisecting, we stop once the range is small enough to be walked
+     * record by record within a single window.
+     */
+    private static final int BISECT_THRESHOLD = WINDOW_SIZE;
+
+    /**
+     * The number of consecutive record headers that has to look right
+     * before we believe we have found the start of a record.
+     */
+    private static final int RESYNC_DEPTH = 3;
+
+    /**
+     * Used as the snap length if the global header doesn't have one.
+     */
+    private static final long DEFAULT_SNAP_LENGTH = 262144;
+
+    private final FileChannel channel;
+
+    private final boolean nsTimestamps;
+
+    private final long snapLength;
+
+    private final ByteBuffer window;
+
+    /**
+     * For reading a single record header outside of the window without
+     * having to move it, see {@link #peek(long)}.
+     */
+    private final ByteBuffer scratch;
+
+    /**
+     * The file offset of the first byte in the window.
+     */
+    private long windowStart = -1;
+
+    private long offset;
+    private long seconds;
+    private long subSeconds;
+    private long capturedLength;
+    private long totalLength;
+
+    RecordHeaderReader(final FileChannel channel, final PcapGlobalHeader header) {
+        this.channel = channel;
+        this.nsTimestamps = header.timestampsInNs();
+        final long snapLength = header.getSnapLength() & 0xFFFFFFFFL;
+        this.snapLength = snapLength > 0 ? snapLength : DEFAULT_SNAP_LENGTH;
+        this.window = ByteBuffer.allocate(WINDOW_SIZE).order(header.getByteOrder());
+        this.window.limit(0);
+        this.scratch = ByteBuffer.allocate(PcapRecordHeader.SIZE).order(header.getByteOrder());
+    }
+
+    /**
+     * Read the record header at the given offset.
+     *
+     * @param offset
+     * @return false if there isn't a complete record header at the offset,
+     *         i.e., we have reached the end of the file.
+     * @throws IOException
+     */
+    boolean read(final long offset) throws IOException {
+        if (!isBuffered(offset)) {
+            fill(offset);
+            if (this.window.limit() < PcapRecordHeader.SIZE) {
+                return false;
+            }
+        }
+
+        parse(offset, this.window, (int) (offset - this.windowStart));
+        return true;
+    }
+
+    /**
+     * Same as {@link #read(long)} but if the record header isn't within the
+     * window it is read on its own and the window stays where it is.
+     */
+    private boolean peek(final long offset) throws IOException {
+        if (isBuffered(offset)) {
+            parse(offset, this.window, (int) (offset - this.windowStart));
+            return true;
+        }
+
+        this.scratch.clear();
+        int read = 0;
+        while (this.scratch.hasRemaining() && read != -1) {
+            read = this.channel.read(this.scratch, offset + this.scratch.position());
+        }
+
+        if (this.scratch.hasRemaining()) {
+            return false;
+        }
+
+        parse(offset, this.scratch, 0);
+        return true;
+    }
+
+    private boolean isBuffered(final long offset) {
+        return this.windowStart >= 0 && offset >= this.windowStart
+                && offset + PcapRecordHeader.SIZE <= this.windowStart + this.window.limit();
+    }
+
+    private void parse(final long offset, final ByteBuffer buffer, final int index) {
+        this.offset = offset;
+        this.seconds = buffer.getInt(index) & 0xFFFFFFFFL;
+        this.subSeconds = buffer.getInt(index + 4) & 0xFFFFFFFFL;
+        this.capturedLength = buffer.getInt(index + 8) & 0xFFFFFFFFL;
+        this.totalLength = buffer.getInt(index + 12) & 0xFFFFFFFFL;
+    }
+
+    private void fill(final long offset) throws IOException {
+        this.window.clear();
+        int read = 0;
+        while (this.window.hasRemaining() && read != -1) {
+            read = this.channel.read(this.window, offset + this.window.position());
+        }
+        this.window.flip();
+        this.windowStart = offset;
+    }
+
+    /**
+     * Find the offset from where to start walking the records in order to
+     * find the first record with a timestamp equal to or later than the given
+     * timestamp. This is done by bisecting the file on the byte offset and
+     * then resynchronize on the first record following that offset (see
+     * {@link #resync(long, long, long)}). Since the records of a capture are
+     * in time order (or very close to it) we will end up with a record that
+     * is at most {@link #BISECT_THRESHOLD} bytes away from the one we're
+     * looking for.
+     *
+     * @param epochMicros
+     * @return the offset of a record with a timestamp earlier than what we're
+     *         looking for, or the offset of the first record.
+     * @throws IOException
+     */
+    long bisect(final long epochMicros) throws IOException {
+        long low = PcapGlobalHeader.SIZE;
+        if (!read(low) || timestamp() >= epochMicros) {
+            return low;
+        }
+
+        final long firstSeconds = this.seconds;
+        final long size = size();
+        long high = size;
+        while (high - low > BISECT_THRESHOLD) {
+            final long middle = low + (high - low) / 2;
+            final long end = Math.min(size, middle + PcapRecordHeader.SIZE + this.snapLength);
+            final long offset = resync(middle, end, firstSeconds);
+            if (offset != -1 && timestamp() < epochMicros) {
+                low = offset;
+            } else {
+                // either the record is at or after what we're looking for or
+                // we couldn't find a record at all. Either way, stay to the left
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Find the first offset within the given range where there appears to be
+     * a record. Since a pcap has no markers whatsoever we have to look at
+     * every offset and check whether there is something there that looks
+     * like a record header. It does if the captured length is within the
+     * snap length, the sub-second part of the timestamp is within a second
+     * and the timestamp isn't earlier than the first record of the file. The
+     * same has to be true for the following records as well and they have to
+     * be in time order.
+     *
+     * The candidates are checked within the window and the window is only
+     * moved once we have run past the end of it. The records following a
+     * candidate are peeked at without moving the window, or we would have to
+     * read it all over again for the next candidate.
+     *
+     * @param from
+     * @param to
+     * @param firstSeconds the seconds part of the timestamp of the first
+     *        record of the file.
+     * @return the offset of the record, in which case it is also what has
+     *         been read, or -1 if no record could be found.
+     * @throws IOException
+     */
+    long resync(final long from, final long to, final long firstSeconds) throws IOException {
+        final long size = size();
+        for (long offset = from; offset < to; ++offset) {
+            if (!isBuffered(offset)) {
+                fill(offset);
+                if (this.window.limit() < PcapRecordHeader.SIZE) {
+                    return -1;
+                }
+            }
+
+            if (isRecord(offset, size, firstSeconds)) {
+                read(offset);
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isRecord(final long offset, final long size, final long firstSeconds) throws IOException {
+        long current = offset;
+        long previous = Long.MIN_VALUE;
+        for (int i = 0; i < RESYNC_DEPTH; ++i) {
+            if (!peek(current)) {
+                // the file may end with a partial record if it is still
+                // being written to, but the first one has to be complete
+                return i > 0;
+            }
+
+            if (!isPlausible(firstSeconds) || timestamp() < previous) {
+                return false;
+            }
+
+            previous = timestamp();
+            current = nextOffset();
+            if (current >= size) {
+                return current == size || i > 0;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isPlausible(final long firstSeconds) {
+        return this.capturedLength <= this.snapLength
+                && this.capturedLength <= this.totalLength
+                && this.subSeconds < (this.nsTimestamps ? 1000000000L : 1000000L)
+                && this.seconds >= firstSeconds;
+    }
+
+    /**
+     * The file size as it is right now.
+     */
+    long size() throws IOException {
+        return this.channel.size();
+    }
+
+    long offset() {
+        return this.offset;
+    }
+
+    long seconds() {
+        return this.seconds;
+    }
+
+    /**
+     * The micro or nanoseconds part of the timestamp, depending on the
+     * resolution of the file.
+     */
+    long subSeconds() {
+        return this.subSeconds;
+    }
+
+    boolean timestampsInNs() {
+        return this.nsTimestamps;
+    }
+
+    /**
+     * The timestamp of the record in microseconds since epoch, regardless of
+     * the resolution of the file.
+     */
+    long timestamp() {
+        return this.seconds * 1000000L + (this.nsTimestamps ? this.subSeconds / 1000L : this.subSeconds);
+    }
+
+    long capturedLength() {
+        return this.capturedLength;
+    }
+
+    long totalLength() {
+        return this.totalLength;
+    }
+
+    /**
+     * The offset of the record following this one.
+     */
+    long nextOffset() {
+        return this.offset + PcapRecordHeader.SIZE + this.capturedLength;
+    }
+}
@@ -0,0 +1,579 @@
+package io.pkts;
+
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.packet.Packet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes packets to a series of pcap files, rotating to a new file when the
+ * current one has grown too large, spans too long a time or holds too many
+ * packets.
+ *
+ * The writing is done behind the back of the caller. The packets are
+ * serialized into large direct buffers and every full buffer is handed over
+ * to a dedicated writer thread, which writes it to the file through a
+ * {@link FileChannel}. There is a fixed number of buffers so if the disk
+ * can't keep up, the caller will either be blocked until a buffer has been
+ * written ({@link OverflowPolicy#BLOCK}) or the packets will be dropped until
+ * there is a buffer available again ({@link OverflowPolicy#DROP}).
+ *
+ * The files are named by a pattern as understood by
+ * {@link String#format(String, Object...)} where the first argument is the
+ * sequence number of the file (starting at zero) and the second one is the
+ * arrival time of the first packet of the file as a {@link Date}. E.g.
+ * "/var/pcaps/sbc-%1$05d.pcap" or "sbc-%2$tY%2$tm%2$td-%2$tH%2$tM%2$tS.pcap".
+ *
+ * <pre>
+ * RotatingPcapWriter writer = RotatingPcapWriter.with(pcap.getPcapHeader())
+ *         .withFilePattern("sbc-%1$05d.pcap")
+ *         .withMaxFileSize(100 * 1024 * 1024)
+ *         .withMaxDuration(5, TimeUnit.MINUTES)
+ *         .build();
+ * pcap.loop(packet -&gt; { writer.write(packet); return true; });
+ * writer.close();
+ * </pre>
+ *
+ * Note that the rotation on time is based on the arrival time of the packets,
+ * not the wall clock, so splitting an old capture works the same as
+ * splitting a live one. Also note that this class isn't thread safe, it is
+ * assumed that there is a single thread writing packets to it, and that you
+ * must close it or the last packets will never make it to disk.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class RotatingPcapWriter implements Closeable {
+
+    /**
+     * What to do when all buffers are waiting to be written to disk.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Block the writing thread until a buffer is available.
+         */
+        BLOCK,
+
+        /**
+         * Drop packets until a buffer is available.
+         */
+        DROP
+    }
+
+    private final PcapGlobalHeader header;
+    private final byte[] headerBytes;
+    private final String filePattern;
+    private final long maxFileSize;
+    private final long maxDuration;
+    private final long maxPackets;
+    private final int bufferSize;
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * The buffers that are available for filling up with packets.
+     */
+    private final BlockingQueue<ByteBuffer> free;
+
+    /**
+     * Full buffers waiting to be written by the writer thread.
+     */
+    private final BlockingQueue<Batch> queue;
+
+    private final Thread writerThread;
+
+    /**
+     * Every packet is first written here, since we don't know how large it
+     * is going to be until it has been written.
+     */
+    private final Scratch scratch = new Scratch();
+
+    private final List<Path> files = new ArrayList<>();
+
+    /**
+     * The buffer currently being filled up. May be null if we are dropping
+     * packets.
+     */
+    private ByteBuffer current;
+
+    private Path currentFile;
+    private long currentFileSize;
+    private long currentFilePackets;
+    private long currentFileStart;
+
+    private long dropped;
+
+    private long submitted;
+
+    /**
+     * Guarded by this.queue
+     */
+    private long written;
+
+    /**
+     * Whatever went wrong on the writer thread, if anything. Will be thrown
+     * to the next caller.
+     */
+    private volatile IOException failure;
+
+    private boolean closed;
+
+    private RotatingPcapWriter(final Builder builder) {
+        this.header = builder.header;
+        this.filePattern = builder.filePattern;
+        this.maxFileSize = builder.maxFileSize;
+        this.maxPackets = builder.maxPackets;
+        this.bufferSize = builder.bufferSize;
+        this.overflowPolicy = builder.overflowPolicy;
+
+        final long multiplier = this.header.timestampsInNs() ? 1000000000L : 1000000L;
+        this.maxDuration = builder.maxDurationMillis > 0 ? builder.maxDurationMillis * (multiplier / 1000L) : 0;
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(PcapGlobalHeader.SIZE);
+        try {
+            this.header.write(out);
+        } catch (final IOException e) {
+            // not going to happen with a byte array
+            throw new IllegalArgumentException("Unable to serialize the pcap header", e);
+        }
+        this.headerBytes = out.toByteArray();
+
+        this.free = new ArrayBlockingQueue<>(builder.buffers);
+        for (int i = 0; i < builder.buffers; ++i) {
+            this.free.add(ByteBuffer.allocateDirect(this.bufferSize));
+        }
+        this.queue = new ArrayBlockingQueue<>(builder.buffers + 2);
+        this.current = this.free.poll();
+
+        this.writerThread = new Thread(this::run, "pkts-pcap-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Create a new writer for packets of the given pcap header.
+     *
+     * @param header
+     * @return
+     */
+    public static Builder with(final PcapGlobalHeader header) {
+        if (header == null) {
+            throw new IllegalArgumentException("The pcap header cannot be null");
+        }
+        return new Builder(header);
+    }
+
+    /**
+     * Write a {@link Packet}. Unless we are dropping packets, the packet will
+     * eventually end up in one of the files.
+     *
+     * @param packet
+     *            the packet to write. If null is passed in, it will silently be
+     *            ignored.
+     * @throws IOException
+     *             in case the writer thread has failed to write to disk.
+     */
+    public void write(final Packet packet) throws IOException {
+        if (packet == null) {
+            return;
+        }
+        assertOpen();
+
+        final long time = packet.getArrivalTime();
+        this.scratch.reset();
+        packet.write(this.scratch);
+        final int size = this.scratch.size();
+
+        if (shouldRotate(time, size)) {
+            handOff();
+            this.currentFile = null;
+        }
+
+        if (this.current != null && this.current.remaining() < size) {
+            handOff();
+        }
+
+        if (this.current == null && !acquire()) {
+            ++this.dropped;
+            return;
+        }
+
+        if (this.currentFile == null) {
+            this.currentFile = nextFile(time);
+            this.currentFileSize = this.headerBytes.length;
+            this.currentFilePackets = 0;
+            this.currentFileStart = time;
+        }
+
+        if (size > this.current.capacity()) {
+            // a monster of a packet. Will get a buffer of its own since the
+            // scratch area is re-used for the next packet
+            handOff();
+            submit(new Batch(this.currentFile, ByteBuffer.wrap(this.scratch.toByteArray())));
+            if (this.current == null) {
+                acquire();
+            }
+        } else {
+            this.current.put(this.scratch.bytes(), 0, size);
+        }
+
+        this.currentFileSize += size;
+        ++this.currentFilePackets;
+    }
+
+    private boolean shouldRotate(final long time, final int size) {
+        if (this.currentFile == null || this.currentFilePackets == 0) {
+            return false;
+        }
+
+        return this.maxFileSize > 0 && this.currentFileSize + size > this.maxFileSize
+                || this.maxPackets > 0 && this.currentFilePackets >= this.maxPackets
+                || this.maxDuration > 0 && time - this.currentFileStart >= this.maxDuration;
+    }
+
+    private Path nextFile(final long time) {
+        final long millis = this.header.timestampsInNs() ? time / 1000000L : time / 1000L;
+        final Path file = Paths.get(String.format(this.filePattern, this.files.size(), new Date(millis)));
+        this.files.add(file);
+        return file;
+    }
+
+    /**
+     * Get hold of a new buffer to fill up, which depending on the overflow
+     * policy may block.
+     *
+     * @return false if there is no buffer available, in which case we have to
+     *         drop the packet.
+     */
+    private boolean acquire() throws IOException {
+        if (this.overflowPolicy == OverflowPolicy.DROP) {
+            this.current = this.free.poll();
+            return this.current != null;
+        }
+
+        try {
+            this.current = this.free.take();
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        }
+    }
+
+    /**
+     * Hand the current buffer over to the writer thread.
+     */
+    private void handOff() throws IOException {
+        if (this.current == null) {
+            return;
+        }
+
+        if (this.current.position() == 0) {
+            return;
+        }
+
+        this.current.flip();
+        submit(new Batch(this.currentFile, this.current));
+        this.current = null;
+    }
+
+    private void submit(final Batch batch) throws IOException {
+        try {
+            ++this.submitted;
+            this.queue.put(batch);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing over a buffer to the writer");
+        }
+    }
+
+    /**
+     * Hand over whatever has been written so far to the writer thread and
+     * wait for it to hit the disk.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        assertOpen();
+        handOff();
+        synchronized (this.queue) {
+            while (this.written < this.submitted && this.failure == null) {
+                try {
+                    this.queue.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while flushing");
+                }
+            }
+        }
+        throwIfFailed();
+    }
+
+    /**
+     * Flush everything to disk and stop the writer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+
+        try {
+            flush();
+        } finally {
+            this.closed = true;
+            try {
+                this.queue.put(Batch.POISON);
+                this.writerThread.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        throwIfFailed();
+    }
+
+    /**
+     * The number of packets dropped because the disk couldn't keep up. Will
+     * always be zero with {@link OverflowPolicy#BLOCK}.
+     *
+     * @return
+     */
+    public long getDroppedPackets() {
+        return this.dropped;
+    }
+
+    /**
+     * All the files we have started writing to so far, in order.
+     *
+     * @return
+     */
+    public List<Path> getFiles() {
+        return Collections.unmodifiableList(this.files);
+    }
+
+    private void assertOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("The writer has been closed");
+        }
+        throwIfFailed();
+    }
+
+    private void throwIfFailed() throws IOException {
+        final IOException e = this.failure;
+        if (e != null) {
+            throw new IOException("Failed to write to disk", e);
+        }
+    }
+
+    /**
+     * The writer thread.
+     */
+    private void run() {
+        FileChannel channel = null;
+        Path file = null;
+        try {
+            while (true) {
+                final Batch batch = this.queue.take();
+                if (batch == Batch.POISON) {
+                    break;
+                }
+
+                try {
+                    if (this.failure == null) {
+                        if (!batch.file.equals(file)) {
+                            close(channel);
+                            file = batch.file;
+                            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING);
+                            writeFully(channel, ByteBuffer.wrap(this.headerBytes));
+                        }
+                        writeFully(channel, batch.buffer);
+                    }
+                } catch (final IOException e) {
+                    this.failure = e;
+                } finally {
+                    recycle(batch.buffer);
+                    synchronized (this.queue) {
+                        ++this.written;
+                        this.queue.notifyAll();
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            // closing down
+        } finally {
+            try {
+                close(channel);
+            } catch (final IOException e) {
+                if (this.failure == null) {
+                    this.failure = e;
+                }
+            }
+        }
+    }
+
+    private void recycle(final ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == this.bufferSize) {
+            buffer.clear();
+            this.free.offer(buffer);
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void close(final FileChannel channel) throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * A buffer full of records destined for a particular file.
+     */
+    private static final class Batch {
+        private static final Batch POISON = new Batch(null, null);
+
+        private final Path file;
+        private final ByteBuffer buffer;
+
+        private Batch(final Path file, final ByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} that gives us access to its bytes
+     * without copying them.
+     */
+    private static final class Scratch extends ByteArrayOutputStream {
+        private Scratch() {
+            super(2048);
+        }
+
+        private byte[] bytes() {
+            return this.buf;
+        }
+    }
+
+    public static final class Builder {
+
+        /**
+         * 1 MB
+         */
+        public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+        public static final int DEFAULT_BUFFERS = 8;
+
+        private final PcapGlobalHeader header;
+        private String filePattern = "pkts-%1$05d.pcap";
+        private long maxFileSize;
+        private long maxDurationMillis;
+        private long maxPackets;
+        private int bufferSize = DEFAULT_BUFFER_SIZE;
+        private int buffers = DEFAULT_BUFFERS;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+        private Builder(final PcapGlobalHeader header) {
+            this.header = header;
+        }
+
+        /**
+         * The pattern for naming the files. See {@link RotatingPcapWriter}.
+         */
+        public Builder withFilePattern(final String pattern) {
+            if (pattern == null || pattern.isEmpty()) {
+                throw new IllegalArgumentException("The file pattern cannot be null or empty");
+            }
+            this.filePattern = pattern;
+            return this;
+        }
+
+        /**
+         * Rotate before a file grows larger than this. Zero, the default,
+         * means no limit.
+         */
+        public Builder withMaxFileSize(final long bytes) {
+            this.maxFileSize = assertNotNegative(bytes);
+            return this;
+        }
+
+        /**
+         * Rotate once the arrival time of a packet is this far from the
+         * first packet of the file. Zero, the default, means no limit.
+         */
+        public Builder withMaxDuration(final long duration, final TimeUnit unit) {
+            this.maxDurationMillis = unit.toMillis(assertNotNegative(duration));
+            return this;
+        }
+
+        /**
+         * Rotate after this many packets. Zero, the default, means no limit.
+         */
+        public Builder withMaxPackets(final long packets) {
+            this.maxPackets = assertNotNegative(packets);
+            return this;
+        }
+
+        /**
+         * The size of each of the direct buffers, which is also the size of
+         * the writes to disk.
+         */
+        public Builder withBufferSize(final int bytes) {
+            if (bytes < 1024) {
+                throw new IllegalArgumentException("The buffer size must be at least 1024 bytes");
+            }
+            this.bufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * The number of buffers, i.e., how far ahead of the disk we allow
+         * ourselves to be before the {@link OverflowPolicy} kicks in.
+         */
+        public Builder withBuffers(final int buffers) {
+            if (buffers < 2) {
+                throw new IllegalArgumentException("There must be at least two buffers");
+            }
+            this.buffers = buffers;
+            return this;
+        }
+
+        public Builder withOverflowPolicy(final OverflowPolicy policy) {
+            if (policy == null) {
+                throw new IllegalArgumentException("The overflow policy cannot be null");
+            }
+            this.overflowPolicy = policy;
+            return this;
+        }
+
+        public RotatingPcapWriter build() {
+            return new RotatingPcapWriter(this);
+        }
+
+        private static long assertNotNegative(final long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("The value cannot be negative");
+            }
+            return value;
+        }
+    }
+}
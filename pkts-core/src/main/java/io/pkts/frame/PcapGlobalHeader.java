@@ -72,6 +72,35 @@ public final class PcapGlobalHeader {
     }
 
     public static PcapGlobalHeader createDefaultHeader(Protocol protocol) {
+        // data link type - default is ethernet
+        // See http://www.tcpdump.org/linktypes.html for a complete list
+        if (protocol == null) {
+            protocol = Protocol.ETHERNET_II;
+        }
+
+        Long linkType = protocol.getLinkType();
+        if (linkType == null) {
+            throw new IllegalArgumentException("Unknown protocol \"" + protocol
+                    + "\". Not sure how to construct the global header. You probably need to add some code yourself");
+        }
+
+        return createHeader(linkType.intValue(), 65535, false);
+    }
+
+    /**
+     * Factory method for creating a {@link PcapGlobalHeader} for any of the
+     * link types listed at http://www.tcpdump.org/linktypes.html. Used when
+     * the information doesn't come from a pcap file header, e.g. when it is
+     * derived from a pcapng interface description block.
+     *
+     * @param dataLinkType
+     * @param snapLength
+     * @param nsTimestamps whether the timestamps of the packets are in
+     *        nanosecond resolution, as opposed to microseconds.
+     * @return
+     */
+    public static PcapGlobalHeader createHeader(final int dataLinkType, final long snapLength,
+            final boolean nsTimestamps) {
         Buffer body = Buffers.createBuffer(20);
 
         // major version number
@@ -83,23 +112,10 @@ public final class PcapGlobalHeader {
         // accuracy of timestamp - always zero.
         body.setUnsignedInt(8, 0);
         // snaplength - typically 65535
-        body.setUnsignedInt(12, 65535);
-
-        // data link type - default is ethernet
-        // See http://www.tcpdump.org/linktypes.html for a complete list
-        if (protocol == null) {
-            protocol = Protocol.ETHERNET_II;
-        }
-
-        Long linkType = protocol.getLinkType();
-        if (linkType != null) {
-            body.setUnsignedInt(16, linkType);
-        } else {
-            throw new IllegalArgumentException("Unknown protocol \"" + protocol
-                    + "\". Not sure how to construct the global header. You probably need to add some code yourself");
-        }
+        body.setUnsignedInt(12, snapLength);
+        body.setUnsignedInt(16, dataLinkType & 0xFFFFFFFFL);
 
-        return new PcapGlobalHeader(ByteOrder.LITTLE_ENDIAN, body.getRawArray());
+        return new PcapGlobalHeader(ByteOrder.LITTLE_ENDIAN, body.getRawArray(), nsTimestamps);
     }
 
     public PcapGlobalHeader(final ByteOrder byteOrder, final byte[] body) {
@@ -22,7 +22,7 @@ public final class PcapRecordHeader {
 
     private final ByteOrder byteOrder;
 
-    private final Buffer body;
+    private Buffer body;
 
     private final boolean nsTimestamps;
 
@@ -86,19 +86,58 @@ public final class PcapRecordHeader {
         return new PcapRecordHeader(ByteOrder.LITTLE_ENDIAN, buffer);
     }
 
-    // private static void setUnsignedInt(int index, )
+    /**
+     * Point this header to the header of another record, which is used when
+     * the same header is re-used for every record. See
+     * {@link io.pkts.framer.PcapFramer#frameInto(io.pkts.packet.impl.PCapPacketImpl, Buffer)}.
+     *
+     * @param body
+     */
+    public void reset(final Buffer body) {
+        assert body != null;
+        assert body.capacity() == SIZE;
+        this.body = body;
+    }
+
+    /**
+     * {@link Buffer#setUnsignedInt(int, long)} always writes little endian
+     * but the record has to be written in the byte order of the file.
+     */
+    private void setUnsignedInt(final int index, final long value) {
+        if (this.byteOrder == ByteOrder.BIG_ENDIAN) {
+            this.body.setByte(index, (byte) (value >>> 24));
+            this.body.setByte(index + 1, (byte) (value >>> 16));
+            this.body.setByte(index + 2, (byte) (value >>> 8));
+            this.body.setByte(index + 3, (byte) value);
+        } else {
+            this.body.setUnsignedInt(index, value);
+        }
+    }
+
+    /**
+     * Read the value straight out of the body, in the byte order of the file,
+     * rather than going through {@link Buffer#getArray()}, which would copy
+     * the entire header every time we look at one of its fields.
+     */
+    private long getUnsignedInt(final int index) {
+        final int value = this.body.getInt(index);
+        if (this.byteOrder == ByteOrder.BIG_ENDIAN) {
+            return value & 0xFFFFFFFFL;
+        }
+        return Integer.reverseBytes(value) & 0xFFFFFFFFL;
+    }
 
     public long getTimeStampSeconds() {
-        return PcapGlobalHeader.getUnsignedInt(0, this.body.getArray(), this.byteOrder);
+        return getUnsignedInt(0);
     }
 
     @Deprecated
     public long getTimeStampMicroSeconds() {
-        return PcapGlobalHeader.getUnsignedInt(4, this.body.getArray(), this.byteOrder);
+        return getUnsignedInt(4);
     }
 
     public long getTimeStampMicroOrNanoSeconds() {
-        return PcapGlobalHeader.getUnsignedInt(4, this.body.getArray(), this.byteOrder);
+        return getUnsignedInt(4);
     }
 
     /**
@@ -109,11 +148,11 @@ public final class PcapRecordHeader {
      * @return
      */
     public long getTotalLength() {
-        return PcapGlobalHeader.getUnsignedInt(12, this.body.getArray(), this.byteOrder);
+        return getUnsignedInt(12);
     }
 
     public void setTotalLength(final long length) {
-        this.body.setUnsignedInt(12, length);
+        setUnsignedInt(12, length);
     }
 
     /**
@@ -122,15 +161,51 @@ public final class PcapRecordHeader {
      * @return the length in bytes
      */
     public long getCapturedLength() {
-        return PcapGlobalHeader.getUnsignedInt(8, this.body.getArray(), this.byteOrder);
+        return getUnsignedInt(8);
     }
 
     public void setCapturedLength(final long length) {
-        this.body.setUnsignedInt(8, length);
+        setUnsignedInt(8, length);
+    }
+
+    /**
+     * Retain the bytes of this header, which only matters if they were read
+     * into a pooled buffer. See {@link Buffer#retain()}.
+     */
+    public void retain() {
+        this.body.retain();
+    }
+
+    /**
+     * See {@link Buffer#release()}.
+     *
+     * @return true if the bytes of this header went back to the pool.
+     */
+    public boolean release() throws IllegalStateException {
+        return this.body.release();
+    }
+
+    @Override
+    public PcapRecordHeader clone() {
+        return new PcapRecordHeader(this.byteOrder, this.body.clone(), this.nsTimestamps);
     }
 
     public void write(final OutputStream out) throws IOException {
-        out.write(this.body.getArray());
+        final java.nio.ByteBuffer bytes = this.body.toByteBuffer();
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        } else {
+            out.write(this.body.getArray());
+        }
+    }
+
+    /**
+     * The raw bytes of this header, shared with the returned buffer.
+     *
+     * @return
+     */
+    public java.nio.ByteBuffer toByteBuffer() {
+        return this.body.toByteBuffer();
     }
 
     @Override
@@ -67,6 +67,47 @@ public final class PcapFramer implements Framer<Packet, PCapPacket> {
         return new PCapPacketImpl(globalHeader, header, payload);
     }
 
+    /**
+     * Same as {@link #frame(Packet, Buffer)} but instead of creating a new
+     * packet, the given flyweight is turned into the packet of the next
+     * record. See {@link PCapPacketImpl#createFlyweight(PcapGlobalHeader)}.
+     *
+     * @param flyweight
+     * @param buffer
+     * @return false if there are no more records.
+     * @throws IOException
+     */
+    public boolean frameInto(final PCapPacketImpl flyweight, final Buffer buffer) throws IOException {
+        Buffer record = null;
+        try {
+            record = buffer.readBytes(PcapRecordHeader.SIZE);
+        } catch (final IndexOutOfBoundsException e) {
+            return false;
+        }
+
+        if (record == null) {
+            return false;
+        }
+
+        final long length = getUnsignedInt(record, 8);
+        final long total = getUnsignedInt(record, 12);
+        if (length > Integer.MAX_VALUE) {
+            throw new FramingException(String.format("Invalid PCAP captured length of %d", length), Protocol.PCAP);
+        }
+
+        flyweight.reset(record, buffer.readBytes((int) Math.min(length, total)));
+        return true;
+    }
+
+    /**
+     * {@link Buffer#getUnsignedInt(int)} is always big endian, the record
+     * header may not be.
+     */
+    private long getUnsignedInt(final Buffer record, final int index) {
+        final int value = record.getInt(index);
+        return (this.byteOrder == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value)) & 0xFFFFFFFFL;
+    }
+
     @Override
     public boolean accept(final Buffer data) {
         // TODO Auto-generated method stub
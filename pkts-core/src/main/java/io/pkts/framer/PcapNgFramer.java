@@ -0,0 +1,479 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.packet.PCapPacket;
+import io.pkts.packet.Packet;
+import io.pkts.packet.impl.PCapPacketImpl;
+import io.pkts.protocol.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Framer for the pcapng format, which is what e.g. Wireshark and dumpcap
+ * writes by default. See
+ * https://www.ietf.org/archive/id/draft-tuexen-opsawg-pcapng-05.html
+ *
+ * A pcapng file is a sequence of blocks and the blocks we care about are the
+ * Section Header Block (SHB), which tells us the byte order of the section,
+ * the Interface Description Blocks (IDB), which tells us the link type,
+ * snap length and timestamp resolution of each interface, and the Enhanced
+ * and Simple Packet Blocks (EPB/SPB), which carries the actual packets. Every
+ * other block is skipped without ever being copied.
+ *
+ * The packet blocks are turned into the very same {@link PCapPacket}s as the
+ * {@link PcapFramer} produces. Each interface gets its own
+ * {@link PcapGlobalHeader} so that the link type is honoured per packet, and
+ * the timestamps are converted into either micro or nanoseconds, depending on
+ * the resolution of the interface. Hence, the rest of the stack doesn't need
+ * to know where the packets came from.
+ *
+ * Note that, unlike the {@link PcapFramer}, this framer is stateful since it
+ * has to keep track of the interfaces seen so far. Use one instance per
+ * stream.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class PcapNgFramer implements Framer<Packet, PCapPacket> {
+
+    public static final int SECTION_HEADER_BLOCK = 0x0A0D0D0A;
+
+    public static final int INTERFACE_DESCRIPTION_BLOCK = 0x00000001;
+
+    public static final int SIMPLE_PACKET_BLOCK = 0x00000003;
+
+    public static final int ENHANCED_PACKET_BLOCK = 0x00000006;
+
+    /**
+     * The byte order magic of the section header block, as it looks when
+     * written in big endian.
+     */
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+    private static final int OPTION_END_OF_OPTIONS = 0;
+
+    private static final int OPTION_IF_TSRESOL = 9;
+
+    private static final int OPTION_IF_TSOFFSET = 14;
+
+    /**
+     * All interfaces defined in the current section. The interface id of an
+     * enhanced packet block is the index into this list.
+     */
+    private final List<Interface> interfaces = new ArrayList<>();
+
+    /**
+     * The byte order of the current section. Unknown until we have seen the
+     * first section header block.
+     */
+    private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+
+    @Override
+    public Protocol getProtocol() {
+        return Protocol.PCAP;
+    }
+
+    /**
+     * Read the section header block that every pcapng stream starts with,
+     * followed by all blocks up until and including the first interface
+     * description block.
+     *
+     * @param buffer
+     * @return the {@link PcapGlobalHeader} of the first interface of the
+     *         section.
+     * @throws IOException
+     * @throws FramingException in case the stream doesn't start with a section
+     *         header block or if a packet shows up before any interface has
+     *         been described.
+     */
+    public PcapGlobalHeader readSectionHeader(final Buffer buffer) throws IOException, FramingException {
+        final Buffer first = readBlockHeader(buffer);
+        if (first == null || getInt(first, 0) != SECTION_HEADER_BLOCK) {
+            throw new FramingException("Expected a pcapng section header block", Protocol.PCAP);
+        }
+        processSectionHeader(first, buffer);
+
+        while (this.interfaces.isEmpty()) {
+            final Buffer blockHeader = readBlockHeader(buffer);
+            if (blockHeader == null) {
+                throw new FramingException("No interface description block found in pcapng stream", Protocol.PCAP);
+            }
+
+            // a packet block before any interface will blow up on its own
+            processBlock(blockHeader, buffer);
+        }
+
+        return this.interfaces.get(0).header;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Just as the {@link PcapFramer}, a block that is cut short by the end of
+     * the stream, which is what you get when e.g. a capture was interrupted,
+     * is treated as the end of the stream.
+     */
+    @Override
+    public PCapPacket frame(final Packet parent, final Buffer buffer) throws IOException {
+
+        // note that for the PcapPacket the parent will always be null
+        // so we are simply ignoring it.
+        Buffer blockHeader = null;
+        try {
+            while ((blockHeader = readBlockHeader(buffer)) != null) {
+                final PCapPacket packet = processBlock(blockHeader, buffer);
+                if (packet != null) {
+                    return packet;
+                }
+            }
+        } catch (final IndexOutOfBoundsException e) {
+            // truncated block
+            return null;
+        }
+
+        return null;
+    }
+
+    /**
+     * Process a single block.
+     *
+     * @param blockHeader the block type and block length
+     * @param buffer
+     * @return a new {@link PCapPacket} if the block was a packet block, null
+     *         otherwise.
+     */
+    private PCapPacket processBlock(final Buffer blockHeader, final Buffer buffer) throws IOException {
+        final int type = getInt(blockHeader, 0);
+        if (type == SECTION_HEADER_BLOCK) {
+            processSectionHeader(blockHeader, buffer);
+            return null;
+        }
+
+        final int length = getBlockLength(blockHeader);
+        switch (type) {
+            case INTERFACE_DESCRIPTION_BLOCK:
+                processInterfaceDescription(buffer, length);
+                return null;
+            case ENHANCED_PACKET_BLOCK:
+                return frameEnhancedPacket(buffer, length);
+            case SIMPLE_PACKET_BLOCK:
+                return frameSimplePacket(buffer, length);
+            default:
+                buffer.skipBytes(length - 8);
+                return null;
+        }
+    }
+
+    /**
+     * Every block starts with the block type followed by the total length of
+     * the block.
+     *
+     * @return the 8 byte block header or null if we have reached the end of
+     *         the stream.
+     */
+    private static Buffer readBlockHeader(final Buffer buffer) throws IOException {
+        try {
+            return buffer.readBytes(8);
+        } catch (final IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the given number of bytes of the current block.
+     *
+     * @throws IndexOutOfBoundsException in case the stream ends before that,
+     *         i.e., the block has been truncated.
+     */
+    private static Buffer readBytes(final Buffer buffer, final int length) throws IOException {
+        final Buffer bytes = buffer.readBytes(length);
+        if (bytes == null) {
+            throw new IndexOutOfBoundsException("Truncated pcapng block");
+        }
+        return bytes;
+    }
+
+    private int getBlockLength(final Buffer blockHeader) {
+        final int length = getInt(blockHeader, 4);
+        if (!isValidBlockLength(length)) {
+            throw new FramingException(String.format("Invalid pcapng block length of %d", length), Protocol.PCAP);
+        }
+        return length;
+    }
+
+    /**
+     * A new section may have a different byte order and all interfaces of the
+     * previous section are forgotten.
+     */
+    private void processSectionHeader(final Buffer blockHeader, final Buffer buffer) throws IOException {
+        final Buffer magic = readBytes(buffer, 4);
+        this.byteOrder = ByteOrder.BIG_ENDIAN;
+        if (getInt(magic, 0) != BYTE_ORDER_MAGIC) {
+            this.byteOrder = ByteOrder.LITTLE_ENDIAN;
+            if (getInt(magic, 0) != BYTE_ORDER_MAGIC) {
+                throw new FramingException("Invalid pcapng byte order magic", Protocol.PCAP);
+            }
+        }
+
+        this.interfaces.clear();
+
+        // version, section length and options are of no interest to us
+        buffer.skipBytes(getBlockLength(blockHeader) - 12);
+    }
+
+    private void processInterfaceDescription(final Buffer buffer, final int length) throws IOException {
+        final Buffer body = readBytes(buffer, length - 8);
+        final int linkType = getUnsignedShort(body, 0);
+        final long snapLength = getInt(body, 4) & 0xFFFFFFFFL;
+
+        // default resolution is microseconds
+        byte tsresol = 6;
+        long tsoffset = 0;
+
+        // the options, if any, end where the trailing block length begins
+        final int end = body.capacity() - 4;
+        int offset = 8;
+        while (offset + 4 <= end) {
+            final int code = getUnsignedShort(body, offset);
+            final int optionLength = getUnsignedShort(body, offset + 2);
+            if (code == OPTION_END_OF_OPTIONS || offset + 4 + optionLength > end) {
+                break;
+            }
+
+            if (code == OPTION_IF_TSRESOL && optionLength >= 1) {
+                tsresol = body.getByte(offset + 4);
+            } else if (code == OPTION_IF_TSOFFSET && optionLength >= 8) {
+                tsoffset = getLong(body, offset + 4);
+            }
+
+            // option values are padded to 32 bits
+            offset += 4 + (optionLength + 3 & ~3);
+        }
+
+        this.interfaces.add(new Interface(linkType, snapLength, tsresol, tsoffset));
+    }
+
+    private PCapPacket frameEnhancedPacket(final Buffer buffer, final int length) throws IOException {
+        final Buffer fixed = readBytes(buffer, 20);
+        final Interface iface = getInterface(getInt(fixed, 0));
+        final long timestamp = (getInt(fixed, 4) & 0xFFFFFFFFL) << 32 | getInt(fixed, 8) & 0xFFFFFFFFL;
+        final int captured = getInt(fixed, 12);
+        final long total = getInt(fixed, 16) & 0xFFFFFFFFL;
+        if (captured < 0 || captured > length - 32) {
+            throw new FramingException(String.format("Invalid pcapng captured length of %d", captured),
+                    Protocol.PCAP);
+        }
+
+        final Buffer payload = readBytes(buffer, captured);
+
+        // padding, options and the trailing block length
+        buffer.skipBytes(length - 28 - captured);
+
+        final long seconds = Long.divideUnsigned(timestamp, iface.unitsPerSecond) + iface.offset;
+        final long fraction = Long.remainderUnsigned(timestamp, iface.unitsPerSecond);
+        return createPacket(iface, seconds, iface.toSubSeconds(fraction), captured, total, payload);
+    }
+
+    /**
+     * A simple packet block has no timestamp and always belongs to the first
+     * interface. The captured length is whatever is left of the original
+     * length after the snap length of the interface has been applied.
+     */
+    private PCapPacket frameSimplePacket(final Buffer buffer, final int length) throws IOException {
+        final Interface iface = getInterface(0);
+        final long total = getInt(readBytes(buffer, 4), 0) & 0xFFFFFFFFL;
+        long captured = Math.min(total, length - 16);
+        if (iface.snapLength > 0) {
+            captured = Math.min(captured, iface.snapLength);
+        }
+
+        final Buffer payload = readBytes(buffer, (int) captured);
+        buffer.skipBytes(length - 12 - (int) captured);
+        return createPacket(iface, 0, 0, captured, total, payload);
+    }
+
+    private Interface getInterface(final int id) {
+        if (id < 0 || id >= this.interfaces.size()) {
+            throw new FramingException(String.format("Packet block refers to unknown pcapng interface %d", id),
+                    Protocol.PCAP);
+        }
+        return this.interfaces.get(id);
+    }
+
+    private static PCapPacket createPacket(final Interface iface, final long seconds, final long subSeconds,
+            final long captured, final long total, final Buffer payload) {
+        final Buffer body = Buffers.wrap(new byte[PcapRecordHeader.SIZE]);
+        body.setUnsignedInt(0, seconds);
+        body.setUnsignedInt(4, subSeconds);
+        body.setUnsignedInt(8, captured);
+        body.setUnsignedInt(12, total);
+
+        final PcapRecordHeader header = new PcapRecordHeader(ByteOrder.LITTLE_ENDIAN, body,
+                iface.header.timestampsInNs());
+        return new PCapPacketImpl(iface.header, header, payload);
+    }
+
+    private int getUnsignedShort(final Buffer buffer, final int index) throws IOException {
+        final int a = buffer.getByte(index) & 0xFF;
+        final int b = buffer.getByte(index + 1) & 0xFF;
+        if (this.byteOrder == ByteOrder.BIG_ENDIAN) {
+            return a << 8 | b;
+        }
+        return b << 8 | a;
+    }
+
+    private int getInt(final Buffer buffer, final int index) {
+        try {
+            if (this.byteOrder == ByteOrder.BIG_ENDIAN) {
+                return getUnsignedShort(buffer, index) << 16 | getUnsignedShort(buffer, index + 2);
+            }
+            return getUnsignedShort(buffer, index + 2) << 16 | getUnsignedShort(buffer, index);
+        } catch (final IOException e) {
+            // the block has already been read into memory
+            throw new FramingException("Unable to read pcapng block", Protocol.PCAP);
+        }
+    }
+
+    private long getLong(final Buffer buffer, final int index) {
+        final long first = getInt(buffer, index) & 0xFFFFFFFFL;
+        final long second = getInt(buffer, index + 4) & 0xFFFFFFFFL;
+        if (this.byteOrder == ByteOrder.BIG_ENDIAN) {
+            return first << 32 | second;
+        }
+        return second << 32 | first;
+    }
+
+    /**
+     * Peek at the block header to see whether it could be a pcapng block. A
+     * section header block is recognized by its byte order magic, any other
+     * block by its block length, and only if we have seen an interface
+     * description block since packet blocks are useless without one.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean accept(final Buffer data) throws IOException {
+        data.markReaderIndex();
+        try {
+            final Buffer blockHeader = data.readBytes(8);
+            if (blockHeader == null) {
+                return false;
+            }
+
+            if (getInt(blockHeader, 0) != SECTION_HEADER_BLOCK) {
+                final int length = getInt(blockHeader, 4);
+                return !this.interfaces.isEmpty() && isValidBlockLength(length);
+            }
+
+            final Buffer magic = data.readBytes(4);
+            if (magic == null) {
+                return false;
+            }
+
+            // Buffer.getInt is always big endian
+            final int length = blockHeader.getInt(4);
+            if (magic.getInt(0) == BYTE_ORDER_MAGIC) {
+                return isValidBlockLength(length);
+            }
+            return Integer.reverseBytes(magic.getInt(0)) == BYTE_ORDER_MAGIC
+                    && isValidBlockLength(Integer.reverseBytes(length));
+        } catch (final IndexOutOfBoundsException e) {
+            return false;
+        } finally {
+            data.resetReaderIndex();
+        }
+    }
+
+    private static boolean isValidBlockLength(final int length) {
+        return length >= 12 && length % 4 == 0;
+    }
+
+    /**
+     * What we need to know about an interface in order to turn its packet
+     * blocks into {@link PCapPacket}s.
+     */
+    private static final class Interface {
+
+        private final PcapGlobalHeader header;
+
+        /**
+         * Zero means no limit.
+         */
+        private final long snapLength;
+
+        /**
+         * The number of timestamp units per second as given by the if_tsresol
+         * option.
+         */
+        private final long unitsPerSecond;
+
+        /**
+         * The number of units per second of the sub-second part of the
+         * {@link PcapRecordHeader}, i.e. micro or nanoseconds.
+         */
+        private final long targetUnitsPerSecond;
+
+        /**
+         * The if_tsoffset option, in seconds.
+         */
+        private final long offset;
+
+        private Interface(final int linkType, final long snapLength, final byte tsresol, final long offset) {
+            final int exponent = tsresol & 0x7F;
+            if ((tsresol & 0x80) == 0) {
+                if (exponent > 18) {
+                    throw new FramingException("Unsupported pcapng timestamp resolution 10^-" + exponent,
+                            Protocol.PCAP);
+                }
+                long units = 1;
+                for (int i = 0; i < exponent; ++i) {
+                    units *= 10;
+                }
+                this.unitsPerSecond = units;
+            } else {
+                if (exponent > 62) {
+                    throw new FramingException("Unsupported pcapng timestamp resolution 2^-" + exponent,
+                            Protocol.PCAP);
+                }
+                this.unitsPerSecond = 1L << exponent;
+            }
+
+            // anything finer than microseconds is kept as nanoseconds
+            final boolean nsTimestamps = this.unitsPerSecond > 1000000L;
+            this.targetUnitsPerSecond = nsTimestamps ? 1000000000L : 1000000L;
+            this.header = PcapGlobalHeader.createHeader(linkType, snapLength, nsTimestamps);
+            this.snapLength = snapLength;
+            this.offset = offset;
+        }
+
+        /**
+         * Convert the sub-second part of a timestamp from the resolution of
+         * the interface into micro or nanoseconds.
+         */
+        private long toSubSeconds(final long fraction) {
+            if (this.unitsPerSecond == this.targetUnitsPerSecond) {
+                return fraction;
+            }
+
+            if (this.unitsPerSecond % this.targetUnitsPerSecond == 0) {
+                return fraction / (this.unitsPerSecond / this.targetUnitsPerSecond);
+            }
+
+            if (this.targetUnitsPerSecond % this.unitsPerSecond == 0) {
+                return fraction * (this.targetUnitsPerSecond / this.unitsPerSecond);
+            }
+
+            // binary resolutions don't divide evenly
+            return (long) ((double) fraction * this.targetUnitsPerSecond / this.unitsPerSecond);
+        }
+    }
+
+}
@@ -3,14 +3,18 @@
  */
 package io.pkts.packet;
 
+import io.pkts.PacketHandler;
+import io.pkts.Pcap;
 import io.pkts.PcapOutputStream;
 import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
 import io.pkts.packet.sip.SipPacket;
 import io.pkts.protocol.Protocol;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
+import java.util.Deque;
 
 /**
  * Represents a captured packet.
@@ -86,8 +90,63 @@ public interface Packet extends Cloneable {
      */
     void write(OutputStream out, Buffer payload) throws IOException;
 
+    /**
+     * Same as {@link #write(OutputStream, Buffer)} but the payload is made up
+     * of a number of segments, which is how a packet is written without
+     * copying the headers of every layer in front of its payload. Each layer
+     * adds its own headers to the front of the segments and hands them on to
+     * its parent, all the way down to the pcap record, which writes all of
+     * them in one go (see {@link PcapOutputStream}).
+     *
+     * The default implementation joins the segments into a single buffer and
+     * writes that through {@link #write(OutputStream, Buffer)}.
+     *
+     * @param out
+     * @param segments
+     *            the payload, in order. Note that the deque will be modified.
+     * @throws IOException
+     */
+    default void write(final OutputStream out, final Deque<Buffer> segments) throws IOException {
+        write(out, Buffers.wrap(segments.toArray(new Buffer[segments.size()])));
+    }
+
     Packet clone();
 
+    /**
+     * Make sure that this packet stays valid after it has been handed to
+     * the {@link PacketHandler}. Normally, every packet read off of a
+     * {@link Pcap} is a brand new object, in which case this packet is
+     * returned as is. However, when looping through
+     * {@link Pcap#loopEphemeral(PacketHandler)} the packets are re-used for
+     * the next record so if you need to hang on to one, you must retain it
+     * and hang on to the returned packet instead.
+     *
+     * Note that a retained packet is framed all over again from the raw
+     * bytes, so any changes you have made to the packet are lost.
+     *
+     * @return a packet that is valid for as long as you need it, which may
+     *         be this very packet.
+     * @throws IOException
+     */
+    default Packet retain() throws IOException {
+        return this;
+    }
+
+    /**
+     * Let go of a packet that was retained (see {@link #retain()}) once you
+     * are done with it. This only matters for packets read through a
+     * {@link Pcap} that recycles the memory of its packets (see
+     * {@link Pcap#openStream(java.io.InputStream, io.pkts.buffer.PooledBufferAllocator)}),
+     * for all other packets it does nothing.
+     *
+     * @return true if the memory of the packet went back to the pool.
+     * @throws IllegalStateException
+     *             in case the packet already has been released.
+     */
+    default boolean release() throws IllegalStateException {
+        return false;
+    }
+
     /**
      * Check whether this packet contains a particular protocol. This will cause
      * the packet to examine all the containing packets to check whether they
@@ -4,13 +4,13 @@
 package io.pkts.packet.impl;
 
 import io.pkts.buffer.Buffer;
-import io.pkts.buffer.Buffers;
 import io.pkts.packet.MACPacket;
 import io.pkts.packet.TransportPacket;
 import io.pkts.protocol.Protocol;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Deque;
 
 /**
  * @author jonas@jonasborjesson.com
@@ -51,8 +51,15 @@ public abstract class AbstractApplicationPacket extends AbstractPacket implement
      */
     @Override
     public void write(final OutputStream out, final Buffer payload) throws IOException {
-        final Buffer buffer = this.payload != null ? Buffers.wrap(this.payload, payload) : payload;
-        this.parent.write(out, buffer);
+        write(out, segments(payload));
+    }
+
+    @Override
+    public void write(final OutputStream out, final Deque<Buffer> segments) throws IOException {
+        if (this.payload != null && this.payload.hasReadableBytes()) {
+            segments.addFirst(this.payload);
+        }
+        this.parent.write(out, segments);
     }
 
     /**
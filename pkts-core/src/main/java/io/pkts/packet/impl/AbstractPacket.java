@@ -14,6 +14,8 @@ import io.pkts.protocol.Protocol;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 /**
  * ALL packets within pkts.io must implement this {@link AbstractPacket}.
@@ -32,7 +34,7 @@ public abstract class AbstractPacket implements Packet {
      * A packet may contain additional packets, which are carried within the
      * payload. Note, not all packets have payloads.
      */
-    private final Buffer payload;
+    private Buffer payload;
 
     /**
      * The parent packet.
@@ -44,6 +46,13 @@ public abstract class AbstractPacket implements Packet {
      */
     private Packet nextPacket;
 
+    /**
+     * The packet framed out of our payload by {@link #frameAll()}, if it has
+     * been called. Otherwise every call to {@link #getPacket(Protocol)}
+     * frames the payload anew.
+     */
+    private Packet framedPacket;
+
     /**
      * 
      * @param p
@@ -81,20 +90,88 @@ public abstract class AbstractPacket implements Packet {
      * payload may have changed and therefore ask the nextPacket to write itself
      * back out to the stream. If there is no nextPacket we can just take the
      * raw payload and write it out as is since it cannot have changed since we
-     * framed this packet.
+     * framed this packet. Either way, the headers of every layer are gathered
+     * in front of the payload rather than copied into it, see
+     * {@link Packet#write(OutputStream, Deque)}.
      */
     @Override
     public final void write(final OutputStream out) throws IOException {
         if (this.nextPacket != null) {
             this.nextPacket.write(out);
         } else {
-            this.write(out, this.payload);
+            this.write(out, segments(this.payload));
         }
     }
 
+    /**
+     * @return a new deque with the payload as its only segment, unless it is
+     *         null or empty.
+     */
+    protected static Deque<Buffer> segments(final Buffer payload) {
+        final Deque<Buffer> segments = new ArrayDeque<>(8);
+        if (payload != null && payload.hasReadableBytes()) {
+            segments.add(payload);
+        }
+        return segments;
+    }
+
+    /**
+     * @return the total number of readable bytes of all the segments.
+     */
+    protected static int size(final Deque<Buffer> segments) {
+        int size = 0;
+        for (final Buffer segment : segments) {
+            size += segment.getReadableBytes();
+        }
+        return size;
+    }
+
     @Override
     public abstract Packet clone();
 
+    /**
+     * Point this packet to a new payload and forget about everything framed
+     * out of the old one. Only for packets that are re-used for every record,
+     * see {@link PCapPacketImpl#createFlyweight(io.pkts.frame.PcapGlobalHeader)}.
+     *
+     * @param payload
+     */
+    protected void reset(final Buffer payload) {
+        this.payload = payload;
+        this.nextPacket = null;
+        this.framedPacket = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A packet is only as long lived as the packet at the bottom of the stack
+     * so we retain that one and then find ourselves within it.
+     */
+    @Override
+    public Packet retain() throws IOException {
+        if (this.parent == null) {
+            return this;
+        }
+
+        final Packet retained = this.parent.retain();
+        if (retained == this.parent) {
+            return this;
+        }
+        return retained.getPacket(this.protocol);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Same as for {@link #retain()}, it is the packet at the bottom of the
+     * stack that owns the bytes.
+     */
+    @Override
+    public boolean release() throws IllegalStateException {
+        return this.parent != null && this.parent.release();
+    }
+
     @Override
     public Packet getParentPacket() {
         return this.parent;
@@ -140,7 +217,7 @@ public abstract class AbstractPacket implements Packet {
             return this;
         }
 
-        final Packet child = getNextPacket();
+        final Packet child = this.framedPacket != null ? this.framedPacket : getNextPacket();
         if (child != null && child.getProtocol() == p) {
             return child;
         }
@@ -152,6 +229,30 @@ public abstract class AbstractPacket implements Packet {
         return child.getPacket(p);
     }
 
+    /**
+     * Frame every layer of this packet up front and hang on to them so that
+     * {@link #getPacket(Protocol)} returns the already framed packets, the
+     * same instances every time, instead of framing them again. Framing is
+     * what is costly so this allows for the packets to be framed ahead of
+     * time, on some other thread, and then be handed over fully framed.
+     *
+     * A layer that fails to frame is left as is, which means that it will be
+     * framed again, and fail again, when someone asks for it.
+     */
+    public void frameAll() {
+        final Packet child;
+        try {
+            child = getNextPacket();
+        } catch (final IOException | RuntimeException e) {
+            return;
+        }
+
+        this.framedPacket = child;
+        if (child instanceof AbstractPacket) {
+            ((AbstractPacket) child).frameAll();
+        }
+    }
+
     public Packet checkParent(final Protocol p) {
         Packet current = this.parent;
         while (current != null && current.getProtocol() != p) {
@@ -16,6 +16,7 @@ import io.pkts.protocol.Protocol;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Deque;
 
 /**
  * @author jonas@jonasborjesson.com
@@ -150,13 +151,20 @@ public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
 
     @Override
     public void write(final OutputStream out, final Buffer payload) throws IOException {
-        // Note, you need to set the total length before you merge the packets since
-        // Buffers.wrap will copy the bytes.
-        final int size = this.headers.getReadableBytes() + (payload != null ? payload.getReadableBytes() : 0);
-        this.setTotalLength(size);
+        write(out, segments(payload));
+    }
+
+    @Override
+    public void write(final OutputStream out, final Deque<Buffer> segments) throws IOException {
+        // only touch the headers if something actually changed, they may be
+        // read-only, see Pcap#openMapped
+        final int size = this.headers.getReadableBytes() + size(segments);
+        if (getTotalIPLength() != size) {
+            this.setTotalLength(size);
+        }
         reCalculateChecksum();
-        final Buffer pkt = Buffers.wrap(this.headers, payload);
-        this.parent.write(out, pkt);
+        segments.addFirst(this.headers);
+        this.parent.write(out, segments);
     }
 
     @Override
@@ -236,7 +244,9 @@ public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
     @Override
     public void reCalculateChecksum() {
         final int checksum = calculateChecksum();
-        this.headers.setUnsignedShort(10, checksum);
+        if (checksum != getIpChecksum()) {
+            this.headers.setUnsignedShort(10, checksum);
+        }
     }
 
     @Override
@@ -15,6 +15,7 @@ import io.pkts.protocol.Protocol;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Deque;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
@@ -146,8 +147,13 @@ public final class IPv6PacketImpl extends AbstractPacket implements IPv6Packet {
 
     @Override
     public void write(final OutputStream out, final Buffer payload) throws IOException {
-        final Buffer pkt = Buffers.wrap(this.headers, payload);
-        getParentPacket().write(out, pkt);
+        write(out, segments(payload));
+    }
+
+    @Override
+    public void write(final OutputStream out, final Deque<Buffer> segments) throws IOException {
+        segments.addFirst(this.headers);
+        getParentPacket().write(out, segments);
     }
 
     @Override
@@ -4,7 +4,6 @@
 package io.pkts.packet.impl;
 
 import io.pkts.buffer.Buffer;
-import io.pkts.buffer.Buffers;
 import io.pkts.frame.UnknownEtherType;
 import io.pkts.framer.EthernetFramer;
 import io.pkts.framer.IPv4Framer;
@@ -17,6 +16,7 @@ import io.pkts.protocol.Protocol;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Deque;
 
 /**
  * @author jonas@jonasborjesson.com
@@ -137,7 +137,16 @@ public final class MACPacketImpl extends AbstractPacket implements MACPacket {
 
     @Override
     public void write(final OutputStream out, final Buffer payload) throws IOException {
-        this.parent.write(out, Buffers.wrap(this.headers, payload));
+        write(out, segments(payload));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final OutputStream out, final Deque<Buffer> segments) throws IOException {
+        segments.addFirst(this.headers);
+        this.parent.write(out, segments);
     }
 
     /**
@@ -3,7 +3,9 @@
  */
 package io.pkts.packet.impl;
 
+import io.pkts.PcapOutputStream;
 import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
 import io.pkts.frame.PcapGlobalHeader;
 import io.pkts.frame.PcapRecordHeader;
 import io.pkts.framer.EthernetFramer;
@@ -17,8 +19,10 @@ import io.pkts.protocol.Protocol;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Deque;
 
 /**
  * TODO: may rename this to a frame instead since this is a little different
@@ -35,22 +39,166 @@ public final class PCapPacketImpl extends AbstractPacket implements PCapPacket {
     private static final IPv4Framer ipFramer = new IPv4Framer();
     private final PcapGlobalHeader pcapGlobalHeader;
 
+    /**
+     * Whether this packet is re-used for every record, in which case it has
+     * to be retained in order to outlive the current record.
+     */
+    private final boolean flyweight;
+
+    /**
+     * The file this record was read from, if we know, and where in it.
+     */
+    private FileChannel origin;
+    private long originOffset = -1;
+
     /**
      * Constructor which assumes an Ethernet link layer.
      */
     public PCapPacketImpl(final PcapRecordHeader header, final Buffer payload) {
-        super(Protocol.PCAP, null, payload);
-        this.pcapGlobalHeader = PcapGlobalHeader.createDefaultHeader();
-        this.pcapHeader = header;
+        this(PcapGlobalHeader.createDefaultHeader(), header, payload, false);
     }
 
     /**
      * Constructor which uses the PCAP file's global header to support more than just Ethernet link layers
      */
     public PCapPacketImpl(PcapGlobalHeader pcapGlobalHeader, final PcapRecordHeader header, final Buffer payload) {
+        this(pcapGlobalHeader, header, payload, false);
+    }
+
+    private PCapPacketImpl(final PcapGlobalHeader pcapGlobalHeader, final PcapRecordHeader header,
+            final Buffer payload, final boolean flyweight) {
         super(Protocol.PCAP, null, payload);
         this.pcapGlobalHeader = pcapGlobalHeader;
         this.pcapHeader = header;
+        this.flyweight = flyweight;
+    }
+
+    /**
+     * Create a packet that is meant to be re-used for every record of a
+     * capture through {@link #reset(Buffer, Buffer)}, which saves us from
+     * allocating a new packet, and a new record header, for every record.
+     *
+     * @param pcapGlobalHeader
+     * @return
+     */
+    public static PCapPacketImpl createFlyweight(final PcapGlobalHeader pcapGlobalHeader) {
+        final PcapRecordHeader header = new PcapRecordHeader(pcapGlobalHeader.getByteOrder(),
+                Buffers.wrap(new byte[PcapRecordHeader.SIZE]), pcapGlobalHeader.timestampsInNs());
+        return new PCapPacketImpl(pcapGlobalHeader, header, null, true);
+    }
+
+    /**
+     * Turn this flyweight into the packet of another record. Anything framed
+     * out of the previous record is forgotten about.
+     *
+     * @param record the raw record header.
+     * @param payload
+     * @throws IllegalStateException
+     *             in case this packet wasn't created through
+     *             {@link #createFlyweight(PcapGlobalHeader)}.
+     */
+    public void reset(final Buffer record, final Buffer payload) throws IllegalStateException {
+        if (!this.flyweight) {
+            throw new IllegalStateException("Only a flyweight packet can be reset");
+        }
+        this.pcapHeader.reset(record);
+        reset(payload);
+        this.origin = null;
+        this.originOffset = -1;
+    }
+
+    /**
+     * Tell this packet where in which file its record was read from, which is
+     * what allows {@link PcapOutputStream#writeRaw(PCapPacket)} to copy the
+     * record straight from that file.
+     *
+     * @param origin
+     * @param offset the offset of the record header within the file.
+     */
+    public void setOrigin(final FileChannel origin, final long offset) {
+        this.origin = origin;
+        this.originOffset = offset;
+    }
+
+    /**
+     * @return the file this record was read from or null if we don't know.
+     */
+    public FileChannel getOrigin() {
+        return this.origin;
+    }
+
+    /**
+     * @return the offset of the record within the file it was read from, or
+     *         -1 if we don't know.
+     */
+    public long getOriginOffset() {
+        return this.originOffset;
+    }
+
+    /**
+     * The size of the record as it was captured, i.e., the record header
+     * plus the captured bytes.
+     *
+     * @return
+     */
+    public int getRecordLength() {
+        return PcapRecordHeader.SIZE + (int) Math.min(getCapturedLength(), getTotalLength());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A flyweight is retained by copying the record header into a brand new
+     * packet, which shares the payload with the flyweight. That is fine since
+     * the flyweight will get a new payload for the next record rather than
+     * overwriting this one.
+     *
+     * If the record was read into pooled buffers (see
+     * {@link io.pkts.Pcap#openStream(java.io.InputStream, io.pkts.buffer.PooledBufferAllocator)})
+     * they are retained as well, which means that you have to
+     * {@link #release()} the packet once done with it.
+     */
+    @Override
+    public Packet retain() throws IOException {
+        final Buffer payload = getPayload();
+        if (payload != null) {
+            payload.retain();
+        }
+
+        if (!this.flyweight) {
+            this.pcapHeader.retain();
+            return this;
+        }
+        return new PCapPacketImpl(this.pcapGlobalHeader, this.pcapHeader.clone(), payload);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean release() throws IllegalStateException {
+        this.pcapHeader.release();
+        final Buffer payload = getPayload();
+        return payload != null && payload.release();
+    }
+
+    /**
+     * The global header of the capture (or, for pcapng, the interface) this
+     * packet belongs to.
+     *
+     * @return
+     */
+    public PcapGlobalHeader getPcapGlobalHeader() {
+        return this.pcapGlobalHeader;
+    }
+
+    /**
+     * The record header of this packet, i.e., the timestamp and the lengths.
+     *
+     * @return
+     */
+    public PcapRecordHeader getPcapRecordHeader() {
+        return this.pcapHeader;
     }
 
     /**
@@ -98,11 +246,32 @@ public final class PCapPacketImpl extends AbstractPacket implements PCapPacket {
 
     @Override
     public void write(final OutputStream out, final Buffer payload) throws IOException {
-        final int size = payload.getReadableBytes();
-        this.pcapHeader.setCapturedLength(size);
-        this.pcapHeader.setTotalLength(size);
-        this.pcapHeader.write(out);
-        out.write(payload.getArray());
+        write(out, segments(payload));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If we are writing to a {@link PcapOutputStream} it gets to write the
+     * record, which it may be able to do in a single gathering write.
+     */
+    @Override
+    public void write(final OutputStream out, final Deque<Buffer> segments) throws IOException {
+        // the record of this packet is left as it was captured, see
+        // PcapOutputStream#writeRaw
+        final PcapRecordHeader header = this.pcapHeader.clone();
+        final int size = size(segments);
+        header.setCapturedLength(size);
+        header.setTotalLength(size);
+        if (out instanceof PcapOutputStream) {
+            ((PcapOutputStream) out).write(header, segments);
+            return;
+        }
+
+        header.write(out);
+        for (final Buffer segment : segments) {
+            out.write(segment.getArray());
+        }
     }
 
     @Override
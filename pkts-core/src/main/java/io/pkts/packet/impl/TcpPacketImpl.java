@@ -5,9 +5,9 @@ package io.pkts.packet.impl;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Deque;
 
 import io.pkts.buffer.Buffer;
-import io.pkts.buffer.Buffers;
 import io.pkts.packet.IPPacket;
 import io.pkts.packet.TCPPacket;
 import io.pkts.packet.TransportPacket;
@@ -195,7 +195,13 @@ public final class TcpPacketImpl extends TransportPacketImpl implements TCPPacke
 
     @Override
     public final void write(final OutputStream out, final Buffer payload) throws IOException {
+        write(out, segments(payload));
+    }
+
+    @Override
+    public final void write(final OutputStream out, final Deque<Buffer> segments) throws IOException {
         // TODO: options must be written out as well
-        getParentPacket().write(out, Buffers.wrap(this.headers, payload));
+        segments.addFirst(this.headers);
+        getParentPacket().write(out, segments);
     }
 }
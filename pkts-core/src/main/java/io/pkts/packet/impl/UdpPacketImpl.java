@@ -4,7 +4,6 @@
 package io.pkts.packet.impl;
 
 import io.pkts.buffer.Buffer;
-import io.pkts.buffer.Buffers;
 import io.pkts.packet.IPPacket;
 import io.pkts.packet.IPv4Packet;
 import io.pkts.packet.TransportPacket;
@@ -13,6 +12,7 @@ import io.pkts.protocol.Protocol;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Deque;
 
 /**
  * @author jonas@jonasborjesson.com
@@ -66,15 +66,22 @@ public final class UdpPacketImpl extends TransportPacketImpl implements UDPPacke
 
     @Override
     public final void write(final OutputStream out, final Buffer payload) throws IOException {
-        // Note: because the Buffers.wrap will copy the bytes we cannot change the length
-        // in this.headers after we have wrapped them. Simply wont work...
-        final int size = this.headers.getReadableBytes() + (payload != null ? payload.getReadableBytes() : 0);
-        this.setLength(size);
+        write(out, segments(payload));
+    }
+
+    @Override
+    public final void write(final OutputStream out, final Deque<Buffer> segments) throws IOException {
+        // only touch the headers if something actually changed, they may be
+        // read-only, see Pcap#openMapped
+        final int size = this.headers.getReadableBytes() + size(segments);
+        if (getLength() != size) {
+            this.setLength(size);
+        }
         final IPPacket parent = getParentPacket();
         if (parent instanceof IPv4Packet) {
             ((IPv4Packet) parent).reCalculateChecksum();
         }
-        final Buffer pkt = Buffers.wrap(this.headers, payload);
-        getParentPacket().write(out, pkt);
+        segments.addFirst(this.headers);
+        getParentPacket().write(out, segments);
     }
 }
@@ -4,7 +4,6 @@
 package io.pkts.packet.sip.impl;
 
 import io.pkts.buffer.Buffer;
-import io.pkts.buffer.Buffers;
 import io.pkts.packet.IPPacket;
 import io.pkts.packet.Packet;
 import io.pkts.packet.TransportPacket;
@@ -33,6 +32,7 @@ import io.pkts.sdp.SdpException;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Deque;
 import java.time.Instant;
 import java.util.List;
 import java.util.Map;
@@ -82,7 +82,13 @@ public abstract class SipPacketImpl extends AbstractPacket implements SipPacket
      */
     @Override
     public void write(final OutputStream out, final Buffer payload) throws IOException {
-        this.getParentPacket().write(out, Buffers.wrap(this.msg.toBuffer(), payload));
+        write(out, segments(payload));
+    }
+
+    @Override
+    public void write(final OutputStream out, final Deque<Buffer> segments) throws IOException {
+        segments.addFirst(this.msg.toBuffer());
+        this.getParentPacket().write(out, segments);
     }
 
     /*
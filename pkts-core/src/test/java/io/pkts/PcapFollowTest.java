@@ -0,0 +1,146 @@
+package io.pkts;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import io.pkts.packet.Packet;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class PcapFollowTest {
+
+    private byte[] sipp;
+
+    private List<Long> arrivalTimes;
+
+    private Path directory;
+
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    @Before
+    public void setUp() throws Exception {
+        final Path file = Paths.get(PktsTestBase.class.getResource("sipp.pcap").toURI());
+        this.sipp = Files.readAllBytes(file);
+        this.arrivalTimes = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(file.toFile());
+        pcap.loop(packet -> this.arrivalTimes.add(packet.getArrivalTime()));
+        pcap.close();
+
+        this.directory = Files.createTempDirectory("pkts");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            for (final Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(this.directory);
+    }
+
+    /**
+     * Write the pcap in small pieces, which means that most records will be
+     * split across several writes, and make sure we get every packet exactly
+     * once anyway.
+     */
+    @Test(timeout = 10000)
+    public void testFollow() throws Exception {
+        final Path file = this.directory.resolve("follow.pcap");
+        Files.createFile(file);
+
+        final List<Long> followed = Collections.synchronizedList(new ArrayList<>());
+        final FollowOptions options = FollowOptions.with().withIdleTimeout(500, TimeUnit.MILLISECONDS).build();
+        final Thread follower = follow(file, options, followed, -1);
+
+        try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.APPEND)) {
+            for (int i = 0; i < this.sipp.length; i += 333) {
+                out.write(this.sipp, i, Math.min(333, this.sipp.length - i));
+                out.flush();
+                Thread.sleep(2);
+            }
+        }
+
+        join(follower);
+        assertThat(followed, is(this.arrivalTimes));
+    }
+
+    /**
+     * Once the next file of the rotation shows up we should move over to it.
+     */
+    @Test(timeout = 10000)
+    public void testFollowRotation() throws Exception {
+        final Path first = this.directory.resolve("follow-0.pcap");
+        final Path second = this.directory.resolve("follow-1.pcap");
+        Files.write(first, this.sipp);
+
+        final List<Long> followed = Collections.synchronizedList(new ArrayList<>());
+        final FollowOptions options = FollowOptions.with()
+                .withIdleTimeout(500, TimeUnit.MILLISECONDS)
+                .withRotation("follow-*.pcap")
+                .build();
+        final Thread follower = follow(first, options, followed, -1);
+
+        Thread.sleep(50);
+        Files.write(second, this.sipp);
+
+        join(follower);
+        final List<Long> expected = new ArrayList<>(this.arrivalTimes);
+        expected.addAll(this.arrivalTimes);
+        assertThat(followed, is(expected));
+    }
+
+    /**
+     * Even when following forever, we must return once the handler doesn't
+     * want any more packets.
+     */
+    @Test(timeout = 10000)
+    public void testFollowStop() throws Exception {
+        final Path file = this.directory.resolve("follow.pcap");
+        Files.write(file, this.sipp);
+
+        final List<Long> followed = Collections.synchronizedList(new ArrayList<>());
+        final Thread follower = follow(file, FollowOptions.DEFAULT, followed, 5);
+        join(follower);
+        assertThat(followed, is(this.arrivalTimes.subList(0, 5)));
+    }
+
+    private void join(final Thread follower) throws Exception {
+        follower.join();
+        if (this.failure.get() != null) {
+            throw this.failure.get();
+        }
+    }
+
+    private Thread follow(final Path file, final FollowOptions options, final List<Long> followed, final int max) {
+        final Thread thread = new Thread(() -> {
+            try {
+                Pcap.follow(file, (final Packet packet) -> {
+                    followed.add(packet.getArrivalTime());
+                    return followed.size() != max;
+                }, options);
+            } catch (final Exception e) {
+                this.failure.set(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,241 @@
+package io.pkts;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.packet.Packet;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class PcapIndexTest extends PktsTestBase {
+
+    private Path dir;
+    private Path pcap;
+
+    /**
+     * All the packets of sipp.pcap, read the old fashioned way.
+     */
+    private List<Packet> expected;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.dir = Files.createTempDirectory("pkts");
+        this.pcap = this.dir.resolve("sipp.pcap");
+        try (InputStream is = PktsTestBase.class.getResourceAsStream("sipp.pcap")) {
+            Files.copy(is, this.pcap, StandardCopyOption.REPLACE_EXISTING);
+        }
+        final Pcap pcap = Pcap.openStream(this.pcap.toFile());
+        this.expected = loop(pcap);
+        pcap.close();
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(PcapIndex.sidecarOf(this.pcap));
+        Files.deleteIfExists(this.pcap);
+        Files.deleteIfExists(this.dir);
+        super.tearDown();
+    }
+
+    @Test
+    public void testBuild() throws Exception {
+        final PcapIndex index = PcapIndex.build(this.pcap, 4);
+        assertThat(index.getRecordCount(), is(30L));
+        assertThat(index.getSize(), is(Files.size(this.pcap)));
+        assertThat(index.size(), is(8));
+        assertThat(index.getOffset(0), is(24L));
+        for (int i = 0; i < index.size(); ++i) {
+            assertThat(index.getRecordNumber(i), is(i * 4L));
+            assertThat(index.getTimestamp(i), is(this.expected.get(i * 4).getArrivalTime()));
+        }
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        final PcapIndex index = PcapIndex.build(this.pcap, 3);
+        index.write(PcapIndex.sidecarOf(this.pcap));
+
+        final PcapIndex loaded = PcapIndex.load(this.pcap);
+        assertThat(loaded.size(), is(index.size()));
+        assertThat(loaded.getInterval(), is(3));
+        assertThat(loaded.getRecordCount(), is(30L));
+        for (int i = 0; i < index.size(); ++i) {
+            assertThat(loaded.getTimestamp(i), is(index.getTimestamp(i)));
+            assertThat(loaded.getOffset(i), is(index.getOffset(i)));
+            assertThat(loaded.getRecordNumber(i), is(index.getRecordNumber(i)));
+        }
+    }
+
+    @Test
+    public void testNoSidecar() throws Exception {
+        assertThat(PcapIndex.load(this.pcap) == null, is(true));
+    }
+
+    @Test
+    public void testSeekStream() throws Exception {
+        PcapIndex.build(this.pcap, 4).write(PcapIndex.sidecarOf(this.pcap));
+        final Pcap pcap = Pcap.openStream(this.pcap.toFile());
+        ensureSeek(pcap);
+        pcap.close();
+    }
+
+    @Test
+    public void testSeekMapped() throws Exception {
+        PcapIndex.build(this.pcap, 7).write(PcapIndex.sidecarOf(this.pcap));
+        final Pcap pcap = Pcap.openMapped(this.pcap);
+        ensureSeek(pcap);
+        pcap.close();
+    }
+
+    /**
+     * Without a sidecar the index is built on first use and saved.
+     */
+    @Test
+    public void testSeekBuildsSidecar() throws Exception {
+        final Pcap pcap = Pcap.openMapped(this.pcap);
+        ensureSeek(pcap);
+        pcap.close();
+        assertThat(PcapIndex.load(this.pcap).getRecordCount(), is(30L));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSeekNotAFile() throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        pcap.seek(0);
+    }
+
+    /**
+     * A pcap that has been replaced by another one of the same size must not
+     * be mistaken for the one the index was built for, not even if it has the
+     * same modification time.
+     */
+    @Test
+    public void testReplacedPcap() throws Exception {
+        PcapIndex.build(this.pcap, 4).write(PcapIndex.sidecarOf(this.pcap));
+        final FileTime modified = Files.getLastModifiedTime(this.pcap);
+
+        // the seconds of the timestamp of the first record
+        final byte[] content = Files.readAllBytes(this.pcap);
+        ++content[24];
+        Files.write(this.pcap, content);
+        Files.setLastModifiedTime(this.pcap, modified);
+        assertThat(PcapIndex.load(this.pcap) == null, is(true));
+    }
+
+    /**
+     * Anything that has changed the pcap without growing it, e.g. the payload
+     * of a packet, is only caught by the modification time.
+     */
+    @Test
+    public void testModifiedPcap() throws Exception {
+        PcapIndex.build(this.pcap, 4).write(PcapIndex.sidecarOf(this.pcap));
+        final FileTime modified = Files.getLastModifiedTime(this.pcap);
+
+        final byte[] content = Files.readAllBytes(this.pcap);
+        ++content[content.length - 1];
+        Files.write(this.pcap, content);
+        Files.setLastModifiedTime(this.pcap, FileTime.fromMillis(modified.toMillis() + 10000));
+        assertThat(PcapIndex.load(this.pcap) == null, is(true));
+    }
+
+    /**
+     * A pcap that is still being captured to only grows and the index is
+     * still valid for everything it covers.
+     */
+    @Test
+    public void testGrownPcap() throws Exception {
+        PcapIndex.build(this.pcap, 4).write(PcapIndex.sidecarOf(this.pcap));
+        final FileTime modified = Files.getLastModifiedTime(this.pcap);
+
+        final byte[] content = Files.readAllBytes(this.pcap);
+        Files.write(this.pcap, Arrays.copyOfRange(content, PcapGlobalHeader.SIZE, 100), StandardOpenOption.APPEND);
+        Files.setLastModifiedTime(this.pcap, FileTime.fromMillis(modified.toMillis() + 10000));
+
+        final PcapIndex index = PcapIndex.load(this.pcap);
+        assertThat(index.getRecordCount(), is(30L));
+        assertThat(index.getSize(), is((long) content.length));
+    }
+
+    /**
+     * A sidecar that cannot be read is as good as no sidecar at all, which
+     * means that we should fall back to bisecting the pcap.
+     */
+    @Test
+    public void testCorruptSidecar() throws Exception {
+        final Path sidecar = PcapIndex.sidecarOf(this.pcap);
+        PcapIndex.build(this.pcap, 4).write(sidecar);
+        final byte[] content = Files.readAllBytes(sidecar);
+        Files.write(sidecar, Arrays.copyOf(content, content.length / 2));
+        assertThat(PcapIndex.load(this.pcap) == null, is(true));
+
+        Files.write(sidecar, "this is not an index at all".getBytes());
+        assertThat(PcapIndex.load(this.pcap) == null, is(true));
+
+        final Pcap pcap = Pcap.openStream(this.pcap.toFile());
+        ensureSeek(pcap);
+        pcap.close();
+    }
+
+    private void ensureSeek(final Pcap pcap) throws Exception {
+        pcap.seek(this.expected.get(17).getArrivalTime());
+        List<Packet> packets = loop(pcap, 1);
+        assertThat(packets.get(0).getArrivalTime(), is(this.expected.get(17).getArrivalTime()));
+        assertThat(packets.get(0).getPayload(), is(this.expected.get(17).getPayload()));
+
+        // in between two packets should give us the later one
+        pcap.seek(this.expected.get(9).getArrivalTime() + 1);
+        packets = loop(pcap, 1);
+        assertThat(packets.get(0).getArrivalTime(), is(this.expected.get(10).getArrivalTime()));
+
+        // seeking backwards is just as fine
+        pcap.seek(0);
+        assertThat(loop(pcap).size(), is(30));
+
+        pcap.seekRecord(25);
+        packets = loop(pcap);
+        assertThat(packets.size(), is(5));
+        assertThat(packets.get(0).getPayload(), is(this.expected.get(25).getPayload()));
+
+        pcap.seekRecord(12);
+        assertThat(loop(pcap, 1).get(0).getPayload(), is(this.expected.get(12).getPayload()));
+
+        pcap.seekRecord(100);
+        assertThat(loop(pcap).size(), is(0));
+
+        pcap.seek(this.expected.get(29).getArrivalTime() + 1);
+        assertThat(loop(pcap).size(), is(0));
+    }
+
+    private static List<Packet> loop(final Pcap pcap) throws Exception {
+        return loop(pcap, Integer.MAX_VALUE);
+    }
+
+    private static List<Packet> loop(final Pcap pcap, final int max) throws Exception {
+        final List<Packet> packets = new ArrayList<>();
+        pcap.loop(packet -> {
+            packets.add(packet);
+            return packets.size() < max;
+        });
+        return packets;
+    }
+
+}
@@ -0,0 +1,156 @@
+package io.pkts;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import io.pkts.packet.Packet;
+import io.pkts.protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class PcapMergerTest extends PktsTestBase {
+
+    private List<Packet> sipp;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.sipp = load(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+    }
+
+    /**
+     * Split sipp.pcap into three captures and then merge them back together
+     * again, which should give us the original.
+     */
+    @Test
+    public void testMergeSplit() throws Exception {
+        final ByteArrayOutputStream[] outs = new ByteArrayOutputStream[3];
+        final PcapOutputStream[] streams = new PcapOutputStream[3];
+        for (int i = 0; i < outs.length; ++i) {
+            outs[i] = new ByteArrayOutputStream();
+            streams[i] = PcapOutputStream.create(this.defaultPcapHeader, outs[i]);
+        }
+
+        // the first ten to one capture, the rest round robin
+        for (int i = 0; i < this.sipp.size(); ++i) {
+            streams[i < 10 ? 0 : i % 3].write(this.sipp.get(i));
+        }
+
+        final PcapMerger merger = PcapMerger.openStreams(new ByteArrayInputStream(outs[2].toByteArray()),
+                new ByteArrayInputStream(outs[1].toByteArray()), new ByteArrayInputStream(outs[0].toByteArray()));
+        final List<Packet> merged = new ArrayList<>();
+        merger.loop(packet -> merged.add(packet));
+        merger.close();
+
+        assertThat(merged.size(), is(this.sipp.size()));
+        for (int i = 0; i < merged.size(); ++i) {
+            assertThat(merged.get(i).getArrivalTime(), is(this.sipp.get(i).getArrivalTime()));
+            assertThat(merged.get(i).getPayload(), is(this.sipp.get(i).getPayload()));
+        }
+    }
+
+    /**
+     * Merging captures of different link types into a pcapng.
+     */
+    @Test
+    public void testMergeToPcapNg() throws Exception {
+        final List<Packet> sll = load(PktsTestBase.class.getResourceAsStream("sipp_sll.pcap"));
+
+        final PcapMerger merger = PcapMerger.openStreams(PktsTestBase.class.getResourceAsStream("sipp.pcap"),
+                PktsTestBase.class.getResourceAsStream("sipp_sll.pcap"));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        merger.write(PcapOutputStream.createPcapNg(out));
+        merger.close();
+
+        final List<Packet> merged = load(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(merged.size(), is(this.sipp.size() + sll.size()));
+
+        int sllCount = 0;
+        long previous = Long.MIN_VALUE;
+        for (final Packet packet : merged) {
+            assertThat(packet.getArrivalTime() >= previous, is(true));
+            previous = packet.getArrivalTime();
+            if (packet.hasProtocol(Protocol.SLL)) {
+                ++sllCount;
+            }
+        }
+        assertThat(sllCount, is(sll.size()));
+    }
+
+    @Test
+    public void testMergeEmpty() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PcapOutputStream.create(this.defaultPcapHeader, out);
+
+        final PcapMerger merger = PcapMerger.openStreams(new ByteArrayInputStream(out.toByteArray()),
+                PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        final List<Packet> merged = new ArrayList<>();
+        merger.loop(packet -> merged.add(packet));
+        assertThat(merged.size(), is(30));
+        assertThat(merger.next() == null, is(true));
+    }
+
+    /**
+     * If one of the streams isn't a capture, the ones already opened have to
+     * be closed, which is what stops reading ahead on a gzipped stream.
+     */
+    @Test(timeout = 10000)
+    public void testOpenStreamsClosesOnFailure() throws Exception {
+        final byte[] sipp = Files.readAllBytes(Paths.get(PktsTestBase.class.getResource("sipp.pcap").toURI()));
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(gzipped)) {
+            // way more than is read ahead so that the thread is left waiting
+            out.write(sipp, 0, 24);
+            for (int i = 0; i < 200; ++i) {
+                out.write(sipp, 24, sipp.length - 24);
+            }
+        }
+
+        final int threads = countReadAheadThreads();
+        try {
+            PcapMerger.openStreams(new ByteArrayInputStream(gzipped.toByteArray()),
+                    new ByteArrayInputStream(new byte[100]));
+            fail("Expected an IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+
+        while (countReadAheadThreads() > threads) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static int countReadAheadThreads() {
+        int count = 0;
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && "pkts-read-ahead".equals(thread.getName())) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static List<Packet> load(final InputStream stream) throws Exception {
+        final List<Packet> packets = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(stream);
+        pcap.loop(packet -> packets.add(packet));
+        pcap.close();
+        return packets;
+    }
+}
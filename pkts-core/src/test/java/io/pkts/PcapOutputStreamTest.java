@@ -5,10 +5,25 @@ package io.pkts;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.packet.PCapPacket;
+import io.pkts.packet.Packet;
+import io.pkts.protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -62,4 +77,298 @@ public class PcapOutputStreamTest extends PktsTestBase {
         assertThat(calculator.cancel, is(0)); // i guess un-necessary check...
     }
 
+    /**
+     * Merge an ethernet and a linux cooked capture into the same pcapng
+     * stream, with a comment on every other packet, and make sure we get the
+     * very same packets back when reading it.
+     */
+    @Test
+    public void testWritePcapNgMixedLinkTypes() throws Exception {
+        final List<Packet> expected = new ArrayList<>();
+        expected.addAll(load("sipp.pcap"));
+        expected.addAll(load("sipp_sll.pcap"));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PcapOutputStream pcapStream = PcapOutputStream.createPcapNg(out);
+        assertThat(pcapStream.isPcapNg(), is(true));
+        for (int i = 0; i < expected.size(); ++i) {
+            pcapStream.write(expected.get(i), i % 2 == 0 ? "packet " + i : null);
+        }
+        pcapStream.flush();
+
+        final List<Packet> actual = load(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(actual.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); ++i) {
+            final PCapPacket e = (PCapPacket) expected.get(i);
+            final PCapPacket a = (PCapPacket) actual.get(i);
+            assertThat(a.getArrivalTime(), is(e.getArrivalTime()));
+            assertThat(a.getPayload(), is(e.getPayload()));
+            assertThat(a.hasProtocol(Protocol.SLL), is(e.hasProtocol(Protocol.SLL)));
+            assertThat(a.hasProtocol(Protocol.SIP), is(true));
+        }
+    }
+
+    @Test
+    public void testWritePcapNgExplicitInterface() throws Exception {
+        final List<Packet> packets = load("sipp.pcap");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PcapOutputStream pcapStream = PcapOutputStream.createPcapNg(out);
+        final int eth0 = pcapStream.addInterface(1, 0, "eth0");
+        final int eth1 = pcapStream.addInterface(1, 0, "eth1");
+        final int sll = pcapStream.addInterface(113, 0, "any");
+        assertThat(eth1, is(eth0 + 1));
+
+        pcapStream.write(packets.get(0), eth0, "first");
+        pcapStream.write(packets.get(1), eth1, null);
+        try {
+            pcapStream.write(packets.get(2), sll, null);
+            fail("Expected an IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+
+        final List<Packet> actual = load(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(actual.size(), is(2));
+
+        // explicit interfaces are always nanosecond resolution
+        assertThat(actual.get(0).getArrivalTime(), is(packets.get(0).getArrivalTime() * 1000));
+        assertThat(actual.get(1).getPayload(), is(packets.get(1).getPayload()));
+    }
+
+    /**
+     * The length of an option is an unsigned short so a longer comment must be
+     * rejected before anything is written, or the stream would be corrupt.
+     */
+    @Test
+    public void testWritePcapNgTooLongComment() throws Exception {
+        final List<Packet> packets = load("sipp.pcap");
+        final char[] comment = new char[65535];
+        Arrays.fill(comment, 'a');
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PcapOutputStream pcapStream = PcapOutputStream.createPcapNg(out);
+        pcapStream.write(packets.get(0), new String(comment));
+
+        // an 'ä' is two bytes in UTF-8
+        comment[0] = '\u00e4';
+        try {
+            pcapStream.write(packets.get(1), new String(comment));
+            fail("Expected an IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            pcapStream.addInterface(1, 0, new String(comment));
+            fail("Expected an IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+
+        pcapStream.write(packets.get(2), null);
+        pcapStream.flush();
+
+        final List<Packet> actual = load(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(actual.size(), is(2));
+        assertThat(actual.get(0).getPayload(), is(packets.get(0).getPayload()));
+        assertThat(actual.get(1).getPayload(), is(packets.get(2).getPayload()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddInterfaceToClassicPcap() throws Exception {
+        final PcapOutputStream pcapStream = PcapOutputStream.create(PcapGlobalHeader.createDefaultHeader(),
+                new ByteArrayOutputStream());
+        pcapStream.addInterface(1, 0, null);
+    }
+
+    /**
+     * Truncate all SIP packets to 60 bytes. RTP has a snap length too but
+     * there is no RTP in the capture so it shouldn't matter.
+     */
+    @Test
+    public void testWriteSnapLength() throws Exception {
+        final List<Packet> expected = load("sipp.pcap");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PcapOutputStream pcapStream = PcapOutputStream.create(PcapGlobalHeader.createDefaultHeader(), out);
+        pcapStream.setSnapLength(Protocol.RTP, 54);
+        pcapStream.setSnapLength(Protocol.SIP, 60);
+        for (final Packet packet : expected) {
+            pcapStream.write(packet);
+        }
+        pcapStream.flush();
+
+        final List<Packet> actual = load(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(actual.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); ++i) {
+            final PCapPacket e = (PCapPacket) expected.get(i);
+            final PCapPacket a = (PCapPacket) actual.get(i);
+            assertThat(a.getArrivalTime(), is(e.getArrivalTime()));
+            assertThat(a.getCapturedLength(), is(60L));
+            assertThat(a.getTotalLength(), is(e.getTotalLength()));
+            assertThat(a.getPayload(), is(e.getPayload().slice(60)));
+            assertThat(a.hasProtocol(Protocol.UDP), is(true));
+        }
+
+        // the packets we wrote must not have been touched
+        assertThat(((PCapPacket) expected.get(0)).getCapturedLength(), is(((PCapPacket) expected.get(0))
+                .getTotalLength()));
+    }
+
+    /**
+     * Without a matching snap length the packets are written as is.
+     */
+    @Test
+    public void testWriteSnapLengthNoMatch() throws Exception {
+        final List<Packet> expected = load("sipp.pcap");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PcapOutputStream pcapStream = PcapOutputStream.create(PcapGlobalHeader.createDefaultHeader(), out);
+        pcapStream.setSnapLength(Protocol.RTP, 54);
+        pcapStream.setSnapLength(Protocol.SIP, 60);
+        pcapStream.setSnapLength(Protocol.SIP, 0);
+        for (final Packet packet : expected) {
+            pcapStream.write(packet);
+        }
+        pcapStream.flush();
+
+        final List<Packet> actual = load(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(actual.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); ++i) {
+            assertThat(actual.get(i).getPayload(), is(expected.get(i).getPayload()));
+        }
+    }
+
+    /**
+     * Write SIP packets, which means that the headers of every layer have to
+     * be written, to a plain stream, a file stream and a channel, where the
+     * latter two get to do a gathering write. Either way, we should end up
+     * with exactly what we read.
+     */
+    @Test
+    public void testGatheringWrite() throws Exception {
+        final Path sipp = Paths.get(PktsTestBase.class.getResource("sipp.pcap").toURI());
+        final byte[] expected = Files.readAllBytes(sipp);
+        final Path file = Files.createTempFile("pkts", ".pcap");
+        final Path channelFile = Files.createTempFile("pkts", ".pcap");
+        try {
+            final Pcap pcap = Pcap.openStream(sipp.toFile());
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final PcapOutputStream plain = pcap.createOutputStream(out);
+            final PcapOutputStream gathering = pcap.createOutputStream(new FileOutputStream(file.toFile()));
+            final PcapOutputStream channel = PcapOutputStream.create(pcap.getPcapHeader(),
+                    FileChannel.open(channelFile, StandardOpenOption.WRITE));
+            pcap.loop(packet -> {
+                assertThat(packet.hasProtocol(Protocol.SIP), is(true));
+                plain.write(packet);
+                gathering.write(packet);
+                channel.write(packet);
+                return true;
+            });
+            pcap.close();
+            plain.close();
+            gathering.close();
+            channel.close();
+
+            ensureRecords(out.toByteArray(), expected);
+            ensureRecords(Files.readAllBytes(file), expected);
+            ensureRecords(Files.readAllBytes(channelFile), expected);
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(channelFile);
+        }
+    }
+
+    /**
+     * Copy every record of a file to another file, which is done by
+     * transferring them straight from one file to the other.
+     */
+    @Test
+    public void testWriteRaw() throws Exception {
+        final Path sipp = Paths.get(PktsTestBase.class.getResource("sipp.pcap").toURI());
+        final Path file = Files.createTempFile("pkts", ".pcap");
+        try {
+            final Pcap pcap = Pcap.openStream(sipp.toFile());
+            final PcapOutputStream out = pcap.createOutputStream(new FileOutputStream(file.toFile()));
+            pcap.loop(packet -> {
+                out.writeRaw((PCapPacket) packet);
+                return true;
+            });
+            out.close();
+            pcap.close();
+
+            assertThat(Files.readAllBytes(file), is(Files.readAllBytes(sipp)));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Drop some of the packets, write some of them raw and some of them
+     * through the layers, and close the pcap before the stream, which means
+     * that the last run of records can't be transferred from the file. We
+     * should still end up with the very same records as when writing all of
+     * them through the layers.
+     */
+    @Test
+    public void testWriteRawMixed() throws Exception {
+        final Path sipp = Paths.get(PktsTestBase.class.getResource("sipp.pcap").toURI());
+        final Path file = Files.createTempFile("pkts", ".pcap");
+        try {
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            final Pcap pcap = Pcap.openStream(sipp.toFile());
+            final PcapOutputStream plain = pcap.createOutputStream(expected);
+            final PcapOutputStream raw = pcap.createOutputStream(new FileOutputStream(file.toFile()));
+            final int[] count = new int[1];
+            pcap.loopEphemeral(packet -> {
+                final int i = count[0]++;
+                if (i % 7 == 3) {
+                    return true;
+                }
+
+                plain.write(packet);
+                if (i % 5 == 0) {
+                    raw.write(packet);
+                } else {
+                    raw.writeRaw((PCapPacket) packet);
+                }
+                return true;
+            });
+            pcap.close();
+            plain.close();
+            raw.close();
+
+            ensureRecords(Files.readAllBytes(file), expected.toByteArray());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWriteRawToPcapNg() throws Exception {
+        final PcapOutputStream pcapStream = PcapOutputStream.createPcapNg(new ByteArrayOutputStream());
+        pcapStream.writeRaw((PCapPacket) load("sipp.pcap").get(0));
+    }
+
+    /**
+     * Compare everything but the global header.
+     */
+    private static void ensureRecords(final byte[] actual, final byte[] expected) {
+        assertThat(Arrays.copyOfRange(actual, PcapGlobalHeader.SIZE, actual.length),
+                is(Arrays.copyOfRange(expected, PcapGlobalHeader.SIZE, expected.length)));
+    }
+
+    private static List<Packet> load(final String resource) throws Exception {
+        return load(PktsTestBase.class.getResourceAsStream(resource));
+    }
+
+    private static List<Packet> load(final InputStream stream) throws Exception {
+        final List<Packet> packets = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(stream);
+        pcap.loop(packet -> packets.add(packet));
+        pcap.close();
+        return packets;
+    }
+
 }
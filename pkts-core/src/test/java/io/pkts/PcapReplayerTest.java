@@ -0,0 +1,163 @@
+package io.pkts;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.packet.Packet;
+import io.pkts.packet.UDPPacket;
+import io.pkts.protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class PcapReplayerTest extends PktsTestBase {
+
+    private List<Packet> sipp;
+
+    private DatagramChannel receiver;
+
+    private InetSocketAddress endpoint;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.sipp = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        pcap.loop(packet -> this.sipp.add(packet));
+        pcap.close();
+
+        this.receiver = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        this.endpoint = (InetSocketAddress) this.receiver.getLocalAddress();
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        this.receiver.close();
+        super.tearDown();
+    }
+
+    @Test(timeout = 10000)
+    public void testReplay() throws Exception {
+        final PcapReplayer replayer = PcapReplayer.with().withDefaultEndpoint(this.endpoint)
+                .withSpeed(PcapReplayer.MAX_SPEED).build();
+        final Pcap pcap = Pcap.openStream(Paths.get(PktsTestBase.class.getResource("sipp.pcap").toURI()).toFile());
+        assertThat(replayer.replay(pcap), is((long) this.sipp.size()));
+        ensureReceived();
+
+        // the capture is left open so it can be replayed again
+        pcap.seek(0);
+        assertThat(replayer.replay(pcap), is((long) this.sipp.size()));
+        pcap.close();
+        ensureReceived();
+    }
+
+    /**
+     * Only packets to a port with an endpoint are sent if there is no default
+     * endpoint.
+     */
+    @Test(timeout = 10000)
+    public void testEndpointByPort() throws Exception {
+        final int port = ((UDPPacket) this.sipp.get(0).getPacket(Protocol.UDP)).getDestinationPort();
+        int expected = 0;
+        for (final Packet packet : this.sipp) {
+            if (((UDPPacket) packet.getPacket(Protocol.UDP)).getDestinationPort() == port) {
+                ++expected;
+            }
+        }
+
+        final PcapReplayer replayer = PcapReplayer.with().withEndpoint(port, this.endpoint)
+                .withSpeed(PcapReplayer.MAX_SPEED).build();
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        assertThat(replayer.replay(pcap), is((long) expected));
+        pcap.close();
+        assertThat(expected < this.sipp.size(), is(true));
+    }
+
+    /**
+     * A pcapng capture where the first packet is on an interface with
+     * nanosecond resolution and the rest on one with microseconds. The time
+     * it takes to replay them has to be the same as if they were all of the
+     * same resolution.
+     */
+    @Test(timeout = 10000)
+    public void testMixedResolutions() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PcapOutputStream pcapng = PcapOutputStream.createPcapNg(out);
+        pcapng.write(this.sipp.get(0), pcapng.addInterface(1, 0, "ns"), null);
+        for (int i = 1; i < this.sipp.size(); ++i) {
+            pcapng.write(this.sipp.get(i));
+        }
+        pcapng.flush();
+
+        final Pcap pcap = Pcap.openStream(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(pcap.getPcapHeader().timestampsInNs(), is(true));
+
+        // replay the whole thing in about 200 ms
+        final long duration = TimeUnit.MILLISECONDS.toNanos(200);
+        final long span = this.sipp.get(this.sipp.size() - 1).getArrivalTime() - this.sipp.get(0).getArrivalTime();
+        final PcapReplayer replayer = PcapReplayer.with().withDefaultEndpoint(this.endpoint)
+                .withSpeed(span * 1000.0 / duration).build();
+
+        final long start = System.nanoTime();
+        assertThat(replayer.replay(pcap), is((long) this.sipp.size()));
+        final long elapsed = System.nanoTime() - start;
+        pcap.close();
+
+        assertTrue("Replayed in " + elapsed + " ns", elapsed >= duration);
+        assertTrue("Replayed in " + elapsed + " ns", elapsed < duration * 10);
+        ensureReceived();
+    }
+
+    @Test
+    public void testBuilder() throws Exception {
+        assertIllegal(() -> PcapReplayer.with().build());
+        assertIllegal(() -> PcapReplayer.with().withEndpoint(5060, null));
+        assertIllegal(() -> PcapReplayer.with().withSpeed(0));
+        assertIllegal(() -> PcapReplayer.with().withSpinThreshold(-1, TimeUnit.MICROSECONDS));
+    }
+
+    private static void assertIllegal(final Runnable runnable) {
+        try {
+            runnable.run();
+            fail("Expected an IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The payloads of all the UDP packets of sipp.pcap should have been
+     * received, in order.
+     */
+    private void ensureReceived() throws Exception {
+        final ByteBuffer datagram = ByteBuffer.allocate(65536);
+        for (final Packet packet : this.sipp) {
+            datagram.clear();
+            this.receiver.receive(datagram);
+            datagram.flip();
+            final Buffer received = Buffers.wrap(datagram.array(), 0, datagram.limit());
+            assertThat(received, is(((UDPPacket) packet.getPacket(Protocol.UDP)).getPayload()));
+        }
+    }
+
+}
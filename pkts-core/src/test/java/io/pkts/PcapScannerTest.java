@@ -0,0 +1,106 @@
+package io.pkts;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import io.pkts.packet.Packet;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class PcapScannerTest {
+
+    private Path sipp;
+
+    private List<Packet> packets;
+
+    @Before
+    public void setUp() throws Exception {
+        this.sipp = Paths.get(PktsTestBase.class.getResource("sipp.pcap").toURI());
+        this.packets = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(this.sipp.toFile());
+        pcap.loop(packet -> this.packets.add(packet));
+        pcap.close();
+    }
+
+    @Test
+    public void testScanFile() throws Exception {
+        ensureSipp(PcapScanner.scan(this.sipp));
+    }
+
+    @Test
+    public void testScanStream() throws Exception {
+        ensureSipp(PcapScanner.scan(Files.newInputStream(this.sipp)));
+    }
+
+    @Test
+    public void testScanGzip() throws Exception {
+        final Path gzipped = Files.createTempFile("pkts", ".pcap.gz");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzipped))) {
+                Files.copy(this.sipp, out);
+            }
+            ensureSipp(PcapScanner.scan(gzipped));
+        } finally {
+            Files.deleteIfExists(gzipped);
+        }
+    }
+
+    /**
+     * Chop off the last couple of bytes, which should leave us with one
+     * record less and a truncated file.
+     */
+    @Test
+    public void testScanTruncated() throws Exception {
+        final byte[] bytes = Files.readAllBytes(this.sipp);
+        final byte[] truncated = Arrays.copyOf(bytes, bytes.length - 10);
+        final Path file = Files.createTempFile("pkts", ".pcap");
+        try {
+            Files.write(file, truncated);
+            ensureTruncated(PcapScanner.scan(file));
+            ensureTruncated(PcapScanner.scan(new ByteArrayInputStream(truncated)));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testScanNotPcap() throws Exception {
+        PcapScanner.scan(new ByteArrayInputStream(new byte[100]));
+    }
+
+    private void ensureTruncated(final PcapSummary summary) {
+        assertThat(summary.getRecordCount(), is((long) this.packets.size() - 1));
+        assertThat(summary.isTruncated(), is(true));
+    }
+
+    private void ensureSipp(final PcapSummary summary) {
+        long bytes = 0;
+        for (final Packet packet : this.packets) {
+            bytes += packet.getPayload().getReadableBytes();
+        }
+
+        assertThat(summary.getRecordCount(), is((long) this.packets.size()));
+        assertThat(summary.getCapturedBytes(), is(bytes));
+        assertThat(summary.getOriginalBytes(), is(bytes));
+        assertThat(summary.getFirstTimestamp(), is(this.packets.get(0).getArrivalTime()));
+        assertThat(summary.getLastTimestamp(), is(this.packets.get(this.packets.size() - 1).getArrivalTime()));
+        assertThat(summary.getDataLinkType(), is(1));
+        assertThat(summary.getSnapLengthViolations(), is(0L));
+        assertThat(summary.getSlicedRecords(), is(0L));
+        assertThat(summary.isTruncated(), is(false));
+    }
+}
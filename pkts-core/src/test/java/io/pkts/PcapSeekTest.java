@@ -0,0 +1,142 @@
+package io.pkts;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for seeking without an index, i.e. bisecting the file. We need a
+ * fairly large file for that so one is generated with random payloads, which
+ * also makes it hard for the resynchronisation to find the records.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public class PcapSeekTest {
+
+    private static final int RECORDS = 5000;
+
+    /**
+     * 2017-01-01 00:00:00 UTC
+     */
+    private static final long START = 1483228800L * 1000000L;
+
+    private Path pcap;
+
+    private long[] timestamps;
+
+    @Before
+    public void setUp() throws Exception {
+        this.pcap = Files.createTempFile("pkts", ".pcap");
+        this.timestamps = new long[RECORDS];
+
+        final Random random = new Random(42);
+        try (OutputStream out = Files.newOutputStream(this.pcap)) {
+            final ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0xa1b2c3d4).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0);
+            header.putInt(65535).putInt(1);
+            out.write(header.array());
+
+            long ts = START;
+            for (int i = 0; i < RECORDS; ++i) {
+                // a few records share the same timestamp
+                ts += random.nextInt(10) == 0 ? 0 : random.nextInt(5000);
+                this.timestamps[i] = ts;
+
+                final byte[] payload = new byte[60 + random.nextInt(1400)];
+                random.nextBytes(payload);
+                final ByteBuffer record = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+                record.putInt((int) (ts / 1000000L)).putInt((int) (ts % 1000000L));
+                record.putInt(payload.length).putInt(payload.length);
+                out.write(record.array());
+                out.write(payload);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(PcapIndex.sidecarOf(this.pcap));
+        Files.deleteIfExists(this.pcap);
+    }
+
+    @Test
+    public void testBisectMapped() throws Exception {
+        final Pcap pcap = Pcap.openMapped(this.pcap);
+        ensureSeek(pcap);
+        pcap.close();
+
+        // bisecting doesn't need an index and shouldn't leave one behind
+        assertThat(Files.exists(PcapIndex.sidecarOf(this.pcap)), is(false));
+    }
+
+    @Test
+    public void testBisectStream() throws Exception {
+        final Pcap pcap = Pcap.openStream(this.pcap.toFile());
+        ensureSeek(pcap);
+        pcap.close();
+    }
+
+    /**
+     * Same thing with the index should of course give the same result.
+     */
+    @Test
+    public void testIndex() throws Exception {
+        PcapIndex.build(this.pcap, 100).write(PcapIndex.sidecarOf(this.pcap));
+        final Pcap pcap = Pcap.openMapped(this.pcap);
+        ensureSeek(pcap);
+        pcap.close();
+    }
+
+    private void ensureSeek(final Pcap pcap) throws Exception {
+        final Random random = new Random(7);
+        for (int i = 0; i < 50; ++i) {
+            final int expected = random.nextInt(RECORDS);
+            pcap.seek(this.timestamps[expected]);
+            assertThat(first(pcap), is(this.timestamps[firstAtOrAfter(this.timestamps[expected])]));
+
+            // and something in between
+            final long between = this.timestamps[expected] + 1;
+            pcap.seek(between);
+            final int index = firstAtOrAfter(between);
+            assertThat(first(pcap), is(index < RECORDS ? this.timestamps[index] : -1L));
+        }
+
+        pcap.seek(0);
+        assertThat(first(pcap), is(START));
+
+        pcap.seek(this.timestamps[RECORDS - 1]);
+        assertThat(first(pcap), is(this.timestamps[RECORDS - 1]));
+    }
+
+    private int firstAtOrAfter(final long timestamp) {
+        for (int i = 0; i < RECORDS; ++i) {
+            if (this.timestamps[i] >= timestamp) {
+                return i;
+            }
+        }
+        return RECORDS;
+    }
+
+    /**
+     * @return the timestamp of the next packet or -1 if there are none.
+     */
+    private static long first(final Pcap pcap) throws Exception {
+        final long[] first = { -1 };
+        pcap.loop(packet -> {
+            first[0] = packet.getArrivalTime();
+            return false;
+        });
+        return first[0];
+    }
+
+}
@@ -0,0 +1,169 @@
+package io.pkts;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import io.pkts.frame.PcapGlobalHeader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class PcapSorterTest {
+
+    private byte[] sipp;
+
+    private PcapGlobalHeader header;
+
+    /**
+     * The raw records of the sipp capture, which is in order.
+     */
+    private List<byte[]> records;
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        final Path file = Paths.get(PktsTestBase.class.getResource("sipp.pcap").toURI());
+        this.sipp = Files.readAllBytes(file);
+        final Pcap pcap = Pcap.openStream(file.toFile());
+        this.header = pcap.getPcapHeader();
+        pcap.close();
+
+        this.records = new ArrayList<>();
+        final ByteBuffer buffer = ByteBuffer.wrap(this.sipp).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = PcapGlobalHeader.SIZE;
+        while (offset < this.sipp.length) {
+            final int length = 16 + buffer.getInt(offset + 8);
+            final byte[] record = new byte[length];
+            System.arraycopy(this.sipp, offset, record, 0, length);
+            this.records.add(record);
+            offset += length;
+        }
+
+        this.directory = Files.createTempDirectory("pkts");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            for (final Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(this.directory);
+    }
+
+    /**
+     * Every other pair of records swapped is well within the reorder window
+     * and should be sorted in a single pass.
+     */
+    @Test
+    public void testSortNearlySorted() throws Exception {
+        final List<byte[]> swapped = new ArrayList<>(this.records);
+        for (int i = 0; i + 1 < swapped.size(); i += 2) {
+            Collections.swap(swapped, i, i + 1);
+        }
+        final Path file = write(swapped);
+
+        final PcapSorter sorter = PcapSorter.with().withReorderWindow(1).build();
+        assertThat(sorter.isNearlySorted(file), is(true));
+        assertThat(sort(sorter, file), is(this.sipp));
+    }
+
+    /**
+     * A reorder window of zero turns the single pass off, even for a capture
+     * that already is sorted.
+     */
+    @Test
+    public void testSortNoReorderWindow() throws Exception {
+        final Path file = write(this.records);
+        assertThat(PcapSorter.with().withReorderWindow(1).build().isNearlySorted(file), is(true));
+
+        final PcapSorter sorter = PcapSorter.with().withReorderWindow(0).build();
+        assertThat(sorter.isNearlySorted(file), is(false));
+        assertThat(sort(sorter, file), is(this.sipp));
+    }
+
+    /**
+     * A reversed capture is as far from sorted as it gets and with a tiny
+     * memory limit every record ends up in a run of its own, which will have
+     * to be merged over several levels.
+     */
+    @Test
+    public void testSortExternal() throws Exception {
+        final List<byte[]> reversed = new ArrayList<>(this.records);
+        Collections.reverse(reversed);
+        final Path file = write(reversed);
+
+        final PcapSorter sorter = PcapSorter.with()
+                .withReorderWindow(4)
+                .withMemoryLimit(100)
+                .withMaxFanIn(2)
+                .withTempDirectory(this.directory)
+                .build();
+        assertThat(sorter.isNearlySorted(file), is(false));
+        assertThat(sort(sorter, file), is(this.sipp));
+
+        // all the runs should have been cleaned up
+        try (Stream<Path> files = Files.list(this.directory)) {
+            assertThat(files.count(), is(1L));
+        }
+    }
+
+    /**
+     * A stream can't be checked up front so it is always sorted in memory,
+     * or through runs if it doesn't fit.
+     */
+    @Test
+    public void testSortStream() throws Exception {
+        final List<byte[]> reversed = new ArrayList<>(this.records);
+        Collections.reverse(reversed);
+        final Pcap pcap = Pcap.openStream(new ByteArrayInputStream(toPcap(reversed)));
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PcapOutputStream out = PcapOutputStream.create(this.header, bytes);
+        PcapSorter.with().build().sort(pcap, out);
+        out.close();
+        pcap.close();
+        assertThat(bytes.toByteArray(), is(this.sipp));
+    }
+
+    private byte[] sort(final PcapSorter sorter, final Path file) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PcapOutputStream out = PcapOutputStream.create(this.header, bytes);
+        sorter.sort(file, out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private Path write(final List<byte[]> records) throws Exception {
+        final Path file = this.directory.resolve("unsorted.pcap");
+        Files.write(file, toPcap(records));
+        return file;
+    }
+
+    private byte[] toPcap(final List<byte[]> records) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(this.sipp, 0, PcapGlobalHeader.SIZE);
+        for (final byte[] record : records) {
+            out.write(record);
+        }
+        return out.toByteArray();
+    }
+}
@@ -1,15 +1,31 @@
 package io.pkts;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import io.pkts.buffer.PooledBufferAllocator;
 import io.pkts.packet.Packet;
 import io.pkts.packet.sip.SipPacket;
 import io.pkts.protocol.Protocol;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
 import org.junit.Before;
@@ -40,6 +56,433 @@ public class PcapTest extends PktsTestBase {
         assertThat(handler.count, is(30));
     }
 
+    @Test
+    public void testLoopMapped() throws Exception {
+        final Path file = Paths.get(PktsTestBase.class.getResource("sipp.pcap").toURI());
+        final Pcap pcap = Pcap.openMapped(file);
+        final FrameHandlerImpl handler = new FrameHandlerImpl();
+        pcap.loop(handler);
+        pcap.close();
+        assertThat(handler.count, is(30));
+    }
+
+    @Test
+    public void testLoopParallelMapped() throws Exception {
+        final Path file = createLargePcap();
+        try {
+            ensureParallelSameAsSequential(Pcap.openMapped(file), Pcap.openMapped(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testLoopParallelStream() throws Exception {
+        final Path file = createLargePcap();
+        try {
+            ensureParallelSameAsSequential(Pcap.openStream(file.toFile()), Pcap.openStream(file.toFile()));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * When the handler stops the parallel loop, the {@link Pcap} should be
+     * positioned right after the last packet it got.
+     */
+    @Test
+    public void testLoopParallelStop() throws Exception {
+        final Path file = createLargePcap();
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final Pcap pcap = Pcap.openMapped(file);
+            final List<Packet> first = new ArrayList<>();
+            pcap.loopParallel(packet -> {
+                first.add(packet);
+                return first.size() < 1000;
+            }, pool);
+
+            final List<Packet> rest = new ArrayList<>();
+            pcap.loop(packet -> rest.add(packet));
+            pcap.close();
+
+            assertThat(first.size(), is(1000));
+            assertThat(rest.size(), is(LARGE_PCAP_COPIES * 30 - 1000));
+            assertThat(rest.get(0).getPayload(), is(first.get(1000 % 30).getPayload()));
+        } finally {
+            pool.shutdown();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testLoopBatch() throws Exception {
+        final List<Packet> expected = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        pcap.loop(packet -> expected.add(packet));
+
+        final List<Packet> actual = new ArrayList<>();
+        final List<Integer> sizes = new ArrayList<>();
+        final Pcap batched = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        batched.loopBatch((packets, arrivalTimes, count) -> {
+            sizes.add(count);
+            for (int i = 0; i < count; ++i) {
+                assertThat(arrivalTimes[i], is(packets[i].getArrivalTime()));
+                actual.add(packets[i]);
+            }
+            return true;
+        }, 7);
+
+        assertThat(sizes, is(Arrays.asList(7, 7, 7, 7, 2)));
+        assertThat(actual.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); ++i) {
+            assertThat(actual.get(i).getArrivalTime(), is(expected.get(i).getArrivalTime()));
+            assertThat(actual.get(i).getPayload(), is(expected.get(i).getPayload()));
+        }
+    }
+
+    @Test
+    public void testLoopBatchStop() throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        final int[] batches = { 0 };
+        pcap.loopBatch((packets, arrivalTimes, count) -> ++batches[0] < 2, 10);
+        assertThat(batches[0], is(2));
+
+        // and we should be able to pick up where we left off
+        final int[] remaining = { 0 };
+        pcap.loop(packet -> ++remaining[0] > 0);
+        assertThat(remaining[0], is(10));
+    }
+
+    /**
+     * The packets are re-used, so the only way to hang on to them is to
+     * retain them, which should give us the same thing as a regular loop.
+     */
+    @Test
+    public void testLoopEphemeral() throws Exception {
+        final List<Packet> expected = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        pcap.loop(packet -> expected.add(packet));
+
+        final List<Packet> seen = new ArrayList<>();
+        final List<Packet> retained = new ArrayList<>();
+        final List<Packet> sip = new ArrayList<>();
+        final Pcap ephemeral = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        ephemeral.loopEphemeral(packet -> {
+            seen.add(packet);
+            assertThat(packet.getArrivalTime(), is(expected.get(retained.size()).getArrivalTime()));
+            retained.add(packet.retain());
+            sip.add(packet.getPacket(Protocol.SIP).retain());
+            return true;
+        });
+
+        assertThat(retained.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); ++i) {
+            assertThat(seen.get(i) == seen.get(0), is(true));
+            assertThat(retained.get(i).getArrivalTime(), is(expected.get(i).getArrivalTime()));
+            assertThat(retained.get(i).getPayload(), is(expected.get(i).getPayload()));
+            assertThat(sip.get(i).getProtocol(), is(Protocol.SIP));
+            assertThat(sip.get(i).getArrivalTime(), is(expected.get(i).getArrivalTime()));
+            assertThat(sip.get(i).getPayload(), is(expected.get(i).getPacket(Protocol.SIP).getPayload()));
+        }
+
+        // a regular packet doesn't need retaining
+        assertThat(expected.get(0).retain() == expected.get(0), is(true));
+    }
+
+    /**
+     * A parallel stream over a file should be split into many pieces and
+     * yet give us all the packets in order.
+     */
+    @Test
+    public void testStreamParallel() throws Exception {
+        final Path file = createLargePcap();
+        try {
+            final List<Packet> expected = new ArrayList<>();
+            final Pcap sequential = Pcap.openStream(file.toFile());
+            sequential.loop(packet -> expected.add(packet));
+            sequential.close();
+
+            final Pcap pcap = Pcap.openMapped(file);
+            final List<Packet> actual = pcap.stream().parallel().collect(Collectors.toList());
+            assertThat(pcap.stream().parallel().filter(packet -> {
+                try {
+                    return packet.hasProtocol(Protocol.SIP);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).count(), is((long) expected.size()));
+            pcap.close();
+
+            assertThat(actual.size(), is(expected.size()));
+            for (int i = 0; i < expected.size(); ++i) {
+                assertThat(actual.get(i).getArrivalTime(), is(expected.get(i).getArrivalTime()));
+                assertThat(actual.get(i).getPayload(), is(expected.get(i).getPayload()));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Off of a plain stream the packets are pulled off of the pcap itself so
+     * short-circuiting leaves the rest for whoever comes next.
+     */
+    @Test
+    public void testStreamShortCircuit() throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        assertThat(pcap.stream().limit(10).count(), is(10L));
+        assertThat(pcap.stream().count(), is(20L));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLoopParallelNotAFile() throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        pcap.loopParallel(packet -> true);
+    }
+
+    private static void ensureParallelSameAsSequential(final Pcap parallel, final Pcap sequential)
+            throws Exception {
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        final List<Packet> actual = new ArrayList<>();
+        try {
+            parallel.loopParallel(packet -> actual.add(packet), pool);
+            parallel.close();
+        } finally {
+            pool.shutdown();
+        }
+
+        final List<Packet> expected = new ArrayList<>();
+        sequential.loop(packet -> expected.add(packet));
+        sequential.close();
+
+        assertThat(actual.size(), is(LARGE_PCAP_COPIES * 30));
+        assertThat(actual.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); ++i) {
+            assertThat(actual.get(i).getArrivalTime(), is(expected.get(i).getArrivalTime()));
+            assertThat(actual.get(i).getPayload(), is(expected.get(i).getPayload()));
+            assertThat(actual.get(i).hasProtocol(Protocol.SIP), is(true));
+
+            // the packets were framed on the pool so there's nothing left to frame
+            final Packet sip = actual.get(i).getPacket(Protocol.SIP);
+            assertThat(actual.get(i).getPacket(Protocol.SIP), sameInstance(sip));
+        }
+    }
+
+    private static final int LARGE_PCAP_COPIES = 200;
+
+    /**
+     * sipp.pcap is way too small to be cut into chunks so create a new pcap
+     * with the records of sipp.pcap repeated over and over again.
+     */
+    private static Path createLargePcap() throws Exception {
+        final byte[] sipp = Files.readAllBytes(Paths.get(PktsTestBase.class.getResource("sipp.pcap").toURI()));
+        final Path file = Files.createTempFile("pkts", ".pcap");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(sipp, 0, 24);
+            for (int i = 0; i < LARGE_PCAP_COPIES; ++i) {
+                out.write(Arrays.copyOfRange(sipp, 24, sipp.length));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * The packets read off of a mapped file must be exactly the same as the
+     * ones read off of a regular stream.
+     */
+    @Test
+    public void testMappedSameAsStream() throws Exception {
+        final List<Packet> expected = new ArrayList<>();
+        final Pcap stream = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        stream.loop(packet -> expected.add(packet));
+
+        final List<Packet> actual = new ArrayList<>();
+        final Pcap mapped = Pcap.openMapped(Paths.get(PktsTestBase.class.getResource("sipp.pcap").toURI()));
+        mapped.loop(packet -> actual.add(packet));
+        mapped.close();
+
+        assertThat(actual.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); ++i) {
+            assertThat(actual.get(i).getArrivalTime(), is(expected.get(i).getArrivalTime()));
+            assertThat(actual.get(i).getPayload(), is(expected.get(i).getPayload()));
+        }
+    }
+
+    /**
+     * If we aren't allowed to write to the file, the mapping is read-only.
+     * Writing the packets, or parts of them, must still work and must not
+     * try to change them.
+     */
+    @Test
+    public void testMappedReadOnly() throws Exception {
+        final Path file = Paths.get(PktsTestBase.class.getResource("sipp.pcap").toURI());
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final Pcap stream = Pcap.openStream(file.toFile());
+        final PcapOutputStream expectedOut = stream.createOutputStream(expected);
+        stream.loop(packet -> {
+            expectedOut.write(packet.getPacket(Protocol.UDP));
+            return true;
+        });
+        expectedOut.close();
+        stream.close();
+
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        final Pcap mapped = Pcap.openMapped(FileChannel.open(file, StandardOpenOption.READ), file);
+        final PcapOutputStream actualOut = mapped.createOutputStream(actual);
+        mapped.loop(packet -> {
+            assertThat(packet.getPayload().hasWriteSupport(), is(false));
+            actualOut.write(packet.getPacket(Protocol.UDP));
+            return true;
+        });
+        actualOut.close();
+        mapped.close();
+
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    /**
+     * With a pool, the memory of every record is recycled as soon as the
+     * handler is done with it, unless the handler retained the packet.
+     */
+    @Test
+    public void testLoopPooled() throws Exception {
+        final List<Packet> expected = new ArrayList<>();
+        final Pcap stream = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        stream.loop(packet -> expected.add(packet));
+
+        final PooledBufferAllocator allocator = PooledBufferAllocator.with().withLeakDetection(true).build();
+        final Pcap pooled = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"), allocator);
+        final List<Packet> seen = new ArrayList<>();
+        final List<Packet> retained = new ArrayList<>();
+        pooled.loop(packet -> {
+            final Packet sip = packet.getPacket(Protocol.SIP);
+            assertThat(sip.getPayload(), is(expected.get(seen.size()).getPacket(Protocol.SIP).getPayload()));
+            if (seen.size() % 10 == 0) {
+                retained.add(sip.retain());
+            }
+            seen.add(packet);
+            return true;
+        });
+
+        // every record needs two arrays, one for the header and one for the
+        // payload, and without the pool that would have been 60 of them. With
+        // it, we need one per size class plus the ones we hang on to.
+        assertThat(seen.size(), is(30));
+        assertThat(allocator.getAllocatedArrays() < 16, is(true));
+
+        // the retained packets must not have been overwritten by later records
+        assertThat(retained.size(), is(3));
+        for (int i = 0; i < retained.size(); ++i) {
+            final Packet sip = expected.get(i * 10).getPacket(Protocol.SIP);
+            assertThat(retained.get(i).getPayload(), is(sip.getPayload()));
+            assertThat(retained.get(i).release(), is(true));
+        }
+        assertThat(allocator.getLeaks(), is(0L));
+    }
+
+    /**
+     * A stream of pooled packets releases every packet once it is done with
+     * it, so anything that is to outlive the stream has to be retained.
+     */
+    @Test
+    public void testStreamPooled() throws Exception {
+        final List<Packet> expected = new ArrayList<>();
+        final Pcap stream = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        stream.loop(packet -> expected.add(packet));
+
+        final PooledBufferAllocator allocator = PooledBufferAllocator.with().withLeakDetection(true).build();
+        final Pcap pooled = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"), allocator);
+        final List<Packet> retained = pooled.stream().parallel()
+                .filter(packet -> packet.getArrivalTime() == expected.get(29).getArrivalTime())
+                .map(packet -> {
+                    try {
+                        return packet.retain();
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .collect(Collectors.toList());
+        pooled.close();
+
+        assertThat(allocator.getAllocatedArrays() < 16, is(true));
+        assertThat(retained.size(), is(1));
+        assertThat(retained.get(0).getPayload(), is(expected.get(29).getPayload()));
+        assertThat(retained.get(0).release(), is(true));
+        assertThat(allocator.getLeaks(), is(0L));
+    }
+
+    /**
+     * Gzipped captures should be inflated transparently, be it off of a
+     * stream or a file.
+     */
+    @Test
+    public void testGzip() throws Exception {
+        final Path file = createLargePcap();
+        final Path gzipped = Files.createTempFile("pkts", ".pcap.gz");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzipped))) {
+                Files.copy(file, out);
+            }
+
+            final List<Packet> expected = new ArrayList<>();
+            final Pcap pcap = Pcap.openStream(file.toFile());
+            pcap.loop(packet -> expected.add(packet));
+            pcap.close();
+
+            final Pcap fromFile = Pcap.openStream(gzipped.toFile());
+            ensureSame(fromFile, expected);
+            fromFile.close();
+
+            try (InputStream stream = Files.newInputStream(gzipped)) {
+                final Pcap fromStream = Pcap.openStream(stream);
+                ensureSame(fromStream, expected);
+                fromStream.close();
+            }
+
+            // stopping half way through and closing should be fine as well
+            final Pcap stopped = Pcap.openStream(gzipped.toFile());
+            stopped.loop(packet -> false);
+            stopped.close();
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(gzipped);
+        }
+    }
+
+    /**
+     * Reading ahead with blocks much smaller than the capture itself, so that
+     * we go around the ring of blocks many times.
+     */
+    @Test
+    public void testReadAhead() throws Exception {
+        final Path file = createLargePcap();
+        try {
+            final List<Packet> expected = new ArrayList<>();
+            final Pcap pcap = Pcap.openStream(file.toFile());
+            pcap.loop(packet -> expected.add(packet));
+            pcap.close();
+
+            try (InputStream stream = Files.newInputStream(file)) {
+                final Pcap readAhead = Pcap.openStream(stream, 3, 4096);
+                ensureSame(readAhead, expected);
+                readAhead.close();
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void ensureSame(final Pcap pcap, final List<Packet> expected) throws Exception {
+        final List<Packet> actual = new ArrayList<>();
+        pcap.loop(packet -> actual.add(packet));
+        assertThat(actual.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); ++i) {
+            assertThat(actual.get(i).getArrivalTime(), is(expected.get(i).getArrivalTime()));
+            assertThat(actual.get(i).getPayload(), is(expected.get(i).getPayload()));
+        }
+    }
+
     @Test
     public void testWritesPackets() throws Exception {
         final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
@@ -0,0 +1,155 @@
+package io.pkts;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import io.pkts.packet.Packet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class RotatingPcapWriterTest extends PktsTestBase {
+
+    private Path directory;
+
+    private List<Packet> sipp;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.directory = Files.createTempDirectory("pkts");
+        this.sipp = load(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testRotateOnPackets() throws Exception {
+        final RotatingPcapWriter writer = builder().withMaxPackets(7).build();
+        writeAll(writer);
+
+        assertThat(writer.getFiles().size(), is(5));
+        assertThat(load(writer.getFiles().get(0)).size(), is(7));
+        assertThat(load(writer.getFiles().get(4)).size(), is(2));
+        assertThat(writer.getFiles().get(1).getFileName().toString(), is("sipp-00001.pcap"));
+        ensureSame(writer.getFiles());
+    }
+
+    @Test
+    public void testRotateOnSize() throws Exception {
+        final long max = 4096;
+        final RotatingPcapWriter writer = builder().withMaxFileSize(max).withBufferSize(1024).build();
+        writeAll(writer);
+
+        assertThat(writer.getFiles().size() > 1, is(true));
+        for (final Path file : writer.getFiles()) {
+            assertThat(Files.size(file) <= max, is(true));
+        }
+        ensureSame(writer.getFiles());
+    }
+
+    @Test
+    public void testRotateOnTime() throws Exception {
+        final long start = this.sipp.get(0).getArrivalTime();
+        final long end = this.sipp.get(this.sipp.size() - 1).getArrivalTime();
+        final long duration = (end - start) / 1000L / 3 + 1;
+        final RotatingPcapWriter writer = builder().withMaxDuration(duration, TimeUnit.MILLISECONDS).build();
+        writeAll(writer);
+
+        assertThat(writer.getFiles().size() >= 3, is(true));
+        for (final Path file : writer.getFiles()) {
+            final List<Packet> packets = load(file);
+            final long first = packets.get(0).getArrivalTime();
+            final long last = packets.get(packets.size() - 1).getArrivalTime();
+            assertThat(last - first < duration * 1000L, is(true));
+        }
+        ensureSame(writer.getFiles());
+    }
+
+    /**
+     * No rotation at all, i.e. everything ends up in a single file, and the
+     * writer should be usable after a flush.
+     */
+    @Test
+    public void testFlush() throws Exception {
+        final RotatingPcapWriter writer = builder().build();
+        writer.write(this.sipp.get(0));
+        writer.flush();
+        assertThat(load(writer.getFiles().get(0)).size(), is(1));
+
+        for (int i = 1; i < this.sipp.size(); ++i) {
+            writer.write(this.sipp.get(i));
+        }
+        writer.close();
+        assertThat(writer.getFiles().size(), is(1));
+        assertThat(writer.getDroppedPackets(), is(0L));
+        ensureSame(writer.getFiles());
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteAfterClose() throws Exception {
+        final RotatingPcapWriter writer = builder().build();
+        writer.close();
+        writer.write(this.sipp.get(0));
+    }
+
+    private RotatingPcapWriter.Builder builder() {
+        return RotatingPcapWriter.with(this.defaultPcapHeader)
+                .withFilePattern(this.directory.resolve("sipp-%1$05d.pcap").toString());
+    }
+
+    private void writeAll(final RotatingPcapWriter writer) throws Exception {
+        for (final Packet packet : this.sipp) {
+            writer.write(packet);
+        }
+        writer.close();
+    }
+
+    /**
+     * All the files together should be the original capture.
+     */
+    private void ensureSame(final List<Path> files) throws Exception {
+        final List<Packet> packets = new ArrayList<>();
+        for (final Path file : files) {
+            packets.addAll(load(file));
+        }
+
+        assertThat(packets.size(), is(this.sipp.size()));
+        for (int i = 0; i < packets.size(); ++i) {
+            assertThat(packets.get(i).getArrivalTime(), is(this.sipp.get(i).getArrivalTime()));
+            assertThat(packets.get(i).getPayload(), is(this.sipp.get(i).getPayload()));
+        }
+    }
+
+    private static List<Packet> load(final Path file) throws Exception {
+        return load(Files.newInputStream(file));
+    }
+
+    private static List<Packet> load(final InputStream stream) throws Exception {
+        final List<Packet> packets = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(stream);
+        pcap.loop(packet -> packets.add(packet));
+        pcap.close();
+        return packets;
+    }
+}
@@ -6,6 +6,10 @@ package io.pkts.frame;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
+import io.pkts.buffer.Buffers;
+
+import java.nio.ByteOrder;
+
 import org.junit.Test;
 
 /**
@@ -34,4 +38,13 @@ public class PcapRecordHeaderTest {
         assertThat(header.getCapturedLength(), is(123456L));
     }
 
+    @Test
+    public void testSetLengthBigEndian() {
+        final PcapRecordHeader header = new PcapRecordHeader(ByteOrder.BIG_ENDIAN, Buffers.wrap(new byte[16]));
+        header.setCapturedLength(54);
+        header.setTotalLength(214);
+        assertThat(header.getCapturedLength(), is(54L));
+        assertThat(header.getTotalLength(), is(214L));
+    }
+
 }
@@ -0,0 +1,232 @@
+package io.pkts.framer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import io.pkts.Pcap;
+import io.pkts.PktsTestBase;
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.packet.PCapPacket;
+import io.pkts.protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The pcapng captures are built on the fly out of the packets in sipp.pcap so
+ * that we can compare the two.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public class PcapNgFramerTest extends PktsTestBase {
+
+    private List<PCapPacket> expected;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.expected = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        pcap.loop(packet -> this.expected.add((PCapPacket) packet));
+        pcap.close();
+    }
+
+    @Test
+    public void testLittleEndianMicroseconds() throws Exception {
+        final byte[] pcapng = createPcapNg(ByteOrder.LITTLE_ENDIAN, 6, 0);
+        ensureSameAsExpected(Pcap.openStream(new ByteArrayInputStream(pcapng)), false);
+    }
+
+    @Test
+    public void testBigEndianNanoseconds() throws Exception {
+        final byte[] pcapng = createPcapNg(ByteOrder.BIG_ENDIAN, 9, 0);
+        ensureSameAsExpected(Pcap.openStream(new ByteArrayInputStream(pcapng)), true);
+    }
+
+    /**
+     * The unknown block is larger than what the stream buffer can hold so
+     * unless it is skipped it would blow up.
+     */
+    @Test
+    public void testSkipLargeUnknownBlock() throws Exception {
+        final byte[] pcapng = createPcapNg(ByteOrder.LITTLE_ENDIAN, 6, 300000);
+        ensureSameAsExpected(Pcap.openStream(new ByteArrayInputStream(pcapng)), false);
+    }
+
+    @Test
+    public void testMapped() throws Exception {
+        final Path file = Files.createTempFile("pkts", ".pcapng");
+        try {
+            Files.write(file, createPcapNg(ByteOrder.LITTLE_ENDIAN, 9, 1000));
+            ensureSameAsExpected(Pcap.openMapped(file), true);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testHeaderFromInterface() throws Exception {
+        final Pcap pcap = Pcap.openStream(new ByteArrayInputStream(createPcapNg(ByteOrder.BIG_ENDIAN, 9, 0)));
+        assertThat(pcap.getPcapHeader().getDataLinkType(), is(1));
+        assertThat(pcap.getPcapHeader().getSnapLength(), is(65535L));
+        assertThat(pcap.getPcapHeader().timestampsInNs(), is(true));
+    }
+
+    @Test
+    public void testNotAPcapNg() throws Exception {
+        try {
+            new PcapNgFramer().readSectionHeader(Buffers.wrap(new byte[] { 1, 0, 0, 0, 12, 0, 0, 0 }));
+            fail("Expected a FramingException");
+        } catch (final FramingException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A capture that was cut short in the middle of a block should end at the
+     * last complete packet, no matter how much of the block made it.
+     */
+    @Test
+    public void testTruncated() throws Exception {
+        final byte[] pcapng = createPcapNg(ByteOrder.LITTLE_ENDIAN, 6, 0);
+
+        // the simple packet block is at the very end and is at least 20 bytes
+        for (final int missing : new int[] { 1, 4, 9, 16, 20 }) {
+            final byte[] truncated = Arrays.copyOf(pcapng, pcapng.length - missing);
+            assertThat(count(Pcap.openStream(new ByteArrayInputStream(truncated))), is(this.expected.size()));
+
+            final Path file = Files.createTempFile("pkts", ".pcapng");
+            try {
+                Files.write(file, truncated);
+                assertThat(count(Pcap.openMapped(file)), is(this.expected.size()));
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void testAccept() throws Exception {
+        final PcapNgFramer framer = new PcapNgFramer();
+        final Buffer buffer = Buffers.wrap(createPcapNg(ByteOrder.BIG_ENDIAN, 9, 0));
+        assertThat(framer.accept(buffer), is(true));
+        assertThat(buffer.getReaderIndex(), is(0));
+
+        // packet blocks are of no use until we know of an interface
+        framer.readSectionHeader(buffer);
+        final Buffer packets = buffer.slice();
+        assertThat(new PcapNgFramer().accept(packets), is(false));
+        assertThat(framer.accept(packets), is(true));
+
+        assertThat(framer.accept(Buffers.wrap(createPcapNg(ByteOrder.LITTLE_ENDIAN, 6, 0))), is(true));
+        assertThat(framer.accept(Buffers.wrap(new byte[] { 0x0A, 0x0D, 0x0D, 0x0A, 0, 0, 0, 28 })), is(false));
+        assertThat(framer.accept(Buffers.wrap(new byte[] { 0x0A, 0x0D, 0x0D, 0x0A, 0, 0, 0, 28, 1, 2, 3, 4 })),
+                is(false));
+        assertThat(framer.accept(Buffers.wrap(new byte[] { 0, 0, 0, 6, 0, 0, 0, 13 })), is(false));
+        assertThat(new PcapNgFramer().accept(Buffers.wrap(Files.readAllBytes(Paths.get(PktsTestBase.class.getResource(
+                "sipp.pcap").toURI())))), is(false));
+    }
+
+    private static int count(final Pcap pcap) throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        pcap.loop(packet -> count.incrementAndGet() >= 0);
+        pcap.close();
+        return count.get();
+    }
+
+    private void ensureSameAsExpected(final Pcap pcap, final boolean ns) throws Exception {
+        final List<PCapPacket> actual = new ArrayList<>();
+        pcap.loop(packet -> actual.add((PCapPacket) packet));
+        pcap.close();
+
+        // all the enhanced packet blocks plus the simple packet block at the end
+        assertThat(actual.size(), is(this.expected.size() + 1));
+        for (int i = 0; i < this.expected.size(); ++i) {
+            final PCapPacket e = this.expected.get(i);
+            final PCapPacket a = actual.get(i);
+            final long multiplier = ns ? 1000 : 1;
+            assertThat(a.getArrivalTime(), is(e.getArrivalTime() * multiplier));
+            assertThat(a.getPayload(), is(e.getPayload()));
+            assertThat(a.getTotalLength(), is(e.getTotalLength()));
+            assertThat(a.hasProtocol(Protocol.SIP), is(true));
+        }
+
+        final PCapPacket simple = actual.get(actual.size() - 1);
+        assertThat(simple.getArrivalTime(), is(0L));
+        assertThat(simple.getPayload(), is(this.expected.get(0).getPayload()));
+    }
+
+    /**
+     * Create a pcapng capture with a section header block, an interface
+     * description block (with an unknown option), an optional unknown block,
+     * all the packets of sipp.pcap as enhanced packet blocks and finally the
+     * first packet again as a simple packet block.
+     */
+    private byte[] createPcapNg(final ByteOrder order, final int tsresol, final int unknownBlockSize)
+            throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        final ByteBuffer shb = ByteBuffer.allocate(28).order(order);
+        shb.putInt(PcapNgFramer.SECTION_HEADER_BLOCK).putInt(28).putInt(0x1A2B3C4D);
+        shb.putShort((short) 1).putShort((short) 0).putLong(-1L).putInt(28);
+        out.write(shb.array());
+
+        final ByteBuffer idb = ByteBuffer.allocate(40).order(order);
+        idb.putInt(PcapNgFramer.INTERFACE_DESCRIPTION_BLOCK).putInt(40);
+        idb.putShort((short) 1).putShort((short) 0).putInt(65535);
+        idb.putShort((short) 2).putShort((short) 3).put(new byte[] { 'e', 't', 'h', 0 });
+        idb.putShort((short) 9).putShort((short) 1).put((byte) tsresol).put(new byte[3]);
+        idb.putShort((short) 0).putShort((short) 0).putInt(40);
+        out.write(idb.array());
+
+        if (unknownBlockSize > 0) {
+            final ByteBuffer unknown = ByteBuffer.allocate(unknownBlockSize + 12).order(order);
+            unknown.putInt(0x0BAD).putInt(unknownBlockSize + 12);
+            unknown.position(unknownBlockSize + 8);
+            unknown.putInt(unknownBlockSize + 12);
+            out.write(unknown.array());
+        }
+
+        final long unitsPerSecond = tsresol == 9 ? 1000000000L : 1000000L;
+        for (final PCapPacket packet : this.expected) {
+            final byte[] data = packet.getPayload().getArray();
+            final int padded = data.length + 3 & ~3;
+            final int length = 32 + padded;
+            final long ts = packet.getArrivalTime() * (unitsPerSecond / 1000000L);
+            final ByteBuffer epb = ByteBuffer.allocate(length).order(order);
+            epb.putInt(PcapNgFramer.ENHANCED_PACKET_BLOCK).putInt(length).putInt(0);
+            epb.putInt((int) (ts >>> 32)).putInt((int) ts);
+            epb.putInt(data.length).putInt((int) packet.getTotalLength());
+            epb.put(data);
+            epb.position(length - 4);
+            epb.putInt(length);
+            out.write(epb.array());
+        }
+
+        final byte[] data = this.expected.get(0).getPayload().getArray();
+        final int length = 16 + (data.length + 3 & ~3);
+        final ByteBuffer spb = ByteBuffer.allocate(length).order(order);
+        spb.putInt(PcapNgFramer.SIMPLE_PACKET_BLOCK).putInt(length).putInt(data.length).put(data);
+        spb.position(length - 4);
+        spb.putInt(length);
+        out.write(spb.array());
+
+        return out.toByteArray();
+    }
+
+}
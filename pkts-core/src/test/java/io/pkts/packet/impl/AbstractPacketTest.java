@@ -0,0 +1,53 @@
+package io.pkts.packet.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import io.pkts.PktsTestBase;
+import io.pkts.packet.Packet;
+import io.pkts.protocol.Protocol;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class AbstractPacketTest extends PktsTestBase {
+
+    /**
+     * Unless the packet has been framed up front, every layer is framed anew
+     * every time you ask for it.
+     */
+    @Test
+    public void testGetPacketFramesAnew() throws Exception {
+        final Packet packet = loadStream("sipp.pcap").get(0);
+        final Packet sip = packet.getPacket(Protocol.SIP);
+        assertThat(sip, notNullValue());
+        assertThat(packet.getPacket(Protocol.SIP), not(sameInstance(sip)));
+        assertThat(packet.getPacket(Protocol.UDP), not(sameInstance(packet.getPacket(Protocol.UDP))));
+    }
+
+    @Test
+    public void testFrameAll() throws Exception {
+        final List<Packet> packets = loadStream("sipp.pcap");
+        for (final Packet packet : packets) {
+            ((AbstractPacket) packet).frameAll();
+            final Packet sip = packet.getPacket(Protocol.SIP);
+            assertThat(sip, notNullValue());
+            assertThat(packet.getPacket(Protocol.SIP), sameInstance(sip));
+
+            // and every layer in between is the one sip was framed out of
+            final Packet udp = packet.getPacket(Protocol.UDP);
+            assertThat(sip.getParentPacket(), sameInstance(udp));
+            assertThat(udp.getPacket(Protocol.SIP), sameInstance(sip));
+            assertThat(packet.getPacket(Protocol.IPv4).getPacket(Protocol.UDP), sameInstance(udp));
+            assertThat(packet.hasProtocol(Protocol.TCP), is(false));
+        }
+    }
+
+}
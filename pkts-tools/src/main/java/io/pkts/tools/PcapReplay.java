@@ -0,0 +1,119 @@
+package io.pkts.tools;
+
+import io.pkts.Pcap;
+import io.pkts.PcapReplayer;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+
+/**
+ * Replays the UDP packets of a capture to a single endpoint, see
+ * {@link PcapReplayer}.
+ *
+ * <pre>
+ * PcapReplay &lt;pcap-file&gt; &lt;host:port&gt; [speed|max]
+ * </pre>
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class PcapReplay {
+
+    private static final String USAGE = "Usage: PcapReplay <pcap-file> <host:port> [speed|max]";
+
+    private PcapReplay() {
+        // main only
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 2 || args.length > 3) {
+            usage(null);
+        }
+
+        final File file = new File(args[0]);
+        if (!file.isFile()) {
+            usage("No such file \"" + args[0] + "\"");
+        }
+
+        final InetSocketAddress endpoint = parseEndpoint(args[1]);
+        if (endpoint == null) {
+            usage("The endpoint must be a known host and a port, e.g. 127.0.0.1:5060, not \"" + args[1] + "\"");
+        }
+
+        final PcapReplayer.Builder builder = PcapReplayer.with().withDefaultEndpoint(endpoint);
+        if (args.length > 2) {
+            final double speed = parseSpeed(args[2]);
+            if (speed <= 0) {
+                usage("The speed must be a positive number or \"max\", not \"" + args[2] + "\"");
+            }
+            builder.withSpeed(speed);
+        }
+
+        final Pcap pcap = Pcap.openStream(file);
+        final long sent;
+        try {
+            sent = builder.build().replay(pcap);
+        } finally {
+            pcap.close();
+        }
+        System.out.println("Sent " + sent + " packets to " + endpoint);
+    }
+
+    /**
+     * Parse an endpoint given as host:port, where the host may be an IPv6
+     * address within brackets, e.g. [::1]:5060.
+     *
+     * @return the endpoint or null if it isn't on the form host:port.
+     */
+    private static InetSocketAddress parseEndpoint(final String value) {
+        final int colon = value.lastIndexOf(':');
+        if (colon <= 0 || colon == value.length() - 1) {
+            return null;
+        }
+
+        String host = value.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        if (host.isEmpty() || host.indexOf(':') != -1 && !value.startsWith("[")) {
+            return null;
+        }
+
+        final int port;
+        try {
+            port = Integer.parseInt(value.substring(colon + 1));
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+        if (port < 1 || port > 0xFFFF) {
+            return null;
+        }
+
+        final InetSocketAddress endpoint = new InetSocketAddress(host, port);
+        return endpoint.isUnresolved() ? null : endpoint;
+    }
+
+    /**
+     * @return the speed or -1 if it isn't a number nor "max".
+     */
+    private static double parseSpeed(final String value) {
+        if ("max".equalsIgnoreCase(value)) {
+            return PcapReplayer.MAX_SPEED;
+        }
+
+        try {
+            final double speed = Double.parseDouble(value);
+            return Double.isNaN(speed) ? -1 : speed;
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void usage(final String error) {
+        if (error != null) {
+            System.err.println("ERROR: " + error);
+        }
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+
+}